@@ -0,0 +1,97 @@
+package com.github.bfg.eureka.dns;
+
+import com.netflix.appinfo.DataCenterInfo;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.MyDataCenterInfo;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+
+/**
+ * Generates synthetic eureka registries of given size for benchmarks.
+ */
+final class BenchmarkRegistry {
+    /**
+     * DNS domain used by benchmarks.
+     */
+    static final String DOMAIN = "eureka";
+
+    /**
+     * Number of IPv4 instances of each generated application.
+     */
+    static final int IPV4_INSTANCES = 3;
+
+    /**
+     * Number of IPv6 instances of each generated application.
+     */
+    static final int IPV6_INSTANCES = 1;
+
+    private static final DataCenterInfo DATACENTER_INFO = new MyDataCenterInfo(DataCenterInfo.Name.MyOwn);
+
+    private BenchmarkRegistry() {
+    }
+
+    /**
+     * Creates fake eureka client with given number of applications named {@code svc0...svcN}, each of them having
+     * {@link #IPV4_INSTANCES} IPv4 and {@link #IPV6_INSTANCES} IPv6 instances.
+     *
+     * @param numApps number of applications
+     * @return fake eureka client
+     */
+    static FakeEurekaClient eurekaClient(int numApps) {
+        Applications apps = new Applications();
+        for (int i = 0; i < numApps; i++) {
+            String appName = appName(i);
+            Application app = new Application(appName);
+            for (int j = 0; j < IPV4_INSTANCES; j++) {
+                app.addInstance(instance(appName, "10." + ((i >> 8) & 0xff) + "." + (i & 0xff) + "." + (j + 1), j));
+            }
+            for (int j = 0; j < IPV6_INSTANCES; j++) {
+                app.addInstance(instance(appName, "2001:db8::" + Integer.toHexString(i) + ":" + (j + 1),
+                        IPV4_INSTANCES + j));
+            }
+            apps.addApplication(app);
+        }
+        return new FakeEurekaClient().setApplications("default", apps);
+    }
+
+    /**
+     * Returns service query name of n-th generated application.
+     *
+     * @param idx application index
+     * @return query name
+     */
+    static String serviceName(int idx) {
+        return appName(idx).toLowerCase() + ".service." + DOMAIN + ".";
+    }
+
+    /**
+     * Creates server configuration serving given registry.
+     *
+     * @param numApps number of applications
+     * @return server configuration
+     */
+    static DnsServerConfig config(int numApps) {
+        return new DnsServerConfig()
+                .setEurekaClient(eurekaClient(numApps))
+                .setDomain(DOMAIN)
+                .setMaxResponses(5);
+    }
+
+    private static String appName(int idx) {
+        return "SVC" + idx;
+    }
+
+    private static InstanceInfo instance(String appName, String ip, int idx) {
+        String hostname = "host-" + idx + "." + appName.toLowerCase() + ".example.com";
+        return InstanceInfo.Builder.newBuilder()
+                .setInstanceId(hostname + ":" + appName + ":8080")
+                .setAppName(appName)
+                .setVIPAddress(appName)
+                .setHostName(hostname)
+                .setIPAddr(ip)
+                .setPort(8080)
+                .setDataCenterInfo(DATACENTER_INFO)
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+    }
+}
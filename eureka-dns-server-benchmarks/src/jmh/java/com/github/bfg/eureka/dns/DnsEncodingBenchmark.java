@@ -0,0 +1,143 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of encoding DNS names and resource records of answer record types.
+ *
+ * <p>Run with: {@code ./gradlew eureka-dns-server-benchmarks:jmh -Pjmh.includes=DnsEncoding}</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DnsEncodingBenchmark {
+    private static final String NAME = BenchmarkRegistry.serviceName(0);
+    private static final String TARGET = "host-0.svc0.example.com";
+    private static final int TTL = 5;
+    private static final int NUM_RECORDS = 4;
+
+    @Param({"A", "AAAA", "SRV", "TXT"})
+    public String type;
+
+    private DnsRecordType recordType;
+    private byte[] rdata;
+    private DnsRawRecord record;
+    private ByteBuf buf;
+
+    @Setup
+    public void setup() {
+        recordType = DnsRecordType.valueOf(type);
+        rdata = rdata(recordType);
+        record = new DefaultDnsRawRecord(NAME, recordType, TTL, Unpooled.wrappedBuffer(rdata));
+        buf = PooledByteBufAllocator.DEFAULT.ioBuffer(DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buf.release();
+        record.release();
+    }
+
+    /**
+     * Uncompressed name encoding using {@link String#split(String)}.
+     */
+    @Benchmark
+    public int encodeName() {
+        buf.clear();
+        return DnsMessages.encodeName(NAME, buf).writerIndex();
+    }
+
+    /**
+     * Uncompressed name encoding by {@link DnsNameCompressor}, which also remembers written labels.
+     */
+    @Benchmark
+    public int writeName() {
+        buf.clear();
+        return DnsNameCompressor.get(buf).writeName(NAME, buf, false).writerIndex();
+    }
+
+    /**
+     * Question name followed by an answer name that is replaced by pointer to the question name.
+     */
+    @Benchmark
+    public int writeCompressedName() {
+        buf.clear();
+        DnsNameCompressor compressor = DnsNameCompressor.get(buf);
+        compressor.writeName(NAME, buf);
+        return compressor.writeName(NAME, buf).writerIndex();
+    }
+
+    /**
+     * Complete response containing {@value #NUM_RECORDS} answers written from pre-encoded RDATA, as done for
+     * service queries.
+     */
+    @Benchmark
+    public int writeResponse() {
+        buf.clear();
+        DnsResponseWriter writer = DnsResponseWriter.get(buf, DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE, 0)
+                .header(42, DnsResponseWriter.RESPONSE_FLAG)
+                .question(NAME, recordType, DnsRecord.CLASS_IN);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            writer.addRecord(DnsSection.ANSWER, NAME, recordType, TTL, rdata);
+        }
+        return writer.finish().writerIndex();
+    }
+
+    /**
+     * Single record encoded from netty record object, as done for responses that aren't written directly.
+     */
+    @Benchmark
+    public int encodeRecord() {
+        buf.clear();
+        DnsMessages.encodeRecord(record, DnsNameCompressor.get(buf), buf);
+        return buf.writerIndex();
+    }
+
+    private static byte[] rdata(DnsRecordType type) {
+        if (DnsRecordType.A.equals(type)) {
+            return new byte[]{10, 0, 0, 1};
+        } else if (DnsRecordType.AAAA.equals(type)) {
+            return new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+        } else if (DnsRecordType.SRV.equals(type)) {
+            ByteBuf srv = Unpooled.buffer();
+            srv.writeShort(ServiceEntry.SRV_PRIORITY);
+            srv.writeShort(ServiceEntry.SRV_WEIGHT);
+            srv.writeShort(8080);
+            DnsMessages.encodeName(TARGET, srv);
+            return toArray(srv);
+        } else if (DnsRecordType.TXT.equals(type)) {
+            byte[] url = ("http://" + TARGET + ":8080/").getBytes(StandardCharsets.US_ASCII);
+            ByteBuf txt = Unpooled.buffer();
+            txt.writeByte(url.length);
+            txt.writeBytes(url);
+            return toArray(txt);
+        }
+        throw new IllegalArgumentException("Unsupported record type: " + type);
+    }
+
+    private static byte[] toArray(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        buf.release();
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures per-query cost of creating responses by {@link DnsQueryHandler} by question type and registry size, both
+ * for responses written directly to pooled buffers and for responses created as netty response objects.
+ *
+ * <p>Run with: {@code ./gradlew eureka-dns-server-benchmarks:jmh -Pjmh.includes=QueryHandler}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryHandlerBenchmark {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 40000);
+    private static final InetSocketAddress SERVER = new InetSocketAddress("127.0.0.1", 8553);
+
+    @Param({"10", "1000", "10000"})
+    public int numApps;
+
+    @Param({"A", "AAAA", "SRV", "TXT", "ANY", "SOA", "NS"})
+    public String type;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private DnsQueryHandler handler;
+    private DatagramDnsQuery query;
+
+    @Setup
+    public void setup() {
+        handler = new DnsQueryHandler(BenchmarkRegistry.config(numApps));
+        handler.start();
+
+        query = new DatagramDnsQuery(CLIENT, SERVER, 42);
+        query.setRecursionDesired(true);
+        query.addRecord(DnsSection.QUESTION,
+                new DefaultDnsQuestion(BenchmarkRegistry.serviceName(numApps / 2), DnsRecordType.valueOf(type)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.stop();
+        query.release();
+    }
+
+    /**
+     * Response creation as done for every query that isn't answered from response cache.
+     */
+    @Benchmark
+    public int encodeResponse() {
+        ByteBuf encoded = handler.encodeResponse(allocator, query, DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            return encoded.readableBytes();
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Response creation using netty response and record objects, without encoding.
+     */
+    @Benchmark
+    public int createResponse() {
+        DatagramDnsResponse response = handler.createResponse(query);
+        try {
+            return response.count(DnsSection.ANSWER);
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Response creation using netty response and record objects, followed by encoding.
+     */
+    @Benchmark
+    public int createAndEncodeResponse() {
+        DatagramDnsResponse response = handler.createResponse(query);
+        ByteBuf encoded = allocator.ioBuffer(DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            return DnsMessages.encodeResponse(response, encoded, DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE)
+                    .readableBytes();
+        } finally {
+            encoded.release();
+            response.release();
+        }
+    }
+}
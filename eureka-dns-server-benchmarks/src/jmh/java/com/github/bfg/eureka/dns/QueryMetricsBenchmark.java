@@ -0,0 +1,69 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures per-query cost of {@link QueryMetrics} recording, both single threaded and contended.
+ *
+ * <p>Run with: {@code ./gradlew eureka-dns-server-benchmarks:jmh -Pjmh.includes=QueryMetrics}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryMetricsBenchmark {
+    private QueryMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metrics = new QueryMetrics();
+    }
+
+    /**
+     * Per-thread parsed query name, as kept by {@code DnsQueryHandler}.
+     */
+    @State(Scope.Thread)
+    public static class Query {
+        final ParsedQueryName parsed = new ParsedQueryName();
+
+        @Setup
+        public void setup() {
+            new QueryNameParser("eureka").parse("Corse.service.dc1.eureka.", parsed);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.record(DnsRecordType.A, DnsResponseCode.NOERROR, 42_000);
+    }
+
+    @Benchmark
+    public void recordWithService(Query query) {
+        metrics.record(DnsRecordType.A, DnsResponseCode.NOERROR, 42_000);
+        metrics.recordService(query.parsed);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordWithServiceContended(Query query) {
+        metrics.record(DnsRecordType.A, DnsResponseCode.NOERROR, 42_000);
+        metrics.recordService(query.parsed);
+    }
+
+    @Benchmark
+    public String write() {
+        MetricsWriter out = new MetricsWriter();
+        metrics.writeMetrics(out);
+        return out.toString();
+    }
+}
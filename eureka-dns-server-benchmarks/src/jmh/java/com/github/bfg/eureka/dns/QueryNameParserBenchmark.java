@@ -0,0 +1,125 @@
+package com.github.bfg.eureka.dns;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares per-query cost of the previous regex based query name parsing with {@link QueryNameParser} and with
+ * {@link DnsQueryHandler} name accessors built on top of it.
+ *
+ * <p>Run with: {@code ./gradlew eureka-dns-server-benchmarks:jmh -Pjmh.includes=QueryNameParser}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryNameParserBenchmark {
+    private static final String DOMAIN = BenchmarkRegistry.DOMAIN;
+
+    private static final String SERVICE_NAME_REGEX = "^_?([\\w\\-]+)\\.(?:_\\w+\\.)?(?:service|connect)\\.";
+    private static final String DATACENTER_REGEX = "([\\w\\-]+)\\.";
+
+    @Param({
+            "corse.service.eureka.",
+            "_Corse._tcp.service.dc1.eureka.",
+            "foo.bar.eureka."
+    })
+    public String name;
+
+    private Pattern withoutDcPattern;
+    private Pattern withDcPattern;
+
+    private QueryNameParser parser;
+    private ParsedQueryName parsed;
+    private DnsQueryHandler handler;
+
+    @Setup
+    public void setup() {
+        withoutDcPattern = Pattern.compile(SERVICE_NAME_REGEX + DOMAIN + "\\.?$");
+        withDcPattern = Pattern.compile(SERVICE_NAME_REGEX + DATACENTER_REGEX + DOMAIN + "\\.?$");
+
+        parser = new QueryNameParser(DOMAIN);
+        parsed = new ParsedQueryName();
+        handler = new DnsQueryHandler(BenchmarkRegistry.config(1));
+    }
+
+    /**
+     * Query name validation and parsing as it was done by {@code DnsQueryHandler} before {@link QueryNameParser}.
+     */
+    @Benchmark
+    public void regex(Blackhole bh) {
+        String lowerName = name.toLowerCase();
+        boolean valid = lowerName.equals(DOMAIN + ".") || lowerName.endsWith("." + DOMAIN + ".");
+        bh.consume(valid);
+
+        String questionName = name.toLowerCase();
+        String serviceName = regexServiceName(questionName);
+        bh.consume(serviceName);
+        if (!serviceName.isEmpty()) {
+            bh.consume(regexDatacenter(questionName));
+        }
+    }
+
+    @Benchmark
+    public void parser(Blackhole bh) {
+        bh.consume(parser.isInZone(name));
+        if (parser.parse(name, parsed)) {
+            bh.consume(parsed.serviceName());
+            bh.consume(parsed.datacenter());
+        }
+    }
+
+    @Benchmark
+    public boolean parserWithoutNameMaterialization() {
+        return parser.isInZone(name) && parser.parse(name, parsed);
+    }
+
+    /**
+     * {@code DnsQueryHandler.getServiceName()} and {@code getDatacenter()}, each of them parsing the name.
+     */
+    @Benchmark
+    public void handler(Blackhole bh) {
+        bh.consume(handler.getServiceName(name));
+        bh.consume(handler.getDatacenter(name));
+    }
+
+    private String regexDatacenter(String name) {
+        Matcher matcher = withoutDcPattern.matcher(name);
+        if (matcher.find()) {
+            return "";
+        }
+
+        matcher = withDcPattern.matcher(name);
+        if (matcher.find()) {
+            return matcher.group(2);
+        }
+
+        return "";
+    }
+
+    private String regexServiceName(String name) {
+        name = name.toLowerCase().trim();
+
+        Matcher matcher = withoutDcPattern.matcher(name);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+
+        matcher = withDcPattern.matcher(name);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+
+        return "";
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsQueryEncoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures complete per-query cost from received datagram to encoded response, by registry size and question type.
+ *
+ * <p>Queries are processed by {@link EmbeddedChannel}, which is not a datagram channel: responses are therefore
+ * written as they would be over TCP, without UDP response rate limiting and without length prefix.</p>
+ *
+ * <p>Run with: {@code ./gradlew eureka-dns-server-benchmarks:jmh -Pjmh.includes=QueryRoundTrip}</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryRoundTripBenchmark {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 40000);
+    private static final InetSocketAddress SERVER = new InetSocketAddress("127.0.0.1", 8553);
+
+    @Param({"10", "1000", "10000"})
+    public int numApps;
+
+    @Param({"A", "SRV"})
+    public String type;
+
+    @Param({"true", "false"})
+    public boolean responseCache;
+
+    private DnsQueryHandler handler;
+    private ByteBuf query;
+
+    private EmbeddedChannel server;
+    private EmbeddedChannel decoder;
+    private EmbeddedChannel encoder;
+
+    @Setup
+    public void setup() {
+        handler = new DnsQueryHandler(BenchmarkRegistry.config(numApps).setResponseCache(responseCache));
+        handler.start();
+
+        server = new EmbeddedChannel(new DatagramDnsQueryDecoder(), handler);
+        decoder = new EmbeddedChannel(new DatagramDnsQueryDecoder());
+        encoder = new EmbeddedChannel(new DatagramDnsResponseEncoder());
+
+        DatagramDnsQuery dnsQuery = new DatagramDnsQuery(CLIENT, SERVER, 42)
+                .setRecursionDesired(true)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(
+                        BenchmarkRegistry.serviceName(numApps / 2), DnsRecordType.valueOf(type)));
+        EmbeddedChannel queryEncoder = new EmbeddedChannel(new DatagramDnsQueryEncoder());
+        queryEncoder.writeOutbound(dnsQuery);
+        DatagramPacket packet = queryEncoder.readOutbound();
+        query = Unpooled.copiedBuffer(packet.content());
+        packet.release();
+        queryEncoder.finishAndReleaseAll();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.finishAndReleaseAll();
+        decoder.finishAndReleaseAll();
+        encoder.finishAndReleaseAll();
+        handler.stop();
+        query.release();
+    }
+
+    /**
+     * Query decoded and answered by server pipeline, using response cache if enabled.
+     */
+    @Benchmark
+    public int server() {
+        server.writeInbound(new DatagramPacket(query.retainedDuplicate(), SERVER, CLIENT));
+        ByteBuf response = server.readOutbound();
+        try {
+            return response.readableBytes();
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Query decoded by {@link DatagramDnsQueryDecoder}, answered using netty response objects and encoded by
+     * {@link DatagramDnsResponseEncoder}, as it was done before responses were written directly.
+     */
+    @Benchmark
+    public int nettyCodec() {
+        decoder.writeInbound(new DatagramPacket(query.retainedDuplicate(), SERVER, CLIENT));
+        DatagramDnsQuery dnsQuery = decoder.readInbound();
+        try {
+            DatagramDnsResponse response = handler.createResponse(dnsQuery);
+            encoder.writeOutbound(response);
+        } finally {
+            dnsQuery.release();
+        }
+
+        DatagramPacket packet = encoder.readOutbound();
+        try {
+            return packet.content().readableBytes();
+        } finally {
+            packet.release();
+        }
+    }
+}
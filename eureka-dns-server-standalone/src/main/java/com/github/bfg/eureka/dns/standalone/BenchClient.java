@@ -0,0 +1,259 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single {@code bench} command client: sends queries over its own datagram channel and records responses.
+ *
+ * <p>Client runs either in closed loop, sending next query as soon as previous one is answered or timed out, or in
+ * open loop, sending queries at fixed rate regardless of responses. Open loop latency is measured from the time
+ * query was supposed to be sent, not from the time it was actually sent, so that stalls of the client or server
+ * are not hidden by queries that were never sent (coordinated omission).</p>
+ *
+ * <p>All state is accessed only from channel's event loop.</p>
+ */
+@Slf4j
+final class BenchClient extends SimpleChannelInboundHandler<DatagramPacket> {
+    /**
+     * Maximum number of outstanding queries, limited by transaction id range.
+     */
+    static final int MAX_OUTSTANDING = 1 << 16;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int HEADER_LENGTH = 12;
+    private static final int TRUNCATED_FLAG = 1 << 9;
+
+    private final InetSocketAddress server;
+    private final BenchQueries queries;
+    private final long timeoutNanos;
+    private final long intervalNanos;
+    private final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+
+    // outstanding queries, indexed by transaction id
+    private final boolean[] pending = new boolean[MAX_OUTSTANDING];
+    private final long[] intendedNanos = new long[MAX_OUTSTANDING];
+    private final long[] sentNanos = new long[MAX_OUTSTANDING];
+    private int nextId;
+    private int oldestId;
+
+    private final LatencyRecorder responseTimes = new LatencyRecorder();
+    private final LatencyRecorder serviceTimes = new LatencyRecorder();
+    private final long[] responseCodes = new long[16];
+    private long sent;
+    private long responses;
+    private long timeouts;
+    private long late;
+    private long unsent;
+    private long truncated;
+    private long errors;
+
+    private Channel channel;
+    private ScheduledFuture<?> ticker;
+    private boolean running;
+    private long nextIntendedNanos;
+
+    /**
+     * Creates new instance.
+     *
+     * @param server        server address
+     * @param queries       queries to send
+     * @param timeoutNanos  query timeout
+     * @param intervalNanos interval between queries in open loop mode, 0 for closed loop
+     */
+    BenchClient(@NonNull InetSocketAddress server, @NonNull BenchQueries queries, long timeoutNanos,
+                long intervalNanos) {
+        this.server = server;
+        this.queries = queries;
+        this.timeoutNanos = timeoutNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Binds datagram channel.
+     *
+     * @param group event loop group
+     * @return future completed when channel is bound
+     */
+    Future<Void> bind(@NonNull EventLoopGroup group) {
+        val future = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(this)
+                .bind(0);
+        channel = future.channel();
+        return future;
+    }
+
+    /**
+     * Starts sending queries.
+     *
+     * @return future completed when client is started
+     */
+    Future<?> start() {
+        return channel.eventLoop().submit(() -> {
+            running = true;
+            val now = System.nanoTime();
+            nextIntendedNanos = now;
+            if (intervalNanos == 0) {
+                sendQuery(now);
+                channel.flush();
+            }
+            ticker = channel.eventLoop().scheduleAtFixedRate(this::tick, 0, TICK_NANOS, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    /**
+     * Stops sending new queries; responses to outstanding queries are still accepted.
+     *
+     * @return future completed when client is stopped
+     */
+    Future<?> stop() {
+        return channel.eventLoop().submit(() -> {
+            running = false;
+        });
+    }
+
+    /**
+     * Counts all outstanding queries as timed out and closes the channel.
+     *
+     * @return future completed when channel is closed
+     */
+    Future<?> finish() {
+        return channel.eventLoop().submit(() -> {
+            running = false;
+            if (ticker != null) {
+                ticker.cancel(false);
+            }
+            while (oldestId != nextId) {
+                if (pending[oldestId]) {
+                    pending[oldestId] = false;
+                    timeouts++;
+                }
+                oldestId = (oldestId + 1) & (MAX_OUTSTANDING - 1);
+            }
+            channel.close();
+        });
+    }
+
+    private void tick() {
+        val now = System.nanoTime();
+        expireQueries(now);
+        if (running && intervalNanos > 0) {
+            while (nextIntendedNanos <= now) {
+                sendQuery(nextIntendedNanos);
+                nextIntendedNanos += intervalNanos;
+            }
+        }
+        channel.flush();
+    }
+
+    private void expireQueries(long now) {
+        while (oldestId != nextId) {
+            if (pending[oldestId]) {
+                if (now - intendedNanos[oldestId] < timeoutNanos) {
+                    return;
+                }
+                pending[oldestId] = false;
+                timeouts++;
+                if (intervalNanos == 0 && running) {
+                    sendQuery(now);
+                }
+            }
+            oldestId = (oldestId + 1) & (MAX_OUTSTANDING - 1);
+        }
+    }
+
+    private void sendQuery(long intended) {
+        val id = nextId;
+        if (pending[id]) {
+            // all transaction ids are in use
+            unsent++;
+            return;
+        }
+        nextId = (id + 1) & (MAX_OUTSTANDING - 1);
+
+        val query = queries.next(random);
+        val buf = channel.alloc().ioBuffer(query.length);
+        buf.writeShort(id);
+        buf.writeBytes(query, 2, query.length - 2);
+
+        pending[id] = true;
+        intendedNanos[id] = intended;
+        sentNanos[id] = System.nanoTime();
+        sent++;
+        channel.write(new DatagramPacket(buf, server), channel.voidPromise());
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) {
+        val now = System.nanoTime();
+        val buf = msg.content();
+        if (buf.readableBytes() < HEADER_LENGTH) {
+            errors++;
+            return;
+        }
+
+        val id = buf.getUnsignedShort(buf.readerIndex());
+        if (!pending[id]) {
+            late++;
+            return;
+        }
+        pending[id] = false;
+
+        val flags = buf.getUnsignedShort(buf.readerIndex() + 2);
+        responses++;
+        responseCodes[flags & 0x0f]++;
+        if ((flags & TRUNCATED_FLAG) != 0) {
+            truncated++;
+        }
+        responseTimes.record(now - intendedNanos[id]);
+        serviceTimes.record(now - sentNanos[id]);
+
+        if (intervalNanos == 0 && running) {
+            sendQuery(now);
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        errors++;
+        log.debug("bench client error: {}", cause.getMessage(), cause);
+    }
+
+    /**
+     * Adds results of this client to given results; must be invoked after client is finished.
+     *
+     * @param results results
+     */
+    void addTo(@NonNull BenchResults results) {
+        results.sent += sent;
+        results.responses += responses;
+        results.timeouts += timeouts;
+        results.late += late;
+        results.unsent += unsent;
+        results.truncated += truncated;
+        results.errors += errors;
+        for (int i = 0; i < responseCodes.length; i++) {
+            results.responseCodes[i] += responseCodes[i];
+        }
+        results.responseTimes.merge(responseTimes);
+        results.serviceTimes.merge(serviceTimes);
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import com.github.bfg.eureka.dns.DnsServerConfig;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import lombok.SneakyThrows;
+import lombok.val;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@code bench} subcommand: UDP load generator, meant for capacity testing of a running dns server.
+ *
+ * @see BenchClient
+ */
+@Command(name = "bench", mixinStandardHelpOptions = true, sortOptions = false, versionProvider = VersionProvider.class,
+        description = "Sends UDP queries to a DNS server and reports throughput, response codes and latencies.")
+public final class BenchCommand implements Callable<Integer> {
+    @ParentCommand
+    private EurekaDnsServerCli parent;
+
+    @Option(names = {"-s", "--server"}, description = "DNS server address.")
+    private String server = "127.0.0.1";
+
+    @Option(names = {"-p", "--port"}, description = "DNS server port.")
+    private int port = new DnsServerConfig().getPort();
+
+    @Option(names = {"-q", "--query-type"}, split = ",", description = "Query types with optional weights, " +
+            "for example: A:80,AAAA:10,SRV:10.")
+    private List<String> queryTypes = new ArrayList<>(Arrays.asList("A"));
+
+    @Option(names = {"-f", "--names-file"}, description = "File containing query names, one per line.")
+    private String namesFile = "";
+
+    @Option(names = {"-c", "--concurrency"}, description = "Number of clients, each of them using its own socket; " +
+            "in closed loop mode each client waits for response before sending next query.")
+    private int concurrency = 10;
+
+    @Option(names = {"-r", "--rate"}, description = "Target number of queries per second sent regardless of " +
+            "responses (open loop); setting this number to 0 sends queries in closed loop.")
+    private int rate = 0;
+
+    @Option(names = {"-d", "--duration"}, description = "Benchmark duration in seconds.")
+    private int duration = 10;
+
+    @Option(names = {"-t", "--timeout"}, description = "Query timeout in milliseconds.")
+    private int timeout = 1000;
+
+    @Parameters(description = "Query names.")
+    private List<String> names = new ArrayList<>();
+
+    @Override
+    public Integer call() {
+        val queries = createQueries();
+        if (queries == null) {
+            return 255;
+        }
+        if (concurrency < 1 || duration < 1 || timeout < 1 || rate < 0) {
+            return parent.die("Concurrency, duration and timeout need to be positive, rate can't be negative.");
+        }
+
+        val timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        val intervalNanos = (rate == 0) ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(concurrency) / rate);
+        if (rate > 0 && timeoutNanos / intervalNanos >= BenchClient.MAX_OUTSTANDING) {
+            return parent.die("Too many outstanding queries per client, increase concurrency or lower timeout.");
+        }
+
+        val address = new InetSocketAddress(server, port);
+        if (address.isUnresolved()) {
+            return parent.die("Cannot resolve DNS server address: " + server);
+        }
+
+        val out = parent.getStdout();
+        out.printf("benchmarking %s:%d with %d %s client(s) for %d s%s%n",
+                server, port, concurrency, (rate == 0) ? "closed loop" : "open loop", duration,
+                (rate == 0) ? "" : ", target rate " + rate + " queries/s");
+
+        val results = run(address, queries, timeoutNanos, intervalNanos);
+        results.print(out, TimeUnit.SECONDS.toNanos(duration), rate > 0);
+        return 0;
+    }
+
+    @SneakyThrows
+    private BenchResults run(InetSocketAddress address, BenchQueries queries, long timeoutNanos, long intervalNanos) {
+        val threads = Math.min(concurrency, Runtime.getRuntime().availableProcessors());
+        val group = new NioEventLoopGroup(threads, new DefaultThreadFactory("eureka-dns-bench", true));
+        try {
+            val clients = new ArrayList<BenchClient>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                clients.add(new BenchClient(address, queries, timeoutNanos, intervalNanos));
+            }
+            awaitAll(clients.stream().map(e -> e.bind(group)).collect(Collectors.toList()));
+
+            awaitAll(clients.stream().map(BenchClient::start).collect(Collectors.toList()));
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+            awaitAll(clients.stream().map(BenchClient::stop).collect(Collectors.toList()));
+
+            // give outstanding queries a chance to be answered
+            Thread.sleep(timeout);
+            awaitAll(clients.stream().map(BenchClient::finish).collect(Collectors.toList()));
+
+            val results = new BenchResults();
+            clients.forEach(e -> e.addTo(results));
+            return results;
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void awaitAll(List<? extends Future<?>> futures) {
+        futures.forEach(Future::syncUninterruptibly);
+    }
+
+    /**
+     * Creates queries from command line arguments.
+     *
+     * @return queries, {@code null} if arguments are invalid
+     */
+    private BenchQueries createQueries() {
+        val allNames = new ArrayList<String>(names);
+        if (!namesFile.trim().isEmpty()) {
+            try {
+                Files.readAllLines(Paths.get(namesFile.trim())).stream()
+                        .map(String::trim)
+                        .filter(e -> !e.isEmpty() && !e.startsWith("#"))
+                        .forEach(allNames::add);
+            } catch (IOException e) {
+                parent.die("Error reading query names: " + namesFile, e);
+                return null;
+            }
+        }
+
+        try {
+            return BenchQueries.create(allNames, queryTypes);
+        } catch (IllegalArgumentException e) {
+            parent.die(e.getMessage());
+            return null;
+        }
+    }
+}
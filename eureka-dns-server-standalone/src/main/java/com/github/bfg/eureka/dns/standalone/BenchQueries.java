@@ -0,0 +1,150 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import lombok.NonNull;
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Pre-encoded DNS queries sent by {@code bench} command: names are picked uniformly, question types according to
+ * their weights.
+ */
+final class BenchQueries {
+    /**
+     * Encoded queries, indexed by name and question type; transaction id is set when query is sent.
+     */
+    private final byte[][][] queries;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+
+    private BenchQueries(byte[][][] queries, int[] cumulativeWeights) {
+        this.queries = queries;
+        this.cumulativeWeights = cumulativeWeights;
+        this.totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param names query names
+     * @param types question types with optional weights: {@code TYPE[:WEIGHT]}, for example {@code A:90}
+     * @return queries
+     * @throws IllegalArgumentException if names or types are empty or invalid
+     */
+    static BenchQueries create(@NonNull List<String> names, @NonNull List<String> types) {
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No query names given.");
+        }
+        if (types.isEmpty()) {
+            throw new IllegalArgumentException("No query types given.");
+        }
+
+        val recordTypes = new DnsRecordType[types.size()];
+        val cumulativeWeights = new int[types.size()];
+        int total = 0;
+        for (int i = 0; i < types.size(); i++) {
+            val spec = types.get(i).trim();
+            val sep = spec.indexOf(':');
+            recordTypes[i] = parseType((sep < 0) ? spec : spec.substring(0, sep));
+            val weight = (sep < 0) ? 1 : parseWeight(spec.substring(sep + 1));
+            total += weight;
+            cumulativeWeights[i] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one query type needs positive weight: " + types);
+        }
+
+        val queries = new byte[names.size()][recordTypes.length][];
+        for (int i = 0; i < names.size(); i++) {
+            for (int j = 0; j < recordTypes.length; j++) {
+                queries[i][j] = encode(names.get(i), recordTypes[j]);
+            }
+        }
+        return new BenchQueries(queries, cumulativeWeights);
+    }
+
+    /**
+     * Returns random query.
+     *
+     * @param random random number generator
+     * @return encoded query, must not be modified
+     */
+    byte[] next(@NonNull SplittableRandom random) {
+        val names = queries[(queries.length == 1) ? 0 : random.nextInt(queries.length)];
+        if (names.length == 1) {
+            return names[0];
+        }
+
+        val n = random.nextInt(totalWeight);
+        int i = 0;
+        while (cumulativeWeights[i] <= n) {
+            i++;
+        }
+        return names[i];
+    }
+
+    /**
+     * Encodes query with transaction id 0 and recursion desired flag set.
+     *
+     * @param name query name
+     * @param type question type
+     * @return encoded query
+     */
+    static byte[] encode(@NonNull String name, @NonNull DnsRecordType type) {
+        val out = new ByteArrayOutputStream(12 + name.length() + 6);
+        writeShort(out, 0);         // id
+        writeShort(out, 0x0100);    // flags: recursion desired
+        writeShort(out, 1);         // questions
+        writeShort(out, 0);         // answers
+        writeShort(out, 0);         // authorities
+        writeShort(out, 0);         // additionals
+
+        for (String label : name.trim().split("\\.")) {
+            if (label.isEmpty()) {
+                continue;
+            }
+            val bytes = label.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 63) {
+                throw new IllegalArgumentException("Invalid query name, label is too long: " + name);
+            }
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+
+        writeShort(out, type.intValue());
+        writeShort(out, DnsRecord.CLASS_IN);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static DnsRecordType parseType(String type) {
+        try {
+            return DnsRecordType.valueOf(type.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid query type: " + type);
+        }
+    }
+
+    private static int parseWeight(String weight) {
+        try {
+            val value = Integer.parseInt(weight.trim());
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid query type weight: " + weight);
+    }
+}
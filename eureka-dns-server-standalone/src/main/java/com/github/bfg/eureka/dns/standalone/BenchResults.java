@@ -0,0 +1,105 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import io.netty.handler.codec.dns.DnsResponseCode;
+import lombok.NonNull;
+import lombok.val;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated results of {@code bench} command.
+ */
+final class BenchResults {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    final long[] responseCodes = new long[16];
+    final LatencyRecorder responseTimes = new LatencyRecorder();
+    final LatencyRecorder serviceTimes = new LatencyRecorder();
+    long sent;
+    long responses;
+    long timeouts;
+    long late;
+    long unsent;
+    long truncated;
+    long errors;
+
+    /**
+     * Prints results.
+     *
+     * @param out          output stream
+     * @param elapsedNanos duration of sending queries
+     * @param openLoop     whether queries were sent in open loop
+     */
+    void print(@NonNull PrintStream out, long elapsedNanos, boolean openLoop) {
+        val seconds = elapsedNanos / 1e9;
+        out.println(format("duration:          %.2f s", seconds));
+        out.println(format("queries sent:      %d", sent));
+        out.println(format("responses:         %d (%.2f%%)", responses, percent(responses, sent)));
+        out.println(format("timeouts:          %d (%.2f%%)", timeouts, percent(timeouts, sent)));
+        out.println(format("late responses:    %d", late));
+        if (unsent > 0) {
+            out.println(format("not sent:          %d (too many outstanding queries)", unsent));
+        }
+        if (errors > 0) {
+            out.println(format("errors:            %d", errors));
+        }
+        out.println(format("throughput:        %.1f responses/s", (seconds > 0) ? responses / seconds : 0));
+        out.println(format("truncated:         %d", truncated));
+
+        val codes = new StringBuilder();
+        for (int i = 0; i < responseCodes.length; i++) {
+            if (responseCodes[i] > 0) {
+                codes.append(' ').append(rcodeName(i))
+                        .append('=').append(responseCodes[i]);
+            }
+        }
+        out.println("response codes:   " + codes);
+
+        out.println();
+        val header = new StringBuilder(format("%-12s%8s", "latency (ms)", "min"));
+        for (double p : PERCENTILES) {
+            header.append(format("%9s", "p" + formatPercentile(p)));
+        }
+        header.append(format("%9s%9s", "max", "mean"));
+        out.println(header);
+        printLatencies(out, "response", responseTimes);
+        if (openLoop) {
+            printLatencies(out, "service", serviceTimes);
+        }
+    }
+
+    private static void printLatencies(PrintStream out, String name, LatencyRecorder recorder) {
+        val sb = new StringBuilder(format("  %-10s%8.3f", name, millis(recorder.getMin())));
+        for (double p : PERCENTILES) {
+            sb.append(format("%9.3f", millis(recorder.getValueAtPercentile(p))));
+        }
+        sb.append(format("%9.3f%9.3f", millis(recorder.getMax()), recorder.getMean() / NANOS_PER_MILLI));
+        out.println(sb);
+    }
+
+    /**
+     * Returns standard mnemonic of given response code, such as {@code NXDOMAIN}.
+     */
+    private static String rcodeName(int code) {
+        return DnsResponseCode.valueOf(code).toString().replaceAll("\\(.*", "").toUpperCase(Locale.ROOT);
+    }
+
+    private static String formatPercentile(double p) {
+        return (p == (long) p) ? Long.toString((long) p) : Double.toString(p);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    private static double percent(long value, long total) {
+        return (total == 0) ? 0 : 100.0 * value / total;
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.bfg.eureka.dns.standalone;
 
+import com.github.bfg.eureka.dns.AnswerOrder;
 import com.github.bfg.eureka.dns.DnsServerConfig;
 import com.github.bfg.eureka.dns.EurekaDnsServer;
 import com.netflix.appinfo.ApplicationInfoManager;
@@ -20,25 +21,34 @@ import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.ParseResult;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * Command line starter for {@link EurekaDnsServer}.
  */
 @Slf4j
-@Command(mixinStandardHelpOptions = true, sortOptions = false, versionProvider = VersionProvider.class)
+@Command(mixinStandardHelpOptions = true, sortOptions = false, versionProvider = VersionProvider.class,
+        subcommands = BenchCommand.class)
 public class EurekaDnsServerCli implements Callable<Integer> {
+    private static final String EUREKA_URL_PROPERTY = "eureka.serviceUrl.default";
+    private static final String EUREKA_REFRESH_INTERVAL_PROPERTY = "eureka.client.refresh.interval";
+
     /**
      * Default server config.
      */
@@ -51,6 +61,10 @@ public class EurekaDnsServerCli implements Callable<Integer> {
     @Option(names = {"-e", "--eureka-url"}, description = "Comma separated list of eureka server URLs.")
     private List<String> eurekaUrls = new ArrayList<>();
 
+    @Option(names = {"-n", "--native-client"}, description = "Read eureka registry using built-in lightweight " +
+            "REST client instead of eureka DiscoveryClient; requires eureka server URLs.")
+    private boolean nativeClient = false;
+
     @Option(names = {"-p", "--port"}, description = "DNS server listening port.")
     private int port = config.getPort();
 
@@ -58,9 +72,48 @@ public class EurekaDnsServerCli implements Callable<Integer> {
             "available; setting this number to 0 sets number of worker threads to number of available CPU cores.")
     private int threads = config.getMaxThreads();
 
+    @Option(names = {"-b", "--datagram-batch-size"}, description = "Maximum number of datagrams received/sent by " +
+            "a single syscall, used only with native epoll transport; setting this number to 0 disables batching.")
+    private int datagramBatchSize = config.getDatagramBatchSize();
+
+    @Option(names = {"-m", "--metrics-port"}, description = "HTTP port serving Prometheus metrics on /metrics path; " +
+            "setting this number to 0 disables metrics.")
+    private int metricsPort = config.getMetricsPort();
+
+    @Option(names = {"-M", "--metrics-address"}, description = "IP address metrics HTTP server listens on; " +
+            "listens on all interfaces if not given.")
+    private String metricsAddress = config.getMetricsAddress();
+
     @Option(names = {"-l", "--log-queries"}, description = "Log received queries.")
     private boolean logQueries = config.isLogQueries();
 
+    @Option(names = {"-L", "--query-log-file"}, description = "Log received queries to given file instead of " +
+            "application log; implies --log-queries.")
+    private String queryLogFile = config.getQueryLogFile();
+
+    @Option(names = {"-s", "--registry-snapshot-file"}, description = "File eureka registry is periodically " +
+            "persisted to and loaded from on startup, so that queries are answered before eureka registry is fetched.")
+    private String registrySnapshotFile = config.getRegistrySnapshotFile();
+
+    @Option(names = {"-x", "--zone-transfer"}, description = "Answer AXFR and IXFR zone transfer queries over TCP.")
+    private boolean zoneTransfer = config.isZoneTransfer();
+
+    @Option(names = {"-N", "--notify"}, split = ",", description = "Comma separated list of secondary name servers " +
+            "(host[:port]) that are notified when zone changes; implies --zone-transfer.")
+    private List<String> notifySecondaries = new ArrayList<>();
+
+    @Option(names = {"-A", "--zone-transfer-allow"}, split = ",", description = "Comma separated list of addresses " +
+            "or networks (for example 10.0.0.0/8) allowed to transfer the zone; implies --zone-transfer.")
+    private List<String> zoneTransferAllow = new ArrayList<>();
+
+    @Option(names = {"-r", "--reverse-zone"}, split = ",", description = "Comma separated list of reverse zones " +
+            "(for example 10.in-addr.arpa) whose PTR queries are answered with registered instances.")
+    private List<String> reverseZones = new ArrayList<>();
+
+    @Option(names = {"-o", "--answer-order"}, description = "Order of returned service instances, one of: " +
+            "${COMPLETION-CANDIDATES}.")
+    private AnswerOrder answerOrder = config.getAnswerOrder();
+
     /**
      * Stdout stream.
      */
@@ -94,20 +147,24 @@ public class EurekaDnsServerCli implements Callable<Integer> {
         val cmdLine = new CommandLine(this);
 
         try {
-            val result = cmdLine.parseArgs(args);
+            // subcommand, if given, is run instead of the server
+            ParseResult result = cmdLine.parseArgs(args);
+            while (result.hasSubcommand()) {
+                result = result.subcommand();
+            }
+
+            val parsed = result.commandSpec().commandLine();
             if (result.isVersionHelpRequested()) {
-                cmdLine.printVersionHelp(getStdout());
+                parsed.printVersionHelp(getStdout());
                 return exit(0);
             } else if (result.isUsageHelpRequested()) {
-                cmdLine.usage(getStdout());
+                parsed.usage(getStdout());
                 return exit(0);
             }
 
-            return result.asCommandLineList().stream()
-                    .map(CommandLine::getCommand)
+            return Optional.of(parsed.getCommand())
                     .filter(e -> e instanceof Callable)
                     .map(e -> (Callable<Integer>) e)
-                    .findFirst()
                     .orElseGet(() -> () -> die("Cannot extract runtime method."))
                     .call();
         } catch (ParameterException e) {
@@ -120,7 +177,17 @@ public class EurekaDnsServerCli implements Callable<Integer> {
         val server = config.clone()
                 .setPort(port)
                 .setMaxThreads(threads)
-                .setLogQueries(logQueries)
+                .setDatagramBatchSize(datagramBatchSize)
+                .setMetricsPort(metricsPort)
+                .setMetricsAddress(metricsAddress)
+                .setLogQueries(logQueries || !queryLogFile.isEmpty())
+                .setQueryLogFile(queryLogFile)
+                .setRegistrySnapshotFile(registrySnapshotFile)
+                .setZoneTransfer(zoneTransfer || !notifySecondaries.isEmpty() || !zoneTransferAllow.isEmpty())
+                .setNotifySecondaries(new LinkedHashSet<>(notifySecondaries))
+                .setZoneTransferAllow(new LinkedHashSet<>(zoneTransferAllow))
+                .setReverseZones(new LinkedHashSet<>(reverseZones))
+                .setAnswerOrder(answerOrder)
                 .setEurekaClient(getEurekaClient())
                 .create();
 
@@ -190,6 +257,9 @@ public class EurekaDnsServerCli implements Callable<Integer> {
     private EurekaClient createEurekaClient() {
         loadEurekaConfig();
         setCustomEurekaUrl();
+        if (nativeClient) {
+            return createNativeEurekaClient();
+        }
 
         val eurekaClientConfig = new DefaultEurekaClientConfig();
         val datacenterConfig = new MyDataCenterInstanceConfig();
@@ -224,13 +294,37 @@ public class EurekaDnsServerCli implements Callable<Integer> {
         return eurekaClient;
     }
 
+    /**
+     * Creates lightweight eureka client using eureka server URLs and registry refresh interval from the same
+     * properties that configure {@link DiscoveryClient}.
+     *
+     * @return eureka client
+     */
+    private EurekaClient createNativeEurekaClient() {
+        val urls = Arrays.stream(System.getProperty(EUREKA_URL_PROPERTY, "").split(","))
+                .map(String::trim)
+                .filter(e -> !e.isEmpty())
+                .map(URI::create)
+                .collect(Collectors.toList());
+        if (urls.isEmpty()) {
+            die("No eureka server URLs given, set them with --eureka-url or " + EUREKA_URL_PROPERTY + " property.");
+            return null;
+        }
+
+        val refreshInterval = Long.getLong(EUREKA_REFRESH_INTERVAL_PROPERTY,
+                TimeUnit.MILLISECONDS.toSeconds(NativeEurekaClient.DEFAULT_REFRESH_INTERVAL_MILLIS));
+        val eurekaClient = new NativeEurekaClient(urls, TimeUnit.SECONDS.toMillis(refreshInterval)).start();
+        log.info("created native eureka client: {}", eurekaClient);
+        return eurekaClient;
+    }
+
     private void setCustomEurekaUrl() {
         val urlList = eurekaUrls.stream()
                 .filter(Objects::nonNull)
                 .map(String::trim)
                 .collect(Collectors.joining(","));
         if (!urlList.isEmpty()) {
-            System.setProperty("eureka.serviceUrl.default", urlList);
+            System.setProperty(EUREKA_URL_PROPERTY, urlList);
             log.info("set eureka url list to: {}", urlList);
         }
     }
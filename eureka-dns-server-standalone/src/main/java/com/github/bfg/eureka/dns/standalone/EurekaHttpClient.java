@@ -0,0 +1,291 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.val;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Minimal netty based HTTP/1.1 client performing JSON {@code GET} requests against eureka REST API; every request
+ * uses a new connection, which is fine for requests issued every few seconds. Supports https, gzip content encoding
+ * and basic authentication with credentials given in the URL.
+ */
+final class EurekaHttpClient implements Closeable {
+    /**
+     * Default request timeout in milliseconds.
+     */
+    static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Default maximum (decompressed) response body size.
+     */
+    static final int DEFAULT_MAX_RESPONSE_SIZE = 256 * 1024 * 1024;
+
+    private final long timeoutMillis;
+    private final int maxResponseSize;
+    private final EventLoopGroup group;
+
+    private SslContext sslContext;
+
+    /**
+     * Creates new instance with default settings.
+     */
+    EurekaHttpClient() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_RESPONSE_SIZE);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param timeoutMillis   connect and request timeout in milliseconds
+     * @param maxResponseSize maximum response body size in bytes
+     */
+    EurekaHttpClient(long timeoutMillis, int maxResponseSize) {
+        this(timeoutMillis, maxResponseSize, null);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param timeoutMillis   connect and request timeout in milliseconds
+     * @param maxResponseSize maximum response body size in bytes
+     * @param sslContext      client TLS context used for https requests, {@code null} to create one that trusts
+     *                        default trust store when it's needed for the first time
+     */
+    EurekaHttpClient(long timeoutMillis, int maxResponseSize, SslContext sslContext) {
+        if (timeoutMillis < 1 || maxResponseSize < 1) {
+            throw new IllegalArgumentException("Invalid http client settings: timeout=" + timeoutMillis +
+                    ", maxResponseSize=" + maxResponseSize);
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.maxResponseSize = maxResponseSize;
+        this.sslContext = sslContext;
+        this.group = new NioEventLoopGroup(1, new DefaultThreadFactory("eureka-dns-registry-http", true));
+    }
+
+    /**
+     * Performs {@code GET} request and parses response body.
+     *
+     * @param uri    request uri
+     * @param parser response body parser
+     * @param <T>    parsed type
+     * @return parsed response body
+     * @throws HttpStatusException if server responded with status other than {@code 200 OK}
+     * @throws IOException         if request failed or timed out or response can't be parsed
+     */
+    <T> T get(@NonNull URI uri, @NonNull BodyParser<T> parser) throws IOException {
+        val response = execute(uri);
+        try {
+            if (!HttpResponseStatus.OK.equals(response.status())) {
+                throw new HttpStatusException(uri, response.status().code());
+            }
+            try (val is = new ByteBufInputStream(response.content())) {
+                return parser.parse(is);
+            }
+        } finally {
+            response.release();
+        }
+    }
+
+    private FullHttpResponse execute(URI uri) throws IOException {
+        val https = "https".equalsIgnoreCase(uri.getScheme());
+        if (!https && !"http".equalsIgnoreCase(uri.getScheme())) {
+            throw new IOException("Unsupported URL scheme: " + uri);
+        }
+        val host = uri.getHost();
+        val port = (uri.getPort() > 0) ? uri.getPort() : (https ? 443 : 80);
+        val sslContext = https ? getSslContext() : null;
+        val future = new CompletableFuture<FullHttpResponse>();
+
+        val bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) timeoutMillis)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        val pipeline = ch.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast(newSslHandler(sslContext, ch, host, port));
+                        }
+                        pipeline.addLast(new ReadTimeoutHandler(timeoutMillis, TimeUnit.MILLISECONDS));
+                        pipeline.addLast(new HttpClientCodec());
+                        pipeline.addLast(new HttpContentDecompressor());
+                        pipeline.addLast(new HttpObjectAggregator(maxResponseSize));
+                        pipeline.addLast(new ResponseHandler(future));
+                    }
+                });
+
+        val request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, requestTarget(uri));
+        val headers = request.headers();
+        headers.set(HttpHeaderNames.HOST, (uri.getPort() > 0) ? host + ":" + port : host);
+        headers.set(HttpHeaderNames.ACCEPT, HttpHeaderValues.APPLICATION_JSON);
+        headers.set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        if (uri.getRawUserInfo() != null) {
+            val credentials = Base64.getEncoder()
+                    .encodeToString(uri.getUserInfo().getBytes(StandardCharsets.UTF_8));
+            headers.set(HttpHeaderNames.AUTHORIZATION, "Basic " + credentials);
+        }
+
+        bootstrap.connect(host, port).addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                f.channel().writeAndFlush(request);
+            } else {
+                request.release();
+                future.completeExceptionally(f.cause());
+            }
+        });
+
+        try {
+            return future.get(timeoutMillis * 2, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Request timed out: " + uri);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response: " + uri);
+        } catch (ExecutionException e) {
+            val cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause :
+                    new IOException("Request " + uri + " failed: " + cause, cause);
+        }
+    }
+
+    private static String requestTarget(URI uri) {
+        val path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+        return (uri.getRawQuery() == null) ? path : path + "?" + uri.getRawQuery();
+    }
+
+    /**
+     * Creates TLS handler that verifies that server certificate was issued for given host; netty doesn't verify
+     * host names by default and credentials from the URL must not be sent to anyone else.
+     */
+    private static SslHandler newSslHandler(SslContext sslContext, SocketChannel ch, String host, int port) {
+        val handler = sslContext.newHandler(ch.alloc(), host, port);
+        val engine = handler.engine();
+        val params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(params);
+        return handler;
+    }
+
+    private synchronized SslContext getSslContext() throws IOException {
+        if (sslContext == null) {
+            sslContext = SslContextBuilder.forClient().build();
+        }
+        return sslContext;
+    }
+
+    @Override
+    public void close() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Response body parser.
+     *
+     * @param <T> parsed type
+     */
+    @FunctionalInterface
+    interface BodyParser<T> {
+        /**
+         * Parses response body.
+         *
+         * @param is response body stream
+         * @return parsed body
+         * @throws IOException if body can't be parsed
+         */
+        T parse(InputStream is) throws IOException;
+    }
+
+    /**
+     * Thrown when server responds with unexpected status.
+     */
+    static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        HttpStatusException(URI uri, int status) {
+            super("Unexpected response status " + status + ": " + uri);
+            this.status = status;
+        }
+
+        /**
+         * Returns response status.
+         *
+         * @return response status code
+         */
+        int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Completes response future with the first received response.
+     */
+    private static final class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        private final CompletableFuture<FullHttpResponse> future;
+
+        private ResponseHandler(CompletableFuture<FullHttpResponse> future) {
+            this.future = future;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+            if (!future.complete(msg.retain())) {
+                // request has already timed out
+                msg.release();
+            }
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            future.completeExceptionally(new IOException("Connection closed before receiving response."));
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            future.completeExceptionally(cause);
+            ctx.close();
+        }
+    }
+}
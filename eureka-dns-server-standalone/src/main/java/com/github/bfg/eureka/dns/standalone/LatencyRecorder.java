@@ -0,0 +1,145 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import lombok.NonNull;
+
+/**
+ * Latency histogram with log-linear buckets: values are recorded with relative precision better than 2% over the
+ * whole {@code long} range, so that percentiles can be reported without storing individual values.
+ *
+ * <p>Instances are not thread-safe; each {@link BenchClient} records to its own instances, which are merged when
+ * benchmark finishes.</p>
+ */
+final class LatencyRecorder {
+    /**
+     * Number of sub-buckets per power of two, expressed as power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values smaller than this are recorded exactly.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    private final long[] counts = new long[index(Long.MAX_VALUE) + 1];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Records single value.
+     *
+     * @param value value, negative values are recorded as 0
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all values recorded by other recorder to this one.
+     *
+     * @param other other recorder
+     * @return reference to itself
+     */
+    LatencyRecorder merge(@NonNull LatencyRecorder other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    /**
+     * Returns number of recorded values.
+     *
+     * @return number of values
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns smallest recorded value.
+     *
+     * @return smallest value, 0 if no values were recorded
+     */
+    long getMin() {
+        return (count == 0) ? 0 : min;
+    }
+
+    /**
+     * Returns largest recorded value.
+     *
+     * @return largest value, 0 if no values were recorded
+     */
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns mean of recorded values.
+     *
+     * @return mean, 0 if no values were recorded
+     */
+    double getMean() {
+        return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns value at given percentile, that is the largest value that is equivalent to the value, below which given
+     * percentage of recorded values falls; percentile 0 is the exact minimum.
+     *
+     * @param percentile percentile, between 0 and 100
+     * @return value at percentile, 0 if no values were recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (percentile <= 0) {
+            return min;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * count));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                return Math.min(max, Math.max(min, highestEquivalentValue(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns bucket index of given non-negative value.
+     */
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns largest value recorded to bucket with given index.
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,434 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.HealthCheckHandler;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.ActionType;
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.discovery.EurekaEventListener;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Lightweight, read-only {@link EurekaClient} that only fetches the registry of the local region using eureka REST
+ * API; it doesn't register itself and doesn't need {@code ApplicationInfoManager}, Jersey or XStream.
+ *
+ * <p>Registry is fetched in full ({@code GET apps/}) first and then kept up to date by polling changes
+ * ({@code GET apps/delta}). Delta is applied to a copy of the current registry, which is published only if its
+ * reconcile hash code matches the one reported by eureka server; otherwise, or if eureka server doesn't serve deltas,
+ * the full registry is fetched again. Registered {@link EurekaEventListener}s are notified with
+ * {@link CacheRefreshedEvent} after every successful fetch, just like with {@code DiscoveryClient}.</p>
+ *
+ * <p>If request to eureka server fails, next eureka server URL is used for the next fetch.</p>
+ *
+ * <p>Methods that make sense only for a registering client return safe defaults instead of throwing: health checks
+ * are ignored, remote instance status is {@link InstanceInfo.InstanceStatus#UNKNOWN} and client config, health check
+ * handler and application info manager are {@code null}.</p>
+ */
+@Slf4j
+final class NativeEurekaClient implements EurekaClient {
+    /**
+     * Default registry refresh interval in milliseconds.
+     */
+    static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 30_000;
+
+    private final List<URI> serviceUrls;
+    private final long refreshIntervalMillis;
+    private final EurekaHttpClient httpClient;
+    private final Set<EurekaEventListener> eventListeners = new CopyOnWriteArraySet<>();
+
+    private volatile Applications applications = new Applications();
+    private volatile boolean fetched = false;
+    private volatile ScheduledExecutorService executor;
+    private int serviceUrlIdx = 0;
+
+    // fetch statistics, updated only while holding the lock
+    private volatile long fullFetches = 0;
+    private volatile long deltaFetches = 0;
+    private volatile long reconcileMismatches = 0;
+    private volatile long failedFetches = 0;
+
+    /**
+     * Creates new instance.
+     *
+     * @param serviceUrls           eureka server URLs, e.g. {@code http://eureka.example.org:8761/eureka/}
+     * @param refreshIntervalMillis registry refresh interval in milliseconds
+     */
+    NativeEurekaClient(@NonNull List<URI> serviceUrls, long refreshIntervalMillis) {
+        this(serviceUrls, refreshIntervalMillis, new EurekaHttpClient());
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param serviceUrls           eureka server URLs, e.g. {@code http://eureka.example.org:8761/eureka/}
+     * @param refreshIntervalMillis registry refresh interval in milliseconds
+     * @param httpClient            http client, closed on {@link #shutdown()}
+     */
+    NativeEurekaClient(@NonNull List<URI> serviceUrls, long refreshIntervalMillis,
+                       @NonNull EurekaHttpClient httpClient) {
+        if (serviceUrls.isEmpty()) {
+            throw new IllegalArgumentException("No eureka server URLs given.");
+        }
+        if (refreshIntervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid refresh interval: " + refreshIntervalMillis);
+        }
+        this.serviceUrls = Collections.unmodifiableList(serviceUrls.stream()
+                .map(NativeEurekaClient::toBaseUrl)
+                .collect(Collectors.toList()));
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Fetches the registry and starts refreshing it on a dedicated daemon thread; failure of the initial fetch is only
+     * logged, the fetch is retried after refresh interval.
+     *
+     * @return reference to itself
+     */
+    synchronized NativeEurekaClient start() {
+        if (executor == null) {
+            refresh();
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    new DefaultThreadFactory("eureka-dns-registry-fetch", true));
+            executor.scheduleWithFixedDelay(this::refresh,
+                    refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Fetches registry changes, or the full registry if it hasn't been fetched yet or if changes can't be reconciled;
+     * never throws.
+     *
+     * @return true if registry was fetched, otherwise false
+     */
+    synchronized boolean refresh() {
+        val url = serviceUrls.get(serviceUrlIdx);
+        try {
+            val ts = System.nanoTime();
+            val delta = fetched && fetchDelta(url);
+            if (!delta) {
+                fetchFull(url);
+            }
+            log.debug("fetched {} registry from {} in {} msec: {} application(s)", delta ? "delta" : "full",
+                    url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ts), applications.size());
+        } catch (Exception e) {
+            failedFetches++;
+            serviceUrlIdx = (serviceUrlIdx + 1) % serviceUrls.size();
+            log.warn("error fetching eureka registry from {}: {}", url, e.toString());
+            return false;
+        }
+
+        val event = new CacheRefreshedEvent();
+        eventListeners.forEach(listener -> {
+            try {
+                listener.onEvent(event);
+            } catch (Exception e) {
+                log.error("eureka event listener {} failed: {}", listener, e.getMessage(), e);
+            }
+        });
+        return true;
+    }
+
+    private void fetchFull(URI url) throws IOException {
+        val fetchedApps = httpClient.get(url.resolve("apps/"), RegistryJsonParser::parse);
+        publish(fetchedApps);
+        fullFetches++;
+    }
+
+    /**
+     * Fetches and applies registry delta.
+     *
+     * @return true if delta was applied, false if the full registry needs to be fetched.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean fetchDelta(URI url) throws IOException {
+        final Applications delta;
+        try {
+            delta = httpClient.get(url.resolve("apps/delta"), RegistryJsonParser::parse);
+        } catch (EurekaHttpClient.HttpStatusException e) {
+            // eureka server with disabled deltas responds with 403
+            log.debug("can't fetch registry delta: {}", e.getMessage());
+            return false;
+        }
+
+        val updated = applyDelta(applications, delta);
+        val hashCode = updated.getReconcileHashCode();
+        if (!hashCode.equals(delta.getAppsHashCode())) {
+            reconcileMismatches++;
+            log.info("registry hash code after applying delta doesn't match: local={}, remote={}; " +
+                    "fetching full registry.", hashCode, delta.getAppsHashCode());
+            return false;
+        }
+
+        updated.setVersion(delta.getVersion());
+        publish(updated);
+        deltaFetches++;
+        return true;
+    }
+
+    private void publish(Applications fetchedApps) {
+        fetchedApps.setAppsHashCode(fetchedApps.getReconcileHashCode());
+        this.applications = fetchedApps;
+        this.fetched = true;
+    }
+
+    /**
+     * Applies registry delta to a copy of given applications; given applications are not modified, because they
+     * might be read concurrently.
+     *
+     * @param current current applications
+     * @param delta   registry delta
+     * @return updated applications
+     */
+    static Applications applyDelta(@NonNull Applications current, @NonNull Applications delta) {
+        val apps = new LinkedHashMap<String, Application>();
+        for (Application app : current.getRegisteredApplications()) {
+            val copy = new Application(app.getName());
+            app.getInstancesAsIsFromEureka().forEach(copy::addInstance);
+            apps.put(copy.getName().toUpperCase(Locale.ROOT), copy);
+        }
+
+        for (Application deltaApp : delta.getRegisteredApplications()) {
+            for (InstanceInfo instance : deltaApp.getInstancesAsIsFromEureka()) {
+                val appName = Objects.toString(instance.getAppName(), deltaApp.getName());
+                val app = apps.computeIfAbsent(appName.toUpperCase(Locale.ROOT), it -> new Application(appName));
+
+                val existing = app.getByInstanceId(instance.getId());
+                if (existing != null) {
+                    app.removeInstance(existing);
+                }
+                if (instance.getActionType() != ActionType.DELETED) {
+                    app.addInstance(instance);
+                }
+            }
+        }
+
+        // applications without instances are not kept by eureka server either
+        val updated = new Applications();
+        apps.values().stream()
+                .filter(app -> !app.getInstancesAsIsFromEureka().isEmpty())
+                .forEach(updated::addApplication);
+        return updated;
+    }
+
+    private static URI toBaseUrl(URI url) {
+        val str = url.toString();
+        return str.endsWith("/") ? url : URI.create(str + "/");
+    }
+
+    /**
+     * Tells whether registry has been successfully fetched at least once.
+     *
+     * @return true/false
+     */
+    boolean isFetched() {
+        return fetched;
+    }
+
+    /**
+     * Returns number of full registry fetches.
+     *
+     * @return number of fetches
+     */
+    long getFullFetches() {
+        return fullFetches;
+    }
+
+    /**
+     * Returns number of applied registry deltas.
+     *
+     * @return number of fetches
+     */
+    long getDeltaFetches() {
+        return deltaFetches;
+    }
+
+    /**
+     * Returns number of registry deltas that were discarded, because registry hash code didn't match after applying
+     * them.
+     *
+     * @return number of mismatches
+     */
+    long getReconcileMismatches() {
+        return reconcileMismatches;
+    }
+
+    /**
+     * Returns number of failed registry fetches.
+     *
+     * @return number of failures
+     */
+    long getFailedFetches() {
+        return failedFetches;
+    }
+
+    @Override
+    public Applications getApplications() {
+        return applications;
+    }
+
+    @Override
+    public Applications getApplicationsForARegion(String region) {
+        return (region == null || region.isEmpty()) ? applications : null;
+    }
+
+    @Override
+    public Applications getApplications(String serviceUrl) {
+        // registry is never fetched from a single eureka server on demand
+        return null;
+    }
+
+    @Override
+    public Application getApplication(String appName) {
+        return applications.getRegisteredApplications(appName);
+    }
+
+    @Override
+    public List<InstanceInfo> getInstancesById(String id) {
+        return applications.getRegisteredApplications().stream()
+                .map(app -> app.getByInstanceId(id))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<InstanceInfo> getInstancesByVipAddress(String vipAddress, boolean secure) {
+        return getInstancesByVipAddress(vipAddress, secure, null);
+    }
+
+    @Override
+    public List<InstanceInfo> getInstancesByVipAddress(String vipAddress, boolean secure, String region) {
+        val apps = getApplicationsForARegion(region);
+        if (apps == null) {
+            return Collections.emptyList();
+        }
+        return apps.getRegisteredApplications().stream()
+                .flatMap(app -> app.getInstancesAsIsFromEureka().stream())
+                .filter(e -> vipAddress != null &&
+                        vipAddress.equalsIgnoreCase(secure ? e.getSecureVipAddress() : e.getVIPAddress()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<InstanceInfo> getInstancesByVipAddressAndAppName(String vipAddress, String appName, boolean secure) {
+        return applications.getRegisteredApplications().stream()
+                .filter(app -> appName == null || appName.equalsIgnoreCase(app.getName()))
+                .flatMap(app -> app.getInstancesAsIsFromEureka().stream())
+                .filter(e -> vipAddress == null ||
+                        vipAddress.equalsIgnoreCase(secure ? e.getSecureVipAddress() : e.getVIPAddress()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Set<String> getAllKnownRegions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public InstanceInfo.InstanceStatus getInstanceRemoteStatus() {
+        // client doesn't register itself
+        return InstanceInfo.InstanceStatus.UNKNOWN;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public List<String> getDiscoveryServiceUrls(String zone) {
+        return serviceUrls.stream().map(URI::toString).collect(Collectors.toList());
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public List<String> getServiceUrlsFromConfig(String instanceZone, boolean preferSameZone) {
+        return getDiscoveryServiceUrls(instanceZone);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public List<String> getServiceUrlsFromDNS(String instanceZone, boolean preferSameZone) {
+        // eureka server URLs are never looked up in DNS
+        return Collections.emptyList();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void registerHealthCheckCallback(com.netflix.appinfo.HealthCheckCallback callback) {
+        log.debug("ignoring health check callback, client doesn't register itself: {}", callback);
+    }
+
+    @Override
+    public void registerHealthCheck(HealthCheckHandler healthCheckHandler) {
+        log.debug("ignoring health check handler, client doesn't register itself: {}", healthCheckHandler);
+    }
+
+    @Override
+    public void registerEventListener(EurekaEventListener eventListener) {
+        eventListeners.add(eventListener);
+    }
+
+    @Override
+    public boolean unregisterEventListener(EurekaEventListener eventListener) {
+        return eventListeners.remove(eventListener);
+    }
+
+    @Override
+    public HealthCheckHandler getHealthCheckHandler() {
+        return null;
+    }
+
+    @Override
+    public InstanceInfo getNextServerFromEureka(String virtualHostname, boolean secure) {
+        val instances = getInstancesByVipAddress(virtualHostname, secure).stream()
+                .filter(e -> e.getStatus() == InstanceInfo.InstanceStatus.UP)
+                .collect(Collectors.toList());
+        return instances.isEmpty() ? null : instances.get(ThreadLocalRandom.current().nextInt(instances.size()));
+    }
+
+    @Override
+    public EurekaClientConfig getEurekaClientConfig() {
+        return null;
+    }
+
+    @Override
+    public ApplicationInfoManager getApplicationInfoManager() {
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+        // not synchronized, so that it doesn't wait for fetch in progress
+        val fetcher = executor;
+        if (fetcher != null) {
+            fetcher.shutdownNow();
+            executor = null;
+        }
+        httpClient.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(urls=" + serviceUrls + ", applications=" + applications.size() + ")";
+    }
+}
@@ -0,0 +1,215 @@
+package com.github.bfg.eureka.dns.standalone;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.netflix.appinfo.DataCenterInfo;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.ActionType;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.appinfo.InstanceInfo.PortType;
+import com.netflix.appinfo.MyDataCenterInfo;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of eureka REST API {@code /apps} and {@code /apps/delta} JSON responses; reads only instance
+ * properties that dns server depends on and skips everything else without materializing it.
+ *
+ * <p>Both wrapped ({@code {"applications": {...}}}) and unwrapped documents are accepted and {@code application} and
+ * {@code instance} properties may contain either an array or a single object.</p>
+ */
+@UtilityClass
+class RegistryJsonParser {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final DataCenterInfo DATA_CENTER_INFO = new MyDataCenterInfo(DataCenterInfo.Name.MyOwn);
+
+    /**
+     * Parses applications document.
+     *
+     * @param is input stream, not closed
+     * @return applications with instances, registry version and apps hash code if present in the document.
+     * @throws IOException if document can't be read or is not valid JSON
+     */
+    static Applications parse(@NonNull InputStream is) throws IOException {
+        try (val parser = JSON_FACTORY.createParser(is)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected applications object");
+            }
+            val applications = new Applications();
+            parseApplications(parser, applications);
+            return applications;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void parseApplications(JsonParser parser, Applications applications) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            val token = parser.nextToken();
+            if ("applications".equals(field) && token == JsonToken.START_OBJECT) {
+                parseApplications(parser, applications);
+            } else if ("versions__delta".equals(field)) {
+                applications.setVersion(parser.getValueAsLong());
+            } else if ("apps__hashcode".equals(field)) {
+                applications.setAppsHashCode(parser.getValueAsString());
+            } else if ("application".equals(field)) {
+                forEachObject(parser, () -> applications.addApplication(parseApplication(parser)));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expectEndObject(parser);
+    }
+
+    private static Application parseApplication(JsonParser parser) throws IOException {
+        val application = new Application();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            parser.nextToken();
+            if ("name".equals(field)) {
+                application.setName(parser.getValueAsString());
+            } else if ("instance".equals(field)) {
+                forEachObject(parser, () -> application.addInstance(parseInstance(parser, application.getName())));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expectEndObject(parser);
+        return application;
+    }
+
+    private static InstanceInfo parseInstance(JsonParser parser, String appName) throws IOException {
+        val builder = InstanceInfo.Builder.newBuilder().setDataCenterInfo(DATA_CENTER_INFO);
+        if (appName != null) {
+            builder.setAppName(appName);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "instanceId":
+                    builder.setInstanceId(parser.getValueAsString());
+                    break;
+                case "app":
+                    builder.setAppName(parser.getValueAsString());
+                    break;
+                case "hostName":
+                    builder.setHostName(parser.getValueAsString());
+                    break;
+                case "ipAddr":
+                    builder.setIPAddr(parser.getValueAsString());
+                    break;
+                case "status":
+                    builder.setStatus(InstanceStatus.toEnum(parser.getValueAsString()));
+                    break;
+                case "port":
+                    parsePort(parser, builder, PortType.UNSECURE);
+                    break;
+                case "securePort":
+                    parsePort(parser, builder, PortType.SECURE);
+                    break;
+                case "vipAddress":
+                    builder.setVIPAddress(parser.getValueAsString());
+                    break;
+                case "secureVipAddress":
+                    builder.setSecureVIPAddress(parser.getValueAsString());
+                    break;
+                case "lastDirtyTimestamp":
+                    builder.setLastDirtyTimestamp(parser.getValueAsLong());
+                    break;
+                case "actionType":
+                    builder.setActionType(toActionType(parser.getValueAsString()));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        expectEndObject(parser);
+        return builder.build();
+    }
+
+    /**
+     * Parses port, which is either {@code {"$": 8080, "@enabled": "true"}} object or a plain number.
+     */
+    private static void parsePort(JsonParser parser, InstanceInfo.Builder builder, PortType type)
+            throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            setPort(builder, type, parser.getValueAsInt());
+            return;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            parser.nextToken();
+            if ("$".equals(field)) {
+                setPort(builder, type, parser.getValueAsInt());
+            } else if ("@enabled".equals(field)) {
+                builder.enablePort(type, parser.getValueAsBoolean());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expectEndObject(parser);
+    }
+
+    private static void setPort(InstanceInfo.Builder builder, PortType type, int port) {
+        if (type == PortType.SECURE) {
+            builder.setSecurePort(port);
+        } else {
+            builder.setPort(port);
+        }
+    }
+
+    private static ActionType toActionType(String str) {
+        try {
+            return (str == null) ? null : ActionType.valueOf(str);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Invokes given reader for every object of an array, or for a single object; parser must be positioned on
+     * {@link JsonToken#START_ARRAY} or {@link JsonToken#START_OBJECT}, other values are skipped.
+     */
+    private static void forEachObject(JsonParser parser, ObjectReader reader) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            reader.read();
+        } else if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException(parser, "Unexpected end of document");
+                } else if (token == JsonToken.START_OBJECT) {
+                    reader.read();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    private static void expectEndObject(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+            throw new JsonParseException(parser, "Unexpected end of object");
+        }
+    }
+
+    @FunctionalInterface
+    private interface ObjectReader {
+        void read() throws IOException;
+    }
+}
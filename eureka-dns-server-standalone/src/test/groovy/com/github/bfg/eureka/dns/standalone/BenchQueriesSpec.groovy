@@ -0,0 +1,89 @@
+package com.github.bfg.eureka.dns.standalone
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.dns.DatagramDnsQuery
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder
+import io.netty.handler.codec.dns.DnsRecordType
+import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class BenchQueriesSpec extends Specification {
+    def random = new SplittableRandom(42)
+
+    def "encoded query should be decodable: #name #type"() {
+        given:
+        def channel = new EmbeddedChannel(new DatagramDnsQueryDecoder())
+        def addr = new InetSocketAddress("127.0.0.1", 53)
+
+        when:
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(BenchQueries.encode(name, type)), addr, addr))
+        DatagramDnsQuery query = channel.readInbound()
+
+        then:
+        query.id() == 0
+        query.isRecursionDesired()
+        query.count(DnsSection.QUESTION) == 1
+        query.recordAt(DnsSection.QUESTION).name() == "corse.service.eureka."
+        query.recordAt(DnsSection.QUESTION).type() == type
+
+        cleanup:
+        query?.release()
+        channel?.finishAndReleaseAll()
+
+        where:
+        name                      | type
+        "corse.service.eureka"    | DnsRecordType.A
+        "corse.service.eureka."   | DnsRecordType.SRV
+        " corse.service.eureka. " | DnsRecordType.AAAA
+    }
+
+    def "should pick query types according to their weights"() {
+        given:
+        def queries = BenchQueries.create(["corse.service.eureka"], ["A:3", "srv:1", "TXT:0"])
+        def counts = [:].withDefault { 0 }
+
+        when:
+        4000.times {
+            def query = queries.next(random)
+            counts[((query[query.length - 4] & 0xff) << 8) | (query[query.length - 3] & 0xff)]++
+        }
+
+        then:
+        counts.keySet() == [DnsRecordType.A.intValue(), DnsRecordType.SRV.intValue()] as Set
+        counts[DnsRecordType.A.intValue()] > 2700
+        counts[DnsRecordType.SRV.intValue()] > 800
+    }
+
+    def "should pick all names"() {
+        given:
+        def names = ["a.service.eureka", "b.service.eureka", "c.service.eureka"]
+        def queries = BenchQueries.create(names, ["A"])
+
+        when:
+        def picked = (1..300).collect { new String(queries.next(random), 13, 1, "US-ASCII") } as Set
+
+        then:
+        picked == ["a", "b", "c"] as Set
+    }
+
+    def "create() should throw for invalid arguments: #names #types"() {
+        when:
+        BenchQueries.create(names, types)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        names                    | types
+        []                       | ["A"]
+        ["corse.service.eureka"] | []
+        ["corse.service.eureka"] | ["FOO"]
+        ["corse.service.eureka"] | ["A:-1"]
+        ["corse.service.eureka"] | ["A:0"]
+        ["x" * 64 + ".eureka"]   | ["A"]
+    }
+}
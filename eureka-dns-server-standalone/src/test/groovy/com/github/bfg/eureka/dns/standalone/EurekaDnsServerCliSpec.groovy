@@ -89,6 +89,115 @@ class EurekaDnsServerCliSpec extends Specification {
         cli?.server?.close()
     }
 
+    def "should serve prometheus metrics if invoked with: #arg"() {
+        given:
+        def port = 9394
+        def metricsPort = 9395
+        def client = new DnsClient('localhost', port)
+
+        and: "start dns server in a separate thread"
+        cli.getConfig().setEurekaClient(FakeEurekaClient.defaults())
+        cli.serverConsumer = { it.start().toCompletableFuture().get(1, TimeUnit.SECONDS) }
+        cli.run("-p", port as String, arg, metricsPort as String)
+
+        when:
+        client.resolve('corse.service.eureka')
+        def metrics = new URL("http://localhost:${metricsPort}/metrics").getText()
+
+        then:
+        cli.server.config.metricsPort == metricsPort
+        metrics.contains('eureka_dns_responses_total{type="A",rcode="NOERROR"} 1')
+        metrics.contains('eureka_dns_service_queries_total{service="corse",datacenter=""} 1')
+        metrics.contains('eureka_dns_registry_snapshot_age_seconds ')
+
+        cleanup:
+        cli?.server?.close()
+
+        where:
+        arg << ['-m', '--metrics-port']
+    }
+
+    def "should serve prometheus metrics on given address if invoked with: #arg"() {
+        given:
+        def port = 9398
+        def metricsPort = 9399
+
+        and: "start dns server in a separate thread"
+        cli.getConfig().setEurekaClient(FakeEurekaClient.defaults())
+        cli.serverConsumer = { it.start().toCompletableFuture().get(1, TimeUnit.SECONDS) }
+        cli.run("-p", port as String, "-m", metricsPort as String, arg, "127.0.0.1")
+
+        when:
+        def metrics = new URL("http://127.0.0.1:${metricsPort}/metrics").getText()
+
+        then:
+        cli.server.config.metricsAddress == "127.0.0.1"
+        metrics.contains('eureka_dns_registry_snapshot_age_seconds ')
+
+        cleanup:
+        cli?.server?.close()
+
+        where:
+        arg << ['-M', '--metrics-address']
+    }
+
+    def "bench should query running dns server in #mode"() {
+        given:
+        def port = 9396
+        cli.getConfig().setEurekaClient(FakeEurekaClient.defaults())
+        cli.serverConsumer = { it.start().toCompletableFuture().get(1, TimeUnit.SECONDS) }
+        cli.run("-p", port as String)
+
+        def bench = new MyCli()
+
+        when:
+        def status = bench.run(["bench", "-p", port as String, "-d", "1", "-t", "500", "-c", "2",
+                                "-q", "A:3,SRV:1", "corse.service.eureka", "sardegna.service.eureka"] + args as String[])
+        def output = bench.stdoutOs.toString()
+        log.info("bench output:\n{}", output)
+
+        then:
+        status == 0
+        bench.dieReason == null
+        output.contains(mode)
+        output.contains("response codes:    NOERROR=")
+        output =~ /responses: +[1-9]/
+        output.contains("latency (ms)")
+
+        cleanup:
+        cli?.server?.close()
+
+        where:
+        mode          | args
+        "closed loop" | []
+        "open loop"   | ["-r", "200"]
+    }
+
+    def "bench should complain about #reason"() {
+        when:
+        def status = cli.run(["bench"] + args as String[])
+
+        then:
+        status == 255
+        cli.dieReason.contains(reason)
+
+        where:
+        reason                      | args
+        "No query names given"      | []
+        "Invalid query type"        | ["-q", "FOO", "corse.service.eureka"]
+        "Invalid query type weight" | ["-q", "A:x", "corse.service.eureka"]
+        "need to be positive"       | ["-c", "0", "corse.service.eureka"]
+    }
+
+    def "should display bench usage"() {
+        when:
+        def status = cli.run("bench", "--help")
+
+        then:
+        status == 0
+        cli.stdoutOs.toString().contains("Usage: <main class> bench ")
+    }
+
     def "should actually start dns server and initialize eureka client"() {
         given:
         cli.serverConsumer = { it.start().toCompletableFuture().get(1, TimeUnit.SECONDS) }
@@ -105,6 +214,36 @@ class EurekaDnsServerCliSpec extends Specification {
         cli?.server?.close()
     }
 
+    @RestoreSystemProperties
+    def "should read eureka registry using native client if invoked with: #arg"() {
+        given:
+        def eureka = new NativeEurekaClientSpec.StubEureka()
+        eureka.full = getClass().getResource('/eureka-apps-default.json').getText("UTF-8")
+        def port = 9397
+        def client = new DnsClient('localhost', port)
+
+        and: "start dns server in a separate thread"
+        cli.serverConsumer = { it.start().toCompletableFuture().get(1, TimeUnit.SECONDS) }
+        cli.run('-p', port as String, arg, '-e', eureka.url.toString())
+
+        when:
+        def result = client.resolve('corse.service.eureka')
+
+        then:
+        cli.server.config.eurekaClient instanceof NativeEurekaClient
+        eureka.requests == ['/eureka/apps/']
+        result.status == "NOERROR"
+        result.answers.size() == 3
+
+        cleanup:
+        cli?.server?.close()
+        cli?.server?.config?.eurekaClient?.shutdown()
+        eureka?.close()
+
+        where:
+        arg << ['-n', '--native-client']
+    }
+
     @RestoreSystemProperties
     def "loadEurekaConfig([filename]) should load expected properties and set system properties"() {
         given:
@@ -0,0 +1,106 @@
+package com.github.bfg.eureka.dns.standalone
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpsConfigurator
+import com.sun.net.httpserver.HttpsServer
+import io.netty.handler.ssl.SslContextBuilder
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLHandshakeException
+import java.nio.charset.StandardCharsets
+import java.security.KeyStore
+import java.security.cert.X509Certificate
+import java.util.concurrent.CopyOnWriteArrayList
+
+class EurekaHttpClientSpec extends Specification {
+    static final char[] PASSWORD = "changeit".toCharArray()
+
+    HttpsServer server
+    def authorizations = new CopyOnWriteArrayList<String>()
+
+    @AutoCleanup
+    EurekaHttpClient client
+
+    def cleanup() {
+        server?.stop(0)
+    }
+
+    def "should fetch over https from server with certificate matching url host"() {
+        given:
+        def keyStore = startServer("tls-localhost.p12")
+        client = createClient(keyStore)
+
+        when:
+        def body = client.get(url("user:secret"), { it.text })
+
+        then:
+        body == "hello"
+        authorizations == ["Basic " + "user:secret".bytes.encodeBase64().toString()]
+    }
+
+    def "should reject trusted certificate issued for different host name"() {
+        given:
+        def keyStore = startServer("tls-wrong-host.p12")
+        client = createClient(keyStore)
+
+        when:
+        client.get(url("user:secret"), { it.text })
+
+        then:
+        def e = thrown(IOException)
+        causes(e).any { it instanceof SSLHandshakeException && it.message.contains("127.0.0.1") }
+
+        and: "credentials were not sent"
+        authorizations.isEmpty()
+    }
+
+    KeyStore startServer(String keyStoreResource) {
+        def keyStore = KeyStore.getInstance("PKCS12")
+        getClass().getResourceAsStream("/" + keyStoreResource).withCloseable { keyStore.load(it, PASSWORD) }
+        def kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+        kmf.init(keyStore, PASSWORD)
+        def sslContext = SSLContext.getInstance("TLS")
+        sslContext.init(kmf.getKeyManagers(), null, null)
+
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext))
+        server.createContext("/eureka/", { HttpExchange exchange -> handle(exchange) } as HttpHandler)
+        server.start()
+        keyStore
+    }
+
+    URI url(String userInfo) {
+        URI.create("https://${userInfo}@127.0.0.1:${server.getAddress().getPort()}/eureka/apps/")
+    }
+
+    /**
+     * Creates client that trusts server's self-signed certificate, so that only host name verification can fail.
+     */
+    static EurekaHttpClient createClient(KeyStore keyStore) {
+        def certificate = (X509Certificate) keyStore.getCertificate("eureka")
+        def sslContext = SslContextBuilder.forClient().trustManager(certificate).build()
+        new EurekaHttpClient(2000, 1024 * 1024, sslContext)
+    }
+
+    static List<Throwable> causes(Throwable e) {
+        def causes = []
+        for (def cause = e; cause != null; cause = cause.getCause()) {
+            causes << cause
+        }
+        causes
+    }
+
+    private void handle(HttpExchange exchange) {
+        def authorization = exchange.getRequestHeaders().getFirst("Authorization")
+        if (authorization) {
+            authorizations << authorization
+        }
+        def bytes = "hello".getBytes(StandardCharsets.UTF_8)
+        exchange.sendResponseHeaders(200, bytes.length)
+        exchange.getResponseBody().withCloseable { it.write(bytes) }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.bfg.eureka.dns.standalone
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class LatencyRecorderSpec extends Specification {
+    def recorder = new LatencyRecorder()
+
+    def "empty recorder should report zeros"() {
+        expect:
+        recorder.getCount() == 0
+        recorder.getMin() == 0
+        recorder.getMax() == 0
+        recorder.getMean() == 0
+        recorder.getValueAtPercentile(99) == 0
+    }
+
+    def "bucket of #value should contain values with relative error below 2%"() {
+        when:
+        def idx = LatencyRecorder.index(value)
+        def highest = LatencyRecorder.highestEquivalentValue(idx)
+
+        then:
+        highest >= value
+        highest - value <= value * 0.02
+        LatencyRecorder.index(highest) == idx
+        idx == 0 || LatencyRecorder.highestEquivalentValue(idx - 1) < value
+
+        where:
+        value << [0, 1, 127, 128, 129, 255, 256, 1000, 123_456, 1_000_000_007, Long.MAX_VALUE]
+    }
+
+    def "should compute percentiles"() {
+        given:
+        (1..1000).each { recorder.record(it * 1000L) }
+
+        expect:
+        recorder.getCount() == 1000
+        recorder.getMin() == 1000
+        recorder.getMax() == 1_000_000
+        recorder.getMean() == 500_500
+
+        within(recorder.getValueAtPercentile(50), 500_000)
+        within(recorder.getValueAtPercentile(90), 900_000)
+        within(recorder.getValueAtPercentile(99), 990_000)
+        recorder.getValueAtPercentile(100) == 1_000_000
+        recorder.getValueAtPercentile(0) == 1000
+    }
+
+    def "should merge recorders"() {
+        given:
+        def other = new LatencyRecorder()
+        recorder.record(10)
+        other.record(5)
+        other.record(20)
+
+        when:
+        recorder.merge(other)
+
+        then:
+        recorder.getCount() == 3
+        recorder.getMin() == 5
+        recorder.getMax() == 20
+        recorder.getValueAtPercentile(50) == 10
+    }
+
+    def "should record negative values as zero"() {
+        when:
+        recorder.record(-5)
+
+        then:
+        recorder.getCount() == 1
+        recorder.getMax() == 0
+    }
+
+    static boolean within(long actual, long expected) {
+        actual >= expected && actual <= expected * 1.02
+    }
+}
@@ -0,0 +1,328 @@
+package com.github.bfg.eureka.dns.standalone
+
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.CacheRefreshedEvent
+import com.netflix.discovery.EurekaEventListener
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import groovy.json.JsonOutput
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.zip.GZIPOutputStream
+
+class NativeEurekaClientSpec extends Specification {
+    def eureka = new StubEureka()
+    def events = []
+    NativeEurekaClient client
+
+    def setup() {
+        eureka.full = apps([FOO: [instance("FOO", "a", "10.0.0.1"), instance("FOO", "b", "10.0.0.2")]], "UP_2_")
+    }
+
+    def cleanup() {
+        client?.shutdown()
+        eureka.close()
+    }
+
+    def "should fetch full registry and then apply deltas"() {
+        given:
+        client = createClient(eureka.url)
+
+        when:
+        client.start()
+
+        then:
+        client.isFetched()
+        client.getFullFetches() == 1
+        events.size() == 1
+        events.every { it instanceof CacheRefreshedEvent }
+        ips("FOO") == ["10.0.0.1", "10.0.0.2"] as Set
+        eureka.requests == ["/eureka/apps/"]
+
+        when: "instance is added, modified and deleted"
+        eureka.delta = apps([
+                FOO: [instance("FOO", "a", "10.0.0.1", "DOWN", "MODIFIED"),
+                      instance("FOO", "b", "10.0.0.2", "UP", "DELETED")],
+                BAR: [instance("BAR", "c", "10.0.0.3", "UP", "ADDED")]
+        ], "DOWN_1_UP_1_")
+        def fetched = client.refresh()
+
+        then:
+        fetched
+        client.getDeltaFetches() == 1
+        client.getFullFetches() == 1
+        events.size() == 2
+        eureka.requests == ["/eureka/apps/", "/eureka/apps/delta"]
+
+        client.getApplication("FOO").getInstancesAsIsFromEureka()*.getStatus() == [InstanceInfo.InstanceStatus.DOWN]
+        ips("BAR") == ["10.0.0.3"] as Set
+        client.getApplications().getAppsHashCode() == "DOWN_1_UP_1_"
+
+        when: "application loses all instances"
+        eureka.delta = apps([FOO: [instance("FOO", "a", "10.0.0.1", "DOWN", "DELETED")]], "UP_1_")
+        client.refresh()
+
+        then:
+        client.getDeltaFetches() == 2
+        client.getApplication("FOO") == null
+        client.getApplications().size() == 1
+    }
+
+    def "should fetch full registry if delta doesn't reconcile"() {
+        given:
+        client = createClient(eureka.url).start()
+        eureka.delta = apps([BAR: [instance("BAR", "c", "10.0.0.3", "UP", "ADDED")]], "UP_42_")
+
+        when:
+        def fetched = client.refresh()
+
+        then:
+        fetched
+        client.getReconcileMismatches() == 1
+        client.getDeltaFetches() == 0
+        client.getFullFetches() == 2
+        eureka.requests == ["/eureka/apps/", "/eureka/apps/delta", "/eureka/apps/"]
+
+        and: "registry was replaced by the full fetch"
+        client.getApplication("BAR") == null
+        ips("FOO") == ["10.0.0.1", "10.0.0.2"] as Set
+    }
+
+    def "should fetch full registry if eureka server doesn't serve deltas"() {
+        given:
+        client = createClient(eureka.url).start()
+        eureka.deltaStatus = 403
+
+        when:
+        client.refresh()
+
+        then:
+        client.getFullFetches() == 2
+        client.getFailedFetches() == 0
+        eureka.requests == ["/eureka/apps/", "/eureka/apps/delta", "/eureka/apps/"]
+    }
+
+    def "should fetch gzip encoded registry with credentials"() {
+        given:
+        eureka.gzip = true
+        def url = eureka.url
+        client = createClient(new URI("http://user:secret@${url.host}:${url.port}${url.path}"))
+
+        when:
+        client.start()
+
+        then:
+        client.isFetched()
+        ips("FOO") == ["10.0.0.1", "10.0.0.2"] as Set
+        eureka.authorizations == ["Basic " + "user:secret".bytes.encodeBase64().toString()]
+    }
+
+    def "should fail over to next eureka server"() {
+        given:
+        def unavailable = new StubEureka()
+        unavailable.close()
+        client = createClient(unavailable.url, eureka.url)
+
+        when:
+        client.start()
+
+        then:
+        !client.isFetched()
+        client.getFailedFetches() == 1
+        events.isEmpty()
+        client.getApplications().size() == 0
+
+        when:
+        client.refresh()
+
+        then:
+        client.isFetched()
+        events.size() == 1
+        ips("FOO") == ["10.0.0.1", "10.0.0.2"] as Set
+    }
+
+    def "should keep previous registry if fetch fails"() {
+        given:
+        client = createClient(eureka.url).start()
+        def previous = client.getApplications()
+        eureka.full = "{ not json"
+        eureka.deltaStatus = 500
+
+        when:
+        def fetched = client.refresh()
+
+        then:
+        !fetched
+        client.getFailedFetches() == 1
+        client.getApplications().is(previous)
+        events.size() == 1
+    }
+
+    def "applying delta should not modify current applications"() {
+        given:
+        def current = new Applications()
+        current.addApplication(new Application("FOO", [parsed("FOO", "a", "10.0.0.1")]))
+        def delta = new Applications()
+        delta.addApplication(new Application("FOO", [
+                parsed("FOO", "a", "10.0.0.1", "UP", "DELETED"),
+                parsed("FOO", "b", "10.0.0.2", "UP", "ADDED")]))
+
+        when:
+        def updated = NativeEurekaClient.applyDelta(current, delta)
+
+        then:
+        updated.getRegisteredApplications("FOO").getInstancesAsIsFromEureka()*.getHostName() == ["b"]
+        current.getRegisteredApplications("FOO").getInstancesAsIsFromEureka()*.getHostName() == ["a"]
+    }
+
+    def "should answer registry lookups"() {
+        given:
+        client = createClient(eureka.url).start()
+
+        expect:
+        client.getApplicationsForARegion(null).is(client.getApplications())
+        client.getApplicationsForARegion("us-east-1") == null
+        client.getAllKnownRegions().isEmpty()
+        client.getInstancesById("a:foo:8080")*.getIPAddr() == ["10.0.0.1"]
+        client.getInstancesByVipAddress("foo", false)*.getIPAddr() as Set == ["10.0.0.1", "10.0.0.2"] as Set
+        client.getDiscoveryServiceUrls(null) == [eureka.url.toString() + "/"]
+    }
+
+    def "should return safe defaults from methods of registering client"() {
+        given:
+        eureka.full = apps([FOO: [instance("FOO", "a", "10.0.0.1"), instance("FOO", "b", "10.0.0.2", "DOWN")],
+                            BAR: [instance("BAR", "c", "10.0.0.3")]], "UP_2_DOWN_1_")
+        client = createClient(eureka.url).start()
+
+        when:
+        client.registerHealthCheck(null)
+        client.registerHealthCheckCallback(null)
+
+        then:
+        noExceptionThrown()
+
+        client.getInstancesByVipAddressAndAppName("foo", "FOO", false)*.getIPAddr() as Set ==
+                ["10.0.0.1", "10.0.0.2"] as Set
+        client.getInstancesByVipAddressAndAppName(null, "bar", false)*.getIPAddr() == ["10.0.0.3"]
+        client.getInstancesByVipAddressAndAppName("foo", "BAR", false).isEmpty()
+        client.getNextServerFromEureka("foo", false).getIPAddr() == "10.0.0.1"
+        client.getNextServerFromEureka("baz", false) == null
+
+        client.getApplications(eureka.url.toString()) == null
+        client.getInstanceRemoteStatus() == InstanceInfo.InstanceStatus.UNKNOWN
+        client.getServiceUrlsFromDNS(null, false).isEmpty()
+        client.getHealthCheckHandler() == null
+        client.getEurekaClientConfig() == null
+        client.getApplicationInfoManager() == null
+    }
+
+    NativeEurekaClient createClient(URI... urls) {
+        def client = new NativeEurekaClient(urls as List, 60_000, new EurekaHttpClient(2000, 1024 * 1024))
+        client.registerEventListener({ events << it } as EurekaEventListener)
+        client
+    }
+
+    Set<String> ips(String app) {
+        client.getApplication(app).getInstancesAsIsFromEureka()*.getIPAddr() as Set
+    }
+
+    static Map instance(String app, String host, String ip, String status = "UP", String actionType = "ADDED") {
+        [
+                instanceId        : "${host}:${app.toLowerCase()}:8080".toString(),
+                hostName          : host,
+                app               : app,
+                ipAddr            : ip,
+                status            : status,
+                overriddenstatus  : "UNKNOWN",
+                port              : ['$': 8080, '@enabled': "true"],
+                securePort        : ['$': 443, '@enabled': "false"],
+                dataCenterInfo    : ['@class': 'com.netflix.appinfo.InstanceInfo$DefaultDataCenterInfo', name: "MyOwn"],
+                leaseInfo         : [renewalIntervalInSecs: 30, durationInSecs: 90],
+                metadata          : ["management.port": "8080"],
+                vipAddress        : app.toLowerCase(),
+                lastDirtyTimestamp: "1548775268317",
+                actionType        : actionType
+        ]
+    }
+
+    static InstanceInfo parsed(String app, String host, String ip, String status = "UP", String actionType = "ADDED") {
+        def json = JsonOutput.toJson(
+                [application: [[name: app, instance: [instance(app, host, ip, status, actionType)]]]])
+        RegistryJsonParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))
+                .getRegisteredApplications(app)
+                .getInstancesAsIsFromEureka()
+                .first()
+    }
+
+    static String apps(Map<String, List<Map>> apps, String hashCode) {
+        JsonOutput.toJson([
+                applications: [
+                        versions__delta: "1",
+                        apps__hashcode : hashCode,
+                        application    : apps.collect { name, instances -> [name: name, instance: instances] }
+                ]
+        ])
+    }
+
+    /**
+     * Eureka server stub serving {@code apps/} and {@code apps/delta}.
+     */
+    static class StubEureka {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        final List<String> requests = new CopyOnWriteArrayList<>()
+        final List<String> authorizations = new CopyOnWriteArrayList<>()
+
+        volatile String full = NativeEurekaClientSpec.apps([:], "")
+        volatile String delta = NativeEurekaClientSpec.apps([:], "")
+        volatile int deltaStatus = 200
+        volatile boolean gzip = false
+
+        StubEureka() {
+            server.createContext("/eureka/", { HttpExchange exchange -> handle(exchange) } as HttpHandler)
+            server.start()
+        }
+
+        URI getUrl() {
+            URI.create("http://127.0.0.1:${server.getAddress().getPort()}/eureka")
+        }
+
+        void close() {
+            server.stop(0)
+        }
+
+        private void handle(HttpExchange exchange) {
+            def path = exchange.getRequestURI().getPath()
+            requests << path
+            def authorization = exchange.getRequestHeaders().getFirst("Authorization")
+            if (authorization) {
+                authorizations << authorization
+            }
+
+            def status = 404
+            def body = ""
+            if (path == "/eureka/apps/") {
+                status = 200
+                body = full
+            } else if (path == "/eureka/apps/delta") {
+                status = deltaStatus
+                body = (deltaStatus == 200) ? delta : ""
+            }
+
+            def bytes = body.getBytes(StandardCharsets.UTF_8)
+            if (gzip && bytes.length > 0) {
+                def bos = new ByteArrayOutputStream()
+                new GZIPOutputStream(bos).withCloseable { it.write(bytes) }
+                bytes = bos.toByteArray()
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip")
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json")
+            exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1)
+            exchange.getResponseBody().withCloseable { it.write(bytes) }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.bfg.eureka.dns.standalone
+
+import com.github.bfg.eureka.dns.FakeEurekaClient
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.appinfo.InstanceInfo.ActionType
+import com.netflix.appinfo.InstanceInfo.InstanceStatus
+import com.netflix.appinfo.InstanceInfo.PortType
+import groovy.json.JsonOutput
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+@Unroll
+class RegistryJsonParserSpec extends Specification {
+    def "should parse the same instances as eureka json codec from #resource"() {
+        given:
+        def expected = new FakeEurekaClient()
+                .read(getClass().getResourceAsStream(resource), "default")
+                .getApplications()
+
+        when:
+        def parsed = getClass().getResourceAsStream(resource).withCloseable { RegistryJsonParser.parse(it) }
+
+        then:
+        parsed.getRegisteredApplications()*.getName() as Set == expected.getRegisteredApplications()*.getName() as Set
+        expected.getRegisteredApplications().each { expectedApp ->
+            def app = parsed.getRegisteredApplications(expectedApp.getName())
+            assert app.getInstancesAsIsFromEureka().size() == expectedApp.getInstancesAsIsFromEureka().size()
+            expectedApp.getInstancesAsIsFromEureka().each { assertSameInstance(app.getByInstanceId(it.getId()), it) }
+        }
+
+        where:
+        resource << ["/eureka-apps-default.json", "/eureka-apps-dc1.json"]
+    }
+
+    def "should parse wrapped document with single objects instead of arrays"() {
+        given:
+        def json = JsonOutput.toJson([
+                applications: [
+                        versions__delta: "42",
+                        apps__hashcode : "DOWN_1_UP_1_",
+                        application    : [
+                                name    : "FOO",
+                                instance: [
+                                        instanceId        : "a:foo:8080",
+                                        hostName          : "a.example.org",
+                                        ipAddr            : "10.0.0.1",
+                                        status            : "DOWN",
+                                        port              : 8080,
+                                        securePort        : ['$': "8443", '@enabled': true],
+                                        vipAddress        : null,
+                                        metadata          : [nested: [deeply: [1, 2, 3]]],
+                                        lastDirtyTimestamp: 1548775268317,
+                                        actionType        : "MODIFIED",
+                                        unknown           : [[], [:], "x"]
+                                ]
+                        ]
+                ]
+        ])
+
+        when:
+        def apps = parse(json)
+        def instance = apps.getRegisteredApplications("FOO").getByInstanceId("a:foo:8080")
+
+        then:
+        apps.getVersion() == 42
+        apps.getAppsHashCode() == "DOWN_1_UP_1_"
+
+        instance.getAppName() == "FOO"
+        instance.getHostName() == "a.example.org"
+        instance.getIPAddr() == "10.0.0.1"
+        instance.getStatus() == InstanceStatus.DOWN
+        instance.getPort() == 8080
+        instance.getSecurePort() == 8443
+        instance.isPortEnabled(PortType.SECURE)
+        instance.getLastDirtyTimestamp() == 1548775268317
+        instance.getActionType() == ActionType.MODIFIED
+    }
+
+    def "should parse empty registry"() {
+        when:
+        def apps = parse('{"applications": {"versions__delta": "1", "apps__hashcode": "", "application": []}}')
+
+        then:
+        apps.size() == 0
+        apps.getAppsHashCode() == ""
+    }
+
+    def "should complain about invalid document: #json"() {
+        when:
+        parse(json)
+
+        then:
+        thrown(IOException)
+
+        where:
+        json << ['', '[]', '{"applications": {"application": [{"name": "FOO"', 'foo']
+    }
+
+    static parse(String json) {
+        RegistryJsonParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))
+    }
+
+    static void assertSameInstance(InstanceInfo actual, InstanceInfo expected) {
+        assert actual != null
+        assert actual.getAppName() == expected.getAppName()
+        assert actual.getHostName() == expected.getHostName()
+        assert actual.getIPAddr() == expected.getIPAddr()
+        assert actual.getStatus() == expected.getStatus()
+        assert actual.getPort() == expected.getPort()
+        assert actual.getSecurePort() == expected.getSecurePort()
+        assert actual.isPortEnabled(PortType.UNSECURE) == expected.isPortEnabled(PortType.UNSECURE)
+        assert actual.isPortEnabled(PortType.SECURE) == expected.isPortEnabled(PortType.SECURE)
+        assert actual.getVIPAddress() == expected.getVIPAddress()
+        assert actual.getLastDirtyTimestamp() == expected.getLastDirtyTimestamp()
+    }
+}
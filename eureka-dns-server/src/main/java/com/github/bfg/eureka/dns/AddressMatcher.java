@@ -0,0 +1,128 @@
+package com.github.bfg.eureka.dns;
+
+import com.google.common.net.InetAddresses;
+import lombok.NonNull;
+import lombok.val;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Matches client addresses against a list of IP addresses and networks in CIDR notation, for example
+ * {@code 10.1.2.3}, {@code 10.0.0.0/8} or {@code 2001:db8::/32}. Addresses are never resolved.
+ */
+final class AddressMatcher {
+    private final List<Network> networks;
+
+    private AddressMatcher(List<Network> networks) {
+        this.networks = networks;
+    }
+
+    /**
+     * Parses address list.
+     *
+     * @param entries IP addresses or networks in CIDR notation
+     * @return address matcher
+     * @throws IllegalArgumentException if any entry is invalid
+     */
+    static AddressMatcher parse(@NonNull Collection<String> entries) {
+        val networks = new ArrayList<Network>(entries.size());
+        entries.forEach(it -> networks.add(parseNetwork(it)));
+        return new AddressMatcher(networks);
+    }
+
+    private static Network parseNetwork(String str) {
+        val entry = str.trim();
+        val slashIdx = entry.indexOf('/');
+        val host = (slashIdx < 0) ? entry : entry.substring(0, slashIdx);
+        if (!InetAddresses.isInetAddress(host)) {
+            throw new IllegalArgumentException("Invalid address: " + str);
+        }
+
+        val address = InetAddresses.forString(host).getAddress();
+        int prefixLength = address.length * 8;
+        if (slashIdx >= 0) {
+            try {
+                prefixLength = Integer.parseInt(entry.substring(slashIdx + 1));
+            } catch (NumberFormatException e) {
+                prefixLength = -1;
+            }
+            if (prefixLength < 0 || prefixLength > address.length * 8) {
+                throw new IllegalArgumentException("Invalid network prefix length: " + str);
+            }
+        }
+        return new Network(entry, address, prefixLength);
+    }
+
+    /**
+     * Tells whether list is empty.
+     *
+     * @return true if matcher doesn't match any address
+     */
+    boolean isEmpty() {
+        return networks.isEmpty();
+    }
+
+    /**
+     * Tells whether given address belongs to any of listed addresses or networks.
+     *
+     * @param address address, may be {@code null}
+     * @return true if address matches
+     */
+    boolean matches(InetAddress address) {
+        if (address == null) {
+            return false;
+        }
+
+        val bytes = address.getAddress();
+        for (Network network : networks) {
+            if (network.contains(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return networks.toString();
+    }
+
+    private static final class Network {
+        private final String entry;
+        private final byte[] address;
+        private final int prefixLength;
+
+        Network(String entry, byte[] address, int prefixLength) {
+            this.entry = entry;
+            this.address = address;
+            this.prefixLength = prefixLength;
+        }
+
+        boolean contains(byte[] bytes) {
+            if (bytes.length != address.length) {
+                return false;
+            }
+
+            val fullBytes = prefixLength / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (bytes[i] != address[i]) {
+                    return false;
+                }
+            }
+            val remainingBits = prefixLength % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            val mask = (0xff << (8 - remainingBits)) & 0xff;
+            return (bytes[fullBytes] & mask) == (address[fullBytes] & mask);
+        }
+
+        @Override
+        public String toString() {
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Sheds UDP queries when event loop falls behind, so that queries that can still be answered in time are not delayed
+ * by the ones clients have most likely given up on already; must be placed in front of the DNS query decoder.
+ *
+ * <p>Load of every event loop is tracked in two ways:</p>
+ * <ul>
+ *     <li>queries received by a single read are processed one after another; query that waited for longer than
+ *     {@link DnsServerConfig#getOverloadMaxQueueDelay()} since the read started is shed.</li>
+ *     <li>probe task periodically scheduled on the event loop measures how long tasks wait for the event loop and
+ *     samples number of pending tasks; while any of them exceeds configured threshold event loop is considered
+ *     overloaded and all queries it receives are shed.</li>
+ * </ul>
+ *
+ * <p>Shed queries are either dropped or answered with REFUSED response that is created in place from the received
+ * datagram, without decoding the query.</p>
+ *
+ * @see DnsServerConfig#getOverloadAction()
+ */
+@Slf4j
+@ChannelHandler.Sharable
+final class AdmissionController extends ChannelInboundHandlerAdapter implements MetricsSource {
+    /**
+     * Interval of event loop probe task in milliseconds.
+     */
+    static final long PROBE_INTERVAL_MILLIS = 10;
+
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MILLIS);
+
+    private final long maxQueueDelayNanos;
+    private final int maxPendingTasks;
+    private final OverloadAction action;
+    private final LongSupplier nanoClock;
+
+    private final ConcurrentMap<EventExecutor, EventLoopLoad> loads = new ConcurrentHashMap<>();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config configuration
+     */
+    AdmissionController(@NonNull DnsServerConfig config) {
+        this(config.getOverloadMaxQueueDelay(), config.getOverloadMaxPendingTasks(), config.getOverloadAction(),
+                System::nanoTime);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param maxQueueDelayMillis maximum time in milliseconds query can wait for the event loop, 0 disables the check
+     * @param maxPendingTasks     maximum number of pending event loop tasks, 0 disables the check
+     * @param action              what to do with shed queries
+     * @param nanoClock           monotonic clock returning nanoseconds
+     */
+    AdmissionController(long maxQueueDelayMillis, int maxPendingTasks, @NonNull OverloadAction action,
+                        @NonNull LongSupplier nanoClock) {
+        if (maxQueueDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid max queue delay: " + maxQueueDelayMillis);
+        }
+        if (maxPendingTasks < 0) {
+            throw new IllegalArgumentException("Invalid max pending tasks: " + maxPendingTasks);
+        }
+        this.maxQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueDelayMillis);
+        this.maxPendingTasks = maxPendingTasks;
+        this.action = action;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Stops event loop probes; should be invoked when server stops.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof DatagramPacket) || getLoad(ctx.executor()).admit(nanoClock.getAsLong())) {
+            ctx.fireChannelRead(msg);
+        } else {
+            shed(ctx, (DatagramPacket) msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        getLoad(ctx.executor()).readComplete();
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Drops or refuses given query.
+     *
+     * @param ctx    channel handler context
+     * @param packet received datagram
+     */
+    private void shed(ChannelHandlerContext ctx, DatagramPacket packet) {
+        if (action == OverloadAction.REFUSE && DnsMessages.refuseQuery(packet.content())) {
+            refused.increment();
+            ctx.writeAndFlush(new DatagramPacket(packet.content(), packet.sender(), packet.recipient()));
+        } else {
+            dropped.increment();
+            packet.release();
+        }
+    }
+
+    /**
+     * Retrieves load of given event loop, starts tracking the event loop if it's not tracked yet.
+     *
+     * @param executor event loop
+     * @return event loop load
+     */
+    private EventLoopLoad getLoad(EventExecutor executor) {
+        val load = loads.get(executor);
+        return (load == null) ? loads.computeIfAbsent(executor, this::startTracking) : load;
+    }
+
+    private EventLoopLoad startTracking(EventExecutor executor) {
+        log.debug("tracking load of event loop: {}", executor);
+        val load = new EventLoopLoad(executor);
+        load.scheduleProbe();
+        return load;
+    }
+
+    /**
+     * Returns number of queries that were answered with REFUSED response.
+     *
+     * @return number of refused queries
+     */
+    long getRefused() {
+        return refused.sum();
+    }
+
+    /**
+     * Returns number of queries that were dropped.
+     *
+     * @return number of dropped queries
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns total number of shed queries.
+     *
+     * @return number of shed queries
+     */
+    long getShed() {
+        return getRefused() + getDropped();
+    }
+
+    /**
+     * Tells whether any of the event loops is currently overloaded.
+     *
+     * @return true/false
+     */
+    boolean isOverloaded() {
+        return loads.values().stream().anyMatch(e -> e.overloaded);
+    }
+
+    /**
+     * Returns the highest task queue delay measured by the last probe of every event loop.
+     *
+     * @return queue delay in nanoseconds
+     */
+    long getQueueDelayNanos() {
+        return loads.values().stream().mapToLong(e -> e.queueDelayNanos).max().orElse(0);
+    }
+
+    /**
+     * Returns total number of pending event loop tasks sampled by the last probe of every event loop.
+     *
+     * @return number of pending tasks
+     */
+    int getPendingTasks() {
+        return loads.values().stream().mapToInt(e -> e.pendingTasks).sum();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.header("shed_queries_total", "counter", "Number of UDP queries shed because event loop was overloaded.")
+                .sample("shed_queries_total", getRefused(), "action", "refused")
+                .sample("shed_queries_total", getDropped(), "action", "dropped");
+        out.metric("overloaded", "gauge", "Whether any event loop is overloaded.", isOverloaded() ? 1 : 0);
+        out.metric("event_loop_queue_delay_seconds", "gauge", "Highest event loop task queue delay.",
+                getQueueDelayNanos() / 1e9);
+        out.metric("event_loop_pending_tasks", "gauge", "Number of pending event loop tasks.", getPendingTasks());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(maxQueueDelay=" + TimeUnit.NANOSECONDS.toMillis(maxQueueDelayNanos) +
+                "ms, maxPendingTasks=" + maxPendingTasks + ", action=" + action + ")";
+    }
+
+    /**
+     * Load of a single event loop; query admission state is accessed only by the event loop thread.
+     */
+    private final class EventLoopLoad implements Runnable {
+        private final EventExecutor executor;
+
+        /**
+         * Time when the current read started.
+         */
+        private long readStartNanos;
+
+        /**
+         * Whether any query was received by the current read.
+         */
+        private boolean reading;
+
+        /**
+         * Time when probe was scheduled.
+         */
+        private long probeScheduledNanos;
+
+        private volatile boolean overloaded;
+        private volatile long queueDelayNanos;
+        private volatile int pendingTasks;
+
+        EventLoopLoad(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Decides whether query received now should be processed.
+         *
+         * @param now current time in nanoseconds
+         * @return true if query should be processed, false if it should be shed.
+         */
+        boolean admit(long now) {
+            if (!reading) {
+                reading = true;
+                readStartNanos = now;
+            }
+            if (overloaded) {
+                return false;
+            }
+            return maxQueueDelayNanos == 0 || now - readStartNanos <= maxQueueDelayNanos;
+        }
+
+        /**
+         * Marks the end of the current read.
+         */
+        void readComplete() {
+            reading = false;
+        }
+
+        /**
+         * Updates overload state from probe measurements.
+         *
+         * @param delayNanos time that probe task waited for the event loop
+         * @param numPending number of pending event loop tasks
+         */
+        void update(long delayNanos, int numPending) {
+            this.queueDelayNanos = delayNanos;
+            this.pendingTasks = numPending;
+
+            val isOverloaded = (maxQueueDelayNanos > 0 && delayNanos > maxQueueDelayNanos) ||
+                    (maxPendingTasks > 0 && numPending > maxPendingTasks);
+            if (isOverloaded != overloaded) {
+                overloaded = isOverloaded;
+                if (isOverloaded) {
+                    log.warn("event loop {} is overloaded, shedding queries: queue delay={} msec, pending tasks={}",
+                            executor, TimeUnit.NANOSECONDS.toMillis(delayNanos), numPending);
+                } else {
+                    log.info("event loop {} is no longer overloaded, total shed queries: {}", executor, getShed());
+                }
+            }
+        }
+
+        void scheduleProbe() {
+            if (stopped) {
+                return;
+            }
+            probeScheduledNanos = nanoClock.getAsLong();
+            try {
+                executor.schedule(this, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("can't schedule probe, event loop is shutting down: {}", executor);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            val delay = nanoClock.getAsLong() - probeScheduledNanos - PROBE_INTERVAL_NANOS;
+            val numPending = (executor instanceof SingleThreadEventExecutor) ?
+                    ((SingleThreadEventExecutor) executor).pendingTasks() : 0;
+            update(Math.max(0, delay), numPending);
+            scheduleProbe();
+        }
+    }
+}
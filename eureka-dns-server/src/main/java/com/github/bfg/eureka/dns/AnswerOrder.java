@@ -0,0 +1,23 @@
+package com.github.bfg.eureka.dns;
+
+/**
+ * Order in which service instances are returned to the client.
+ *
+ * @see DnsServerConfig#getAnswerOrder()
+ */
+public enum AnswerOrder {
+    /**
+     * Instances are always returned in the same order as they are listed by eureka.
+     */
+    STABLE,
+
+    /**
+     * Each subsequent query for the same service starts with the next instance.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Instances are returned in random order.
+     */
+    RANDOM
+}
@@ -0,0 +1,96 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects which records and in what order end up in the response; selected record indexes are written to per-thread
+ * reusable array, so that selection doesn't allocate anything once the array is large enough.
+ *
+ * @see AnswerOrder
+ */
+@UtilityClass
+class AnswerSelector {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Per-thread selected record indexes.
+     */
+    private static final FastThreadLocal<int[]> INDEXES = new FastThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[INITIAL_CAPACITY];
+        }
+    };
+
+    /**
+     * Returns number of records that should be returned to the client.
+     *
+     * @param numRecords   number of available records
+     * @param maxResponses maximum number of records in response, values &lt; 1 mean no limit.
+     * @return number of records
+     */
+    static int count(int numRecords, int maxResponses) {
+        return (maxResponses < 1) ? numRecords : Math.min(numRecords, maxResponses);
+    }
+
+    /**
+     * Selects records.
+     *
+     * @param order      answer order
+     * @param cursor     round-robin cursor of the service
+     * @param numRecords number of available records
+     * @param count      number of records to select, see {@link #count(int, int)}
+     * @return array whose first {@code count} elements contain indexes of selected records; array is reused by
+     *         subsequent invocations on the same thread.
+     */
+    static int[] select(@NonNull AnswerOrder order, @NonNull AtomicInteger cursor, int numRecords, int count) {
+        val indexes = indexes(numRecords);
+        if (numRecords == 0) {
+            return indexes;
+        }
+
+        if (order == AnswerOrder.ROUND_ROBIN) {
+            // cursor is treated as unsigned, so that rotation keeps advancing when it overflows to negative values
+            val start = Integer.remainderUnsigned(cursor.getAndIncrement(), numRecords);
+            for (int i = 0; i < count; i++) {
+                val idx = start + i;
+                indexes[i] = (idx < numRecords) ? idx : idx - numRecords;
+            }
+        } else if (order == AnswerOrder.RANDOM) {
+            // partial fisher-yates shuffle
+            for (int i = 0; i < numRecords; i++) {
+                indexes[i] = i;
+            }
+            val random = ThreadLocalRandom.current();
+            for (int i = 0; i < count; i++) {
+                val j = i + random.nextInt(numRecords - i);
+                val tmp = indexes[i];
+                indexes[i] = indexes[j];
+                indexes[j] = tmp;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                indexes[i] = i;
+            }
+        }
+
+        return indexes;
+    }
+
+    private static int[] indexes(int size) {
+        val indexes = INDEXES.get();
+        if (indexes.length >= size) {
+            return indexes;
+        }
+
+        val newIndexes = new int[Math.max(size, indexes.length * 2)];
+        INDEXES.set(newIndexes);
+        return newIndexes;
+    }
+}
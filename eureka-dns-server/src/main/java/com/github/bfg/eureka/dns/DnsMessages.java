@@ -0,0 +1,540 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordEncoder;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponse;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+/**
+ * DNS message wire format utilities.
+ *
+ * @see <a href="https://www.ietf.org/rfc/rfc1035.txt">RFC 1035 :: Domain names</a>
+ */
+@UtilityClass
+class DnsMessages {
+    /**
+     * DNS message header length in bytes.
+     */
+    static final int HEADER_LENGTH = 12;
+
+    /**
+     * Maximum UDP message size for clients that don't support EDNS0.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.2.1">RFC 1035, section 4.2.1 :: UDP usage</a>
+     */
+    static final int DEFAULT_MAX_PAYLOAD_SIZE = 512;
+
+    /**
+     * Offset of target name in SRV record RDATA (priority, weight and port precede it).
+     */
+    private static final int SRV_TARGET_OFFSET = 6;
+
+    /**
+     * Header flags bits carrying the opcode.
+     */
+    private static final int OPCODE_MASK = 0xf << 11;
+
+    /**
+     * Header RD flag.
+     */
+    private static final int RECURSION_DESIRED_FLAG = 1 << 8;
+
+    /**
+     * Per-thread reusable name builder.
+     */
+    private static final FastThreadLocal<StringBuilder> NAME_BUILDER = new FastThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(64);
+        }
+    };
+
+    /**
+     * Per-thread reusable view of RDATA being encoded.
+     */
+    private static final FastThreadLocal<BytesView> RDATA_VIEW = new FastThreadLocal<BytesView>() {
+        @Override
+        protected BytesView initialValue() {
+            return new BytesView();
+        }
+    };
+
+    /**
+     * Encodes given DNS response to its wire format; owner names and names in RDATA of well-known record types are
+     * compressed.
+     *
+     * @param response dns response
+     * @param buf      buffer where response will be written
+     * @return given byte buffer.
+     * @see DnsNameCompressor
+     */
+    static ByteBuf encodeResponse(@NonNull DnsResponse response, @NonNull ByteBuf buf) {
+        return encodeResponse(response, buf, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Encodes given DNS response to its wire format, making sure that encoded message is not larger than given size;
+     * owner names and names in RDATA of well-known record types are compressed.
+     *
+     * <p>Records that don't fit are omitted: if any answer or authority record is omitted, message is marked as
+     * truncated, additional records are omitted silently. EDNS0 OPT records are never omitted.</p>
+     *
+     * @param response dns response
+     * @param buf      buffer where response will be written
+     * @param maxSize  maximum encoded message size in bytes
+     * @return given byte buffer.
+     * @see DnsNameCompressor
+     * @see <a href="https://tools.ietf.org/html/rfc2181#section-9">RFC 2181, section 9 :: The TC (truncated) header
+     *         bit</a>
+     */
+    static ByteBuf encodeResponse(@NonNull DnsResponse response, @NonNull ByteBuf buf, int maxSize) {
+        // OPT records are written last, but they need to fit as well
+        val writer = DnsResponseWriter.get(buf, maxSize, optRecordsLength(response))
+                .header(response.id(), encodeFlags(response));
+
+        val numQuestions = response.count(DnsSection.QUESTION);
+        for (int i = 0; i < numQuestions; i++) {
+            DnsRecord question = response.recordAt(DnsSection.QUESTION, i);
+            writer.question(question.name(), question.type(), question.dnsClass());
+        }
+
+        encodeRecords(response, DnsSection.ANSWER, writer);
+        encodeRecords(response, DnsSection.AUTHORITY, writer);
+        encodeRecords(response, DnsSection.ADDITIONAL, writer);
+
+        val numAdditionals = response.count(DnsSection.ADDITIONAL);
+        for (int i = 0; i < numAdditionals; i++) {
+            DnsRecord record = response.recordAt(DnsSection.ADDITIONAL, i);
+            if (isOptRecord(record)) {
+                writer.optRecord(record);
+            }
+        }
+
+        return writer.finish();
+    }
+
+    /**
+     * Reads full response code from encoded response: lower 4 bits are carried by the header, upper 8 bits of extended
+     * response code (for example {@code BADVERS}) by the OPT record in additional section.
+     *
+     * @param buf encoded response, buffer indexes are not modified.
+     * @return response code; code from the header only if message doesn't contain OPT record or is malformed.
+     * @see <a href="https://tools.ietf.org/html/rfc6891#section-6.1.3">RFC 6891, section 6.1.3 :: OPT Record TTL
+     *         Field Use</a>
+     */
+    static DnsResponseCode getResponseCode(@NonNull ByteBuf buf) {
+        val start = buf.readerIndex();
+        val code = buf.getUnsignedByte(start + 3) & 0x0f;
+        val numAdditionals = buf.getUnsignedShort(start + 10);
+        if (numAdditionals == 0) {
+            return DnsResponseCode.valueOf(code);
+        }
+
+        val end = buf.writerIndex();
+        val numQuestions = buf.getUnsignedShort(start + 4);
+        val numRecords = buf.getUnsignedShort(start + 6) + buf.getUnsignedShort(start + 8) + numAdditionals;
+        int pos = start + HEADER_LENGTH;
+        for (int i = 0; i < numQuestions && pos >= 0; i++) {
+            pos = skipName(buf, pos);
+            pos = (pos < 0 || pos + 4 > end) ? -1 : pos + 4;
+        }
+        for (int i = 0; i < numRecords && pos >= 0; i++) {
+            pos = skipName(buf, pos);
+            if (pos < 0 || pos + 10 > end) {
+                break;
+            }
+            // extended response code is carried by the first byte of OPT record ttl field
+            if (buf.getUnsignedShort(pos) == DnsRecordType.OPT.intValue()) {
+                return DnsResponseCode.valueOf(buf.getUnsignedByte(pos + 4) << 4 | code);
+            }
+            pos += 10 + buf.getUnsignedShort(pos + 8);
+        }
+        return DnsResponseCode.valueOf(code);
+    }
+
+    /**
+     * Truncates encoded response to its header and question section, removes all records and sets TC flag; clients
+     * receiving such response should retry the query over TCP.
+     *
+     * @param buf encoded response
+     * @return given buffer
+     */
+    static ByteBuf truncateResponse(@NonNull ByteBuf buf) {
+        val start = buf.readerIndex();
+        buf.setShort(start + 2, buf.getUnsignedShort(start + 2) | DnsResponseWriter.TRUNCATED_FLAG);
+        return stripRecords(buf);
+    }
+
+    /**
+     * Turns encoded query into REFUSED response in place: keeps transaction id, opcode, RD flag and question section,
+     * removes all other records. Cheapest possible way to answer the query.
+     *
+     * @param buf encoded query
+     * @return true if query was turned into response, false if buffer doesn't contain a DNS query.
+     */
+    static boolean refuseQuery(@NonNull ByteBuf buf) {
+        if (buf.readableBytes() < HEADER_LENGTH) {
+            return false;
+        }
+
+        val start = buf.readerIndex();
+        val flags = buf.getUnsignedShort(start + 2);
+        if ((flags & DnsResponseWriter.RESPONSE_FLAG) != 0) {
+            return false;
+        }
+
+        buf.setShort(start + 2, DnsResponseWriter.RESPONSE_FLAG | (flags & (OPCODE_MASK | RECURSION_DESIRED_FLAG)) |
+                DnsResponseCode.REFUSED.intValue());
+        stripRecords(buf);
+        return true;
+    }
+
+    /**
+     * Removes everything but header and question section from encoded message; malformed question section is removed
+     * as well.
+     *
+     * @param buf encoded message
+     * @return given buffer
+     */
+    private static ByteBuf stripRecords(ByteBuf buf) {
+        val start = buf.readerIndex();
+        val numQuestions = buf.getUnsignedShort(start + 4);
+        int pos = start + HEADER_LENGTH;
+        for (int i = 0; i < numQuestions && pos >= 0; i++) {
+            pos = skipName(buf, pos);
+            pos = (pos < 0 || pos + 4 > buf.writerIndex()) ? -1 : pos + 4;
+        }
+        if (pos < 0) {
+            pos = start + HEADER_LENGTH;
+            buf.setShort(start + 4, 0);
+        }
+
+        buf.setShort(start + 6, 0);
+        buf.setShort(start + 8, 0);
+        buf.setShort(start + 10, 0);
+        return buf.writerIndex(pos);
+    }
+
+    /**
+     * Skips possibly compressed DNS name.
+     *
+     * @param buf buffer
+     * @param pos buffer index where name starts
+     * @return buffer index after the name, -1 if name is malformed.
+     */
+    private static int skipName(ByteBuf buf, int pos) {
+        val end = buf.writerIndex();
+        while (pos < end) {
+            val len = buf.getUnsignedByte(pos);
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                return (pos + 2 <= end) ? pos + 2 : -1;
+            }
+            if ((len & 0xc0) != 0) {
+                return -1;
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes RFC1035 DNS name.
+     *
+     * @param name name to encode
+     * @param buf  buffer where name will be written
+     * @return given byte buffer.
+     */
+    static ByteBuf encodeName(@NonNull String name, @NonNull ByteBuf buf) {
+        if (".".equals(name)) {
+            // Root domain
+            buf.writeByte(0);
+            return buf;
+        }
+
+        // dns name is series of labels, which are expressed in text form as commas.
+        val labels = name.split("\\.");
+        for (String label : labels) {
+
+            // each label can be 63 chars long.
+            val labelLen = label.length();
+            if (labelLen > 63) {
+                throw new IllegalArgumentException("Can't encode dns name '" + name + "'; length of label '" + label +
+                        "' is too long: " + labelLen);
+            }
+
+            if (labelLen == 0) {
+                // zero-length label means the end of the name.
+                break;
+            }
+
+            buf.writeByte(labelLen);
+            ByteBufUtil.writeAscii(buf, label);
+        }
+
+        buf.writeByte(0); // marks end of name field
+        return buf;
+    }
+
+    /**
+     * Encodes DNS response header flags.
+     *
+     * @param response dns response
+     * @return header flags
+     */
+    private static int encodeFlags(DnsResponse response) {
+        int flags = DnsResponseWriter.RESPONSE_FLAG;
+        flags |= (response.opCode().byteValue() & 0xff) << 11;
+        if (response.isAuthoritativeAnswer()) {
+            flags |= 1 << 10;
+        }
+        if (response.isTruncated()) {
+            flags |= DnsResponseWriter.TRUNCATED_FLAG;
+        }
+        if (response.isRecursionDesired()) {
+            flags |= 1 << 8;
+        }
+        if (response.isRecursionAvailable()) {
+            flags |= 1 << 7;
+        }
+        flags |= response.z() << 4;
+        // upper 8 bits of extended response code are carried by OPT record
+        flags |= response.code().intValue() & 0x0f;
+        return flags;
+    }
+
+    /**
+     * Encodes section records until first record that doesn't fit; OPT records are skipped.
+     */
+    private static void encodeRecords(DnsResponse response, DnsSection section, DnsResponseWriter writer) {
+        val count = response.count(section);
+        for (int i = 0; i < count; i++) {
+            DnsRecord record = response.recordAt(section, i);
+            if (!isOptRecord(record) && !writer.addRecord(section, record)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Computes encoded length of all OPT records in additional section.
+     */
+    private static int optRecordsLength(DnsResponse response) {
+        int length = 0;
+        val count = response.count(DnsSection.ADDITIONAL);
+        for (int i = 0; i < count; i++) {
+            DnsRecord record = response.recordAt(DnsSection.ADDITIONAL, i);
+            if (isOptRecord(record)) {
+                length += DnsResponseWriter.OPT_RECORD_LENGTH;
+                if (record instanceof DnsRawRecord) {
+                    length += ((DnsRawRecord) record).content().readableBytes();
+                }
+            }
+        }
+        return length;
+    }
+
+    private static boolean isOptRecord(DnsRecord record) {
+        return DnsRecordType.OPT.equals(record.type());
+    }
+
+    /**
+     * Encodes single resource record.
+     *
+     * @param record     record to encode
+     * @param compressor name compressor
+     * @param buf        buffer where record will be written
+     */
+    @SneakyThrows
+    static void encodeRecord(@NonNull DnsRecord record, @NonNull DnsNameCompressor compressor, @NonNull ByteBuf buf) {
+        if (!(record instanceof DnsRawRecord)) {
+            DnsRecordEncoder.DEFAULT.encodeRecord(record, buf);
+            return;
+        }
+
+        compressor.writeName(record.name(), buf);
+        buf.writeShort(record.type().intValue());
+        buf.writeShort(record.dnsClass());
+        buf.writeInt((int) record.timeToLive());
+
+        val lengthIdx = buf.writerIndex();
+        buf.writeShort(0);
+        encodeRData(record.type(), ((DnsRawRecord) record).content(), compressor, buf);
+        buf.setShort(lengthIdx, buf.writerIndex() - lengthIdx - 2);
+    }
+
+    /**
+     * Encodes record RDATA; names in RDATA of NS, CNAME, PTR, MX and SOA records are compressed. SRV target is written
+     * uncompressed as required by RFC 2782, but it can be referenced by names written after it.
+     *
+     * @param type       record type
+     * @param content    uncompressed record RDATA
+     * @param compressor name compressor
+     * @param buf        buffer where RDATA will be written
+     */
+    static void encodeRData(@NonNull DnsRecordType type, @NonNull ByteBuf content,
+                            @NonNull DnsNameCompressor compressor, @NonNull ByteBuf buf) {
+        val view = RDATA_VIEW.get().of(content);
+        try {
+            encodeRData(type, view, content.readerIndex(), content.writerIndex(), compressor, buf);
+        } finally {
+            view.clear();
+        }
+    }
+
+    /**
+     * Encodes record RDATA given as byte array without wrapping it to a buffer; names in RDATA of NS, CNAME, PTR, MX
+     * and SOA records are compressed, SRV target is written uncompressed.
+     *
+     * @param type       record type
+     * @param content    uncompressed record RDATA
+     * @param compressor name compressor
+     * @param buf        buffer where RDATA will be written
+     * @see #encodeRData(DnsRecordType, ByteBuf, DnsNameCompressor, ByteBuf)
+     */
+    static void encodeRData(@NonNull DnsRecordType type, @NonNull byte[] content,
+                            @NonNull DnsNameCompressor compressor, @NonNull ByteBuf buf) {
+        val view = RDATA_VIEW.get().of(content);
+        try {
+            encodeRData(type, view, 0, content.length, compressor, buf);
+        } finally {
+            view.clear();
+        }
+    }
+
+    private static void encodeRData(DnsRecordType type, BytesView content, int pos, int end,
+                                    DnsNameCompressor compressor, ByteBuf buf) {
+        val name = NAME_BUILDER.get();
+        if (type.equals(DnsRecordType.NS) || type.equals(DnsRecordType.CNAME) || type.equals(DnsRecordType.PTR)) {
+            pos = writeRDataName(content, pos, end, name, compressor, buf, true);
+        } else if (type.equals(DnsRecordType.MX)) {
+            content.writeTo(buf, pos, 2);
+            pos = writeRDataName(content, pos + 2, end, name, compressor, buf, true);
+        } else if (type.equals(DnsRecordType.SOA)) {
+            pos = writeRDataName(content, pos, end, name, compressor, buf, true);
+            pos = writeRDataName(content, pos, end, name, compressor, buf, true);
+        } else if (type.equals(DnsRecordType.SRV) && end - pos > SRV_TARGET_OFFSET) {
+            content.writeTo(buf, pos, SRV_TARGET_OFFSET);
+            pos = writeRDataName(content, pos + SRV_TARGET_OFFSET, end, name, compressor, buf, false);
+        }
+
+        // rest of RDATA, or all of it if record type doesn't contain names
+        if (pos < end) {
+            content.writeTo(buf, pos, end - pos);
+        }
+    }
+
+    /**
+     * Tells whether names in RDATA of given record type are compressed.
+     *
+     * @param type record type
+     * @return true for NS, CNAME, PTR, MX and SOA records
+     * @see #encodeRData(DnsRecordType, ByteBuf, DnsNameCompressor, ByteBuf)
+     */
+    static boolean isCompressibleRData(@NonNull DnsRecordType type) {
+        return type.equals(DnsRecordType.NS) || type.equals(DnsRecordType.CNAME) || type.equals(DnsRecordType.PTR) ||
+                type.equals(DnsRecordType.MX) || type.equals(DnsRecordType.SOA);
+    }
+
+    /**
+     * Reads uncompressed name from record RDATA and writes it to the message.
+     *
+     * @return RDATA index after the name; given {@code pos} if name could not be read, so that the rest of RDATA
+     *         is copied as-is.
+     */
+    private static int writeRDataName(BytesView content, int pos, int end, StringBuilder name,
+                                      DnsNameCompressor compressor, ByteBuf buf, boolean compress) {
+        val newPos = readName(content, pos, end, name);
+        if (newPos < 0) {
+            return pos;
+        }
+        compressor.writeName(name, buf, compress);
+        return newPos;
+    }
+
+    /**
+     * Reads uncompressed DNS name.
+     *
+     * @param buf buffer
+     * @param pos buffer index where name starts
+     * @param sb  string builder where name is going to be stored, is cleared first.
+     * @return buffer index after the name, -1 if name is malformed or compressed.
+     */
+    static int readName(@NonNull ByteBuf buf, int pos, @NonNull StringBuilder sb) {
+        return readName(new BytesView().of(buf), pos, buf.writerIndex(), sb);
+    }
+
+    private static int readName(BytesView bytes, int pos, int end, StringBuilder sb) {
+        sb.setLength(0);
+        while (pos < end) {
+            val len = bytes.getUnsignedByte(pos++);
+            if (len == 0) {
+                if (sb.length() == 0) {
+                    sb.append('.');
+                }
+                return pos;
+            }
+            if ((len & 0xc0) != 0 || pos + len > end) {
+                return -1;
+            }
+
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < len; i++) {
+                sb.append((char) bytes.getUnsignedByte(pos++));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index-addressed read-only view of either a byte array or a buffer, so that RDATA given in both forms is
+     * decoded by the same code without copying or wrapping it.
+     */
+    private static final class BytesView {
+        private byte[] array;
+        private ByteBuf buf;
+
+        BytesView of(byte[] array) {
+            this.array = array;
+            this.buf = null;
+            return this;
+        }
+
+        BytesView of(ByteBuf buf) {
+            this.array = null;
+            this.buf = buf;
+            return this;
+        }
+
+        void clear() {
+            this.array = null;
+            this.buf = null;
+        }
+
+        int getUnsignedByte(int index) {
+            return (array != null) ? array[index] & 0xff : buf.getUnsignedByte(index);
+        }
+
+        void writeTo(ByteBuf dst, int index, int length) {
+            if (array != null) {
+                dst.writeBytes(array, index, length);
+            } else {
+                dst.writeBytes(buf, index, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.Arrays;
+
+/**
+ * Writes DNS names using message compression; remembers offsets of all labels written to the message so far and
+ * replaces the longest already written name suffix with a pointer.
+ *
+ * <p>Offsets are kept in an open addressing hash table keyed by case-insensitive hash of the name that starts at
+ * given offset, so that looking up a suffix costs one probe sequence; names are compared only on a hash hit.</p>
+ *
+ * <p>Instances are not thread-safe and are meant to be reused: {@link #get(ByteBuf)} returns per-thread instance
+ * reset for encoding a new message.</p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.1.4">RFC 1035, section 4.1.4 :: Message
+ *         compression</a>
+ */
+final class DnsNameCompressor {
+    /**
+     * Maximum message offset that can be expressed by compression pointer.
+     */
+    private static final int MAX_POINTER_OFFSET = 0x3fff;
+
+    /**
+     * Maximum label length.
+     */
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    /**
+     * Maximum number of pointers followed while comparing names; guards against pointer loops.
+     */
+    private static final int MAX_POINTER_HOPS = 32;
+
+    private static final FastThreadLocal<DnsNameCompressor> INSTANCE = new FastThreadLocal<DnsNameCompressor>() {
+        @Override
+        protected DnsNameCompressor initialValue() {
+            return new DnsNameCompressor();
+        }
+    };
+
+    /**
+     * Buffer index where the message starts.
+     */
+    private int messageStart;
+
+    /**
+     * Message offsets of labels written so far, in the order they were written.
+     */
+    private int[] offsets = new int[64];
+
+    /**
+     * Hashes of names that start at {@link #offsets}.
+     */
+    private int[] hashes = new int[64];
+
+    /**
+     * Number of valid elements in {@link #offsets} and {@link #hashes}.
+     */
+    private int numOffsets;
+
+    /**
+     * Suffix hash table; contains indexes to {@link #offsets} incremented by one, 0 marks an empty slot.
+     */
+    private int[] table = new int[128];
+
+    /**
+     * Label start indexes of the name being written.
+     */
+    private int[] labelStarts = new int[16];
+
+    /**
+     * Label end indexes of the name being written.
+     */
+    private int[] labelEnds = new int[16];
+
+    /**
+     * Hashes of the name being written and its suffixes, indexed by the label where suffix starts.
+     */
+    private int[] suffixHashes = new int[16];
+
+    /**
+     * Returns per-thread instance, reset for encoding new message that starts at the current writer index of given
+     * buffer.
+     *
+     * @param buf buffer where message is going to be written
+     * @return name compressor
+     */
+    static DnsNameCompressor get(@NonNull ByteBuf buf) {
+        return INSTANCE.get().reset(buf.writerIndex());
+    }
+
+    /**
+     * Resets the state.
+     *
+     * @param messageStart buffer index where the message starts
+     * @return reference to itself
+     */
+    DnsNameCompressor reset(int messageStart) {
+        this.messageStart = messageStart;
+        if (numOffsets > 0) {
+            Arrays.fill(table, 0);
+            numOffsets = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Forgets names written at or after given buffer index; must be invoked when message is truncated, so that names
+     * written later don't point past the end of the message.
+     *
+     * @param index buffer index where message was truncated
+     * @return reference to itself
+     */
+    DnsNameCompressor truncate(int index) {
+        val offset = index - messageStart;
+        val oldNumOffsets = numOffsets;
+        while (numOffsets > 0 && offsets[numOffsets - 1] >= offset) {
+            numOffsets--;
+        }
+        if (numOffsets != oldNumOffsets) {
+            rehash(table.length);
+        }
+        return this;
+    }
+
+    /**
+     * Writes compressed DNS name.
+     *
+     * @param name name to write, trailing dot is optional
+     * @param buf  buffer to write to
+     * @return given buffer
+     */
+    ByteBuf writeName(@NonNull CharSequence name, @NonNull ByteBuf buf) {
+        return writeName(name, buf, true);
+    }
+
+    /**
+     * Writes DNS name; labels of written name can be referenced by names written later, even if the name itself is
+     * not compressed.
+     *
+     * @param name     name to write, trailing dot is optional
+     * @param buf      buffer to write to
+     * @param compress whether to compress given name
+     * @return given buffer
+     */
+    ByteBuf writeName(@NonNull CharSequence name, @NonNull ByteBuf buf, boolean compress) {
+        val end = nameEnd(name);
+        int numLabels = 0;
+        int start = 0;
+        while (start < end) {
+            int labelEnd = indexOf(name, '.', start, end);
+            if (labelEnd == start) {
+                // zero-length label means the end of the name.
+                break;
+            }
+            ensureLabelCapacity(numLabels + 1);
+            labelStarts[numLabels] = start;
+            labelEnds[numLabels] = labelEnd;
+            numLabels++;
+            start = labelEnd + 1;
+        }
+
+        int hash = 0;
+        for (int i = numLabels - 1; i >= 0; i--) {
+            hash = hashLabel(hash, name, labelStarts[i], labelEnds[i]);
+            suffixHashes[i] = hash;
+        }
+
+        for (int label = 0; label < numLabels; label++) {
+            val labelStart = labelStarts[label];
+            val labelEnd = labelEnds[label];
+            if (compress) {
+                val pointer = findSuffix(buf, suffixHashes[label], name, labelStart, end);
+                if (pointer >= 0) {
+                    buf.writeShort(0xc000 | pointer);
+                    return buf;
+                }
+            }
+
+            val labelLen = labelEnd - labelStart;
+            if (labelLen > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("Can't encode dns name '" + name + "'; label length is too long: " +
+                        labelLen);
+            }
+
+            addOffset(buf.writerIndex() - messageStart, suffixHashes[label]);
+            buf.writeByte(labelLen);
+            for (int i = labelStart; i < labelEnd; i++) {
+                buf.writeByte(name.charAt(i));
+            }
+        }
+
+        buf.writeByte(0); // marks end of name field
+        return buf;
+    }
+
+    /**
+     * Remembers labels of uncompressed name that was already written to the message without using this compressor,
+     * so that names written later can reference it.
+     *
+     * @param buf   buffer containing the message
+     * @param index buffer index where name starts
+     * @return reference to itself
+     */
+    DnsNameCompressor addName(@NonNull ByteBuf buf, int index) {
+        if (!isUncompressedName(buf, index)) {
+            return this;
+        }
+
+        int numLabels = 0;
+        int pos = index;
+        int len;
+        while ((len = buf.getUnsignedByte(pos)) != 0) {
+            ensureLabelCapacity(numLabels + 1);
+            labelStarts[numLabels++] = pos;
+            pos += 1 + len;
+        }
+
+        int hash = 0;
+        for (int i = numLabels - 1; i >= 0; i--) {
+            hash = hashLabel(hash, buf, labelStarts[i]);
+            suffixHashes[i] = hash;
+        }
+        for (int i = 0; i < numLabels; i++) {
+            addOffset(labelStarts[i] - messageStart, suffixHashes[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Tells whether well-formed uncompressed name starts at given buffer index.
+     */
+    private static boolean isUncompressedName(ByteBuf buf, int pos) {
+        val end = buf.writerIndex();
+        while (pos < end) {
+            val len = buf.getUnsignedByte(pos);
+            if (len == 0) {
+                return true;
+            }
+            if ((len & 0xc0) != 0) {
+                return false;
+            }
+            pos += 1 + len;
+        }
+        return false;
+    }
+
+    /**
+     * Finds already written name equal to given name suffix; if there are more such names, the one written first is
+     * returned.
+     *
+     * @param hash hash of given name suffix
+     * @return message offset of found name, -1 if it's not found.
+     */
+    private int findSuffix(ByteBuf buf, int hash, CharSequence name, int start, int end) {
+        val mask = table.length - 1;
+        for (int slot = slotOf(hash, mask); table[slot] != 0; slot = (slot + 1) & mask) {
+            val idx = table[slot] - 1;
+            if (hashes[idx] == hash && nameEquals(buf, offsets[idx], name, start, end)) {
+                return offsets[idx];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Case-insensitively compares encoded name at given message offset with given name.
+     */
+    private boolean nameEquals(ByteBuf buf, int offset, CharSequence name, int start, int end) {
+        int pos = messageStart + offset;
+        int nameIdx = start;
+        int hops = 0;
+        while (true) {
+            val len = buf.getUnsignedByte(pos);
+            if ((len & 0xc0) == 0xc0) {
+                if (++hops > MAX_POINTER_HOPS) {
+                    return false;
+                }
+                pos = messageStart + (((len & 0x3f) << 8) | buf.getUnsignedByte(pos + 1));
+                continue;
+            }
+            if (len == 0) {
+                return nameIdx >= end;
+            }
+            if (nameIdx >= end) {
+                return false;
+            }
+
+            val labelEnd = indexOf(name, '.', nameIdx, end);
+            if (labelEnd - nameIdx != len) {
+                return false;
+            }
+            pos++;
+            for (int i = nameIdx; i < labelEnd; i++, pos++) {
+                if (toLowerCase((char) buf.getUnsignedByte(pos)) != toLowerCase(name.charAt(i))) {
+                    return false;
+                }
+            }
+            nameIdx = labelEnd + 1;
+        }
+    }
+
+    private void addOffset(int offset, int hash) {
+        if (offset > MAX_POINTER_OFFSET) {
+            return;
+        }
+        if (numOffsets == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        offsets[numOffsets] = offset;
+        hashes[numOffsets] = hash;
+        numOffsets++;
+
+        // keep load factor at most 1/2
+        if (numOffsets * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(numOffsets - 1);
+        }
+    }
+
+    /**
+     * Rebuilds suffix hash table from remembered offsets; offsets are inserted in the order they were written, so
+     * that equal names written earlier are found first.
+     */
+    private void rehash(int capacity) {
+        if (capacity == table.length) {
+            Arrays.fill(table, 0);
+        } else {
+            table = new int[capacity];
+        }
+        for (int i = 0; i < numOffsets; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int idx) {
+        val mask = table.length - 1;
+        int slot = slotOf(hashes[idx], mask);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = idx + 1;
+    }
+
+    private void ensureLabelCapacity(int numLabels) {
+        if (numLabels > labelStarts.length) {
+            val capacity = Math.max(numLabels, labelStarts.length * 2);
+            labelStarts = Arrays.copyOf(labelStarts, capacity);
+            labelEnds = Arrays.copyOf(labelEnds, capacity);
+            suffixHashes = Arrays.copyOf(suffixHashes, capacity);
+        }
+    }
+
+    private static int slotOf(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Computes case-insensitive hash of a name consisting of given label followed by name with given hash.
+     */
+    private static int hashLabel(int suffixHash, CharSequence name, int start, int end) {
+        int hash = suffixHash * 31 + (end - start);
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Computes case-insensitive hash of a name consisting of encoded label at given buffer index followed by name
+     * with given hash; must produce the same hash as {@link #hashLabel(int, CharSequence, int, int)}.
+     */
+    private static int hashLabel(int suffixHash, ByteBuf buf, int index) {
+        val len = buf.getUnsignedByte(index);
+        int hash = suffixHash * 31 + len;
+        for (int i = index + 1; i <= index + len; i++) {
+            hash = hash * 31 + toLowerCase((char) buf.getUnsignedByte(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Returns name end index, excluding trailing dot.
+     */
+    private static int nameEnd(CharSequence name) {
+        val len = name.length();
+        return (len > 0 && name.charAt(len - 1) == '.') ? len - 1 : len;
+    }
+
+    private static int indexOf(CharSequence str, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (str.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static char toLowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+}
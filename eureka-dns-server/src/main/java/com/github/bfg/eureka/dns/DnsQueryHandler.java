@@ -1,104 +1,250 @@
 package com.github.bfg.eureka.dns;
 
-import com.google.common.net.InetAddresses;
-import com.netflix.appinfo.InstanceInfo;
-import com.netflix.appinfo.InstanceInfo.InstanceStatus;
-import com.netflix.appinfo.InstanceInfo.PortType;
-import com.netflix.discovery.EurekaClient;
-import com.netflix.discovery.shared.Application;
-import com.netflix.discovery.shared.Applications;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.dns.DatagramDnsQuery;
 import io.netty.handler.codec.dns.DatagramDnsResponse;
 import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuery;
 import io.netty.handler.codec.dns.DnsRecord;
 import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponse;
 import io.netty.handler.codec.dns.DnsResponseCode;
 import io.netty.handler.codec.dns.DnsSection;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.FastThreadLocal;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
-import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.LongAdder;
 
 import static io.netty.handler.codec.dns.DnsRecordType.*;
-import static java.nio.charset.StandardCharsets.US_ASCII;
 
 /**
- * DNS query netty channel handler.
+ * DNS query netty channel handler; answers queries received over UDP and TCP.
  *
  * @see <a href="https://www.ietf.org/rfc/rfc1035.txt">RFC 1035 :: Domain names</a>
  * @see <a href="https://tools.ietf.org/html/rfc2782">RFC 2782 :: A DNS RR for specifying the location of services
  *         (DNS SRV)</a>
+ * @see <a href="https://tools.ietf.org/html/rfc6891">RFC 6891 :: Extension Mechanisms for DNS (EDNS(0))</a>
  * @see <a href="https://www.consul.io/docs/agent/dns.html">Consul DNS interface</a>
  * @see <a href="https://www.haproxy.com/blog/dns-service-discovery-haproxy/">Haproxy service discovery</a>
  */
 @Slf4j
 @ChannelHandler.Sharable
-final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> implements MetricsSource {
+    /**
+     * Supported EDNS version.
+     */
+    static final int EDNS_VERSION = 0;
+
     private static final Set<DnsRecordType> VALID_QUESTION_TYPES = Collections.unmodifiableSet(new LinkedHashSet<>(
-            Arrays.asList(A, AAAA, ANY, TXT, SRV, DS, SOA, NS)));
+            Arrays.asList(A, AAAA, ANY, TXT, SRV, DS, SOA, NS, PTR)));
+
+    /**
+     * Question types answered with eureka registry contents.
+     */
+    private static final Set<DnsRecordType> SERVICE_QUESTION_TYPES = Collections.unmodifiableSet(
+            new LinkedHashSet<>(Arrays.asList(A, AAAA, ANY, TXT, SRV)));
+
+    /**
+     * Question types answered from reverse index when asked for a name in one of reverse zones.
+     */
+    private static final Set<DnsRecordType> REVERSE_QUESTION_TYPES = Collections.unmodifiableSet(
+            new LinkedHashSet<>(Arrays.asList(PTR, A, AAAA, ANY, TXT, SRV)));
 
-    private static final String SERVICE_NAME_REGEX = "^_?([\\w\\-]+)\\.(?:_\\w+\\.)?(?:service|connect)\\.";
-    private static final String DATACENTER_REGEX = "([\\w\\-]+)\\.";
+    /**
+     * Per-thread reusable buffer for addresses parsed from reverse lookup names.
+     */
+    private static final FastThreadLocal<byte[]> REVERSE_ADDRESS = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16];
+        }
+    };
 
+    /**
+     * Per-thread reusable query name parse result.
+     */
+    private static final FastThreadLocal<ParsedQueryName> PARSED_QUERY_NAME = new FastThreadLocal<ParsedQueryName>() {
+        @Override
+        protected ParsedQueryName initialValue() {
+            return new ParsedQueryName();
+        }
+    };
 
     private final DnsServerConfig config;
-    private final EurekaClient eurekaClient;
 
     /**
-     * DNS server hostname (used for NS/SOA responses)
+     * Eureka registry index.
      */
-    private final String nsHostname;
+    private final RegistryIndexManager registryIndexManager;
 
     /**
-     * Query name pattern for queries that don't include datacenter.
-     *
-     * @see #getDatacenter(String)
-     * @see #getServiceName(String)
+     * Zone SOA/NS records.
      */
-    private final Pattern withoutDcPattern;
+    private final ZoneAuthority zoneAuthority;
 
     /**
-     * Query name pattern for queries that include datacenter.
+     * Query name parser.
      *
      * @see #getDatacenter(String)
      * @see #getServiceName(String)
      */
-    private final Pattern withDcPattern;
+    private final QueryNameParser queryNameParser;
 
     /**
-     * Creates new instance.
+     * Order of returned service instances.
+     */
+    private final AnswerOrder answerOrder;
+
+    /**
+     * Server components, provide node and reverse index of current registry index.
+     */
+    private final DnsServerComponents components;
+
+    /**
+     * Lowercased reverse zones without trailing dot, empty if reverse lookups are disabled.
+     */
+    private final String[] reverseZones;
+
+    /**
+     * Encoded response cache, {@code null} if response caching is disabled.
+     */
+    private final ResponseCache responseCache;
+
+    /**
+     * UDP response rate limiter, {@code null} if response rate limiting is disabled.
+     */
+    private final ResponseRateLimiter rateLimiter;
+
+    /**
+     * Query instrumentation, {@code null} if metrics are disabled.
+     */
+    private final QueryMetrics queryMetrics;
+
+    /**
+     * Asynchronous query log, {@code null} if query logging is disabled.
+     */
+    private final QueryLog queryLog;
+
+    /**
+     * Zone transfers, {@code null} if zone transfers are disabled.
+     */
+    private final ZoneTransfer zoneTransfer;
+
+    /**
+     * Number of service queries rejected by service name filter.
+     */
+    private final LongAdder filterRejections = new LongAdder();
+
+    /**
+     * Number of service queries for unknown services that were not rejected by service name filter.
+     */
+    private final LongAdder filterFalsePositives = new LongAdder();
+
+    /**
+     * Creates new instance with its own server components.
      *
      * @param config configuration
      */
     DnsQueryHandler(@NonNull DnsServerConfig config) {
-        this.config = config;
-        this.eurekaClient = config.getEurekaClient();
-        this.nsHostname = "ns." + config.getDomain();
+        this(new DnsServerComponents(config));
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param components server components
+     */
+    DnsQueryHandler(@NonNull DnsServerComponents components) {
+        this.components = components;
+        this.config = components.getConfig();
+        this.registryIndexManager = components.getRegistryIndexManager();
+        this.zoneAuthority = components.getZoneAuthority();
+        this.queryNameParser = new QueryNameParser(config.getDomain());
+        this.answerOrder = config.getAnswerOrder();
+        this.reverseZones = components.getReverseZones();
+        this.responseCache = components.getResponseCache();
+        this.rateLimiter = components.getRateLimiter();
+        this.queryMetrics = components.getQueryMetrics();
+        this.queryLog = components.getQueryLog();
+        this.zoneTransfer = components.getZoneTransfer();
+    }
 
-        this.withoutDcPattern =
-                Pattern.compile(SERVICE_NAME_REGEX + config.getDomain() + "\\.?$");
-        this.withDcPattern =
-                Pattern.compile(SERVICE_NAME_REGEX + DATACENTER_REGEX + config.getDomain() + "\\.?$");
+    /**
+     * Starts server components; should be invoked when server starts.
+     *
+     * @see DnsServerComponents#start()
+     */
+    void start() {
+        components.start();
+    }
+
+    /**
+     * Stops server components; should be invoked when server stops.
+     *
+     * @see DnsServerComponents#stop()
+     */
+    void stop() {
+        components.stop();
+    }
+
+    /**
+     * Returns number of service queries for unknown services that were rejected by service name filter.
+     *
+     * @return number of rejected queries
+     * @see RegistryIndex#getServiceFilter()
+     */
+    long getFilterRejections() {
+        return filterRejections.sum();
+    }
+
+    /**
+     * Returns number of service queries for unknown services that were not rejected by service name filter.
+     *
+     * @return number of false positives
+     * @see RegistryIndex#getServiceFilter()
+     */
+    long getFilterFalsePositives() {
+        return filterFalsePositives.sum();
+    }
+
+    /**
+     * Returns observed service name filter false positive rate: fraction of queries for unknown services that were
+     * not rejected by the filter.
+     *
+     * @return false positive rate, 0 if there were no queries for unknown services.
+     */
+    double getFilterFalsePositiveRate() {
+        val falsePositives = getFilterFalsePositives();
+        val negatives = falsePositives + getFilterRejections();
+        return (negatives == 0) ? 0 : (double) falsePositives / negatives;
+    }
+
+    /**
+     * Returns service name filter of current registry index.
+     *
+     * @return service name filter
+     */
+    ServiceNameFilter getServiceFilter() {
+        return registryIndexManager.index().getServiceFilter();
     }
 
     @Override
@@ -106,28 +252,466 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
     protected void channelRead0(@NonNull ChannelHandlerContext ctx, @NonNull DatagramDnsQuery msg) {
         log.trace("received dns query: {}", msg);
 
-        val response = createResponse(msg);
-        logDnsQuery(msg, response);
+        val startNanos = (queryMetrics == null) ? 0 : System.nanoTime();
+        if (queryMetrics != null) {
+            // answer path leaves parsed question name behind for recordMetrics()
+            PARSED_QUERY_NAME.get().reset(null);
+        }
+        val question = msg.recordAt(DnsSection.QUESTION);
+        // OPT record is looked up once and passed down to everything that depends on it
+        val opt = findOptRecord(msg);
+        if (zoneTransfer != null && ZoneTransfer.isTransferQuestion(question)) {
+            transferZone(ctx, msg, opt != null, startNanos);
+            return;
+        }
+        val maxSize = isDatagramChannel(ctx) ? getMaxPayloadSize(opt) : TcpDnsFrameDecoder.MAX_MESSAGE_SIZE;
+
+        // responses to unsupported EDNS versions are never cached
+        val encoded = (isResponseCacheEnabled() && responseCache.isCacheable(question) && isSupportedEdnsVersion(opt)) ?
+                respondCached(ctx, msg, question, opt, maxSize) :
+                encodeResponse(ctx.alloc(), msg, opt, maxSize);
+
+        val code = DnsMessages.getResponseCode(encoded);
+        logDnsQuery(ctx, msg, encoded, code);
+        writeResponse(ctx, msg, encoded, code);
+        if (queryMetrics != null) {
+            recordMetrics(question, code, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Answers zone transfer query. Refusals, errors and answers without the zone are written right away, the zone
+     * is built by {@link ZoneTransfer#build(ZoneTransfer.Transfer)} off the event loop and written back on the
+     * channel's event loop.
+     *
+     * @param ctx        channel handler context
+     * @param msg        {@code AXFR} or {@code IXFR} query
+     * @param edns       whether query contained EDNS0 OPT record
+     * @param startNanos time query processing started, 0 if metrics are disabled
+     * @see ZoneTransfer
+     */
+    private void transferZone(ChannelHandlerContext ctx, DatagramDnsQuery msg, boolean edns, long startNanos) {
+        val tcp = !isDatagramChannel(ctx);
+        val transfer = zoneTransfer.prepare(msg, registryIndexManager.index(), tcp, edns);
+        if (transfer.isBuilt()) {
+            val encoded = transfer.nextMessage(ctx.alloc());
+            val code = DnsMessages.getResponseCode(encoded);
+            logDnsQuery(ctx, msg, encoded, code);
+            writeResponse(ctx, msg, encoded, code);
+            if (queryMetrics != null) {
+                recordMetrics(transfer.getQuestion(), code, System.nanoTime() - startNanos);
+            }
+            return;
+        }
+
+        // query is released by the time zone is built
+        val sender = msg.sender();
+        zoneTransfer.build(transfer).whenComplete((built, cause) -> {
+            Runnable task = () -> sendZone(ctx, sender, transfer, cause, startNanos);
+            if (ctx.executor().inEventLoop()) {
+                task.run();
+            } else {
+                ctx.executor().execute(task);
+            }
+        });
+    }
+
+    private void sendZone(ChannelHandlerContext ctx, InetSocketAddress sender, ZoneTransfer.Transfer transfer,
+                          Throwable cause, long startNanos) {
+        if (cause != null) {
+            log.error("error building zone for transfer to {}, closing connection.", sender, cause);
+            ctx.close();
+            return;
+        }
+
+        val first = transfer.nextMessage(ctx.alloc());
+        val code = DnsMessages.getResponseCode(first);
+        logDnsQuery(ctx, sender, transfer.getQuestion(), first, code);
+        log.debug("sending zone of {} records to {}", transfer.size(), sender);
+        writeZone(ctx, transfer, first);
+        if (queryMetrics != null) {
+            recordMetrics(transfer.getQuestion(), code, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Writes given message and next messages of zone transfer while channel is writable, so that the whole zone is
+     * never queued in outbound buffer; writing resumes once the last written message is flushed.
+     *
+     * @param ctx      channel handler context
+     * @param transfer zone transfer
+     * @param message  message to write first
+     */
+    private static void writeZone(ChannelHandlerContext ctx, ZoneTransfer.Transfer transfer, ByteBuf message) {
+        ChannelFuture last = ctx.write(message);
+        while (!transfer.isDone() && ctx.channel().isWritable()) {
+            last = ctx.write(transfer.nextMessage(ctx.alloc()));
+        }
+        ctx.flush();
+
+        if (!transfer.isDone()) {
+            last.addListener((ChannelFutureListener) f -> {
+                if (f.isSuccess()) {
+                    writeZone(ctx, transfer, transfer.nextMessage(ctx.alloc()));
+                } else {
+                    log.debug("zone transfer was interrupted: {}", f.cause().toString());
+                    transfer.abandon();
+                }
+            });
+        }
+    }
+
+    /**
+     * Records metrics of answered query; service query counters use question name parsed by the answer path, which
+     * is left in per-thread parse result. Question name is parsed here only if the query was answered without
+     * parsing it, i.e. from response cache.
+     *
+     * @param question     query question, may be {@code null}
+     * @param code         response code
+     * @param latencyNanos time it took to answer the query
+     */
+    private void recordMetrics(DnsRecord question, DnsResponseCode code, long latencyNanos) {
+        queryMetrics.record((question == null) ? null : question.type(), code, latencyNanos);
+        if (DnsResponseCode.NOERROR.equals(code) && isServiceQuestion(question)) {
+            val parsed = PARSED_QUERY_NAME.get();
+            val answerPathParsed = parsed.name() != null;
+            // node lookups would blow up service label cardinality
+            if ((answerPathParsed || queryNameParser.parse(question.name(), parsed)) && parsed.hasServiceName()) {
+                queryMetrics.recordService(parsed);
+            }
+        }
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        val filter = getServiceFilter();
+        out.metric("service_filter_rejections_total", "counter",
+                "Number of queries for unknown services rejected by service name filter.", getFilterRejections());
+        out.metric("service_filter_false_positives_total", "counter",
+                "Number of queries for unknown services not rejected by service name filter.",
+                getFilterFalsePositives());
+        out.metric("service_filter_entries", "gauge", "Number of service name filter entries.",
+                filter.getNumEntries());
+        out.metric("service_filter_size_bits", "gauge", "Size of service name filter in bits.",
+                filter.getNumBits());
+        out.metric("service_filter_expected_false_positive_rate", "gauge",
+                "Expected false positive rate of service name filter.", filter.getExpectedFalsePositiveRate());
+        out.metric("service_filter_false_positive_rate", "gauge",
+                "Observed false positive rate of service name filter.", getFilterFalsePositiveRate());
+    }
+
+    /**
+     * Returns query instrumentation.
+     *
+     * @return query metrics, {@code null} if metrics are disabled.
+     */
+    QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            log.debug("closing idle tcp connection: {}", ctx.channel());
+            ctx.close();
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (isDatagramChannel(ctx)) {
+            log.error("exception while processing dns query: {}", cause.getMessage(), cause);
+        } else {
+            // tcp stream is most likely out of sync, client can retry using new connection
+            log.debug("closing tcp connection {} after exception: {}", ctx.channel(), cause.getMessage(), cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Creates response to a query using response cache; response is created and cached if it's not present in the
+     * cache.
+     *
+     * @param ctx      channel handler context
+     * @param msg      dns query
+     * @param question query question
+     * @param opt      query OPT record, may be {@code null}
+     * @param maxSize  maximum encoded response size
+     * @return encoded response
+     */
+    private ByteBuf respondCached(ChannelHandlerContext ctx, DatagramDnsQuery msg, DnsRecord question,
+                                  DnsRecord opt, int maxSize) {
+        val edns = opt != null;
+        val cached = responseCache.get(question, maxSize, edns, msg.id(), ctx.alloc());
+        if (cached != null) {
+            return cached;
+        }
+
+        val generation = responseCache.generation();
+        val encoded = encodeResponse(ctx.alloc(), msg, opt, maxSize);
+        if (responseCache.isCacheable(DnsMessages.getResponseCode(encoded))) {
+            responseCache.put(question, maxSize, edns, encoded, generation);
+        }
+        return encoded;
+    }
+
+    /**
+     * Writes encoded response to the client; TCP responses are prefixed with their length by the channel pipeline.
+     *
+     * @param ctx     channel handler context
+     * @param msg     dns query
+     * @param encoded encoded response
+     * @param code    response code of encoded response
+     */
+    private void writeResponse(ChannelHandlerContext ctx, DatagramDnsQuery msg, ByteBuf encoded,
+                               DnsResponseCode code) {
+        if (isDatagramChannel(ctx)) {
+            if (rateLimiter != null && !applyRateLimit(msg, encoded, code)) {
+                return;
+            }
+            ctx.writeAndFlush(new DatagramPacket(encoded, msg.sender(), msg.recipient()));
+        } else {
+            ctx.writeAndFlush(encoded);
+        }
+    }
+
+    /**
+     * Applies response rate limit to UDP response; TCP responses are never limited, because TCP clients can't spoof
+     * their address.
+     *
+     * @param msg     dns query
+     * @param encoded encoded response, replaced by truncated response if response is slipped.
+     * @param code    response code of encoded response
+     * @return true if response should be sent, false if response was dropped and released.
+     * @see ResponseRateLimiter
+     */
+    private boolean applyRateLimit(DatagramDnsQuery msg, ByteBuf encoded, DnsResponseCode code) {
+        val question = msg.recordAt(DnsSection.QUESTION);
+        val action = rateLimiter.check(msg.sender().getAddress(),
+                (question == null) ? null : question.name(),
+                (question == null) ? 0 : question.type().intValue(),
+                code);
+
+        if (action == ResponseRateLimiter.Action.SLIP) {
+            log.trace("slipping rate limited response to: {}", msg.sender());
+            DnsMessages.truncateResponse(encoded);
+        } else if (action == ResponseRateLimiter.Action.DROP) {
+            log.trace("dropping rate limited response to: {}", msg.sender());
+            encoded.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether query was received over UDP.
+     *
+     * @param ctx channel handler context
+     * @return true if query was received over UDP, false if it was received over TCP
+     */
+    private boolean isDatagramChannel(ChannelHandlerContext ctx) {
+        return ctx.channel() instanceof DatagramChannel;
+    }
+
+    /**
+     * Creates and encodes response to given DNS query. Responses to service queries are written directly to the
+     * buffer obtained from given allocator, all other queries are answered using
+     * {@link #createResponse(DatagramDnsQuery)}.
+     *
+     * @param allocator allocator used to allocate response buffer
+     * @param query     dns query
+     * @param maxSize   maximum encoded response size
+     * @return encoded response
+     * @see DnsMessages#encodeResponse(DnsResponse, ByteBuf, int)
+     */
+    ByteBuf encodeResponse(@NonNull ByteBufAllocator allocator, @NonNull DatagramDnsQuery query, int maxSize) {
+        return encodeResponse(allocator, query, findOptRecord(query), maxSize);
+    }
+
+    private ByteBuf encodeResponse(ByteBufAllocator allocator, DatagramDnsQuery query, DnsRecord opt, int maxSize) {
+        val encoded = allocator.ioBuffer(DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            if (writeServiceResponse(query, opt, encoded, maxSize)) {
+                return encoded;
+            }
+
+            val response = createResponse(query, opt);
+            try {
+                log.trace("sending DNS response: {}", response);
+                return DnsMessages.encodeResponse(response, encoded, maxSize);
+            } finally {
+                response.release();
+            }
+        } catch (RuntimeException e) {
+            encoded.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes response to a service or reverse lookup query directly to given buffer, without creating intermediate
+     * response and record objects; response is the same as response created by
+     * {@link #createResponse(DatagramDnsQuery)}.
+     *
+     * @param query   dns query
+     * @param opt     query OPT record, may be {@code null}
+     * @param buf     buffer where response will be written
+     * @param maxSize maximum encoded response size
+     * @return true if response was written, false if query is not a service or reverse lookup query and nothing was
+     *         written.
+     */
+    private boolean writeServiceResponse(DatagramDnsQuery query, DnsRecord opt, ByteBuf buf, int maxSize) {
+        val question = query.recordAt(DnsSection.QUESTION);
+        val reverseZone = isReverseQuestion(question) ? findReverseZone(question.name()) : null;
+        if ((reverseZone == null && !isServiceQuestion(question)) || !isSupportedEdnsVersion(opt)) {
+            return false;
+        }
+
+        val questionName = question.name().toLowerCase();
+        val parsed = PARSED_QUERY_NAME.get();
+        if (reverseZone == null && !queryNameParser.parse(questionName, parsed)) {
+            return false;
+        }
+
+        val start = buf.writerIndex();
+        try {
+            val writer = DnsResponseWriter.get(buf, maxSize, (opt == null) ? 0 : DnsResponseWriter.OPT_RECORD_LENGTH)
+                    .header(query.id(), DnsResponseWriter.RESPONSE_FLAG)
+                    .question(question.name(), question.type(), question.dnsClass());
+
+            val code = (reverseZone == null) ?
+                    answerServiceQuestion(writer, question.type(), questionName, parsed) :
+                    answerReverseQuestion(writer, question.type(), questionName, reverseZone);
+            writer.flags(DnsResponseWriter.RESPONSE_FLAG | code.intValue());
+            if (opt != null) {
+                writer.optRecord(config.getMaxUdpPayloadSize(), code.intValue() >> 4, EDNS_VERSION);
+            }
+            writer.finish();
+            return true;
+        } catch (Exception e) {
+            // let the regular response path deal with the failure
+            log.error("exception while writing response: {}", e.getMessage(), e);
+            buf.writerIndex(start);
+            return false;
+        }
+    }
 
-        ctx.writeAndFlush(response);
+    /**
+     * Finds EDNS0 OPT record in query additional section.
+     *
+     * @param query dns query
+     * @return OPT record, {@code null} if query doesn't contain it.
+     * @see <a href="https://tools.ietf.org/html/rfc6891">RFC 6891 :: Extension Mechanisms for DNS (EDNS(0))</a>
+     */
+    private DnsRecord findOptRecord(DnsQuery query) {
+        val count = query.count(DnsSection.ADDITIONAL);
+        for (int i = 0; i < count; i++) {
+            DnsRecord record = query.recordAt(DnsSection.ADDITIONAL, i);
+            if (OPT.equals(record.type())) {
+                return record;
+            }
+        }
+        return null;
     }
 
     /**
-     * Logs DNS query.
+     * Computes maximum response size: minimum of the client's advertised UDP payload size and configured server
+     * maximum. Clients that don't send OPT record are limited to 512 bytes.
      *
-     * @param msg      original client's dns query.
-     * @param response response being sent to client.
+     * @param opt query OPT record, may be {@code null}
+     * @return maximum response size in bytes
+     * @see DnsServerConfig#getMaxUdpPayloadSize()
      */
-    private void logDnsQuery(@NonNull DatagramDnsQuery msg, DatagramDnsResponse response) {
-        if (config.isLogQueries()) {
-            val question = msg.recordAt(DnsSection.QUESTION);
-            val client = response.recipient();
-            log.info("query from=[{}]:{} type={} name={} status={}, answers={}",
-                    InetAddresses.toAddrString(client.getAddress()), client.getPort(),
-                    question.type(), question.name(),
-                    response.code(), response.count(DnsSection.ANSWER));
+    private int getMaxPayloadSize(DnsRecord opt) {
+        if (opt == null) {
+            return DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE;
+        }
+
+        // requestor's payload size is carried in class field, values below 512 must be treated as 512
+        val clientSize = Math.max(opt.dnsClass(), DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        return Math.min(clientSize, config.getMaxUdpPayloadSize());
+    }
+
+    /**
+     * Tells whether EDNS version of given OPT record is supported.
+     *
+     * @param opt query OPT record, may be {@code null}
+     * @return true if version is supported or if query doesn't contain OPT record.
+     */
+    private boolean isSupportedEdnsVersion(DnsRecord opt) {
+        // version is carried in the second byte of ttl field
+        return opt == null || ((opt.timeToLive() >> 16) & 0xff) <= EDNS_VERSION;
+    }
+
+    /**
+     * Tells whether given question is valid question answered with eureka registry contents.
+     *
+     * @param question question
+     * @return true/false
+     */
+    private boolean isServiceQuestion(DnsRecord question) {
+        return question != null && SERVICE_QUESTION_TYPES.contains(question.type()) && isValidQuestion(question);
+    }
+
+    /**
+     * Tells whether given question might be a question for a name in one of reverse zones.
+     *
+     * @param question question
+     * @return true if reverse lookups are enabled and question type and class can be answered from reverse index
+     * @see #findReverseZone(String)
+     */
+    private boolean isReverseQuestion(DnsRecord question) {
+        return reverseZones.length > 0 && question != null && REVERSE_QUESTION_TYPES.contains(question.type()) &&
+                isValidQuestionClass(question.dnsClass());
+    }
+
+    /**
+     * Finds reverse zone given name belongs to.
+     *
+     * @param name fully qualified dns name
+     * @return reverse zone, {@code null} if name doesn't belong to any of reverse zones.
+     */
+    private String findReverseZone(String name) {
+        for (String zone : reverseZones) {
+            if (QueryNameParser.isInZone(name, zone)) {
+                return zone;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether response cache is enabled.
+     *
+     * @return true/false
+     */
+    private boolean isResponseCacheEnabled() {
+        return responseCache != null;
+    }
+
+    /**
+     * Hands DNS query over to query log; never blocks.
+     *
+     * @param ctx     channel handler context
+     * @param msg     original client's dns query.
+     * @param encoded encoded response
+     * @param code    response code of encoded response
+     */
+    private void logDnsQuery(ChannelHandlerContext ctx, @NonNull DatagramDnsQuery msg, @NonNull ByteBuf encoded,
+                             DnsResponseCode code) {
+        logDnsQuery(ctx, msg.sender(), msg.recordAt(DnsSection.QUESTION), encoded, code);
+    }
+
+    private void logDnsQuery(ChannelHandlerContext ctx, InetSocketAddress sender, DnsRecord question,
+                             @NonNull ByteBuf encoded, DnsResponseCode code) {
+        if (queryLog != null) {
+            val start = encoded.readerIndex();
+            val truncated = (encoded.getByte(start + 2) & 0x02) != 0;
+            queryLog.record(sender, !isDatagramChannel(ctx), question, code, encoded.getUnsignedShort(start + 6),
+                    truncated);
         }
-        log.trace("sending DNS response: {}", response);
     }
 
     /**
@@ -137,72 +721,75 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
      * @return response that should be sent to client.
      */
     protected DatagramDnsResponse createResponse(DatagramDnsQuery query) {
+        return createResponse(query, findOptRecord(query));
+    }
+
+    private DatagramDnsResponse createResponse(DatagramDnsQuery query, DnsRecord opt) {
+        DatagramDnsResponse response;
         try {
-            return finishResponse(respondToDnsQuery(query));
+            response = finishResponse(respondToDnsQuery(query, opt));
         } catch (Exception e) {
             log.error("exception while constructing response: {}", e.getMessage(), e);
-            return basicResponse(query).setCode(DnsResponseCode.SERVFAIL);
+            response = basicResponse(query).setCode(DnsResponseCode.SERVFAIL);
+        }
+        return addOptRecord(response, opt);
+    }
+
+    /**
+     * Adds OPT record to the response if query contained one; OPT record advertises configured maximum UDP payload
+     * size and carries upper bits of extended response code.
+     *
+     * @param response response
+     * @param opt      query OPT record, may be {@code null}
+     * @return given response
+     */
+    private DatagramDnsResponse addOptRecord(DatagramDnsResponse response, DnsRecord opt) {
+        if (opt != null) {
+            response.addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(
+                    config.getMaxUdpPayloadSize(), response.code().intValue() >> 4, EDNS_VERSION));
         }
+        return response;
     }
 
     /**
      * Retrieves datacenter name from DNS query name.
      *
      * @param name dns query name
-     * @return datacenter on success, otherwise empty string
+     * @return lowercased datacenter on success, otherwise empty string
      */
     protected String getDatacenter(@NonNull String name) {
-        // without datacenter
-        Matcher matcher = withoutDcPattern.matcher(name);
-        if (matcher.find()) {
-            return "";
-        }
-
-        // with datacenter
-        matcher = withDcPattern.matcher(name);
-        if (matcher.find()) {
-            return matcher.group(2);
-        }
-
-        return "";
+        val parsed = new ParsedQueryName();
+        return queryNameParser.parse(name, parsed) ? parsed.datacenter() : "";
     }
 
     /**
      * Retrieves service-name from DNS query name.
      *
      * @param name dns query name
-     * @return datacenter on success, otherwise empty string
+     * @return lowercased service name on success, otherwise empty string
      */
     protected String getServiceName(@NonNull String name) {
-        name = name.toLowerCase().trim();
-
-        // without datacenter
-        Matcher matcher = withoutDcPattern.matcher(name);
-        if (matcher.find()) {
-            return matcher.group(1);
-        }
-
-        // with datacenter
-        matcher = withDcPattern.matcher(name);
-        if (matcher.find()) {
-            return matcher.group(1);
-        }
-
-        return "";
+        val parsed = new ParsedQueryName();
+        return queryNameParser.parse(name, parsed) ? parsed.serviceName() : "";
     }
 
-    private DatagramDnsResponse respondToDnsQuery(@NonNull DatagramDnsQuery msg) {
+    private DatagramDnsResponse respondToDnsQuery(@NonNull DatagramDnsQuery msg, DnsRecord opt) {
         val question = msg.recordAt(DnsSection.QUESTION);
 
         // create response instance.
         val response = basicResponse(msg);
 
+        if (!isSupportedEdnsVersion(opt)) {
+            return response.setCode(DnsResponseCode.BADVERS_OR_BADSIG);
+        }
+
         if (!isValidQuestion(question)) {
             return response.setCode(DnsResponseCode.REFUSED);
         }
 
         val qType = question.type();
         val questionName = question.name().toLowerCase();
+        val reverseZone = findReverseZone(questionName);
 
         // NS queries always result in the same response
         if (qType.equals(NS)) {
@@ -214,41 +801,193 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
         }
         // we should always respond with NXDOMAIN to DS queries
         else if (qType.equals(DS)) {
+            addNegativeAuthority(new DnsResponseRecordSink(response),
+                    (reverseZone == null) ? config.getDomain() : reverseZone);
             return response;
         }
+        // reverse lookups are answered from reverse index
+        else if (reverseZone != null) {
+            return response.setCode(answerReverseQuestion(new DnsResponseRecordSink(response), qType, questionName,
+                    reverseZone));
+        }
 
-        // we absolutely need service name
-        val serviceName = getServiceName(questionName);
-        if (serviceName.isEmpty()) {
+        // we absolutely need service or node name, datacenter may be in question as well.
+        val parsed = PARSED_QUERY_NAME.get();
+        if (!queryNameParser.parse(questionName, parsed)) {
             return response.setCode(DnsResponseCode.BADNAME);
         }
+        val code = answerServiceQuestion(new DnsResponseRecordSink(response), qType, questionName, parsed);
+        return response.setCode(code);
+    }
+
+    /**
+     * Adds records answering service or node question; if there are no answers, zone SOA record is added to
+     * authority section, so that resolvers can cache negative response.
+     *
+     * @param out          record sink
+     * @param type         question type
+     * @param questionName lowercased question name
+     * @param parsed       parsed question name
+     * @return {@link DnsResponseCode#NOERROR} if service or node exists, even if it doesn't have any records of
+     *         requested type (NODATA), otherwise {@link DnsResponseCode#NXDOMAIN}
+     * @see <a href="https://tools.ietf.org/html/rfc2308#section-2">RFC 2308, section 2 :: Negative responses</a>
+     */
+    private DnsResponseCode answerServiceQuestion(@NonNull DnsRecordSink out, @NonNull DnsRecordType type,
+                                                  String questionName, @NonNull ParsedQueryName parsed) {
+        if (parsed.hasNodeName()) {
+            return answerNodeQuestion(out, type, questionName, parsed);
+        }
+
+        // reject unknown services before service and datacenter names are materialized
+        val index = registryIndexManager.index();
+        if (!index.getServiceFilter().mightContain(parsed)) {
+            filterRejections.increment();
+            addNegativeAuthority(out);
+            return DnsResponseCode.NXDOMAIN;
+        }
+
+        val serviceName = parsed.serviceName();
+        val datacenter = parsed.datacenter();
+        if (log.isDebugEnabled()) {
+            log.debug("asked for: type={} name={} service={} datacenter={}",
+                    type, questionName, serviceName, datacenter);
+        }
+
+        val entry = lookupService(index, serviceName, datacenter);
+        if (entry == null) {
+            filterFalsePositives.increment();
+            addNegativeAuthority(out);
+            return DnsResponseCode.NXDOMAIN;
+        }
+
+        if (addServiceRecords(out, type, questionName, entry) == 0) {
+            addNegativeAuthority(out);
+        }
+        return DnsResponseCode.NOERROR;
+    }
+
+    /**
+     * Adds records answering node question from node index; nodes have A/AAAA and TXT records only.
+     *
+     * @param out          record sink
+     * @param type         question type
+     * @param questionName lowercased question name
+     * @param parsed       parsed question name
+     * @return {@link DnsResponseCode#NOERROR} if node exists, otherwise {@link DnsResponseCode#NXDOMAIN}
+     * @see NodeIndex
+     */
+    private DnsResponseCode answerNodeQuestion(DnsRecordSink out, DnsRecordType type, String questionName,
+                                               ParsedQueryName parsed) {
+        val nodeName = parsed.nodeName();
+        val datacenter = parsed.datacenter();
+        if (log.isDebugEnabled()) {
+            log.debug("asked for: type={} name={} node={} datacenter={}", type, questionName, nodeName, datacenter);
+        }
+
+        val entry = components.getNodeIndex().lookup(nodeName, datacenter);
+        if (entry == null) {
+            addNegativeAuthority(out);
+            return DnsResponseCode.NXDOMAIN;
+        }
+
+        if (addServiceRecords(out, type, questionName, entry) == 0) {
+            addNegativeAuthority(out);
+        }
+        return DnsResponseCode.NOERROR;
+    }
 
-        // datacenter may be in question as well.
-        val datacenter = getDatacenter(questionName);
+    /**
+     * Adds PTR records answering question for a name in one of reverse zones; if there are no answers, SOA record of
+     * the reverse zone is added to authority section.
+     *
+     * @param out          record sink
+     * @param type         question type
+     * @param questionName lowercased question name
+     * @param zone         reverse zone question name belongs to
+     * @return {@link DnsResponseCode#NOERROR} if address is registered or if question name is a name of an address
+     *         block, otherwise {@link DnsResponseCode#NXDOMAIN}
+     * @see ReverseIndex
+     */
+    private DnsResponseCode answerReverseQuestion(@NonNull DnsRecordSink out, @NonNull DnsRecordType type,
+                                                  String questionName, String zone) {
+        val addr = REVERSE_ADDRESS.get();
+        val length = ReverseIndex.parseName(questionName, addr);
+        if (length == ReverseIndex.PARTIAL_NAME) {
+            // names of address blocks are empty non-terminals, denying them would deny every address below them
+            addNegativeAuthority(out, zone);
+            return DnsResponseCode.NOERROR;
+        }
+
+        val rdata = (length == ReverseIndex.INVALID_NAME) ? null : components.getReverseIndex().lookup(addr, length);
+        if (rdata == null) {
+            addNegativeAuthority(out, zone);
+            return DnsResponseCode.NXDOMAIN;
+        }
 
-        log.debug("asked for: type={} name={} service={} datacenter={}", qType, questionName, serviceName, datacenter);
-        return doConfigureResponse(response, qType, questionName, serviceName, datacenter);
+        int count = 0;
+        if (type.equals(PTR) || type.equals(ANY)) {
+            count = AnswerSelector.count(rdata.length, config.getMaxResponses());
+            for (int i = 0; i < count; i++) {
+                out.addRecord(DnsSection.ANSWER, questionName, PTR, config.getTtl(), rdata[i]);
+            }
+        }
+        if (count == 0) {
+            addNegativeAuthority(out, zone);
+        }
+        return DnsResponseCode.NOERROR;
     }
 
-    private DatagramDnsResponse doConfigureResponse(@NonNull DatagramDnsResponse response,
-                                                    @NonNull DnsRecordType type,
-                                                    String questionName, String serviceName, String datacenter) {
+    /**
+     * Adds service records to answer section.
+     *
+     * @param out          record sink
+     * @param type         question type
+     * @param questionName lowercased question name
+     * @param entry        service entry
+     * @return number of added answer records
+     */
+    private int addServiceRecords(DnsRecordSink out, DnsRecordType type, String questionName, ServiceEntry entry) {
         if (type.equals(A)) {
-            return configureResponseA(response, questionName, serviceName, datacenter);
+            return configureResponseA(out, questionName, entry);
         } else if (type.equals(AAAA)) {
-            return configureResponseAAAA(response, questionName, serviceName, datacenter);
+            return configureResponseAAAA(out, questionName, entry);
         } else if (type.equals(TXT)) {
-            return configureResponseTXT(response, questionName, serviceName, datacenter);
+            return configureResponseTXT(out, questionName, entry);
         } else if (type.equals(SRV)) {
-            return configureResponseSRV(response, questionName, serviceName, datacenter);
+            return configureResponseSRV(out, questionName, entry);
         } else if (type.equals(ANY)) {
-            return configureResponseANY(response, questionName, serviceName, datacenter);
+            return configureResponseANY(out, questionName, entry);
+        } else if (type.equals(PTR)) {
+            // services don't have PTR records
+            return 0;
         }
 
         throw new IllegalArgumentException("Don't know how to create DNS response to question: "
                 + type + " " + questionName);
     }
 
+    /**
+     * Adds zone SOA record to authority section of negative response; record TTL is configured negative TTL.
+     *
+     * @param out record sink
+     * @see DnsServerConfig#getNegativeTtl()
+     */
+    private void addNegativeAuthority(DnsRecordSink out) {
+        addNegativeAuthority(out, config.getDomain());
+    }
+
+    /**
+     * Adds SOA record of given zone to authority section of negative response; record TTL is configured negative TTL.
+     *
+     * @param out  record sink
+     * @param zone zone name, either eureka domain or one of reverse zones
+     * @see DnsServerConfig#getNegativeTtl()
+     */
+    private void addNegativeAuthority(DnsRecordSink out, String zone) {
+        val soa = zoneAuthority.getSoaRData(registryIndexManager.index().getVersion());
+        out.addRecord(DnsSection.AUTHORITY, zone, SOA, config.getNegativeTtl(), soa);
+    }
+
     /**
      * Configures eureka dns server NS query response.
      *
@@ -257,9 +996,10 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
      * @return given response
      */
     private DatagramDnsResponse configureResponseNS(DatagramDnsResponse response, String questionName) {
-        return response
-                .addRecord(DnsSection.ANSWER, createEurekaDnsServerNSRecord(questionName))
-                .addRecord(DnsSection.ADDITIONAL, createEurekaDnsServerHostRecord(response.sender().getAddress()));
+        val out = new DnsResponseRecordSink(response);
+        out.addRecord(DnsSection.ANSWER, questionName, NS, config.getTtl(), zoneAuthority.getNsRData());
+        addNsHostRecord(out, response.sender().getAddress());
+        return response;
     }
 
     /**
@@ -270,14 +1010,24 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
      * @return given response
      */
     private DatagramDnsResponse configureResponseSOA(DatagramDnsResponse response, String questionName) {
-        return response
-                .addRecord(DnsSection.ANSWER, createEurekaDnsServerSOARecord(questionName))
-                .addRecord(DnsSection.AUTHORITY, createEurekaDnsServerNSRecord(questionName))
-                .addRecord(DnsSection.ADDITIONAL, createEurekaDnsServerHostRecord(response.sender().getAddress()));
+        val out = new DnsResponseRecordSink(response);
+        val soa = zoneAuthority.getSoaRData(registryIndexManager.index().getVersion());
+        out.addRecord(DnsSection.ANSWER, questionName, SOA, config.getTtl(), soa);
+        out.addRecord(DnsSection.AUTHORITY, questionName, NS, config.getTtl(), zoneAuthority.getNsRData());
+        addNsHostRecord(out, response.sender().getAddress());
+        return response;
     }
 
-    private ByteBuf encodeRDataNS() {
-        return encodeDnsName(nsHostname, Unpooled.buffer());
+    /**
+     * Adds eureka dns server host record to additional section.
+     *
+     * @param out        record sink
+     * @param serverAddr eureka dns server host address
+     */
+    private void addNsHostRecord(DnsRecordSink out, InetAddress serverAddr) {
+        val addr = zoneAuthority.getHostAddress(serverAddr);
+        out.addRecord(DnsSection.ADDITIONAL, zoneAuthority.getNsHostname(), (addr.length == 4) ? A : AAAA,
+                config.getTtl(), addr);
     }
 
     /**
@@ -296,190 +1046,103 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
     /**
      * Configures response for A question.
      *
-     * @param response     response to be configured
+     * @param out          record sink
      * @param questionName question name
-     * @param serviceName  service name
-     * @param datacenter   datacenter name
-     * @return given {@code response}
+     * @param entry        service entry
+     * @return number of added answer records
      */
-    private DatagramDnsResponse configureResponseA(DatagramDnsResponse response,
-                                                   String questionName, String serviceName, String datacenter) {
-        log.debug("{} asked for A record {}: service={}, datacenter={}",
-                response.recipient(), questionName, serviceName, datacenter);
-
-        getEurekaAppInstances(serviceName, datacenter)
-                .map(this::getInstanceIpAddress)
-                .filter(this::isIpv4Address)
-                .map(addr -> new DefaultDnsRawRecord(questionName, A, config.getTtl(), encodeRDataHostAddress(addr)))
-                .forEach(record -> response.addRecord(DnsSection.ANSWER, record));
-
-        return response;
+    private int configureResponseA(DnsRecordSink out, String questionName, ServiceEntry entry) {
+        return addHostRecords(out, questionName, A, entry, entry.getIpv4Addresses());
     }
 
     /**
      * Configures response for AAAA question.
      *
-     * @param response     response to be configured
+     * @param out          record sink
      * @param questionName question name
-     * @param serviceName  service name
-     * @param datacenter   datacenter name
-     * @return given {@code response}
+     * @param entry        service entry
+     * @return number of added answer records
      */
-    private DatagramDnsResponse configureResponseAAAA(DatagramDnsResponse response,
-                                                      String questionName, String serviceName, String datacenter) {
-        log.debug("{} asked for AAAA record {}: service={}, datacenter={}",
-                response.recipient(), questionName, serviceName, datacenter);
-
-        getEurekaAppInstances(serviceName, datacenter)
-                .map(this::getInstanceIpAddress)
-                .filter(this::isIpv6Address)
-                .map(addr -> new DefaultDnsRawRecord(questionName, AAAA, config.getTtl(), encodeRDataHostAddress(addr)))
-                .forEach(record -> response.addRecord(DnsSection.ANSWER, record));
-
-        return response;
+    private int configureResponseAAAA(DnsRecordSink out, String questionName, ServiceEntry entry) {
+        return addHostRecords(out, questionName, AAAA, entry, entry.getIpv6Addresses());
     }
 
     /**
      * Configures response for TXT question.
      *
-     * @param response     response to be configured
+     * @param out          record sink
      * @param questionName question name
-     * @param serviceName  service name
-     * @param datacenter   datacenter name
-     * @return given {@code response}
-     */
-    private DatagramDnsResponse configureResponseTXT(DatagramDnsResponse response,
-                                                     String questionName, String serviceName, String datacenter) {
-        log.debug("{} asked for TXT record {}: service={}, datacenter={}",
-                response.recipient(), questionName, serviceName, datacenter);
-
-        val counter = newRecordPredicate();
-        getEurekaAppInstances(serviceName, datacenter)
-                .map(instanceInfo -> toInstanceUrlAddress(instanceInfo, InstanceInfo::getHostName))
-                .distinct()
-                .filter(counter::test)
-                .map(url -> toDnsTXTRecord(questionName, url))
-                .forEach(e -> response.addRecord(DnsSection.ANSWER, e));
+     * @param entry        service entry
+     * @return number of added answer records
+     */
+    private int configureResponseTXT(DnsRecordSink out, String questionName, ServiceEntry entry) {
+        val rdata = entry.getTxtRData();
+        val count = AnswerSelector.count(rdata.length, config.getMaxResponses());
+        val indexes = AnswerSelector.select(answerOrder, entry.getCursor(), rdata.length, count);
+        for (int i = 0; i < count; i++) {
+            out.addRecord(DnsSection.ANSWER, questionName, TXT, config.getTtl(), rdata[indexes[i]]);
+        }
 
-        return response;
+        return count;
     }
 
     /**
      * Configures response for SRV question.
      *
-     * @param response     response to be configured
-     * @param questionName question name
-     * @param serviceName  service name
-     * @param datacenter   datacenter name
-     * @return given {@code response}
-     */
-    private DatagramDnsResponse configureResponseSRV(DatagramDnsResponse response,
-                                                     String questionName, String serviceName, String datacenter) {
-        log.debug("{} asked for SRV record {}: service={}, datacenter={}",
-                response.recipient(), questionName, serviceName, datacenter);
-
-        val counter = newRecordPredicate();
-        getEurekaAppInstances(serviceName, datacenter)
-                .filter(counter::test)
-                .forEach(instanceInfo -> {
-                    // if instance is registered with it's IP address as hostname, we cannot construct DNS SRV
-                    // record, because it needs to be a valid DNS name.
-                    if (Objects.equals(instanceInfo.getIPAddr(), instanceInfo.getHostName())) {
-                        return;
-                    }
-
-                    // add SRV record
-                    response.addRecord(DnsSection.ANSWER, toDnsSRVRecord(questionName, instanceInfo));
-
-                    // add A/AAAA record
-                    response.addRecord(DnsSection.ADDITIONAL, toDnsHostRecord(instanceInfo.getHostName(), instanceInfo));
-                });
-
-        return response;
-    }
-
-    /**
-     * Configures response for ANY question.
-     *
-     * @param response     response to be configured
+     * @param out          record sink
      * @param questionName question name
-     * @param serviceName  service name
-     * @param datacenter   datacenter name
-     * @return given {@code response}
+     * @param entry        service entry
+     * @return number of added answer records
      */
-    private DatagramDnsResponse configureResponseANY(DatagramDnsResponse response,
-                                                     String questionName, String serviceName, String datacenter) {
-        log.debug("{} asked for SRV record {}: service={}, datacenter={}",
-                response.recipient(), questionName, serviceName, datacenter);
-
-        configureResponseA(response, questionName, serviceName, datacenter);
-        configureResponseAAAA(response, questionName, serviceName, datacenter);
-        configureResponseTXT(response, questionName, serviceName, datacenter);
+    private int configureResponseSRV(DnsRecordSink out, String questionName, ServiceEntry entry) {
+        val targets = entry.getSrvTargets();
+        val rdata = entry.getSrvRData();
+        val addresses = entry.getSrvTargetAddresses();
+        val count = AnswerSelector.count(targets.length, config.getMaxResponses());
+        val indexes = AnswerSelector.select(answerOrder, entry.getCursor(), targets.length, count);
+
+        // SRV records
+        for (int i = 0; i < count; i++) {
+            out.addRecord(DnsSection.ANSWER, questionName, SRV, config.getTtl(), rdata[indexes[i]]);
+        }
 
-        return response;
-    }
+        // A/AAAA records of SRV targets
+        for (int i = 0; i < count; i++) {
+            val addr = addresses[indexes[i]];
+            out.addRecord(DnsSection.ADDITIONAL, targets[indexes[i]], (addr.length == 4) ? A : AAAA,
+                    config.getTtl(), addr);
+        }
 
-    /**
-     * Retrieves IP address from instance info.
-     *
-     * @param instanceInfo instance info
-     * @return inet address
-     * @throws IllegalArgumentException when instance info contains badly formatted ip address.
-     */
-    private InetAddress getInstanceIpAddress(InstanceInfo instanceInfo) {
-        return InetAddresses.forString(instanceInfo.getIPAddr());
+        return count;
     }
 
     /**
-     * Construct given instance url.
+     * Configures response for ANY question.
      *
-     * @param instanceInfo instance info
-     * @return instance url address
+     * @param out          record sink
+     * @param questionName question name
+     * @param entry        service entry
+     * @return number of added answer records
      */
-    private String toInstanceUrlAddress(@NonNull InstanceInfo instanceInfo,
-                                        @NonNull Function<InstanceInfo, String> hostnameFunction) {
-        val isSecure = instanceInfo.isPortEnabled(PortType.SECURE);
-        val port = getInstancePort(instanceInfo);
-        val scheme = "http" + ((isSecure) ? "s" : "") + "://";
-        val portStr = ((isSecure && port == 443) || (!isSecure && port == 80)) ? "" : ":" + port;
-        val hostname = hostnameFunction.apply(instanceInfo);
-        return scheme + hostname + portStr + "/";
+    private int configureResponseANY(DnsRecordSink out, String questionName, ServiceEntry entry) {
+        return configureResponseA(out, questionName, entry) +
+                configureResponseAAAA(out, questionName, entry) +
+                configureResponseTXT(out, questionName, entry);
     }
 
     /**
-     * Returns stream of eureka instances for specified service name in given datacenter.
+     * Looks up indexed service in given datacenter.
      *
+     * @param index       registry index
      * @param serviceName service name
      * @param datacenter  datacenter name, use {@code "" / empty string} for default datacenter name.
-     * @return stream of available instances with status {@code UP}
+     * @return service entry containing only instances with status {@code UP}, {@code null} if service doesn't exist.
      */
-    private Stream<InstanceInfo> getEurekaAppInstances(@NonNull String serviceName, @NonNull String datacenter) {
+    private ServiceEntry lookupService(RegistryIndex index, @NonNull String serviceName, @NonNull String datacenter) {
         if (serviceName.isEmpty()) {
-            return Stream.empty();
-        }
-
-        val instances = getApplicationsForDatacenter(datacenter)
-                .map(apps -> apps.getRegisteredApplications(serviceName))
-                .map(Application::getInstances)
-                .orElse(Collections.emptyList());
-
-        return instances.stream()
-                .filter(Objects::nonNull)
-                .filter(e -> e.getStatus() == InstanceStatus.UP);
-    }
-
-    /**
-     * Returns applications for given datacenter.
-     *
-     * @param datacenter datacenter name.
-     * @return optional of application container.
-     */
-    private Optional<Applications> getApplicationsForDatacenter(@NonNull String datacenter) {
-        if (datacenter.isEmpty()) {
-            return Optional.ofNullable(eurekaClient.getApplications());
-        } else {
-            return Optional.ofNullable(eurekaClient.getApplicationsForARegion(datacenter));
+            return null;
         }
+        return index.lookup(serviceName, datacenter);
     }
 
     /**
@@ -524,13 +1187,7 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
      * @return true/false
      */
     private boolean isValidQuestionName(String name) {
-        if (name == null || name.isEmpty()) {
-            return false;
-        }
-        name = name.toLowerCase();
-
-        return name.equals(config.getDomain() + ".") ||
-                name.endsWith("." + config.getDomain() + ".");
+        return queryNameParser.isInZone(name) || findReverseZone(name) != null;
     }
 
     /**
@@ -554,255 +1211,40 @@ final class DnsQueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery
     }
 
     /**
-     * Encodes given instance to DNS SRV record payload.
-     *
-     * @param instanceInfo instance info
-     * @return given address as SRV record payload written in byte buffer.
-     * @see <a href="https://stackoverflow.com/questions/51449468/implementing-dns-message-name-compression-algorithm-in-python">DNS
-     *         Message Compression algorithm</a>
-     */
-    private ByteBuf encodeRDataSRV(@NonNull InstanceInfo instanceInfo) {
-        val buf = Unpooled.buffer();
-
-        // priority
-        buf.writeShort(1);
-
-        // weight
-        buf.writeShort(10);
-
-        // port
-        buf.writeShort(getInstancePort(instanceInfo));
-
-        // target (hostname)
-        return encodeDnsName(instanceInfo.getHostName(), buf);
-    }
-
-    /**
-     * Encodes given address to DNS A/AAAA record payload.
+     * Adds at most {@link DnsServerConfig#getMaxResponses()} A/AAAA records to response answer section in configured
+     * order.
      *
-     * @param address address to encode
-     * @return given address as A/AAAA record payload written in byte buffer.
+     * @param out          record sink
+     * @param questionName question name
+     * @param type         record type, either {@link DnsRecordType#A} or {@link DnsRecordType#AAAA}
+     * @param entry        service entry
+     * @param addresses    addresses of service instances
+     * @return number of added records
      */
-    private ByteBuf encodeRDataHostAddress(@NonNull InetAddress address) {
-        return Unpooled.wrappedBuffer(address.getAddress());
+    private int addHostRecords(DnsRecordSink out, String questionName, DnsRecordType type,
+                               ServiceEntry entry, byte[][] addresses) {
+        val count = AnswerSelector.count(addresses.length, config.getMaxResponses());
+        val indexes = AnswerSelector.select(answerOrder, entry.getCursor(), addresses.length, count);
+        for (int i = 0; i < count; i++) {
+            out.addRecord(DnsSection.ANSWER, questionName, type, config.getTtl(), addresses[indexes[i]]);
+        }
+        return count;
     }
 
     /**
-     * Encodes given string to DNS TXT record payload.
-     *
-     * @param str string to encode
-     * @return given string as TXT record payload written in byte buffer.
+     * Record sink adding records to {@link DnsResponse}.
      */
-    private ByteBuf encodeRDataTXT(@NonNull String str) {
-        val bytes = str.getBytes(US_ASCII);
-        val maxBytes = Math.min(255, bytes.length);
-        return Unpooled.buffer(maxBytes + 1)
-                .writeByte(maxBytes)
-                .writeBytes(bytes, 0, maxBytes);
-    }
+    private static final class DnsResponseRecordSink implements DnsRecordSink {
+        private final DnsResponse response;
 
-    /**
-     * Encodes RFC1035 DNS name.
-     *
-     * @param name name to encode
-     * @param buf  buffer where name will be written
-     * @return given byte buffer.
-     */
-    private ByteBuf encodeDnsName(String name, ByteBuf buf) {
-        if (".".equals(name)) {
-            // Root domain
-            buf.writeByte(0);
-            return buf;
+        private DnsResponseRecordSink(DnsResponse response) {
+            this.response = response;
         }
 
-        // dns name is series of labels, which are expressed in text form as commas.
-        val labels = name.split("\\.");
-        for (String label : labels) {
-
-            // each label can be 63 chars long.
-            val labelLen = label.length();
-            if (labelLen > 63) {
-                throw new IllegalArgumentException("Can't encode dns name '" + name + "'; length of label '" + label +
-                        "' is too long: " + labelLen);
-            }
-
-            if (labelLen == 0) {
-                // zero-length label means the end of the name.
-                break;
-            }
-
-            buf.writeByte(labelLen);
-            ByteBufUtil.writeAscii(buf, label);
+        @Override
+        public void addRecord(DnsSection section, CharSequence name, DnsRecordType type, long ttl, byte[] rdata) {
+            response.addRecord(section, new DefaultDnsRawRecord(name.toString(), type, ttl,
+                    Unpooled.wrappedBuffer(rdata)));
         }
-
-        buf.writeByte(0); // marks end of name field
-        return buf;
-    }
-
-    /**
-     * Encodes RDATA SOA record for given domain name.
-     *
-     * @param primaryNsHostname SOA primary name server (MNAME)
-     * @param recipientAddr     A domain-name which specifies the mailbox of the person responsible for this zone
-     *                          (RNAME).
-     * @return byte buffer containing SOA record RDATA
-     */
-    private ByteBuf encodeRDataSOA(String primaryNsHostname, @NonNull String recipientAddr) {
-        val buf = Unpooled.buffer();
-
-//        MNAME
-//        The <domain-name> of the name server that was the
-//        original or primary source of data for this zone.
-        encodeDnsName(primaryNsHostname, buf);
-
-//        RNAME
-//        A <domain-name> which specifies the mailbox of the
-//        person responsible for this zone.
-        encodeDnsName(recipientAddr, buf);
-
-//        SERIAL
-//        The unsigned 32 bit version number of the original copy
-//        of the zone.  Zone transfers preserve this value.  This
-//        value wraps and should be compared using sequence space
-//        arithmetic.
-        buf.writeInt(Math.abs((int) (System.currentTimeMillis() / 1000)));
-
-//        REFRESH
-//        A 32 bit time interval before the zone should be
-//        refreshed.
-        buf.writeInt(3600);
-
-//        RETRY
-//        A 32 bit time interval that should elapse before a
-//        failed refresh should be retried.
-        buf.writeInt(600);
-
-//        EXPIRE
-//        A 32 bit time value that specifies the upper limit on
-//        the time interval that can elapse before the zone is no
-//        longer authoritative.
-        buf.writeInt(86400);
-
-//        MINIMUM
-//        The unsigned 32 bit minimum TTL field that should be
-//        exported with any RR from this zone.
-        buf.writeInt(0);
-        return buf;
-    }
-
-    /**
-     * Returns instance port.
-     *
-     * @param instanceInfo instance info
-     * @return instance port based on {@link InstanceInfo#isPortEnabled(PortType)}
-     */
-    private int getInstancePort(InstanceInfo instanceInfo) {
-        return (instanceInfo.isPortEnabled(PortType.SECURE)) ?
-                instanceInfo.getSecurePort() : instanceInfo.getPort();
-    }
-
-    /**
-     * Creates eureka DNS server NS record.
-     *
-     * @param questionName dns query question name
-     * @return NS record
-     */
-    private DnsRecord createEurekaDnsServerNSRecord(String questionName) {
-        return new DefaultDnsRawRecord(questionName, NS, config.getTtl(), encodeRDataNS());
-    }
-
-    /**
-     * Creates eureka DNS server host record.
-     *
-     * @param serverAddr eureka dns server host address
-     * @return A/AAAA record
-     */
-    private DnsRecord createEurekaDnsServerHostRecord(InetAddress serverAddr) {
-        return toDnsHostRecord(nsHostname, serverAddr);
-    }
-
-    /**
-     * Creates eureka DNS server SOA record.
-     *
-     * @param questionName dns query question name
-     * @return SOA record
-     */
-    private DnsRecord createEurekaDnsServerSOARecord(String questionName) {
-        return new DefaultDnsRawRecord(questionName, SOA, config.getTtl(),
-                encodeRDataSOA(nsHostname, "hostmaster." + config.getDomain()));
-    }
-
-    /**
-     * Creates A/AAAA host record.
-     *
-     * @param name record fully qualified domain name.
-     * @param addr record address.
-     * @return A/AAAA record
-     */
-    private DnsRecord toDnsHostRecord(@NonNull String name, @NonNull InetAddress addr) {
-        val type = isIpv6Address(addr) ? AAAA : A;
-        return new DefaultDnsRawRecord(name, type, config.getTtl(), encodeRDataHostAddress(addr));
-    }
-
-    /**
-     * Creates A/AAAA host record.
-     *
-     * @param name         record fully qualified domain name.
-     * @param instanceInfo eureka instance info.
-     * @return A/AAAA record
-     */
-    private DnsRecord toDnsHostRecord(String name, InstanceInfo instanceInfo) {
-        return toDnsHostRecord(name, InetAddresses.forString(instanceInfo.getIPAddr()));
-    }
-
-    /**
-     * Converts given eureka instance info to DNS TXT record that contains instance base url address.
-     *
-     * @param questionName original dns question name
-     * @param url          instance url
-     * @return DNS TXT record.
-     */
-    private DnsRecord toDnsTXTRecord(String questionName, String url) {
-        return new DefaultDnsRawRecord(questionName, TXT, config.getTtl(), encodeRDataTXT(url));
-    }
-
-    /**
-     * Converts instance info to DNS SRV record.
-     *
-     * @param questionName original dns question name
-     * @param instanceInfo instance url
-     * @return DNS SRV record
-     */
-    private DnsRecord toDnsSRVRecord(String questionName, InstanceInfo instanceInfo) {
-        return new DefaultDnsRawRecord(questionName, SRV, config.getTtl(), encodeRDataSRV(instanceInfo));
-    }
-
-    /**
-     * Tells whether given inet address is IPv4 address.
-     *
-     * @param inetAddress inet address
-     * @return true/false
-     */
-    private boolean isIpv4Address(InetAddress inetAddress) {
-        return inetAddress instanceof Inet4Address;
-    }
-
-    /**
-     * Tells whether given inet address is IPv6 address.
-     *
-     * @param inetAddress inet address
-     * @return true/false
-     */
-    private boolean isIpv6Address(InetAddress inetAddress) {
-        return inetAddress instanceof Inet6Address;
-    }
-
-    /**
-     * Returns new stream record limit predicate.
-     *
-     * @return stream predicate.
-     */
-    private RecordCounter newRecordPredicate() {
-        return new RecordCounter(config.getMaxResponses());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+
+/**
+ * Receives resource records of the response that is being constructed.
+ *
+ * @see DnsResponseWriter
+ */
+interface DnsRecordSink {
+    /**
+     * Adds {@code IN} class record to the response.
+     *
+     * @param section response section
+     * @param name    record owner name
+     * @param type    record type
+     * @param ttl     record time to live in seconds
+     * @param rdata   record RDATA in its wire format; array must not be modified afterwards.
+     */
+    void addRecord(DnsSection section, CharSequence name, DnsRecordType type, long ttl, byte[] rdata);
+}
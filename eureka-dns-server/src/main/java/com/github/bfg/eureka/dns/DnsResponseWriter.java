@@ -0,0 +1,308 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * Writes DNS response directly to its wire format, record by record, without creating intermediate record objects.
+ *
+ * <p>Records must be written in section order: questions, answers, authorities and additionals, followed by
+ * EDNS0 OPT record. Records that would make the message larger than its maximum size are omitted: if any answer or
+ * authority record is omitted, message is marked as truncated and no further records are written; additional records
+ * are omitted silently.</p>
+ *
+ * <p>Instances are not thread-safe and are meant to be reused: {@link #get(ByteBuf, int, int)} returns per-thread
+ * instance reset for writing a new message.</p>
+ *
+ * @see DnsNameCompressor
+ * @see <a href="https://tools.ietf.org/html/rfc2181#section-9">RFC 2181, section 9 :: The TC (truncated) header
+ *         bit</a>
+ */
+final class DnsResponseWriter implements DnsRecordSink {
+    /**
+     * Encoded length of OPT record without any options: root name, type, class, ttl and RDATA length.
+     */
+    static final int OPT_RECORD_LENGTH = 1 + 2 + 2 + 4 + 2;
+
+    /**
+     * Header QR (response) flag.
+     */
+    static final int RESPONSE_FLAG = 1 << 15;
+
+    /**
+     * Header TC (truncated) flag.
+     */
+    static final int TRUNCATED_FLAG = 1 << 9;
+
+    /**
+     * Offset of target name in SRV record RDATA (priority, weight and port precede it).
+     */
+    private static final int SRV_TARGET_OFFSET = 6;
+
+    private static final FastThreadLocal<DnsResponseWriter> INSTANCE = new FastThreadLocal<DnsResponseWriter>() {
+        @Override
+        protected DnsResponseWriter initialValue() {
+            return new DnsResponseWriter();
+        }
+    };
+
+    private final int[] counts = new int[4];
+    private ByteBuf buf;
+    private DnsNameCompressor compressor;
+    private int start;
+    private int limit;
+    private int flags;
+    private int section;
+    private boolean truncated;
+    private boolean additionalsFull;
+
+    /**
+     * Returns per-thread instance, reset for writing new message that starts at the current writer index of given
+     * buffer.
+     *
+     * @param buf      buffer where message is going to be written
+     * @param maxSize  maximum message size in bytes
+     * @param reserved number of bytes at the end of the message reserved for records that are never omitted, such as
+     *                 OPT record.
+     * @return response writer
+     */
+    static DnsResponseWriter get(@NonNull ByteBuf buf, int maxSize, int reserved) {
+        return INSTANCE.get().reset(buf, maxSize, reserved);
+    }
+
+    private DnsResponseWriter reset(ByteBuf buf, int maxSize, int reserved) {
+        this.buf = buf;
+        this.compressor = DnsNameCompressor.get(buf);
+        this.start = buf.writerIndex();
+        this.limit = (maxSize == Integer.MAX_VALUE) ? maxSize : start + maxSize - reserved;
+        this.flags = 0;
+        this.section = DnsSection.QUESTION.ordinal();
+        this.truncated = false;
+        this.additionalsFull = false;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Writes message header; record counts are written by {@link #finish()}.
+     *
+     * @param id    transaction id
+     * @param flags header flags, including response code
+     * @return reference to itself
+     */
+    DnsResponseWriter header(int id, int flags) {
+        this.flags = flags;
+        buf.writeShort(id);
+        buf.writeShort(flags);
+        buf.writeZero(8);
+        return this;
+    }
+
+    /**
+     * Replaces header flags, including response code.
+     *
+     * @param flags header flags
+     * @return reference to itself
+     */
+    DnsResponseWriter flags(int flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    /**
+     * Returns current header flags.
+     *
+     * @return header flags
+     */
+    int flags() {
+        return flags;
+    }
+
+    /**
+     * Writes question.
+     *
+     * @param name     question name
+     * @param type     question type
+     * @param dnsClass question class
+     * @return reference to itself
+     */
+    DnsResponseWriter question(@NonNull CharSequence name, @NonNull DnsRecordType type, int dnsClass) {
+        enterSection(DnsSection.QUESTION);
+        compressor.writeName(name, buf);
+        buf.writeShort(type.intValue());
+        buf.writeShort(dnsClass);
+        counts[DnsSection.QUESTION.ordinal()]++;
+        return this;
+    }
+
+    /**
+     * Writes {@code IN} class record with pre-encoded uncompressed RDATA; names in RDATA of NS, CNAME, PTR, MX and SOA
+     * records are compressed, RDATA of other record types is copied as-is. SRV target in RDATA is not compressed, but
+     * it can be referenced by names written after it.
+     *
+     * @param section response section
+     * @param name    record owner name
+     * @param type    record type
+     * @param ttl     record time to live in seconds
+     * @param rdata   record RDATA in its wire format
+     */
+    @Override
+    public void addRecord(@NonNull DnsSection section, @NonNull CharSequence name, @NonNull DnsRecordType type,
+                          long ttl, @NonNull byte[] rdata) {
+        if (!beginRecord(section)) {
+            return;
+        }
+
+        val mark = buf.writerIndex();
+        compressor.writeName(name, buf);
+        buf.writeShort(type.intValue());
+        buf.writeShort(DnsRecord.CLASS_IN);
+        buf.writeInt((int) ttl);
+        buf.writeShort(rdata.length);
+        if (DnsMessages.isCompressibleRData(type)) {
+            val lengthIdx = buf.writerIndex() - 2;
+            DnsMessages.encodeRData(type, rdata, compressor, buf);
+            buf.setShort(lengthIdx, buf.writerIndex() - lengthIdx - 2);
+            endRecord(section, mark);
+            return;
+        }
+
+        val rdataStart = buf.writerIndex();
+        buf.writeBytes(rdata);
+        if (endRecord(section, mark) && DnsRecordType.SRV.equals(type) && rdata.length > SRV_TARGET_OFFSET) {
+            compressor.addName(buf, rdataStart + SRV_TARGET_OFFSET);
+        }
+    }
+
+    /**
+     * Writes given record; owner names and names in RDATA of well-known record types are compressed.
+     *
+     * @param section response section
+     * @param record  record to write
+     * @return true if record was written, false if it was omitted.
+     */
+    boolean addRecord(@NonNull DnsSection section, @NonNull DnsRecord record) {
+        if (!beginRecord(section)) {
+            return false;
+        }
+
+        val mark = buf.writerIndex();
+        DnsMessages.encodeRecord(record, compressor, buf);
+        return endRecord(section, mark);
+    }
+
+    /**
+     * Writes given EDNS0 OPT record; OPT records are never omitted, their length needs to be reserved when instance
+     * is obtained.
+     *
+     * @param record OPT record
+     * @return reference to itself
+     * @see #get(ByteBuf, int, int)
+     */
+    DnsResponseWriter optRecord(@NonNull DnsRecord record) {
+        enterSection(DnsSection.ADDITIONAL);
+        DnsMessages.encodeRecord(record, compressor, buf);
+        counts[DnsSection.ADDITIONAL.ordinal()]++;
+        return this;
+    }
+
+    /**
+     * Writes EDNS0 OPT record without any options.
+     *
+     * @param payloadSize    advertised UDP payload size
+     * @param extendedRcode  upper 8 bits of extended response code
+     * @param version        EDNS version
+     * @return reference to itself
+     */
+    DnsResponseWriter optRecord(int payloadSize, int extendedRcode, int version) {
+        enterSection(DnsSection.ADDITIONAL);
+        buf.writeByte(0);
+        buf.writeShort(DnsRecordType.OPT.intValue());
+        buf.writeShort(payloadSize);
+        buf.writeInt(((extendedRcode & 0xff) << 24) | ((version & 0xff) << 16));
+        buf.writeShort(0);
+        counts[DnsSection.ADDITIONAL.ordinal()]++;
+        return this;
+    }
+
+    /**
+     * Returns number of records written to given section so far.
+     *
+     * @param section response section
+     * @return number of records
+     */
+    int count(@NonNull DnsSection section) {
+        return counts[section.ordinal()];
+    }
+
+    /**
+     * Tells whether any answer or authority record was omitted.
+     *
+     * @return true/false
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Finishes the message by writing header flags and record counts.
+     *
+     * @return buffer containing the message
+     */
+    ByteBuf finish() {
+        buf.setShort(start + 2, truncated ? (flags | TRUNCATED_FLAG) : flags);
+        buf.setShort(start + 4, counts[DnsSection.QUESTION.ordinal()]);
+        buf.setShort(start + 6, counts[DnsSection.ANSWER.ordinal()]);
+        buf.setShort(start + 8, counts[DnsSection.AUTHORITY.ordinal()]);
+        buf.setShort(start + 10, counts[DnsSection.ADDITIONAL.ordinal()]);
+
+        val result = buf;
+        this.buf = null;
+        this.compressor = null;
+        return result;
+    }
+
+    /**
+     * Tells whether record of given section should be written.
+     */
+    private boolean beginRecord(DnsSection section) {
+        enterSection(section);
+        return !truncated && !(section == DnsSection.ADDITIONAL && additionalsFull);
+    }
+
+    /**
+     * Rolls back written record if it exceeds the limit.
+     *
+     * @return true if record was kept
+     */
+    private boolean endRecord(DnsSection section, int mark) {
+        if (buf.writerIndex() <= limit) {
+            counts[section.ordinal()]++;
+            return true;
+        }
+
+        buf.writerIndex(mark);
+        compressor.truncate(mark);
+        if (section == DnsSection.ADDITIONAL) {
+            additionalsFull = true;
+        } else {
+            truncated = true;
+        }
+        return false;
+    }
+
+    private void enterSection(DnsSection section) {
+        if (section.ordinal() < this.section) {
+            throw new IllegalStateException("Can't write " + section + " record after " +
+                    DnsSection.values()[this.section] + " records.");
+        }
+        this.section = section.ordinal();
+    }
+}
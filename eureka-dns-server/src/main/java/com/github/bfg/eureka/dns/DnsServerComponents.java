@@ -0,0 +1,221 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Components shared by DNS query handling and server lifecycle, created from server configuration: registry index,
+ * indexes derived from it and optional features. Registry refresh listeners are wired here in the order they need to
+ * run, and components that expose metrics are collected so that metrics can be rendered by iterating over them.
+ *
+ * @see DnsQueryHandler
+ * @see MetricsServer
+ */
+@Slf4j
+@Getter
+final class DnsServerComponents implements MetricsSource {
+    private final DnsServerConfig config;
+
+    /**
+     * Eureka registry index.
+     */
+    private final RegistryIndexManager registryIndexManager;
+
+    /**
+     * Zone SOA/NS records.
+     */
+    private final ZoneAuthority zoneAuthority;
+
+    /**
+     * Node index of current registry index.
+     */
+    private volatile NodeIndex nodeIndex;
+
+    /**
+     * Lowercased reverse zones without trailing dot, empty if reverse lookups are disabled.
+     */
+    private final String[] reverseZones;
+
+    /**
+     * Reverse index of current registry index, {@link ReverseIndex#EMPTY} if reverse lookups are disabled.
+     */
+    private volatile ReverseIndex reverseIndex = ReverseIndex.EMPTY;
+
+    /**
+     * Encoded response cache, {@code null} if response caching is disabled.
+     */
+    private final ResponseCache responseCache;
+
+    /**
+     * UDP response rate limiter, {@code null} if response rate limiting is disabled.
+     */
+    private final ResponseRateLimiter rateLimiter;
+
+    /**
+     * Query instrumentation, {@code null} if metrics are disabled.
+     */
+    private final QueryMetrics queryMetrics;
+
+    /**
+     * Asynchronous query log, {@code null} if query logging is disabled.
+     */
+    private final QueryLog queryLog;
+
+    /**
+     * Sender of zone change notifications, {@code null} if no secondary name servers are configured.
+     */
+    private final ZoneNotifier zoneNotifier;
+
+    /**
+     * Zone transfers, {@code null} if zone transfers are disabled.
+     */
+    private final ZoneTransfer zoneTransfer;
+
+    /**
+     * Enabled components that expose metrics, including this instance.
+     */
+    private final List<MetricsSource> metricsSources = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates new instance.
+     *
+     * @param config configuration
+     */
+    DnsServerComponents(@NonNull DnsServerConfig config) {
+        this.config = config;
+        this.registryIndexManager = new RegistryIndexManager(config.getEurekaClient(),
+                RegistryIndexManager.DEFAULT_POLL_INTERVAL_MILLIS,
+                config.getRegistrySnapshotFile().trim().isEmpty() ? null : new RegistrySnapshot(config));
+        this.zoneAuthority = new ZoneAuthority(config);
+
+        // registered before response cache invalidation, so that responses are never cached from stale index
+        this.nodeIndex = NodeIndex.build(registryIndexManager.index());
+        registryIndexManager.addRefreshListener(() -> nodeIndex = NodeIndex.build(registryIndexManager.index()));
+
+        this.reverseZones = config.getReverseZones().stream()
+                .map(zone -> zone.trim().toLowerCase().replaceFirst("\\.$", ""))
+                .distinct()
+                .toArray(String[]::new);
+        if (reverseZones.length > 0) {
+            this.reverseIndex = ReverseIndex.build(registryIndexManager.index(), config.getDomain());
+            registryIndexManager.addRefreshListener(() ->
+                    reverseIndex = ReverseIndex.build(registryIndexManager.index(), config.getDomain()));
+        }
+
+        // cached response would freeze answer order
+        this.responseCache = (config.isResponseCache() && config.getAnswerOrder() == AnswerOrder.STABLE) ?
+                new ResponseCache(config.getResponseCacheMaxEntries()) : null;
+        if (responseCache != null) {
+            // cached responses were created from previous index
+            registryIndexManager.addRefreshListener(responseCache::invalidate);
+        }
+
+        this.rateLimiter = (config.getRateLimitResponsesPerSecond() > 0) ? new ResponseRateLimiter(config) : null;
+        if (rateLimiter != null) {
+            log.info("enabled response rate limiting: {}", rateLimiter);
+        }
+
+        this.queryMetrics = (config.getMetricsPort() > 0) ? new QueryMetrics() : null;
+        this.queryLog = config.isLogQueries() ? new QueryLog(config) : null;
+
+        this.zoneNotifier = config.getNotifySecondaries().isEmpty() ? null : new ZoneNotifier(config, zoneAuthority);
+        if (zoneNotifier != null) {
+            registryIndexManager.addRefreshListener(() ->
+                    zoneNotifier.notifySecondaries(registryIndexManager.index().getVersion()));
+        }
+
+        this.zoneTransfer = config.isZoneTransfer()
+                ? new ZoneTransfer(config, zoneAuthority,
+                        client -> zoneNotifier != null && zoneNotifier.isSecondary(client))
+                : null;
+        if (zoneTransfer != null) {
+            // incremental zone transfers need previous indexes; node index listener has already run
+            zoneTransfer.record(registryIndexManager.index(), nodeIndex);
+            registryIndexManager.addRefreshListener(() ->
+                    zoneTransfer.record(registryIndexManager.index(), nodeIndex));
+        }
+
+        addMetricsSource(queryMetrics);
+        addMetricsSource(responseCache);
+        addMetricsSource(rateLimiter);
+        addMetricsSource(this);
+        addMetricsSource(queryLog);
+        addMetricsSource(zoneTransfer);
+        addMetricsSource(zoneNotifier);
+        addMetricsSource(registryIndexManager);
+    }
+
+    /**
+     * Starts tracking eureka registry changes and background tasks of enabled components; should be invoked when
+     * server starts.
+     */
+    void start() {
+        if (zoneNotifier != null) {
+            zoneNotifier.start();
+        }
+        registryIndexManager.start();
+        if (queryLog != null) {
+            queryLog.start();
+        }
+        if (zoneTransfer != null) {
+            zoneTransfer.start();
+        }
+        if (zoneNotifier != null) {
+            // secondaries might have missed changes while the server wasn't running
+            zoneNotifier.notifySecondaries(registryIndexManager.index().getVersion());
+        }
+    }
+
+    /**
+     * Stops tracking eureka registry changes and background tasks of enabled components; should be invoked when
+     * server stops.
+     */
+    void stop() {
+        registryIndexManager.stop();
+        if (queryLog != null) {
+            queryLog.stop();
+        }
+        if (zoneTransfer != null) {
+            zoneTransfer.stop();
+        }
+        if (zoneNotifier != null) {
+            zoneNotifier.stop();
+        }
+    }
+
+    /**
+     * Registers additional metrics source.
+     *
+     * @param source metrics source, ignored if {@code null}
+     * @return reference to itself
+     */
+    DnsServerComponents addMetricsSource(MetricsSource source) {
+        if (source != null) {
+            metricsSources.add(source);
+        }
+        return this;
+    }
+
+    /**
+     * Returns registered metrics sources.
+     *
+     * @return unmodifiable list of metrics sources
+     */
+    List<MetricsSource> getMetricsSources() {
+        return Collections.unmodifiableList(metricsSources);
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("node_index_names", "gauge", "Number of names in node index.", nodeIndex.size());
+        if (reverseZones.length > 0) {
+            out.metric("reverse_index_addresses", "gauge", "Number of addresses in reverse index.",
+                    reverseIndex.size());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.bfg.eureka.dns;
 
+import com.google.common.net.InetAddresses;
 import com.netflix.discovery.EurekaClient;
 import io.netty.channel.EventLoopGroup;
 import lombok.Data;
@@ -19,7 +20,7 @@ import java.util.Set;
 @ConfigurationProperties("eureka.dns.server")
 public final class DnsServerConfig implements Cloneable {
     /**
-     * UDP listening port.
+     * UDP and TCP listening port.
      */
     private int port = 8553;
 
@@ -43,11 +44,80 @@ public final class DnsServerConfig implements Cloneable {
      */
     private int ttl = 5;
 
+    /**
+     * SOA record REFRESH value in seconds: interval before the zone should be refreshed by secondary servers.
+     */
+    private int soaRefresh = 3600;
+
+    /**
+     * SOA record RETRY value in seconds: interval before failed zone refresh should be retried.
+     */
+    private int soaRetry = 600;
+
+    /**
+     * SOA record EXPIRE value in seconds: upper limit on the time that can elapse before the zone is no longer
+     * authoritative.
+     */
+    private int soaExpire = 86400;
+
+    /**
+     * SOA record MINIMUM value in seconds; resolvers cache negative responses for at most this long.
+     *
+     * @see #getNegativeTtl()
+     */
+    private int soaMinimum = 30;
+
+    /**
+     * TTL in seconds of SOA record added to authority section of NXDOMAIN and NODATA responses; resolvers cache
+     * negative responses for the lower of this value and {@link #getSoaMinimum()}.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc2308">RFC 2308 :: Negative Caching of DNS Queries</a>
+     */
+    private int negativeTtl = 30;
+
     /**
      * Maximum number of host records to return to the client.
      */
     private int maxResponses = 5;
 
+    /**
+     * Order in which service instances are returned; applied before the number of returned records is limited to
+     * {@link #getMaxResponses()}. Responses are not cached unless order is {@link AnswerOrder#STABLE}.
+     *
+     * @see #isResponseCache()
+     */
+    @NonNull
+    private AnswerOrder answerOrder = AnswerOrder.STABLE;
+
+    /**
+     * Maximum UDP response size in bytes advertised to EDNS0 capable clients; responses are sized to the smaller of
+     * this value and client's advertised buffer size, clients that don't support EDNS0 are limited to 512 bytes.
+     * Default value avoids IP fragmentation on most networks.
+     */
+    private int maxUdpPayloadSize = 1232;
+
+    /**
+     * Maximum number of datagrams received by a single {@code recvmmsg()} call; responses to all datagrams received by
+     * a single read are flushed together, so that they can be sent by a single {@code sendmmsg()} call. Batching is
+     * used only by native epoll transport, set to 0 to disable it.
+     *
+     * @see #isPreferNativeTransport()
+     */
+    private int datagramBatchSize = 0;
+
+    /**
+     * Accept DNS queries over TCP on the same port as well; clients that received truncated UDP response can retry
+     * the query over TCP.
+     */
+    private boolean tcp = true;
+
+    /**
+     * Idle TCP connection timeout in seconds.
+     *
+     * @see #isTcp()
+     */
+    private int tcpIdleTimeout = 10;
+
     /**
      * Maximum number of worker threads in newly created netty event loop group if event loop group is not supplied. Set
      * to 0 to detect number of available CPUs.
@@ -76,6 +146,231 @@ public final class DnsServerConfig implements Cloneable {
      */
     private boolean logQueries = false;
 
+    /**
+     * File queries are logged to when query logging is enabled; queries are logged using SLF4J logger if empty. Queries
+     * are always written by a background thread.
+     *
+     * @see #isLogQueries()
+     */
+    @NonNull
+    private String queryLogFile = "";
+
+    /**
+     * Query log file format.
+     *
+     * @see #getQueryLogFile()
+     */
+    @NonNull
+    private QueryLogFormat queryLogFormat = QueryLogFormat.TEXT;
+
+    /**
+     * Maximum query log file size in bytes, log file is rotated when it grows larger.
+     *
+     * @see #getQueryLogFile()
+     */
+    private long queryLogMaxFileSize = 100L * 1024 * 1024;
+
+    /**
+     * Number of rotated query log files to keep.
+     *
+     * @see #getQueryLogFile()
+     */
+    private int queryLogMaxFiles = 5;
+
+    /**
+     * Fraction of queries that are logged, between 0 and 1.
+     *
+     * @see #isLogQueries()
+     */
+    private double queryLogSampleRate = 1.0;
+
+    /**
+     * Number of queries buffered for the query log thread, rounded up to the nearest power of two; queries are dropped
+     * instead of logged when the buffer is full. Every buffered query takes about 300 bytes of memory.
+     *
+     * @see #isLogQueries()
+     */
+    private int queryLogBufferSize = 16_384;
+
+    /**
+     * File received queries and sent responses are captured to as dnstap messages in Frame Streams format; file is
+     * overwritten when the server starts. Set to empty string to disable dnstap file output.
+     *
+     * @see #getDnstapSocket()
+     */
+    @NonNull
+    private String dnstapFile = "";
+
+    /**
+     * Unix socket path of dnstap collector received queries and sent responses are captured to; requires native epoll
+     * transport. Set to empty string to disable dnstap socket output.
+     *
+     * @see #getDnstapFile()
+     */
+    @NonNull
+    private String dnstapSocket = "";
+
+    /**
+     * Server identity written to dnstap messages, omitted if empty.
+     */
+    @NonNull
+    private String dnstapIdentity = "";
+
+    /**
+     * Maximum number of dnstap messages waiting to be written; messages are dropped when the queue is full.
+     */
+    private int dnstapBufferSize = 16_384;
+
+    /**
+     * File eureka registry is periodically persisted to; when server starts before eureka client fetched the registry,
+     * queries are answered from this snapshot until the first registry fetch. Set to empty string to disable registry
+     * snapshots.
+     */
+    @NonNull
+    private String registrySnapshotFile = "";
+
+    /**
+     * Registry snapshot write interval in seconds; snapshot is written only if the registry changed.
+     *
+     * @see #getRegistrySnapshotFile()
+     */
+    private int registrySnapshotInterval = 60;
+
+    /**
+     * Maximum age of registry snapshot in seconds that is still loaded on startup, 0 for unlimited.
+     *
+     * @see #getRegistrySnapshotFile()
+     */
+    private int registrySnapshotMaxAge = 86_400;
+
+    /**
+     * Answer AXFR and IXFR zone transfer queries over TCP, so that secondary name servers can serve the eureka zone;
+     * transferred zone contains A, AAAA, TXT and SRV records of every service in every datacenter. Zone can be
+     * transferred only by clients listed in {@link #getZoneTransferAllow()} and by notified secondaries.
+     *
+     * @see #getZoneTransferAllow()
+     * @see #getNotifySecondaries()
+     */
+    private boolean zoneTransfer = false;
+
+    /**
+     * Number of previous registry versions retained for incremental zone transfers (IXFR); secondaries with older
+     * zone serial receive the full zone.
+     *
+     * @see #isZoneTransfer()
+     */
+    private int zoneTransferHistory = 16;
+
+    /**
+     * Secondary name servers that are sent DNS NOTIFY message over UDP every time zone serial changes, in
+     * {@code host}, {@code host:port} or {@code [ipv6]:port} format; port defaults to 53. Requires zone transfers.
+     *
+     * @see #isZoneTransfer()
+     */
+    private Set<@NonNull String> notifySecondaries = new LinkedHashSet<>();
+
+    /**
+     * Clients allowed to transfer the zone, as IP addresses or networks in CIDR notation (for example
+     * {@code 10.0.0.0/8}); notified secondaries are always allowed. Requires zone transfers.
+     *
+     * @see #isZoneTransfer()
+     */
+    private Set<@NonNull String> zoneTransferAllow = new LinkedHashSet<>();
+
+    /**
+     * Reverse zones (for example {@code 10.in-addr.arpa} or {@code 8.b.d.0.1.0.0.2.ip6.arpa}) eureka dns server is
+     * authoritative for; PTR queries for addresses of registered instances are answered with instance hostnames or,
+     * if instance is registered with its IP address as hostname, with the name of its service. Queries for reverse
+     * zones are refused if empty.
+     */
+    private Set<@NonNull String> reverseZones = new LinkedHashSet<>();
+
+    /**
+     * Cache encoded responses to service queries until the next eureka registry refresh.
+     */
+    private boolean responseCache = true;
+
+    /**
+     * Maximum number of responses held in response cache.
+     *
+     * @see #isResponseCache()
+     */
+    private int responseCacheMaxEntries = 10_000;
+
+    /**
+     * Number of identical responses per second sent to a single client network over UDP, clients are grouped by /24
+     * IPv4 and /56 IPv6 prefixes; responses that exceed the limit are dropped or slipped. Set to 0 to disable response
+     * rate limiting.
+     *
+     * @see #getRateLimitSlip()
+     * @see #isRateLimitDryRun()
+     */
+    private int rateLimitResponsesPerSecond = 0;
+
+    /**
+     * Every n-th rate limited response is sent as an empty truncated response instead of being dropped, so that
+     * legitimate clients can retry over TCP; set to 0 to drop all rate limited responses, 1 to slip all of them.
+     *
+     * @see #getRateLimitResponsesPerSecond()
+     */
+    private int rateLimitSlip = 2;
+
+    /**
+     * Only count rate limited responses, but send them anyway.
+     *
+     * @see #getRateLimitResponsesPerSecond()
+     */
+    private boolean rateLimitDryRun = false;
+
+    /**
+     * Number of response rate limiter buckets, rounded up to the nearest power of two; every bucket takes 8 bytes of
+     * memory.
+     *
+     * @see #getRateLimitResponsesPerSecond()
+     */
+    private int rateLimitTableSize = 65_536;
+
+    /**
+     * Maximum time in milliseconds a UDP query can wait for the event loop before it's shed; set to 0 to disable the
+     * check.
+     *
+     * @see #getOverloadAction()
+     */
+    private long overloadMaxQueueDelay = 0;
+
+    /**
+     * Maximum number of tasks pending in event loop queue; UDP queries are shed while the event loop has more pending
+     * tasks. Set to 0 to disable the check.
+     *
+     * @see #getOverloadAction()
+     */
+    private int overloadMaxPendingTasks = 0;
+
+    /**
+     * What to do with UDP queries that are shed because event loop is overloaded.
+     *
+     * @see #getOverloadMaxQueueDelay()
+     * @see #getOverloadMaxPendingTasks()
+     */
+    @NonNull
+    private OverloadAction overloadAction = OverloadAction.REFUSE;
+
+    /**
+     * HTTP port serving metrics in Prometheus text format on {@code /metrics} path; set to 0 to disable metrics, which
+     * also disables per-query instrumentation.
+     *
+     * @see #getMetricsAddress()
+     */
+    private int metricsPort = 0;
+
+    /**
+     * IP address metrics HTTP server listens on; set to empty string to listen on all interfaces.
+     *
+     * @see #getMetricsPort()
+     */
+    @NonNull
+    private String metricsAddress = "";
+
     /**
      * Adds single listening address.
      *
@@ -133,6 +428,90 @@ public final class DnsServerConfig implements Cloneable {
         if (ttl < 0) {
             throw new IllegalStateException("Invalid TTL value: " + ttl);
         }
+        if (soaRefresh < 0 || soaRetry < 0 || soaExpire < 0 || soaMinimum < 0) {
+            throw new IllegalStateException("Invalid SOA timer values: refresh=" + soaRefresh + ", retry=" + soaRetry +
+                    ", expire=" + soaExpire + ", minimum=" + soaMinimum);
+        }
+        if (negativeTtl < 0) {
+            throw new IllegalStateException("Invalid negative TTL value: " + negativeTtl);
+        }
+        if (maxUdpPayloadSize < 512 || maxUdpPayloadSize > 65535) {
+            throw new IllegalStateException("Invalid max UDP payload size: " + maxUdpPayloadSize);
+        }
+        if (datagramBatchSize < 0 || datagramBatchSize > 1024) {
+            throw new IllegalStateException("Invalid datagram batch size: " + datagramBatchSize);
+        }
+        if (tcp && tcpIdleTimeout < 1) {
+            throw new IllegalStateException("Invalid TCP idle timeout: " + tcpIdleTimeout);
+        }
+        if (responseCache && responseCacheMaxEntries < 1) {
+            throw new IllegalStateException("Invalid response cache size: " + responseCacheMaxEntries);
+        }
+        if (rateLimitResponsesPerSecond < 0 ||
+                rateLimitResponsesPerSecond > ResponseRateLimiter.MAX_RESPONSES_PER_SECOND) {
+            throw new IllegalStateException("Invalid rate limit: " + rateLimitResponsesPerSecond);
+        }
+        if (rateLimitResponsesPerSecond > 0 && (rateLimitSlip < 0 || rateLimitTableSize < 1 ||
+                rateLimitTableSize > ResponseRateLimiter.MAX_TABLE_SIZE)) {
+            throw new IllegalStateException("Invalid rate limiter settings: slip=" + rateLimitSlip +
+                    ", tableSize=" + rateLimitTableSize);
+        }
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalStateException("Invalid metrics port: " + metricsPort);
+        }
+        if (!metricsAddress.trim().isEmpty() && !InetAddresses.isInetAddress(metricsAddress.trim())) {
+            throw new IllegalStateException("Invalid metrics address: " + metricsAddress);
+        }
+        if (logQueries && (queryLogSampleRate < 0 || queryLogSampleRate > 1 || queryLogBufferSize < 16 ||
+                queryLogBufferSize > QueryLog.MAX_BUFFER_SIZE || queryLogMaxFileSize < QueryLog.RECORD_SIZE * 2 ||
+                queryLogMaxFiles < 0)) {
+            throw new IllegalStateException("Invalid query log settings: sampleRate=" + queryLogSampleRate +
+                    ", bufferSize=" + queryLogBufferSize + ", maxFileSize=" + queryLogMaxFileSize +
+                    ", maxFiles=" + queryLogMaxFiles);
+        }
+        if (!dnstapFile.trim().isEmpty() && !dnstapSocket.trim().isEmpty()) {
+            throw new IllegalStateException("Only one of dnstap file and dnstap socket can be set.");
+        }
+        if (dnstapBufferSize < 16) {
+            throw new IllegalStateException("Invalid dnstap buffer size: " + dnstapBufferSize);
+        }
+        if (!registrySnapshotFile.trim().isEmpty() && (registrySnapshotInterval < 1 || registrySnapshotMaxAge < 0)) {
+            throw new IllegalStateException("Invalid registry snapshot settings: interval=" +
+                    registrySnapshotInterval + ", maxAge=" + registrySnapshotMaxAge);
+        }
+        if (zoneTransfer && (!tcp || zoneTransferHistory < 0)) {
+            throw new IllegalStateException("Invalid zone transfer settings: tcp=" + tcp +
+                    ", history=" + zoneTransferHistory);
+        }
+        if (!notifySecondaries.isEmpty()) {
+            if (!zoneTransfer) {
+                throw new IllegalStateException("Notifying secondary name servers requires zone transfers.");
+            }
+            try {
+                ZoneNotifier.parseAddresses(notifySecondaries);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        if (!zoneTransferAllow.isEmpty()) {
+            if (!zoneTransfer) {
+                throw new IllegalStateException("Zone transfer allow list requires zone transfers.");
+            }
+            try {
+                AddressMatcher.parse(zoneTransferAllow);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        for (String zone : reverseZones) {
+            if (ReverseIndex.parseName(zone.trim().toLowerCase(), new byte[16]) == ReverseIndex.INVALID_NAME) {
+                throw new IllegalStateException("Invalid reverse zone: " + zone);
+            }
+        }
+        if (overloadMaxQueueDelay < 0 || overloadMaxPendingTasks < 0) {
+            throw new IllegalStateException("Invalid overload thresholds: maxQueueDelay=" + overloadMaxQueueDelay +
+                    ", maxPendingTasks=" + overloadMaxPendingTasks);
+        }
 
         return clone();
     }
@@ -145,11 +524,50 @@ public final class DnsServerConfig implements Cloneable {
                 .setEventLoopGroup(getEventLoopGroup())
                 .setEurekaClient(getEurekaClient())
                 .setTtl(getTtl())
+                .setSoaRefresh(getSoaRefresh())
+                .setSoaRetry(getSoaRetry())
+                .setSoaExpire(getSoaExpire())
+                .setSoaMinimum(getSoaMinimum())
+                .setNegativeTtl(getNegativeTtl())
                 .setMaxResponses(getMaxResponses())
+                .setAnswerOrder(getAnswerOrder())
+                .setMaxUdpPayloadSize(getMaxUdpPayloadSize())
+                .setDatagramBatchSize(getDatagramBatchSize())
+                .setTcp(isTcp())
+                .setTcpIdleTimeout(getTcpIdleTimeout())
                 .setMaxThreads(getMaxThreads())
                 .setPreferNativeTransport(isPreferNativeTransport())
                 .setDomain(getDomain())
-                .setLogQueries(isLogQueries());
+                .setLogQueries(isLogQueries())
+                .setQueryLogFile(getQueryLogFile())
+                .setQueryLogFormat(getQueryLogFormat())
+                .setQueryLogMaxFileSize(getQueryLogMaxFileSize())
+                .setQueryLogMaxFiles(getQueryLogMaxFiles())
+                .setQueryLogSampleRate(getQueryLogSampleRate())
+                .setQueryLogBufferSize(getQueryLogBufferSize())
+                .setDnstapFile(getDnstapFile())
+                .setDnstapSocket(getDnstapSocket())
+                .setDnstapIdentity(getDnstapIdentity())
+                .setDnstapBufferSize(getDnstapBufferSize())
+                .setRegistrySnapshotFile(getRegistrySnapshotFile())
+                .setRegistrySnapshotInterval(getRegistrySnapshotInterval())
+                .setRegistrySnapshotMaxAge(getRegistrySnapshotMaxAge())
+                .setZoneTransfer(isZoneTransfer())
+                .setZoneTransferHistory(getZoneTransferHistory())
+                .setNotifySecondaries(new LinkedHashSet<>(getNotifySecondaries()))
+                .setZoneTransferAllow(new LinkedHashSet<>(getZoneTransferAllow()))
+                .setReverseZones(new LinkedHashSet<>(getReverseZones()))
+                .setResponseCache(isResponseCache())
+                .setResponseCacheMaxEntries(getResponseCacheMaxEntries())
+                .setRateLimitResponsesPerSecond(getRateLimitResponsesPerSecond())
+                .setRateLimitSlip(getRateLimitSlip())
+                .setRateLimitDryRun(isRateLimitDryRun())
+                .setRateLimitTableSize(getRateLimitTableSize())
+                .setOverloadMaxQueueDelay(getOverloadMaxQueueDelay())
+                .setOverloadMaxPendingTasks(getOverloadMaxPendingTasks())
+                .setOverloadAction(getOverloadAction())
+                .setMetricsPort(getMetricsPort())
+                .setMetricsAddress(getMetricsAddress());
     }
 
     /**
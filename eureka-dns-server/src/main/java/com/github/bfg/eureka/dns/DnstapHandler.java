@@ -0,0 +1,133 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongSupplier;
+
+/**
+ * Captures received queries and sent responses as dnstap {@code CLIENT_QUERY} and {@code CLIENT_RESPONSE} messages;
+ * must be placed in between datagram (or TCP frame) and DNS message codecs, so that it sees messages in wire format.
+ *
+ * <p>Messages are encoded on the event loop and handed over to {@link DnstapWriter}, which writes them from its own
+ * thread.</p>
+ *
+ * @see DnsServerConfig#getDnstapFile()
+ * @see DnsServerConfig#getDnstapSocket()
+ */
+@Slf4j
+@ChannelHandler.Sharable
+final class DnstapHandler extends ChannelDuplexHandler implements MetricsSource {
+    private final DnstapWriter writer;
+    private final byte[] identity;
+    private final LongSupplier clock;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config server configuration
+     */
+    DnstapHandler(@NonNull DnsServerConfig config) {
+        this(new DnstapWriter(config), config.getDnstapIdentity(), System::currentTimeMillis);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param writer   dnstap writer
+     * @param identity server identity written to every message, may be empty
+     * @param clock    wall clock in milliseconds
+     */
+    DnstapHandler(@NonNull DnstapWriter writer, @NonNull String identity, @NonNull LongSupplier clock) {
+        this.writer = writer;
+        this.identity = identity.getBytes(StandardCharsets.UTF_8);
+        this.clock = clock;
+    }
+
+    /**
+     * Starts writing captured messages; should be invoked when server starts.
+     */
+    void start() {
+        writer.start();
+    }
+
+    /**
+     * Writes all captured messages and stops; should be invoked after server channels are closed.
+     */
+    void stop() {
+        writer.stop();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof DatagramPacket) {
+            val packet = (DatagramPacket) msg;
+            capture(DnstapMessages.CLIENT_QUERY, ctx, packet.sender(), packet.recipient(), packet.content());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof DatagramPacket) {
+            val packet = (DatagramPacket) msg;
+            capture(DnstapMessages.CLIENT_RESPONSE, ctx, packet.recipient(), packet.sender(), packet.content());
+        } else if (msg instanceof ByteBuf) {
+            val channel = ctx.channel();
+            capture(DnstapMessages.CLIENT_RESPONSE, ctx, (InetSocketAddress) channel.remoteAddress(),
+                    (InetSocketAddress) channel.localAddress(), (ByteBuf) msg);
+        }
+        ctx.write(msg, promise);
+    }
+
+    private void capture(int type, ChannelHandlerContext ctx, InetSocketAddress client, InetSocketAddress server,
+                         ByteBuf message) {
+        if (client == null) {
+            return;
+        }
+        try {
+            val tcp = !(ctx.channel() instanceof DatagramChannel);
+            writer.write(DnstapMessages.encodeMessage(type, tcp, client, server, clock.getAsLong(), message,
+                    identity));
+        } catch (RuntimeException e) {
+            // capturing must never break the pipeline
+            log.debug("error encoding dnstap message: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns number of written dnstap messages.
+     *
+     * @return number of messages
+     */
+    long getWritten() {
+        return writer.getWritten();
+    }
+
+    /**
+     * Returns number of dnstap messages that were dropped because the queue was full or output was not available.
+     *
+     * @return number of messages
+     */
+    long getDropped() {
+        return writer.getDropped();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("dnstap_messages_total", "counter", "Number of written dnstap messages.", getWritten());
+        out.metric("dnstap_dropped_total", "counter",
+                "Number of dnstap messages dropped because the queue was full or output was not available.",
+                getDropped());
+    }
+}
@@ -0,0 +1,233 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * dnstap message and Frame Streams encoding; protobuf messages are encoded by hand, because only a few fields of
+ * {@code dnstap.Dnstap} and {@code dnstap.Message} messages are ever written.
+ *
+ * @see <a href="https://dnstap.info/">dnstap</a>
+ * @see <a href="https://github.com/dnstap/dnstap.pb/blob/master/dnstap.proto">dnstap.proto</a>
+ * @see <a href="https://farsightsec.github.io/fstrm/">Frame Streams</a>
+ */
+@UtilityClass
+class DnstapMessages {
+    /**
+     * Frame Streams content type of dnstap data frames.
+     */
+    static final String CONTENT_TYPE = "protobuf:dnstap.Dnstap";
+
+    /**
+     * Frame Streams control frame types.
+     */
+    static final int CONTROL_ACCEPT = 0x01;
+    static final int CONTROL_START = 0x02;
+    static final int CONTROL_STOP = 0x03;
+    static final int CONTROL_READY = 0x04;
+    static final int CONTROL_FINISH = 0x05;
+
+    /**
+     * Frame Streams control frame content type field.
+     */
+    static final int CONTROL_FIELD_CONTENT_TYPE = 0x01;
+
+    /**
+     * Maximum length of control frame accepted from a collector.
+     */
+    static final int MAX_CONTROL_FRAME_LENGTH = 512;
+
+    /**
+     * {@code Message.Type} values.
+     */
+    static final int CLIENT_QUERY = 5;
+    static final int CLIENT_RESPONSE = 6;
+
+    /**
+     * {@code Dnstap.Type.MESSAGE} value.
+     */
+    static final int DNSTAP_TYPE_MESSAGE = 1;
+
+    /**
+     * Version written to every dnstap message.
+     */
+    static final byte[] VERSION = "eureka-dns-server".getBytes(StandardCharsets.US_ASCII);
+
+    // Dnstap message fields
+    private static final int DNSTAP_IDENTITY = 1;
+    private static final int DNSTAP_VERSION = 2;
+    private static final int DNSTAP_MESSAGE = 14;
+    private static final int DNSTAP_TYPE = 15;
+
+    // Message fields
+    private static final int MESSAGE_TYPE = 1;
+    private static final int MESSAGE_SOCKET_FAMILY = 2;
+    private static final int MESSAGE_SOCKET_PROTOCOL = 3;
+    private static final int MESSAGE_QUERY_ADDRESS = 4;
+    private static final int MESSAGE_RESPONSE_ADDRESS = 5;
+    private static final int MESSAGE_QUERY_PORT = 6;
+    private static final int MESSAGE_RESPONSE_PORT = 7;
+    private static final int MESSAGE_QUERY_TIME_SEC = 8;
+    private static final int MESSAGE_QUERY_TIME_NSEC = 9;
+    private static final int MESSAGE_QUERY_MESSAGE = 10;
+    private static final int MESSAGE_RESPONSE_TIME_SEC = 12;
+    private static final int MESSAGE_RESPONSE_TIME_NSEC = 13;
+    private static final int MESSAGE_RESPONSE_MESSAGE = 14;
+
+    private static final int SOCKET_FAMILY_INET = 1;
+    private static final int SOCKET_FAMILY_INET6 = 2;
+    private static final int SOCKET_PROTOCOL_UDP = 1;
+    private static final int SOCKET_PROTOCOL_TCP = 2;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * Encodes {@code CLIENT_QUERY} or {@code CLIENT_RESPONSE} dnstap message.
+     *
+     * @param type       message type, {@link #CLIENT_QUERY} or {@link #CLIENT_RESPONSE}
+     * @param tcp        whether message was received/sent over TCP
+     * @param client     client address
+     * @param server     server address, may be {@code null}
+     * @param timeMillis time message was received/sent in milliseconds since epoch
+     * @param message    DNS message in wire format; its reader index is not modified
+     * @param identity   server identity, may be empty
+     * @return encoded {@code dnstap.Dnstap} message
+     */
+    static byte[] encodeMessage(int type, boolean tcp, @NonNull InetSocketAddress client, InetSocketAddress server,
+                                long timeMillis, @NonNull ByteBuf message, @NonNull byte[] identity) {
+        val clientAddr = addressBytes(client);
+        val serverAddr = addressBytes(server);
+        val family = (client.getAddress() instanceof Inet6Address) ? SOCKET_FAMILY_INET6 : SOCKET_FAMILY_INET;
+        val query = (type == CLIENT_QUERY);
+        val seconds = timeMillis / 1000;
+        val nanos = (int) (timeMillis % 1000) * 1_000_000;
+        val messageLength = message.readableBytes();
+
+        int inner = varintFieldSize(type) +
+                varintFieldSize(family) +
+                varintFieldSize(tcp ? SOCKET_PROTOCOL_TCP : SOCKET_PROTOCOL_UDP) +
+                bytesFieldSize(clientAddr.length) +
+                varintFieldSize(client.getPort()) +
+                varintFieldSize(seconds) + 5 +
+                bytesFieldSize(messageLength);
+        if (server != null) {
+            inner += bytesFieldSize(serverAddr.length) + varintFieldSize(server.getPort());
+        }
+
+        val outer = ((identity.length > 0) ? bytesFieldSize(identity.length) : 0) +
+                bytesFieldSize(VERSION.length) +
+                bytesFieldSize(inner) +
+                varintFieldSize(DNSTAP_TYPE_MESSAGE);
+
+        val buf = ByteBuffer.allocate(outer);
+        if (identity.length > 0) {
+            writeBytes(buf, DNSTAP_IDENTITY, identity);
+        }
+        writeBytes(buf, DNSTAP_VERSION, VERSION);
+        writeTag(buf, DNSTAP_MESSAGE, WIRE_LENGTH_DELIMITED);
+        writeVarint(buf, inner);
+
+        writeVarint(buf, MESSAGE_TYPE, type);
+        writeVarint(buf, MESSAGE_SOCKET_FAMILY, family);
+        writeVarint(buf, MESSAGE_SOCKET_PROTOCOL, tcp ? SOCKET_PROTOCOL_TCP : SOCKET_PROTOCOL_UDP);
+        writeBytes(buf, MESSAGE_QUERY_ADDRESS, clientAddr);
+        if (server != null) {
+            writeBytes(buf, MESSAGE_RESPONSE_ADDRESS, serverAddr);
+        }
+        writeVarint(buf, MESSAGE_QUERY_PORT, client.getPort());
+        if (server != null) {
+            writeVarint(buf, MESSAGE_RESPONSE_PORT, server.getPort());
+        }
+        writeVarint(buf, query ? MESSAGE_QUERY_TIME_SEC : MESSAGE_RESPONSE_TIME_SEC, seconds);
+        writeTag(buf, query ? MESSAGE_QUERY_TIME_NSEC : MESSAGE_RESPONSE_TIME_NSEC, WIRE_FIXED32);
+        buf.putInt(Integer.reverseBytes(nanos));
+        writeTag(buf, query ? MESSAGE_QUERY_MESSAGE : MESSAGE_RESPONSE_MESSAGE, WIRE_LENGTH_DELIMITED);
+        writeVarint(buf, messageLength);
+        message.getBytes(message.readerIndex(), buf.array(), buf.position(), messageLength);
+        buf.position(buf.position() + messageLength);
+
+        writeVarint(buf, DNSTAP_TYPE, DNSTAP_TYPE_MESSAGE);
+        return buf.array();
+    }
+
+    /**
+     * Encodes Frame Streams control frame, including the escape sequence.
+     *
+     * @param type        control frame type
+     * @param contentType content type field, omitted if {@code null}
+     * @return encoded control frame
+     */
+    static byte[] encodeControlFrame(int type, String contentType) {
+        val contentTypeBytes = (contentType == null) ? NO_BYTES : contentType.getBytes(StandardCharsets.US_ASCII);
+        val length = 4 + ((contentType == null) ? 0 : 8 + contentTypeBytes.length);
+        val buf = ByteBuffer.allocate(8 + length)
+                .putInt(0)
+                .putInt(length)
+                .putInt(type);
+        if (contentType != null) {
+            buf.putInt(CONTROL_FIELD_CONTENT_TYPE)
+                    .putInt(contentTypeBytes.length)
+                    .put(contentTypeBytes);
+        }
+        return buf.array();
+    }
+
+    private static byte[] addressBytes(InetSocketAddress address) {
+        if (address == null) {
+            return NO_BYTES;
+        }
+        val addr = address.getAddress();
+        return (addr == null) ? NO_BYTES : addr.getAddress();
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int varintFieldSize(long value) {
+        return 1 + varintSize(value);
+    }
+
+    private static int bytesFieldSize(int length) {
+        return 1 + varintSize(length) + length;
+    }
+
+    private static void writeTag(ByteBuffer buf, int field, int wireType) {
+        buf.put((byte) ((field << 3) | wireType));
+    }
+
+    private static void writeVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static void writeVarint(ByteBuffer buf, int field, long value) {
+        writeTag(buf, field, WIRE_VARINT);
+        writeVarint(buf, value);
+    }
+
+    private static void writeBytes(ByteBuffer buf, int field, byte[] value) {
+        writeTag(buf, field, WIRE_LENGTH_DELIMITED);
+        writeVarint(buf, value.length);
+        buf.put(value);
+    }
+}
@@ -0,0 +1,454 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes dnstap messages as Frame Streams data frames from a background thread; event loops only hand encoded messages
+ * over to a bounded lock-free queue and messages are dropped and counted when the queue is full.
+ *
+ * <p>Messages are written either to a file, which is overwritten when writer starts and appended to with a new
+ * Frame Streams stream when it is reopened after write errors, or to a dnstap collector listening on a unix socket;
+ * collector connection uses bidirectional Frame Streams handshake and is re-established when it fails.</p>
+ *
+ * @see DnsServerConfig#getDnstapFile()
+ * @see DnsServerConfig#getDnstapSocket()
+ */
+@Slf4j
+final class DnstapWriter {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RECONNECT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Queue<byte[]> queue;
+    private final Output output;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config server configuration
+     */
+    DnstapWriter(@NonNull DnsServerConfig config) {
+        this(config.getDnstapBufferSize(), createOutput(config));
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param bufferSize maximum number of queued messages
+     * @param output     where frames are written
+     */
+    DnstapWriter(int bufferSize, @NonNull Output output) {
+        this.queue = PlatformDependent.newFixedMpscQueue(bufferSize);
+        this.output = output;
+    }
+
+    private static Output createOutput(DnsServerConfig config) {
+        val socket = config.getDnstapSocket().trim();
+        return socket.isEmpty() ?
+                new FileOutput(Paths.get(config.getDnstapFile().trim())) :
+                new DomainSocketOutput(socket);
+    }
+
+    /**
+     * Starts background thread writing the messages.
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new DefaultThreadFactory("eureka-dns-dnstap", true).newThread(this::run);
+        thread.start();
+        log.info("started dnstap output: {}", output);
+    }
+
+    /**
+     * Stops background thread after writing all queued messages.
+     */
+    synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Queues encoded dnstap message for writing; never blocks.
+     *
+     * @param message encoded {@code dnstap.Dnstap} message
+     */
+    void write(@NonNull byte[] message) {
+        if (!queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns number of written dnstap messages.
+     *
+     * @return number of messages
+     */
+    long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Returns number of dnstap messages that were dropped because the queue was full or output was not available.
+     *
+     * @return number of messages
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        boolean open = open();
+        long nextOpenNanos = System.nanoTime() + RECONNECT_INTERVAL_NANOS;
+        while (true) {
+            val message = queue.poll();
+            if (message == null) {
+                if (!running) {
+                    break;
+                }
+                if (open) {
+                    open = flush();
+                }
+                if (!open && System.nanoTime() - nextOpenNanos >= 0) {
+                    open = open();
+                    nextOpenNanos = System.nanoTime() + RECONNECT_INTERVAL_NANOS;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            if (!open) {
+                dropped.increment();
+                continue;
+            }
+            try {
+                output.writeFrame(message);
+                written.increment();
+            } catch (Exception e) {
+                dropped.increment();
+                log.warn("error writing dnstap frame to {}: {}", output, e.getMessage());
+                close();
+                open = false;
+            }
+        }
+        if (open) {
+            close();
+        }
+    }
+
+    private boolean open() {
+        try {
+            output.open();
+            return true;
+        } catch (Exception | LinkageError e) {
+            log.warn("can't open dnstap output {}: {}", output, e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private boolean flush() {
+        try {
+            output.flush();
+            return true;
+        } catch (Exception e) {
+            log.warn("error flushing dnstap output {}: {}", output, e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void close() {
+        try {
+            output.close();
+        } catch (Exception e) {
+            log.debug("error closing dnstap output {}: {}", output, e.getMessage());
+        }
+    }
+
+    /**
+     * Frame Streams output; invoked only by dnstap writer thread.
+     */
+    interface Output {
+        /**
+         * Opens the output and starts Frame Streams stream.
+         *
+         * @throws IOException if output can't be opened
+         */
+        void open() throws IOException;
+
+        /**
+         * Writes single data frame.
+         *
+         * @param data frame data
+         * @throws IOException on write errors
+         */
+        void writeFrame(byte[] data) throws IOException;
+
+        /**
+         * Flushes written frames; invoked when there are no more queued messages.
+         *
+         * @throws IOException on write errors
+         */
+        void flush() throws IOException;
+
+        /**
+         * Stops Frame Streams stream and closes the output; invoked also if output was not opened successfully.
+         *
+         * @throws IOException on write errors
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Writes unidirectional Frame Streams stream to a file; file is truncated only when it is opened for the first
+     * time, subsequent opens append a new stream so that frames written before the failure are kept.
+     */
+    static final class FileOutput implements Output {
+        private final Path path;
+        private DataOutputStream out;
+        private boolean opened;
+
+        /**
+         * Creates new instance.
+         *
+         * @param path output file
+         */
+        FileOutput(@NonNull Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public void open() throws IOException {
+            val parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            val stream = opened ?
+                    Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND) :
+                    Files.newOutputStream(path);
+            opened = true;
+            out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            out.write(DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_START, DnstapMessages.CONTENT_TYPE));
+        }
+
+        @Override
+        public void writeFrame(byte[] data) throws IOException {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                try {
+                    out.write(DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_STOP, null));
+                    out.close();
+                } finally {
+                    out = null;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "file " + path;
+        }
+    }
+
+    /**
+     * Writes bidirectional Frame Streams stream to a collector listening on unix socket; requires native epoll
+     * transport.
+     */
+    static final class DomainSocketOutput implements Output {
+        private static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+        private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+        private final String path;
+        private final BlockingQueue<Integer> controlFrames = new LinkedBlockingQueue<>();
+
+        private EventLoopGroup eventLoopGroup;
+        private Channel channel;
+
+        /**
+         * Creates new instance.
+         *
+         * @param path unix socket path
+         */
+        DomainSocketOutput(@NonNull String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void open() throws IOException {
+            if (!Epoll.isAvailable()) {
+                throw new IOException("unix socket output requires native epoll transport: " +
+                        Epoll.unavailabilityCause());
+            }
+
+            controlFrames.clear();
+            eventLoopGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("eureka-dns-dnstap-io", true));
+            val future = new Bootstrap()
+                    .group(eventLoopGroup)
+                    .channel(EpollDomainSocketChannel.class)
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(MAX_PENDING_BYTES / 2, MAX_PENDING_BYTES))
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline()
+                                    .addLast(new LengthFieldBasedFrameDecoder(
+                                            DnstapMessages.MAX_CONTROL_FRAME_LENGTH + 8, 4, 4))
+                                    .addLast(new ControlFrameHandler());
+                        }
+                    })
+                    .connect(new DomainSocketAddress(path));
+            if (!future.awaitUninterruptibly(HANDSHAKE_TIMEOUT_MILLIS) || !future.isSuccess()) {
+                throw new IOException("can't connect: " + future.cause());
+            }
+            channel = future.channel();
+
+            send(DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_READY, DnstapMessages.CONTENT_TYPE));
+            awaitControlFrame(DnstapMessages.CONTROL_ACCEPT);
+            send(DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_START, DnstapMessages.CONTENT_TYPE));
+        }
+
+        @Override
+        public void writeFrame(byte[] data) throws IOException {
+            // don't let frames pile up in memory if collector can't keep up
+            while (!channel.isWritable()) {
+                if (!channel.isActive()) {
+                    throw new IOException("collector closed the connection");
+                }
+                channel.flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            channel.write(Unpooled.wrappedBuffer(ByteBuffer.allocate(4).putInt(0, data.length).array(), data));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!channel.isActive()) {
+                throw new IOException("collector closed the connection");
+            }
+            channel.flush();
+        }
+
+        @Override
+        public void close() {
+            if (channel != null) {
+                try {
+                    if (channel.isActive()) {
+                        send(DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_STOP, null));
+                        awaitControlFrame(DnstapMessages.CONTROL_FINISH);
+                    }
+                } catch (IOException e) {
+                    log.debug("dnstap collector didn't finish the stream: {}", e.getMessage());
+                } finally {
+                    channel.close().awaitUninterruptibly(HANDSHAKE_TIMEOUT_MILLIS);
+                    channel = null;
+                }
+            }
+            if (eventLoopGroup != null) {
+                eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+                eventLoopGroup = null;
+            }
+        }
+
+        private void send(byte[] frame) throws IOException {
+            val future = channel.writeAndFlush(Unpooled.wrappedBuffer(frame));
+            if (!future.awaitUninterruptibly(HANDSHAKE_TIMEOUT_MILLIS) || !future.isSuccess()) {
+                throw new IOException("can't write control frame: " + future.cause());
+            }
+        }
+
+        private void awaitControlFrame(int type) throws IOException {
+            Integer received;
+            try {
+                received = controlFrames.poll(HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for control frame");
+            }
+            if (received == null || received != type) {
+                throw new IOException("expected control frame " + type + ", got: " + received);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "unix socket " + path;
+        }
+
+        /**
+         * Receives control frames sent by the collector.
+         */
+        private final class ControlFrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+                // escape sequence, control frame length, control frame type
+                if (frame.readableBytes() >= 12 && frame.getInt(frame.readerIndex()) == 0) {
+                    controlFrames.add(frame.getInt(frame.readerIndex() + 8));
+                } else {
+                    log.warn("received unexpected frame from dnstap collector, closing connection.");
+                    ctx.close();
+                }
+            }
+        }
+    }
+}
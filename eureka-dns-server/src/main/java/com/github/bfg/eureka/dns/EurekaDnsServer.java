@@ -2,17 +2,27 @@ package com.github.bfg.eureka.dns;
 
 import com.google.common.net.InetAddresses;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
-import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -45,16 +55,39 @@ import static com.github.bfg.eureka.dns.Utils.toCompletableFuture;
  */
 @Slf4j
 public final class EurekaDnsServer implements Closeable {
+    /**
+     * Native epoll event loop group class name.
+     */
+    private static final String EPOLL_ELG_CLASS_NAME = "io.netty.channel.epoll.EpollEventLoopGroup";
+
+    /**
+     * Name of epoll channel option that enables receiving multiple datagrams using single {@code recvmmsg()} call;
+     * unlike {@code SO_REUSEPORT} it's registered without class name prefix.
+     */
+    private static final String MAX_DATAGRAM_PAYLOAD_SIZE_OPTION = "MAX_DATAGRAM_PAYLOAD_SIZE";
+
     /**
      * Native event loop class -> channel class name mapping.
      */
     private static final Map<String, String> NATIVE_ELG_CLASS_NAME_MAPPING = createChannelClassStringMapping();
 
+    /**
+     * Native event loop class -> server socket channel class name mapping.
+     */
+    private static final Map<String, String> NATIVE_ELG_SERVER_CLASS_NAME_MAPPING =
+            createServerChannelClassStringMapping();
+
     /**
      * Native EventLoopGroup class -> channel class mapping.
      */
     private static final Map<Class<? extends EventLoopGroup>, Class<? extends DatagramChannel>> NATIVE_ELG_CLASS_MAPPING
-            = createChannelClassMapping();
+            = createChannelClassMapping(NATIVE_ELG_CLASS_NAME_MAPPING);
+
+    /**
+     * Native EventLoopGroup class -> server socket channel class mapping.
+     */
+    private static final Map<Class<? extends EventLoopGroup>, Class<? extends ServerSocketChannel>>
+            NATIVE_ELG_SERVER_CLASS_MAPPING = createChannelClassMapping(NATIVE_ELG_SERVER_CLASS_NAME_MAPPING);
 
     private final CompletableFuture<EurekaDnsServer> completedFuture = CompletableFuture.completedFuture(this);
     private final CompletableFuture<EurekaDnsServer> startupFuture = new CompletableFuture<>();
@@ -63,12 +96,37 @@ public final class EurekaDnsServer implements Closeable {
     private final DnsServerConfig config;
     private final EventLoopGroup eventLoopGroup;
     private final boolean shutdownElg;
+
+    /**
+     * Components shared by query handling and server lifecycle.
+     */
+    private final DnsServerComponents components;
     private final DnsQueryHandler dnsQueryHandler;
+
+    /**
+     * UDP query admission controller, {@code null} if overload shedding is disabled.
+     */
+    private final AdmissionController admissionController;
+
+    /**
+     * Metrics HTTP server, {@code null} if metrics are disabled.
+     */
+    private final MetricsServer metricsServer;
+
+    /**
+     * dnstap query/response capture, {@code null} if dnstap is disabled.
+     */
+    private final DnstapHandler dnstapHandler;
     private final AtomicBoolean wasStarted = new AtomicBoolean();
     private final AtomicBoolean wasStopped = new AtomicBoolean();
 
     /**
-     * List of bound UDP channels, volatile because it can't be created on instance instantiation.
+     * Accepted TCP connections.
+     */
+    private final ChannelGroup tcpConnections = new DefaultChannelGroup("eureka-dns-tcp", GlobalEventExecutor.INSTANCE);
+
+    /**
+     * List of bound UDP and TCP channels, volatile because it can't be created on instance instantiation.
      */
     private volatile List<Channel> channels;
 
@@ -78,20 +136,45 @@ public final class EurekaDnsServer implements Closeable {
      * @param config server configuration.
      */
     public EurekaDnsServer(@NonNull DnsServerConfig config) {
-        this(config, new DnsQueryHandler(config));
+        this(config, new DnsServerComponents(config));
     }
 
     /**
      * Creates new instance.
      *
-     * @param config          server configuration.
-     * @param dnsQueryHandler dns query handler
+     * @param config     server configuration.
+     * @param components server components created from given configuration
      */
-    EurekaDnsServer(@NonNull DnsServerConfig config, @NonNull DnsQueryHandler dnsQueryHandler) {
+    EurekaDnsServer(@NonNull DnsServerConfig config, @NonNull DnsServerComponents components) {
         this.config = config.validate();
         this.eventLoopGroup = getOrCreateEventLoopGroup(config);
         this.shutdownElg = (config.getEventLoopGroup() == null);
-        this.dnsQueryHandler = dnsQueryHandler;
+        this.components = components;
+        this.dnsQueryHandler = new DnsQueryHandler(components);
+        this.admissionController = isOverloadSheddingEnabled(this.config) ?
+                new AdmissionController(this.config) : null;
+        this.dnstapHandler = isDnstapEnabled(this.config) ? new DnstapHandler(this.config) : null;
+
+        components.addMetricsSource(dnsQueryHandler)
+                .addMetricsSource(admissionController)
+                .addMetricsSource(dnstapHandler);
+        this.metricsServer = (this.config.getMetricsPort() > 0) ?
+                new MetricsServer(getMetricsAddress(this.config), components.getMetricsSources()) : null;
+    }
+
+    private static boolean isOverloadSheddingEnabled(DnsServerConfig config) {
+        return config.getOverloadMaxQueueDelay() > 0 || config.getOverloadMaxPendingTasks() > 0;
+    }
+
+    private static InetSocketAddress getMetricsAddress(DnsServerConfig config) {
+        val address = config.getMetricsAddress().trim();
+        return address.isEmpty() ?
+                new InetSocketAddress(config.getMetricsPort()) :
+                new InetSocketAddress(InetAddresses.forString(address), config.getMetricsPort());
+    }
+
+    private static boolean isDnstapEnabled(DnsServerConfig config) {
+        return !config.getDnstapFile().trim().isEmpty() || !config.getDnstapSocket().trim().isEmpty();
     }
 
     /**
@@ -190,6 +273,7 @@ public final class EurekaDnsServer implements Closeable {
         }
     }
 
+    @SneakyThrows
     private CompletionStage<EurekaDnsServer> doStart() {
         log.info("starting eureka DNS server");
 
@@ -212,22 +296,44 @@ public final class EurekaDnsServer implements Closeable {
                     });
         }
 
+        // batched datagram I/O: receive multiple datagrams using single recvmmsg() call, responses are flushed
+        // together and sent using single sendmmsg() call
+        if (isDatagramBatching()) {
+            val maxDatagramSize = config.getMaxUdpPayloadSize();
+            Optional.ofNullable(ChannelOption.valueOf(MAX_DATAGRAM_PAYLOAD_SIZE_OPTION))
+                    .ifPresent(option -> {
+                        log.debug("setting channel option on a bootstrap: {}", option);
+                        bootstrap.option(option, maxDatagramSize);
+                    });
+            bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR,
+                    new FixedRecvByteBufAllocator(maxDatagramSize * config.getDatagramBatchSize()));
+        } else if (config.getDatagramBatchSize() > 0) {
+            log.warn("datagram batching requires native epoll transport, using event loop group: {}", eventLoopGroup);
+        }
+
         // validate bootstrap early.
         bootstrap.validate();
 
+        val tcpBootstrap = config.isTcp() ? createTcpBootstrap() : null;
+
+        // start receiving eureka registry events
+        components.start();
+
         // bind all listening addresses
         val boundChannelFutures = getListeningAddresses().stream()
-                .flatMap(addr -> bindAddress(bootstrap, addr))
+                .flatMap(addr -> Stream.concat(bindAddress(bootstrap, addr), bindTcpAddress(tcpBootstrap, addr)))
                 .collect(Collectors.toList());
 
         allFutures(boundChannelFutures)
                 .thenRun(() -> {
                     channels = toChannels(boundChannelFutures);
+                    startMetricsAndDnstap();
                     logBoundChannels(channels);
                     log.info("started eureka DNS server [{} channel(s)]", boundChannelFutures.size());
                     startupFuture.complete(this);
                 })
                 .exceptionally(t -> {
+                    abortStart(boundChannelFutures);
                     startupFuture.completeExceptionally(t);
                     shutdownFuture.completeExceptionally(t);
                     return null;
@@ -236,6 +342,60 @@ public final class EurekaDnsServer implements Closeable {
         return startupFuture;
     }
 
+    /**
+     * Starts dnstap output and metrics server; invoked only after all listening addresses were bound, so that failed
+     * startup doesn't leave them running. Queries captured before dnstap output is started are queued.
+     *
+     * @throws java.io.IOException if metrics server address can't be bound.
+     */
+    @SneakyThrows
+    private void startMetricsAndDnstap() {
+        if (dnstapHandler != null) {
+            dnstapHandler.start();
+        }
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+    }
+
+    /**
+     * Releases everything started by failed startup: stops server components, metrics server and dnstap output and
+     * closes channels that were bound successfully.
+     *
+     * @param boundChannelFutures futures of channels being bound
+     */
+    private void abortStart(List<CompletableFuture<Channel>> boundChannelFutures) {
+        log.debug("eureka DNS server startup failed, releasing resources.");
+        components.stop();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (dnstapHandler != null) {
+            dnstapHandler.stop();
+        }
+        boundChannelFutures.forEach(future -> future.thenAccept(this::closeChannel));
+    }
+
+    /**
+     * Creates TCP server bootstrap.
+     *
+     * @return server bootstrap
+     * @see <a href="https://tools.ietf.org/html/rfc7766">RFC 7766 :: DNS Transport over TCP - Implementation
+     *         Requirements</a>
+     */
+    private ServerBootstrap createTcpBootstrap() {
+        val bootstrap = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(getServerChannelClass(eventLoopGroup))
+                .childHandler(createTcpChannelHandler())
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, true);
+        bootstrap.validate();
+        return bootstrap;
+    }
+
     /**
      * Logs bound channels.
      *
@@ -243,9 +403,7 @@ public final class EurekaDnsServer implements Closeable {
      */
     private void logBoundChannels(List<Channel> channels) {
         channels.stream()
-                .filter(e -> e instanceof DatagramChannel)
-                .map(e -> (DatagramChannel) e)
-                .map(DatagramChannel::localAddress)
+                .map(e -> ((e instanceof DatagramChannel) ? "udp " : "tcp ") + e.localAddress())
                 .distinct()
                 .forEach(e -> log.info("listening on {}", e));
     }
@@ -281,6 +439,22 @@ public final class EurekaDnsServer implements Closeable {
                 .mapToObj(idx -> toCompletableFuture(bootstrap.bind(addr.getAddress(), addr.getPort())));
     }
 
+    /**
+     * Binds given address on a TCP server bootstrap.
+     *
+     * @param bootstrap server bootstrap, may be {@code null} if TCP listener is disabled
+     * @param addr      address to bind
+     * @return stream containing future of bound server channel, empty stream if bootstrap is {@code null}.
+     */
+    private Stream<CompletableFuture<Channel>> bindTcpAddress(ServerBootstrap bootstrap, InetSocketAddress addr) {
+        if (bootstrap == null) {
+            return Stream.empty();
+        }
+
+        log.debug("binding tcp address [{}]:{}", addr.getAddress(), addr.getPort());
+        return Stream.of(toCompletableFuture(bootstrap.bind(addr.getAddress(), addr.getPort())));
+    }
+
     private List<InetSocketAddress> getListeningAddresses() {
         val fromConfig = config.getAddresses().stream()
                 .filter(Objects::nonNull)
@@ -339,14 +513,26 @@ public final class EurekaDnsServer implements Closeable {
 
         log.info("stopping eureka DNS server.");
         val result = new CompletableFuture<EurekaDnsServer>();
+        components.stop();
+        if (admissionController != null) {
+            admissionController.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
 
         val closeFutures = channels.stream()
                 .map(this::closeChannel)
                 .collect(Collectors.toList());
+        closeFutures.add(toCompletableFuture(tcpConnections.close()).thenApply(e -> (Channel) null));
 
         allFutures(closeFutures)
                 .thenCompose(e -> shutdownEvenLoopGroup())
                 .thenRun(() -> {
+                    if (dnstapHandler != null) {
+                        // write out responses to queries that were answered before channels were closed
+                        dnstapHandler.stop();
+                    }
                     log.info("eureka DNS server stopped.");
                     shutdownFuture.complete(this);
                     result.complete(this);
@@ -379,6 +565,16 @@ public final class EurekaDnsServer implements Closeable {
                 !shutdownFuture.isDone();
     }
 
+    /**
+     * Returns server metrics in Prometheus text format; per-query metrics are recorded only if metrics are enabled.
+     *
+     * @return metrics
+     * @see DnsServerConfig#getMetricsPort()
+     */
+    public String getMetrics() {
+        return MetricsServer.render(components.getMetricsSources());
+    }
+
     private CompletableFuture<Channel> closeChannel(@NonNull Channel channel) {
         log.debug("closing channel: {}", channel);
         return toCompletableFuture(channel.close());
@@ -398,18 +594,69 @@ public final class EurekaDnsServer implements Closeable {
 
     private ChannelInitializer<DatagramChannel> createChannelHandler() {
         val me = this;
+        val batchSize = isDatagramBatching() ? config.getDatagramBatchSize() : 0;
         return new ChannelInitializer<DatagramChannel>() {
             @Override
             protected void initChannel(DatagramChannel ch) {
+                if (batchSize > 0) {
+                    // flush responses once per read batch instead of once per query
+                    ch.pipeline().addLast(new FlushConsolidationHandler(batchSize));
+                }
+                if (me.admissionController != null) {
+                    // shed queries before paying for decoding them
+                    ch.pipeline().addLast(me.admissionController);
+                }
+                if (me.dnstapHandler != null) {
+                    ch.pipeline().addLast(me.dnstapHandler);
+                }
                 ch.pipeline()
                         .addLast(new DatagramDnsQueryDecoder())
-                        .addLast(new DatagramDnsResponseEncoder())
                         .addLast(me.dnsQueryHandler);
                 log.debug("initialized netty channel: {}", ch);
             }
         };
     }
 
+    private ChannelInitializer<Channel> createTcpChannelHandler() {
+        val me = this;
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                me.tcpConnections.add(ch);
+                // responses are length-prefixed before they reach frame decoder, so that dnstap handler placed after
+                // it sees both queries and responses without the prefix
+                ch.pipeline()
+                        .addLast(new IdleStateHandler(0, 0, me.config.getTcpIdleTimeout(), TimeUnit.SECONDS))
+                        .addLast(new LengthFieldPrepender(2))
+                        .addLast(new TcpDnsFrameDecoder());
+                if (me.dnstapHandler != null) {
+                    ch.pipeline().addLast(me.dnstapHandler);
+                }
+                ch.pipeline()
+                        .addLast(new DatagramDnsQueryDecoder())
+                        .addLast(me.dnsQueryHandler);
+                log.debug("initialized netty tcp channel: {}", ch);
+            }
+        };
+    }
+
+    /**
+     * Returns server socket channel class for given event loop group.
+     *
+     * @param elg event loop group
+     * @return server socket channel class
+     * @throws IllegalArgumentException if channel class cannot be obtained.
+     */
+    private Class<? extends ServerChannel> getServerChannelClass(EventLoopGroup elg) {
+        if (elg instanceof NioEventLoopGroup) {
+            return NioServerSocketChannel.class;
+        }
+
+        return Optional.ofNullable(NATIVE_ELG_SERVER_CLASS_MAPPING.get(elg.getClass()))
+                .orElseThrow(() ->
+                        new IllegalArgumentException("Unknown event loop group type: " + elg.getClass().getName()));
+    }
+
     /**
      * Returns channel class for given event loop group.
      *
@@ -440,6 +687,17 @@ public final class EurekaDnsServer implements Closeable {
         return 1;
     }
 
+    /**
+     * Tells whether batched datagram I/O should be used.
+     *
+     * @return true if batching is enabled and event loop group uses native epoll transport.
+     * @see DnsServerConfig#getDatagramBatchSize()
+     */
+    private boolean isDatagramBatching() {
+        return config.getDatagramBatchSize() > 0 &&
+                EPOLL_ELG_CLASS_NAME.equals(eventLoopGroup.getClass().getName());
+    }
+
     /**
      * Tells whether given event loop group uses native transport
      *
@@ -462,16 +720,24 @@ public final class EurekaDnsServer implements Closeable {
 
     private static Map<String, String> createChannelClassStringMapping() {
         val map = new LinkedHashMap<String, String>();
-        map.put("io.netty.channel.epoll.EpollEventLoopGroup", "io.netty.channel.epoll.EpollDatagramChannel");
+        map.put(EPOLL_ELG_CLASS_NAME, "io.netty.channel.epoll.EpollDatagramChannel");
         map.put("io.netty.channel.kqueue.KQueueEventLoopGroup", "io.netty.channel.kqueue.KQueueDatagramChannel");
         return Collections.unmodifiableMap(map);
     }
 
-    private static Map<Class<? extends EventLoopGroup>, Class<? extends DatagramChannel>> createChannelClassMapping() {
-        val map = new LinkedHashMap<Class<? extends EventLoopGroup>, Class<? extends DatagramChannel>>();
-        NATIVE_ELG_CLASS_NAME_MAPPING.forEach((elgName, chName) -> {
+    private static Map<String, String> createServerChannelClassStringMapping() {
+        val map = new LinkedHashMap<String, String>();
+        map.put(EPOLL_ELG_CLASS_NAME, "io.netty.channel.epoll.EpollServerSocketChannel");
+        map.put("io.netty.channel.kqueue.KQueueEventLoopGroup", "io.netty.channel.kqueue.KQueueServerSocketChannel");
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static <T extends Channel> Map<Class<? extends EventLoopGroup>, Class<? extends T>>
+    createChannelClassMapping(Map<String, String> classNameMapping) {
+        val map = new LinkedHashMap<Class<? extends EventLoopGroup>, Class<? extends T>>();
+        classNameMapping.forEach((elgName, chName) -> {
             final Optional<Class<EventLoopGroup>> eventLoopGroupClassOpt = loadClass(elgName);
-            final Optional<Class<DatagramChannel>> channelClassOpt = loadClass(chName);
+            final Optional<Class<T>> channelClassOpt = loadClass(chName);
             if (eventLoopGroupClassOpt.isPresent() && channelClassOpt.isPresent()) {
                 map.put(eventLoopGroupClassOpt.get(), channelClassOpt.get());
             }
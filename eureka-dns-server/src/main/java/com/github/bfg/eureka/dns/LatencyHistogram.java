@@ -0,0 +1,95 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed, roughly logarithmic bucket boundaries ranging from 10 microseconds to
+ * 1 second; recording a value is a few comparisons and two {@link LongAdder} increments.
+ */
+final class LatencyHistogram {
+    /**
+     * Upper bucket boundaries (inclusive) in nanoseconds; last bucket is unbounded.
+     */
+    private static final long[] BOUNDS = Arrays.stream(new double[]{
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 25, 50,
+            100, 250, 500, 1000
+    }).mapToLong(millis -> (long) (millis * 1_000_000)).toArray();
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Creates new instance.
+     */
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records single value.
+     *
+     * @param nanos value in nanoseconds
+     */
+    void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Returns number of recorded values.
+     *
+     * @return number of values
+     */
+    long getCount() {
+        long count = 0;
+        for (val bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns sum of all recorded values.
+     *
+     * @return sum in nanoseconds
+     */
+    long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Writes histogram samples; values are written in seconds, as recommended by Prometheus.
+     *
+     * @param out    metrics writer
+     * @param name   metric name
+     * @param labels additional labels
+     */
+    void write(@NonNull MetricsWriter out, @NonNull String name, String... labels) {
+        val bucketLabels = Arrays.copyOf(labels, labels.length + 2);
+        bucketLabels[labels.length] = "le";
+
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            bucketLabels[labels.length + 1] = (i < BOUNDS.length) ?
+                    Double.toString(BOUNDS[i] / NANOS_PER_SECOND) : "+Inf";
+            out.sample(name + "_bucket", cumulative, bucketLabels);
+        }
+        out.sample(name + "_sum", getSumNanos() / NANOS_PER_SECOND, labels);
+        out.sample(name + "_count", cumulative, labels);
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.bfg.eureka.dns;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP server exposing metrics in Prometheus text format on {@code /metrics}; runs on its own daemon thread,
+ * so that scraping never competes with DNS queries for netty event loops.
+ *
+ * @see DnsServerConfig#getMetricsPort()
+ */
+@Slf4j
+final class MetricsServer {
+    /**
+     * Metrics URI path.
+     */
+    static final String PATH = "/metrics";
+
+    private final InetSocketAddress address;
+    private final Collection<? extends MetricsSource> sources;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates new instance.
+     *
+     * @param address listening address
+     * @param sources metrics sources, rendered in iteration order on every request
+     */
+    MetricsServer(@NonNull InetSocketAddress address, @NonNull Collection<? extends MetricsSource> sources) {
+        this.address = address;
+        this.sources = sources;
+    }
+
+    /**
+     * Renders metrics of given sources.
+     *
+     * @param sources metrics sources
+     * @return metrics in Prometheus text format
+     */
+    static String render(@NonNull Iterable<? extends MetricsSource> sources) {
+        val out = new MetricsWriter();
+        sources.forEach(source -> source.writeMetrics(out));
+        return out.toString();
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @return bound address
+     * @throws IOException if listening address can't be bound.
+     */
+    synchronized InetSocketAddress start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Metrics server is already started.");
+        }
+
+        val httpServer = HttpServer.create(address, 0);
+        httpServer.createContext(PATH, this::handle);
+        executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("eureka-dns-metrics", true));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        server = httpServer;
+
+        log.info("serving metrics on http://{}:{}{}",
+                address.getHostString(), httpServer.getAddress().getPort(), PATH);
+        return httpServer.getAddress();
+    }
+
+    /**
+     * Stops the server.
+     */
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+            executor = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            val method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!PATH.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            val body = render(sources).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", MetricsWriter.CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (RuntimeException e) {
+            log.error("error rendering metrics: {}", e.getMessage(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
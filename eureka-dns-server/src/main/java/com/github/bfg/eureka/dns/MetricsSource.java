@@ -0,0 +1,15 @@
+package com.github.bfg.eureka.dns;
+
+/**
+ * Server component that exposes its own metrics.
+ *
+ * @see MetricsServer
+ */
+interface MetricsSource {
+    /**
+     * Writes metrics of this component.
+     *
+     * @param out metrics writer
+     */
+    void writeMetrics(MetricsWriter out);
+}
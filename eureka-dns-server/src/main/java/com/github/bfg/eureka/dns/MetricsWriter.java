@@ -0,0 +1,123 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+
+/**
+ * Writes metrics in Prometheus text exposition format.
+ *
+ * @see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus exposition formats</a>
+ */
+final class MetricsWriter {
+    /**
+     * Prefix of all metric names.
+     */
+    static final String PREFIX = "eureka_dns_";
+
+    /**
+     * Content type of written text.
+     */
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder sb;
+
+    /**
+     * Creates new instance.
+     */
+    MetricsWriter() {
+        this(new StringBuilder(4096));
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param sb string builder to write to
+     */
+    MetricsWriter(@NonNull StringBuilder sb) {
+        this.sb = sb;
+    }
+
+    /**
+     * Writes metric family header.
+     *
+     * @param name metric name without {@link #PREFIX}
+     * @param type metric type: {@code counter}, {@code gauge} or {@code histogram}
+     * @param help metric description
+     * @return reference to itself
+     */
+    MetricsWriter header(@NonNull String name, @NonNull String type, @NonNull String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes metric family header and single unlabeled sample.
+     *
+     * @param name  metric name without {@link #PREFIX}
+     * @param type  metric type
+     * @param help  metric description
+     * @param value sample value
+     * @return reference to itself
+     */
+    MetricsWriter metric(@NonNull String name, @NonNull String type, @NonNull String help, double value) {
+        return header(name, type, help).sample(name, value);
+    }
+
+    /**
+     * Writes single sample.
+     *
+     * @param name   metric name without {@link #PREFIX}
+     * @param value  sample value
+     * @param labels label names and values: {@code name1, value1, name2, value2...}
+     * @return reference to itself
+     */
+    MetricsWriter sample(@NonNull String name, double value, String... labels) {
+        sb.append(PREFIX).append(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"");
+                appendEscaped(labels[i + 1]);
+                sb.append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        appendValue(value);
+        sb.append('\n');
+        return this;
+    }
+
+    private void appendValue(double value) {
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else if (Double.isNaN(value)) {
+            sb.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            sb.append(value > 0 ? "+Inf" : "-Inf");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
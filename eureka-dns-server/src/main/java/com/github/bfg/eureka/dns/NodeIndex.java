@@ -0,0 +1,169 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable index of eureka instances, answering {@code <node>.node[.<datacenter>].<domain>} lookups of a single
+ * instance or host, so that clients that need to pin to a particular instance don't need to know its address.
+ *
+ * <p>Every instance is indexed under its normalized instance id, its normalized hostname and the first label of its
+ * hostname; normalized names are lowercased and every character that isn't allowed in a DNS label is replaced by a
+ * dash, for example instance {@code host-1.example.org:MYAPP:8080} can be looked up as
+ * {@code host-1-example-org-myapp-8080}, {@code host-1-example-org} or {@code host-1}. Name shared by multiple
+ * instances (for example instances of different services running on the same host) resolves to addresses and urls of
+ * all of them.</p>
+ *
+ * <p>Node entries are {@link ServiceEntry service entries} sharing address arrays and TXT record payloads with their
+ * services, so building the index doesn't encode anything and lookups are single hash map lookups regardless of
+ * registry size.</p>
+ *
+ * @see RegistryIndex
+ * @see <a href="https://www.consul.io/docs/agent/dns.html#node-lookups">Consul DNS interface :: Node lookups</a>
+ */
+final class NodeIndex {
+    /**
+     * Empty index.
+     */
+    static final NodeIndex EMPTY = new NodeIndex(Collections.emptyMap(), 0);
+
+    /**
+     * Maximum length of DNS label; longer names can't be looked up and are not indexed.
+     */
+    static final int MAX_LABEL_LENGTH = 63;
+
+    /**
+     * lowercased region name -&gt; normalized node name -&gt; node entry
+     */
+    private final Map<String, Map<String, ServiceEntry>> regions;
+
+    /**
+     * Number of indexed node names in all regions.
+     */
+    private final int size;
+
+    private NodeIndex(Map<String, Map<String, ServiceEntry>> regions, int size) {
+        this.regions = regions;
+        this.size = size;
+    }
+
+    /**
+     * Builds node index of given registry index.
+     *
+     * @param index registry index
+     * @return node index
+     */
+    static NodeIndex build(@NonNull RegistryIndex index) {
+        val regions = new HashMap<String, Map<String, ServiceEntry>>();
+        int size = 0;
+        for (Map.Entry<String, Map<String, ServiceEntry>> region : index.getRegions().entrySet()) {
+            val nodes = new LinkedHashMap<String, Node>();
+            // sorted, so that addresses of nodes shared by multiple services are always in the same order
+            for (ServiceEntry entry : new TreeMap<>(region.getValue()).values()) {
+                val ids = entry.getInstanceIds();
+                for (int i = 0; i < ids.length; i++) {
+                    val hostname = entry.getInstanceHostnames()[i];
+                    val dot = hostname.indexOf('.');
+                    add(nodes, normalize(ids[i]), entry, i);
+                    add(nodes, normalize(hostname), entry, i);
+                    add(nodes, normalize((dot < 0) ? hostname : hostname.substring(0, dot)), entry, i);
+                }
+            }
+
+            val entries = new HashMap<String, ServiceEntry>(nodes.size() * 2);
+            nodes.forEach((name, node) -> entries.put(name, node.toEntry(name)));
+            regions.put(region.getKey(), Collections.unmodifiableMap(entries));
+            size += entries.size();
+        }
+        return new NodeIndex(Collections.unmodifiableMap(regions), size);
+    }
+
+    private static void add(Map<String, Node> nodes, String name, ServiceEntry entry, int instance) {
+        if (!name.isEmpty()) {
+            nodes.computeIfAbsent(name, k -> new Node()).add(entry, instance);
+        }
+    }
+
+    /**
+     * Normalizes given instance id or hostname to a DNS label.
+     *
+     * @param str instance id or hostname
+     * @return lowercased string with characters that are not letters, digits or dashes replaced by dashes, empty
+     *         string if result is not a valid DNS label.
+     */
+    static String normalize(@NonNull String str) {
+        if (str.isEmpty() || str.length() > MAX_LABEL_LENGTH) {
+            return "";
+        }
+
+        val sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            val c = Character.toLowerCase(str.charAt(i));
+            sb.append(((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) ? c : '-');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Looks up node entry.
+     *
+     * @param nodeName lowercased node name
+     * @param region   lowercased region name, use {@code "" / empty string} for default region.
+     * @return node entry, {@code null} if there is no instance with status {@code UP} with given name.
+     */
+    ServiceEntry lookup(@NonNull String nodeName, @NonNull String region) {
+        val nodes = regions.get(region);
+        return (nodes == null) ? null : nodes.get(nodeName);
+    }
+
+    /**
+     * Returns node entries of all regions.
+     *
+     * @return unmodifiable map of lowercased region name -&gt; normalized node name -&gt; node entry
+     */
+    Map<String, Map<String, ServiceEntry>> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Returns number of indexed node names.
+     *
+     * @return number of node names in all regions
+     */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + size + ")";
+    }
+
+    /**
+     * Distinct addresses and urls of instances sharing a node name.
+     */
+    private static final class Node {
+        private final Map<ByteBuffer, byte[]> ipv4 = new LinkedHashMap<>();
+        private final Map<ByteBuffer, byte[]> ipv6 = new LinkedHashMap<>();
+        private final Map<String, byte[]> urls = new LinkedHashMap<>();
+
+        private void add(ServiceEntry entry, int instance) {
+            val addr = entry.getInstanceAddresses()[instance];
+            ((addr.length == 4) ? ipv4 : ipv6).putIfAbsent(ByteBuffer.wrap(addr), addr);
+
+            val urlIndex = entry.getInstanceUrlIndexes()[instance];
+            urls.putIfAbsent(entry.getUrls()[urlIndex], entry.getTxtRData()[urlIndex]);
+        }
+
+        private ServiceEntry toEntry(String name) {
+            return ServiceEntry.node(name, ipv4.values(), ipv6.values(), urls.keySet(), urls.values());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.handler.codec.dns.AbstractDnsOptPseudoRrRecord;
+
+/**
+ * EDNS0 OPT pseudo record without any options.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc6891#section-6.1">RFC 6891, section 6.1 :: OPT Record Definition</a>
+ */
+final class OptPseudoRecord extends AbstractDnsOptPseudoRrRecord {
+    /**
+     * Creates new instance.
+     *
+     * @param maxPayloadSize advertised UDP payload size
+     * @param extendedRcode  upper 8 bits of extended response code
+     * @param version        EDNS version
+     */
+    OptPseudoRecord(int maxPayloadSize, int extendedRcode, int version) {
+        super(maxPayloadSize, extendedRcode, version);
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.bfg.eureka.dns;
+
+/**
+ * What to do with queries that are shed because the server is overloaded.
+ *
+ * @see DnsServerConfig#getOverloadAction()
+ */
+public enum OverloadAction {
+    /**
+     * Query is answered with REFUSED response created from the query itself, so that clients can try another server
+     * right away.
+     */
+    REFUSE,
+
+    /**
+     * Query is silently dropped.
+     */
+    DROP
+}
@@ -0,0 +1,130 @@
+package com.github.bfg.eureka.dns;
+
+/**
+ * Mutable {@link QueryNameParser} result; holds label offsets into parsed query name, so that instances can be reused
+ * and names are materialized only when requested.
+ *
+ * @see QueryNameParser#parse(CharSequence, ParsedQueryName)
+ */
+final class ParsedQueryName {
+    private CharSequence name;
+
+    int serviceStart;
+    int serviceEnd;
+    int nodeStart;
+    int nodeEnd;
+    int tagStart;
+    int tagEnd;
+    int datacenterStart;
+    int datacenterEnd;
+
+    /**
+     * Resets internal state.
+     *
+     * @param name query name that is going to be parsed.
+     * @return reference to itself.
+     */
+    ParsedQueryName reset(CharSequence name) {
+        this.name = name;
+        this.serviceStart = this.serviceEnd = 0;
+        this.nodeStart = this.nodeEnd = 0;
+        this.tagStart = this.tagEnd = 0;
+        this.datacenterStart = this.datacenterEnd = 0;
+        return this;
+    }
+
+    /**
+     * Returns parsed query name.
+     *
+     * @return query name, {@code null} if nothing was parsed yet.
+     */
+    CharSequence name() {
+        return name;
+    }
+
+    /**
+     * Tells whether query name contains service name.
+     *
+     * @return true/false
+     */
+    boolean hasServiceName() {
+        return serviceEnd > serviceStart;
+    }
+
+    /**
+     * Tells whether query name is a node name ({@code <node>.node[.<datacenter>].<domain>}).
+     *
+     * @return true/false
+     */
+    boolean hasNodeName() {
+        return nodeEnd > nodeStart;
+    }
+
+    /**
+     * Tells whether query name contains RFC2782 tag/protocol label.
+     *
+     * @return true/false
+     */
+    boolean hasTag() {
+        return tagEnd > tagStart;
+    }
+
+    /**
+     * Tells whether query name contains datacenter.
+     *
+     * @return true/false
+     */
+    boolean hasDatacenter() {
+        return datacenterEnd > datacenterStart;
+    }
+
+    /**
+     * Returns lowercased service name.
+     *
+     * @return service name, empty string if query name doesn't contain service name.
+     */
+    String serviceName() {
+        return substring(serviceStart, serviceEnd);
+    }
+
+    /**
+     * Returns lowercased node name.
+     *
+     * @return node name, empty string if query name doesn't contain node name.
+     */
+    String nodeName() {
+        return substring(nodeStart, nodeEnd);
+    }
+
+    /**
+     * Returns lowercased RFC2782 tag/protocol without leading underscore.
+     *
+     * @return tag, empty string if query name doesn't contain tag.
+     */
+    String tag() {
+        return substring(tagStart, tagEnd);
+    }
+
+    /**
+     * Returns lowercased datacenter name.
+     *
+     * @return datacenter name, empty string if query name doesn't contain datacenter.
+     */
+    String datacenter() {
+        return substring(datacenterStart, datacenterEnd);
+    }
+
+    private String substring(int start, int end) {
+        if (end <= start || name == null) {
+            return "";
+        }
+        return name.subSequence(start, end).toString().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+                "(service=" + serviceName() + ", node=" + nodeName() + ", tag=" + tag() +
+                ", datacenter=" + datacenter() + ")";
+    }
+}
@@ -0,0 +1,608 @@
+package com.github.bfg.eureka.dns;
+
+import com.google.common.net.InetAddresses;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Asynchronous query log: event loop threads copy answered queries as fixed-size records to a lock-free ring buffer,
+ * which is drained by a background thread that formats them and writes them to a rotated file or to SLF4J logger.
+ * Queries are dropped and counted when the buffer is full, event loops never wait for the log to be written.
+ *
+ * <p>Binary log file starts with {@code EDQL} magic and a format version byte, followed by records with these
+ * big-endian fields:</p>
+ * <ul>
+ * <li>{@code u16} length of the rest of the record</li>
+ * <li>{@code i64} timestamp in milliseconds since epoch</li>
+ * <li>{@code u8} flags: {@code 0x01} query was received over TCP, {@code 0x02} response was truncated</li>
+ * <li>{@code u8} client address length (4 or 16), followed by the address</li>
+ * <li>{@code u16} client port</li>
+ * <li>{@code u16} question type</li>
+ * <li>{@code u8} response code</li>
+ * <li>{@code u16} number of answers</li>
+ * <li>{@code u8} question name length, followed by the name in ASCII</li>
+ * </ul>
+ *
+ * @see DnsServerConfig#isLogQueries()
+ */
+@Slf4j
+final class QueryLog implements MetricsSource {
+    /**
+     * Binary log file magic.
+     */
+    static final byte[] BINARY_MAGIC = {'E', 'D', 'Q', 'L'};
+
+    /**
+     * Binary log format version.
+     */
+    static final int BINARY_VERSION = 1;
+
+    /**
+     * Record flag: query was received over TCP.
+     */
+    static final int FLAG_TCP = 0x01;
+
+    /**
+     * Record flag: response was truncated.
+     */
+    static final int FLAG_TRUNCATED = 0x02;
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // ring buffer record layout
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int ADDRESS_LENGTH_OFFSET = 9;
+    private static final int ADDRESS_OFFSET = 10;
+    private static final int PORT_OFFSET = 26;
+    private static final int TYPE_OFFSET = 28;
+    private static final int CODE_OFFSET = 30;
+    private static final int ANSWERS_OFFSET = 31;
+    private static final int NAME_LENGTH_OFFSET = 33;
+    private static final int NAME_OFFSET = 34;
+
+    /**
+     * Size of ring buffer record.
+     */
+    static final int RECORD_SIZE = NAME_OFFSET + MAX_NAME_LENGTH;
+
+    /**
+     * Maximum number of buffered records.
+     */
+    static final int MAX_BUFFER_SIZE = 1 << 20;
+
+    private static final int DRAIN_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final double sampleRate;
+    private final LongSupplier clock;
+    private final Sink sink;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config server configuration
+     */
+    QueryLog(@NonNull DnsServerConfig config) {
+        this(config.getQueryLogBufferSize(), config.getQueryLogSampleRate(), System::currentTimeMillis,
+                createSink(config));
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param bufferSize number of buffered records, rounded up to the nearest power of two
+     * @param sampleRate fraction of queries that are logged
+     * @param clock      wall clock in milliseconds
+     * @param sink       where records are written
+     */
+    QueryLog(int bufferSize, double sampleRate, @NonNull LongSupplier clock, @NonNull Sink sink) {
+        this.capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+        this.mask = capacity - 1;
+        this.records = ByteBuffer.allocate(capacity * RECORD_SIZE);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.sampleRate = sampleRate;
+        this.clock = clock;
+        this.sink = sink;
+    }
+
+    private static Sink createSink(DnsServerConfig config) {
+        val file = config.getQueryLogFile();
+        if (file == null || file.trim().isEmpty()) {
+            return new LoggerSink();
+        }
+        return new FileSink(Paths.get(file.trim()), config.getQueryLogFormat(),
+                config.getQueryLogMaxFileSize(), config.getQueryLogMaxFiles());
+    }
+
+    /**
+     * Starts background thread writing the log.
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new DefaultThreadFactory("eureka-dns-query-log", true).newThread(this::run);
+        thread.start();
+        log.info("started query log: {}", sink);
+    }
+
+    /**
+     * Stops background thread after writing all buffered records.
+     */
+    synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Records answered query; query is dropped if the buffer is full.
+     *
+     * @param client    client address
+     * @param tcp       whether query was received over TCP
+     * @param question  query question, may be {@code null}
+     * @param code      response code
+     * @param answers   number of answers
+     * @param truncated whether response was truncated
+     */
+    void record(@NonNull InetSocketAddress client, boolean tcp, DnsRecord question, @NonNull DnsResponseCode code,
+                int answers, boolean truncated) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        // claim a slot
+        long pos;
+        int idx;
+        while (true) {
+            pos = tail.get();
+            idx = (int) (pos & mask);
+            val seq = sequences.get(idx);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                dropped.increment();
+                return;
+            }
+        }
+
+        val offset = idx * RECORD_SIZE;
+        records.putLong(offset + TIMESTAMP_OFFSET, clock.getAsLong());
+        records.put(offset + FLAGS_OFFSET, (byte) ((tcp ? FLAG_TCP : 0) | (truncated ? FLAG_TRUNCATED : 0)));
+        putAddress(offset, client.getAddress());
+        records.putShort(offset + PORT_OFFSET, (short) client.getPort());
+        records.putShort(offset + TYPE_OFFSET, (short) ((question == null) ? 0 : question.type().intValue()));
+        records.put(offset + CODE_OFFSET, (byte) code.intValue());
+        records.putShort(offset + ANSWERS_OFFSET, (short) answers);
+        putName(offset, (question == null) ? "" : question.name());
+
+        // publish the slot
+        sequences.lazySet(idx, pos + 1);
+    }
+
+    private void putAddress(int offset, InetAddress address) {
+        val bytes = (address == null) ? new byte[0] : address.getAddress();
+        records.put(offset + ADDRESS_LENGTH_OFFSET, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            records.put(offset + ADDRESS_OFFSET + i, bytes[i]);
+        }
+    }
+
+    private void putName(int offset, String name) {
+        val len = Math.min(name.length(), MAX_NAME_LENGTH);
+        records.put(offset + NAME_LENGTH_OFFSET, (byte) len);
+        for (int i = 0; i < len; i++) {
+            records.put(offset + NAME_OFFSET + i, (byte) name.charAt(i));
+        }
+    }
+
+    /**
+     * Returns number of written records.
+     *
+     * @return number of records
+     */
+    long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Returns number of queries that were not logged because the buffer was full.
+     *
+     * @return number of dropped queries
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns number of buffered queries that were not logged because the sink failed to write them.
+     *
+     * @return number of write errors
+     */
+    long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("query_log_records_total", "counter", "Number of queries written to query log.", getWritten());
+        out.metric("query_log_dropped_total", "counter",
+                "Number of queries not logged because query log buffer was full.", getDropped());
+        out.metric("query_log_errors_total", "counter",
+                "Number of queries not logged because query log couldn't be written.", getErrors());
+    }
+
+    /**
+     * Returns buffer capacity.
+     *
+     * @return number of records
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    flush();
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            while (drain() > 0) {
+                // write out everything that was buffered before the log was stopped
+            }
+            flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes buffered records; must be invoked by a single thread only.
+     *
+     * @return number of written records
+     */
+    int drain() {
+        int n = 0;
+        while (n < DRAIN_BATCH_SIZE) {
+            val idx = (int) (head & mask);
+            if (sequences.get(idx) != head + 1) {
+                break;
+            }
+
+            try {
+                sink.write(readRecord(idx * RECORD_SIZE));
+                written.increment();
+            } catch (Exception e) {
+                errors.increment();
+                log.warn("error writing query log: {}", e.getMessage());
+            }
+
+            // release the slot
+            sequences.lazySet(idx, head + capacity);
+            head++;
+            n++;
+        }
+        return n;
+    }
+
+    private Record readRecord(int offset) {
+        val record = new Record();
+        record.timestamp = records.getLong(offset + TIMESTAMP_OFFSET);
+        record.flags = records.get(offset + FLAGS_OFFSET) & 0xff;
+        record.address = new byte[records.get(offset + ADDRESS_LENGTH_OFFSET) & 0xff];
+        for (int i = 0; i < record.address.length; i++) {
+            record.address[i] = records.get(offset + ADDRESS_OFFSET + i);
+        }
+        record.port = records.getShort(offset + PORT_OFFSET) & 0xffff;
+        record.type = records.getShort(offset + TYPE_OFFSET) & 0xffff;
+        record.code = records.get(offset + CODE_OFFSET) & 0xff;
+        record.answers = records.getShort(offset + ANSWERS_OFFSET) & 0xffff;
+        record.name = new byte[records.get(offset + NAME_LENGTH_OFFSET) & 0xff];
+        for (int i = 0; i < record.name.length; i++) {
+            record.name[i] = records.get(offset + NAME_OFFSET + i);
+        }
+        return record;
+    }
+
+    private void flush() {
+        try {
+            sink.flush();
+        } catch (Exception e) {
+            log.warn("error flushing query log: {}", e.getMessage());
+        }
+    }
+
+    private void close() {
+        try {
+            sink.close();
+        } catch (Exception e) {
+            log.warn("error closing query log: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Query log record, as read from the ring buffer.
+     */
+    static final class Record {
+        long timestamp;
+        int flags;
+        byte[] address;
+        int port;
+        int type;
+        int code;
+        int answers;
+        byte[] name;
+
+        /**
+         * Formats record as a single line of text, without timestamp.
+         *
+         * @param sb string builder to append to
+         * @return given string builder
+         */
+        StringBuilder format(@NonNull StringBuilder sb) {
+            sb.append("query from=[").append(formatAddress()).append("]:").append(port)
+                    .append(" proto=").append(((flags & FLAG_TCP) != 0) ? "tcp" : "udp")
+                    .append(" type=").append(DnsRecordType.valueOf(type))
+                    .append(" name=");
+            for (byte b : name) {
+                sb.append((char) (b & 0xff));
+            }
+            sb.append(" status=").append(DnsResponseCode.valueOf(code))
+                    .append(", answers=").append(answers);
+            if ((flags & FLAG_TRUNCATED) != 0) {
+                sb.append(", truncated");
+            }
+            return sb;
+        }
+
+        private String formatAddress() {
+            try {
+                return InetAddresses.toAddrString(InetAddress.getByAddress(address));
+            } catch (UnknownHostException e) {
+                return "";
+            }
+        }
+    }
+
+    /**
+     * Destination of query log records; invoked only by query log thread.
+     */
+    interface Sink {
+        /**
+         * Writes single record.
+         *
+         * @param record record
+         * @throws IOException on write errors
+         */
+        void write(Record record) throws IOException;
+
+        /**
+         * Flushes written records; invoked when there are no more buffered records.
+         *
+         * @throws IOException on write errors
+         */
+        void flush() throws IOException;
+
+        /**
+         * Closes the sink.
+         *
+         * @throws IOException on write errors
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Writes records as text lines to SLF4J logger.
+     */
+    static final class LoggerSink implements Sink {
+        private final StringBuilder sb = new StringBuilder(256);
+
+        @Override
+        public void write(Record record) {
+            sb.setLength(0);
+            log.info(record.format(sb).toString());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "slf4j logger " + log.getName();
+        }
+    }
+
+    /**
+     * Writes records to a file that is rotated when it exceeds maximum size: {@code file} is renamed to
+     * {@code file.1}, {@code file.1} to {@code file.2} and so on, up to maximum number of kept files.
+     */
+    static final class FileSink implements Sink {
+        private final Path path;
+        private final QueryLogFormat format;
+        private final long maxFileSize;
+        private final int maxFiles;
+        private final StringBuilder sb = new StringBuilder(256);
+        private final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE + 16);
+
+        private OutputStream out;
+        private long size;
+
+        /**
+         * Creates new instance.
+         *
+         * @param path        log file
+         * @param format      log format
+         * @param maxFileSize maximum file size in bytes
+         * @param maxFiles    number of rotated files to keep
+         */
+        FileSink(@NonNull Path path, @NonNull QueryLogFormat format, long maxFileSize, int maxFiles) {
+            this.path = path;
+            this.format = format;
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+        }
+
+        @Override
+        public void write(Record record) throws IOException {
+            val length = (format == QueryLogFormat.BINARY) ? encodeBinary(record) : encodeText(record);
+            if (out == null) {
+                open();
+            } else if (size + length > maxFileSize) {
+                rotate();
+            }
+
+            if (format == QueryLogFormat.BINARY) {
+                out.write(buf.array(), 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    out.write(sb.charAt(i));
+                }
+            }
+            size += length;
+        }
+
+        private int encodeText(Record record) {
+            sb.setLength(0);
+            sb.append(Instant.ofEpochMilli(record.timestamp)).append(' ');
+            record.format(sb).append('\n');
+            return sb.length();
+        }
+
+        private int encodeBinary(Record record) {
+            buf.clear();
+            buf.putShort((short) 0);
+            buf.putLong(record.timestamp);
+            buf.put((byte) record.flags);
+            buf.put((byte) record.address.length).put(record.address);
+            buf.putShort((short) record.port);
+            buf.putShort((short) record.type);
+            buf.put((byte) record.code);
+            buf.putShort((short) record.answers);
+            buf.put((byte) record.name.length).put(record.name);
+            buf.putShort(0, (short) (buf.position() - 2));
+            return buf.position();
+        }
+
+        private void open() throws IOException {
+            val parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            size = Files.exists(path) ? Files.size(path) : 0;
+            out = new BufferedOutputStream(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), 64 * 1024);
+            if (size == 0 && format == QueryLogFormat.BINARY) {
+                out.write(BINARY_MAGIC);
+                out.write(BINARY_VERSION);
+                size = BINARY_MAGIC.length + 1;
+            }
+        }
+
+        private void rotate() throws IOException {
+            close();
+            if (maxFiles > 0) {
+                Files.deleteIfExists(rotated(maxFiles));
+                for (int i = maxFiles - 1; i >= 1; i--) {
+                    val file = rotated(i);
+                    if (Files.exists(file)) {
+                        Files.move(file, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            open();
+        }
+
+        private Path rotated(int idx) {
+            return path.resolveSibling(path.getFileName() + "." + idx);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                try {
+                    out.close();
+                } finally {
+                    out = null;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return format.name().toLowerCase() + " file " + path + " (max " + maxFileSize + " bytes, " +
+                    maxFiles + " rotated files)";
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.bfg.eureka.dns;
+
+/**
+ * Format of query log file.
+ *
+ * @see DnsServerConfig#getQueryLogFile()
+ */
+public enum QueryLogFormat {
+    /**
+     * One line of text per query.
+     */
+    TEXT,
+
+    /**
+     * Compact binary records, described in {@link QueryLog}.
+     */
+    BINARY
+}
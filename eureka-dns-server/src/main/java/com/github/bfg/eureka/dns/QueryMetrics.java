@@ -0,0 +1,284 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.netty.handler.codec.dns.DnsRecordType.*;
+
+/**
+ * Lock-free per-query instrumentation: response counts by question type and response code, latency histograms by
+ * question type and answered query counts by service and datacenter.
+ *
+ * <p>Recording never allocates once all label combinations have been seen; service counters are looked up using
+ * per-thread reusable key that references parsed query name.</p>
+ */
+final class QueryMetrics implements MetricsSource {
+    /**
+     * Question types with their own counters, all other types are accounted as {@code OTHER}.
+     */
+    private static final DnsRecordType[] TYPES = {A, AAAA, ANY, TXT, SRV, SOA, NS, DS};
+
+    /**
+     * Response code labels indexed by response code; extended response codes other than {@code BADVERS} are
+     * accounted as {@code OTHER}.
+     */
+    private static final String[] RESPONSE_CODES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED", "YXDOMAIN", "YXRRSET",
+            "NXRRSET", "NOTAUTH", "NOTZONE", "RCODE11", "RCODE12", "RCODE13", "RCODE14", "RCODE15",
+            "BADVERS", "OTHER"
+    };
+
+    /**
+     * Maximum number of distinct service/datacenter counters.
+     */
+    static final int MAX_SERVICES = 10_000;
+
+    private static final FastThreadLocal<ServiceKey> LOOKUP_KEY = new FastThreadLocal<ServiceKey>() {
+        @Override
+        protected ServiceKey initialValue() {
+            return new ServiceKey();
+        }
+    };
+
+    private final LongAdder[][] responses = new LongAdder[TYPES.length + 1][RESPONSE_CODES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[TYPES.length + 1];
+    private final ConcurrentMap<ServiceKey, LongAdder> serviceQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates new instance.
+     */
+    QueryMetrics() {
+        for (int i = 0; i < responses.length; i++) {
+            for (int j = 0; j < RESPONSE_CODES.length; j++) {
+                responses[i][j] = new LongAdder();
+            }
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records answered query.
+     *
+     * @param type         question type, {@code null} if query didn't contain a question
+     * @param code         response code, including upper bits of extended response code
+     * @param latencyNanos time it took to answer the query
+     */
+    void record(DnsRecordType type, @NonNull DnsResponseCode code, long latencyNanos) {
+        val typeIdx = typeIndex(type);
+        responses[typeIdx][codeIndex(code)].increment();
+        latencies[typeIdx].record(latencyNanos);
+    }
+
+    /**
+     * Records successfully answered service query.
+     *
+     * @param parsed parsed query name
+     */
+    void recordService(@NonNull ParsedQueryName parsed) {
+        val counter = serviceQueries.get(LOOKUP_KEY.get().set(parsed));
+        if (counter != null) {
+            counter.increment();
+        } else if (serviceQueries.size() < MAX_SERVICES) {
+            serviceQueries.computeIfAbsent(ServiceKey.of(parsed), key -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Returns number of recorded responses.
+     *
+     * @param type question type
+     * @param code response code
+     * @return number of responses
+     */
+    long getResponses(DnsRecordType type, @NonNull DnsResponseCode code) {
+        return responses[typeIndex(type)][codeIndex(code)].sum();
+    }
+
+    /**
+     * Returns number of successfully answered queries for given service.
+     *
+     * @param service    service name
+     * @param datacenter datacenter name, empty string for default datacenter
+     * @return number of queries
+     */
+    long getServiceQueries(@NonNull String service, @NonNull String datacenter) {
+        val counter = serviceQueries.get(new ServiceKey(service + "." + datacenter,
+                0, service.length(), service.length() + 1, service.length() + 1 + datacenter.length()));
+        return (counter == null) ? 0 : counter.sum();
+    }
+
+    /**
+     * Returns latency histogram of given question type.
+     *
+     * @param type question type
+     * @return latency histogram
+     */
+    LatencyHistogram getLatencies(DnsRecordType type) {
+        return latencies[typeIndex(type)];
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.header("responses_total", "counter", "Number of responses by question type and response code.");
+        for (int i = 0; i < responses.length; i++) {
+            for (int j = 0; j < RESPONSE_CODES.length; j++) {
+                val value = responses[i][j].sum();
+                if (value > 0) {
+                    out.sample("responses_total", value, "type", typeName(i), "rcode", RESPONSE_CODES[j]);
+                }
+            }
+        }
+
+        out.header("query_duration_seconds", "histogram",
+                "Time from query decoding until response was written to the channel, by question type; " +
+                        "excludes time the flush was deferred by flush consolidation.");
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i].getCount() > 0) {
+                latencies[i].write(out, "query_duration_seconds", "type", typeName(i));
+            }
+        }
+
+        // sorted output is easier to read
+        val sorted = new TreeMap<String, ServiceKey>();
+        serviceQueries.keySet().forEach(key -> sorted.put(key.toString(), key));
+        out.header("service_queries_total", "counter",
+                "Number of successfully answered service queries by service and datacenter.");
+        for (Map.Entry<String, ServiceKey> e : sorted.entrySet()) {
+            val key = e.getValue();
+            out.sample("service_queries_total", serviceQueries.get(key).sum(),
+                    "service", key.service(), "datacenter", key.datacenter());
+        }
+    }
+
+    private static int typeIndex(DnsRecordType type) {
+        if (type != null) {
+            val value = type.intValue();
+            for (int i = 0; i < TYPES.length; i++) {
+                if (TYPES[i].intValue() == value) {
+                    return i;
+                }
+            }
+        }
+        return TYPES.length;
+    }
+
+    private static int codeIndex(DnsResponseCode code) {
+        return Math.min(code.intValue(), RESPONSE_CODES.length - 1);
+    }
+
+    private static String typeName(int idx) {
+        return (idx < TYPES.length) ? TYPES[idx].name() : "OTHER";
+    }
+
+    /**
+     * Service counter key; compares service and datacenter regions of referenced name case-insensitively. Lookup keys
+     * reference query name being answered, stored keys own lowercased copy of it.
+     */
+    private static final class ServiceKey {
+        private CharSequence name;
+        private int serviceStart;
+        private int serviceEnd;
+        private int datacenterStart;
+        private int datacenterEnd;
+        private int hash;
+
+        ServiceKey() {
+        }
+
+        ServiceKey(CharSequence name, int serviceStart, int serviceEnd, int datacenterStart, int datacenterEnd) {
+            set(name, serviceStart, serviceEnd, datacenterStart, datacenterEnd);
+        }
+
+        /**
+         * Creates stored key from parsed query name.
+         */
+        static ServiceKey of(ParsedQueryName parsed) {
+            val service = parsed.serviceName();
+            val datacenter = parsed.datacenter();
+            val start = service.length() + 1;
+            return new ServiceKey(service + "." + datacenter, 0, service.length(), start, start + datacenter.length());
+        }
+
+        ServiceKey set(ParsedQueryName parsed) {
+            return set(parsed.name(), parsed.serviceStart, parsed.serviceEnd,
+                    parsed.datacenterStart, parsed.datacenterEnd);
+        }
+
+        private ServiceKey set(CharSequence name, int serviceStart, int serviceEnd,
+                               int datacenterStart, int datacenterEnd) {
+            this.name = name;
+            this.serviceStart = serviceStart;
+            this.serviceEnd = serviceEnd;
+            this.datacenterStart = datacenterStart;
+            this.datacenterEnd = Math.max(datacenterStart, datacenterEnd);
+
+            int h = hash(1, serviceStart, serviceEnd);
+            this.hash = hash(31 * h + '.', datacenterStart, this.datacenterEnd);
+            return this;
+        }
+
+        String service() {
+            return name.subSequence(serviceStart, serviceEnd).toString();
+        }
+
+        String datacenter() {
+            return name.subSequence(datacenterStart, datacenterEnd).toString();
+        }
+
+        private int hash(int h, int start, int end) {
+            for (int i = start; i < end; i++) {
+                h = 31 * h + toLowerCase(name.charAt(i));
+            }
+            return h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ServiceKey)) {
+                return false;
+            }
+            val other = (ServiceKey) o;
+            return hash == other.hash &&
+                    regionEquals(serviceStart, serviceEnd, other, other.serviceStart, other.serviceEnd) &&
+                    regionEquals(datacenterStart, datacenterEnd, other, other.datacenterStart, other.datacenterEnd);
+        }
+
+        private boolean regionEquals(int start, int end, ServiceKey other, int otherStart, int otherEnd) {
+            if (end - start != otherEnd - otherStart) {
+                return false;
+            }
+            for (int i = start, j = otherStart; i < end; i++, j++) {
+                if (toLowerCase(name.charAt(i)) != toLowerCase(other.name.charAt(j))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static char toLowerCase(char c) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        @Override
+        public String toString() {
+            return service() + "/" + datacenter();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * DNS query name tokenizer, which walks query name exactly once without creating any intermediate objects.
+ *
+ * <p>Recognized query name forms (trailing dot is optional, {@code connect} is an alias for {@code service}):</p>
+ * <ul>
+ *     <li>{@code <service>.service.<domain>}</li>
+ *     <li>{@code _<service>._<tag>.service.<domain>}</li>
+ *     <li>{@code <service>.service.<datacenter>.<domain>}</li>
+ *     <li>{@code _<service>._<tag>.service.<datacenter>.<domain>}</li>
+ *     <li>{@code <node>.node.<domain>}</li>
+ *     <li>{@code <node>.node.<datacenter>.<domain>}</li>
+ * </ul>
+ *
+ * @see ParsedQueryName
+ */
+final class QueryNameParser {
+    private static final String SERVICE_LABEL = "service";
+    private static final String CONNECT_LABEL = "connect";
+    private static final String NODE_LABEL = "node";
+
+    /**
+     * Maximum number of labels that precede domain name in a valid query name.
+     */
+    private static final int MAX_LABELS = 4;
+
+    /**
+     * Eureka top level domain, without prefixing/suffixing dot.
+     */
+    private final String domain;
+
+    /**
+     * Creates new instance.
+     *
+     * @param domain eureka top level domain, without prefixing/suffixing dot.
+     */
+    QueryNameParser(@NonNull String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Tells whether given name is equal to or is a subdomain of eureka domain; comparison is case-insensitive and name
+     * must be fully qualified (end with a dot).
+     *
+     * @param name dns name
+     * @return true/false
+     */
+    boolean isInZone(String name) {
+        return isInZone(name, domain);
+    }
+
+    /**
+     * Tells whether given name is equal to or is a subdomain of given domain; comparison is case-insensitive and name
+     * must be fully qualified (end with a dot).
+     *
+     * @param name   dns name
+     * @param domain domain name, without prefixing/suffixing dot.
+     * @return true/false
+     */
+    static boolean isInZone(String name, @NonNull String domain) {
+        if (name == null) {
+            return false;
+        }
+
+        val domainLen = domain.length();
+        val nameLen = name.length();
+        if (nameLen < domainLen + 1 || name.charAt(nameLen - 1) != '.') {
+            return false;
+        }
+
+        val domainStart = nameLen - 1 - domainLen;
+        if (!name.regionMatches(true, domainStart, domain, 0, domainLen)) {
+            return false;
+        }
+        return domainStart == 0 || name.charAt(domainStart - 1) == '.';
+    }
+
+    /**
+     * Parses given query name.
+     *
+     * @param name   query name
+     * @param result parse result holder, is reset before parsing starts
+     * @return true if query name was successfully parsed, otherwise false.
+     */
+    boolean parse(@NonNull CharSequence name, @NonNull ParsedQueryName result) {
+        result.reset(name);
+        if (doParse(name, result)) {
+            return true;
+        }
+
+        // don't leave partial results behind
+        result.reset(name);
+        return false;
+    }
+
+    private boolean doParse(CharSequence name, ParsedQueryName result) {
+        // trim whitespace
+        int start = 0;
+        int end = name.length();
+        while (start < end && Character.isWhitespace(name.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(name.charAt(end - 1))) {
+            end--;
+        }
+
+        // optional trailing dot
+        if (end > start && name.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        // domain suffix, preceded by a dot
+        val domainStart = end - domain.length();
+        if (domainStart - 1 <= start || name.charAt(domainStart - 1) != '.' ||
+                !regionMatches(name, domainStart, domain)) {
+            return false;
+        }
+        end = domainStart - 1;
+
+        // split remaining labels; label offsets are collected as packed start/end ints
+        int numLabels = 0;
+        int labelStart = start;
+        long l0 = 0;
+        long l1 = 0;
+        long l2 = 0;
+        long l3 = 0;
+        for (int i = start; i <= end; i++) {
+            if (i < end && name.charAt(i) != '.') {
+                continue;
+            }
+            if (i == labelStart || numLabels == MAX_LABELS) {
+                return false;
+            }
+
+            val label = pack(labelStart, i);
+            if (numLabels == 0) {
+                l0 = label;
+            } else if (numLabels == 1) {
+                l1 = label;
+            } else if (numLabels == 2) {
+                l2 = label;
+            } else {
+                l3 = label;
+            }
+            numLabels++;
+            labelStart = i + 1;
+        }
+
+        if (numLabels == 2) {
+            return setServiceOrNode(name, l0, l1, result);
+        } else if (numLabels == 3) {
+            // without datacenter, but with tag
+            if (isTag(name, l1) && isServiceKeyword(name, l2)) {
+                return setService(name, l0, result) && setTag(l1, result);
+            }
+
+            // with datacenter
+            return setServiceOrNode(name, l0, l1, result) && setDatacenter(name, l2, result);
+        } else if (numLabels == 4) {
+            return isTag(name, l1) && isServiceKeyword(name, l2) &&
+                    setService(name, l0, result) && setTag(l1, result) && setDatacenter(name, l3, result);
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets service or node name, depending on the keyword label that follows it.
+     */
+    private boolean setServiceOrNode(CharSequence name, long label, long keyword, ParsedQueryName result) {
+        if (isServiceKeyword(name, keyword)) {
+            return setService(name, label, result);
+        }
+        return isNodeKeyword(name, keyword) && setNode(name, label, result);
+    }
+
+    private boolean setService(CharSequence name, long label, ParsedQueryName result) {
+        int start = labelStart(label);
+        val end = labelEnd(label);
+
+        // optional leading underscore
+        if (end - start > 1 && name.charAt(start) == '_') {
+            start++;
+        }
+        if (!isWordLabel(name, start, end, true)) {
+            return false;
+        }
+
+        result.serviceStart = start;
+        result.serviceEnd = end;
+        return true;
+    }
+
+    private boolean setNode(CharSequence name, long label, ParsedQueryName result) {
+        val start = labelStart(label);
+        val end = labelEnd(label);
+        if (!isWordLabel(name, start, end, true)) {
+            return false;
+        }
+
+        result.nodeStart = start;
+        result.nodeEnd = end;
+        return true;
+    }
+
+    private boolean setTag(long label, ParsedQueryName result) {
+        result.tagStart = labelStart(label) + 1;
+        result.tagEnd = labelEnd(label);
+        return true;
+    }
+
+    private boolean setDatacenter(CharSequence name, long label, ParsedQueryName result) {
+        val start = labelStart(label);
+        val end = labelEnd(label);
+        if (!isWordLabel(name, start, end, true)) {
+            return false;
+        }
+
+        result.datacenterStart = start;
+        result.datacenterEnd = end;
+        return true;
+    }
+
+    /**
+     * Tells whether label is RFC2782 protocol/tag label ({@code _tcp}).
+     */
+    private boolean isTag(CharSequence name, long label) {
+        val start = labelStart(label);
+        val end = labelEnd(label);
+        return end - start > 1 && name.charAt(start) == '_' && isWordLabel(name, start + 1, end, false);
+    }
+
+    private boolean isServiceKeyword(CharSequence name, long label) {
+        val start = labelStart(label);
+        val len = labelEnd(label) - start;
+        return len == SERVICE_LABEL.length() &&
+                (regionMatches(name, start, SERVICE_LABEL) || regionMatches(name, start, CONNECT_LABEL));
+    }
+
+    private boolean isNodeKeyword(CharSequence name, long label) {
+        val start = labelStart(label);
+        return labelEnd(label) - start == NODE_LABEL.length() && regionMatches(name, start, NODE_LABEL);
+    }
+
+    /**
+     * Tells whether all chars in given range are word characters ({@code [a-zA-Z0-9_]}) or dashes.
+     */
+    private static boolean isWordLabel(CharSequence name, int start, int end, boolean allowDash) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            val c = name.charAt(i);
+            val valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' ||
+                    (allowDash && c == '-');
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Case-insensitively compares region of given name starting at offset with given lowercase string.
+     */
+    private static boolean regionMatches(CharSequence name, int offset, String str) {
+        val len = str.length();
+        if (offset < 0 || offset + len > name.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (toLowerCase(name.charAt(offset + i)) != toLowerCase(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static long pack(int start, int end) {
+        return ((long) start << 32) | (end & 0xffffffffL);
+    }
+
+    private static int labelStart(long label) {
+        return (int) (label >>> 32);
+    }
+
+    private static int labelEnd(long label) {
+        return (int) label;
+    }
+}
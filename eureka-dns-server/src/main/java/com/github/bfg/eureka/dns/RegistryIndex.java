@@ -0,0 +1,274 @@
+package com.github.bfg.eureka.dns;
+
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of eureka registry, indexed by region and service name.
+ *
+ * <p>Index is built incrementally: service entries of applications whose instances didn't change since previous
+ * index was built are reused as-is.</p>
+ *
+ * @see RegistryIndexManager
+ * @see ServiceEntry
+ */
+final class RegistryIndex {
+    /**
+     * Region key of applications returned by {@link EurekaClient#getApplications()}.
+     */
+    static final String DEFAULT_REGION = "";
+
+    /**
+     * Empty index.
+     */
+    static final RegistryIndex EMPTY = new RegistryIndex(Collections.emptyMap(), 0, 0, 0);
+
+    /**
+     * lowercased region name -&gt; lowercased service name -&gt; service entry; entries without any instances are
+     * retained as well, so that they don't need to be rebuilt every time.
+     */
+    private final Map<String, Map<String, ServiceEntry>> regions;
+
+    /**
+     * Number of applications in all regions.
+     */
+    private final int numApps;
+
+    /**
+     * Number of applications whose service entries were (re)built while building this index.
+     */
+    private final int numAppsRebuilt;
+
+    /**
+     * Index version, incremented every time registry changes.
+     */
+    private final long version;
+
+    /**
+     * Filter of services that have instances with status {@code UP}.
+     */
+    private final ServiceNameFilter serviceFilter;
+
+    private RegistryIndex(Map<String, Map<String, ServiceEntry>> regions, int numApps, int numAppsRebuilt,
+                          long version) {
+        this.regions = regions;
+        this.numApps = numApps;
+        this.numAppsRebuilt = numAppsRebuilt;
+        this.version = version;
+        this.serviceFilter = buildServiceFilter(regions);
+    }
+
+    /**
+     * Builds registry index from current eureka client registry.
+     *
+     * @param eurekaClient eureka client
+     * @return registry index
+     */
+    static RegistryIndex build(@NonNull EurekaClient eurekaClient) {
+        return build(eurekaClient, EMPTY);
+    }
+
+    /**
+     * Builds registry index from current eureka client registry, reusing unchanged service entries from previous
+     * index.
+     *
+     * @param eurekaClient eureka client
+     * @param previous     previous index
+     * @return {@code previous} index if registry didn't change, otherwise new index.
+     */
+    static RegistryIndex build(@NonNull EurekaClient eurekaClient, @NonNull RegistryIndex previous) {
+        val builder = new Builder(previous);
+        builder.add(DEFAULT_REGION, eurekaClient.getApplications());
+
+        val knownRegions = eurekaClient.getAllKnownRegions();
+        if (knownRegions != null) {
+            for (String region : knownRegions) {
+                if (region != null && !region.isEmpty()) {
+                    builder.add(region.toLowerCase(), eurekaClient.getApplicationsForARegion(region));
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Creates index from restored service entries.
+     *
+     * @param regions lowercased region name -&gt; lowercased service name -&gt; service entry
+     * @return registry index with version 1
+     * @see RegistrySnapshot
+     */
+    static RegistryIndex restore(@NonNull Map<String, Map<String, ServiceEntry>> regions) {
+        val copy = new HashMap<String, Map<String, ServiceEntry>>();
+        int numApps = 0;
+        for (Map.Entry<String, Map<String, ServiceEntry>> e : regions.entrySet()) {
+            copy.put(e.getKey(), Collections.unmodifiableMap(new HashMap<>(e.getValue())));
+            numApps += e.getValue().size();
+        }
+        return new RegistryIndex(Collections.unmodifiableMap(copy), numApps, numApps, 1);
+    }
+
+    /**
+     * Looks up service entry.
+     *
+     * @param serviceName lowercased service name
+     * @param region      lowercased region name, use {@code "" / empty string} for default region.
+     * @return service entry, {@code null} if service doesn't exist or doesn't have any instances with status {@code
+     *         UP}.
+     */
+    ServiceEntry lookup(@NonNull String serviceName, @NonNull String region) {
+        val services = regions.get(region);
+        if (services == null) {
+            return null;
+        }
+
+        val entry = services.get(serviceName);
+        return (entry == null || entry.isEmpty()) ? null : entry;
+    }
+
+    /**
+     * Returns number of indexed applications in given region.
+     *
+     * @param region lowercased region name, use {@code "" / empty string} for default region.
+     * @return number of applications, including the ones without any instances with status {@code UP}
+     */
+    int size(@NonNull String region) {
+        val services = regions.get(region);
+        return (services == null) ? 0 : services.size();
+    }
+
+    /**
+     * Returns all indexed service entries.
+     *
+     * @return lowercased region name -&gt; lowercased service name -&gt; service entry
+     */
+    Map<String, Map<String, ServiceEntry>> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Returns number of indexed applications in all regions.
+     *
+     * @return number of applications
+     */
+    int getNumApps() {
+        return numApps;
+    }
+
+    /**
+     * Returns number of applications whose service entries were (re)built while building this index; this is equal
+     * to {@link #getNumApps()} if index was built from scratch.
+     *
+     * @return number of rebuilt applications
+     */
+    int getNumAppsRebuilt() {
+        return numAppsRebuilt;
+    }
+
+    /**
+     * Returns filter of services that have instances with status {@code UP}; service that is rejected by the filter
+     * can't be found by {@link #lookup(String, String)}.
+     *
+     * @return service name filter
+     */
+    ServiceNameFilter getServiceFilter() {
+        return serviceFilter;
+    }
+
+    /**
+     * Returns index version; version of the index that was built from scratch is 1 and it's incremented every time
+     * new index is built because registry changed.
+     *
+     * @return index version
+     */
+    long getVersion() {
+        return version;
+    }
+
+    private static ServiceNameFilter buildServiceFilter(Map<String, Map<String, ServiceEntry>> regions) {
+        int numServices = 0;
+        for (Map<String, ServiceEntry> services : regions.values()) {
+            numServices += services.size();
+        }
+
+        val filter = new ServiceNameFilter(numServices, ServiceNameFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        for (Map.Entry<String, Map<String, ServiceEntry>> region : regions.entrySet()) {
+            for (ServiceEntry entry : region.getValue().values()) {
+                if (!entry.isEmpty()) {
+                    filter.add(entry.getName(), region.getKey());
+                }
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        val sb = new StringBuilder(getClass().getSimpleName()).append("(");
+        regions.forEach((region, services) ->
+                sb.append(region.isEmpty() ? "<default>" : region).append('=').append(services.size()).append(' '));
+        return sb.toString().trim() + ")";
+    }
+
+    /**
+     * Incremental index builder.
+     */
+    private static final class Builder {
+        private final RegistryIndex previous;
+        private final Map<String, Map<String, ServiceEntry>> regions = new HashMap<>();
+        private int numApps = 0;
+        private int numAppsRebuilt = 0;
+        private boolean changed = false;
+
+        private Builder(RegistryIndex previous) {
+            this.previous = previous;
+        }
+
+        private void add(String region, Applications applications) {
+            val previousServices = previous.regions.getOrDefault(region, Collections.emptyMap());
+            val services = new HashMap<String, ServiceEntry>();
+
+            if (applications != null) {
+                for (Application app : applications.getRegisteredApplications()) {
+                    if (app == null || app.getName() == null) {
+                        continue;
+                    }
+
+                    val name = app.getName().toLowerCase();
+                    val instances = app.getInstances();
+                    val previousEntry = previousServices.get(name);
+                    if (previousEntry != null && previousEntry.getFingerprint() == ServiceEntry.fingerprint(instances)) {
+                        services.put(name, previousEntry);
+                    } else {
+                        services.put(name, ServiceEntry.create(name, instances));
+                        numAppsRebuilt++;
+                    }
+                }
+            }
+
+            // same size and no rebuilt entries means that application set is the same as well
+            if (services.size() != previousServices.size() || !previous.regions.containsKey(region)) {
+                changed = true;
+            }
+
+            numApps += services.size();
+            regions.put(region, Collections.unmodifiableMap(services));
+        }
+
+        private RegistryIndex build() {
+            if (!changed && numAppsRebuilt == 0 && regions.size() == previous.regions.size()) {
+                return previous;
+            }
+            return new RegistryIndex(Collections.unmodifiableMap(regions), numApps, numAppsRebuilt,
+                    previous.version + 1);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.github.bfg.eureka.dns;
+
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.DiscoveryClient;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains {@link RegistryIndex} that is published via single volatile reference, so that dns query handling never
+ * blocks and never sees partially built index.
+ *
+ * <p>Index is rebuilt on eureka client thread whenever eureka client fires {@link CacheRefreshedEvent}; if eureka
+ * client doesn't support event listeners index is periodically rebuilt on a dedicated daemon thread instead. Only
+ * applications that changed since the last rebuild are re-indexed and new index is published (and refresh listeners
+ * are notified) only if registry actually changed.</p>
+ *
+ * <p>If {@link RegistrySnapshot} is configured, index is periodically persisted to it and when eureka client hasn't
+ * fetched the registry yet, initial index is loaded from it; snapshot is served until the first registry fetch.</p>
+ */
+@Slf4j
+final class RegistryIndexManager implements EurekaEventListener, MetricsSource {
+    /**
+     * Default index rebuild interval in milliseconds, used only if eureka client doesn't support event listeners.
+     */
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = 30_000;
+
+    private final EurekaClient eurekaClient;
+    private final long pollIntervalMillis;
+    private final RegistrySnapshot snapshot;
+    private final List<Runnable> refreshListeners = new CopyOnWriteArrayList<>();
+
+    private volatile RegistryIndex index;
+    private volatile boolean listenerRegistered = false;
+    private volatile ScheduledExecutorService poller;
+    private volatile ScheduledExecutorService snapshotWriter;
+
+    // warm start state
+    private volatile boolean warmStart = false;
+    private volatile boolean registryFetched = false;
+    private volatile RegistryIndex savedIndex;
+
+    // rebuild statistics, updated only while holding the lock
+    private volatile long rebuilds = 0;
+    private volatile long appsRebuilt = 0;
+    private volatile long rebuildNanos = 0;
+    private volatile int lastAppsRebuilt = 0;
+    private volatile long lastRebuildNanos = 0;
+    private volatile long lastRefreshMillis = 0;
+
+    /**
+     * Creates new instance and builds initial index.
+     *
+     * @param eurekaClient eureka client
+     */
+    RegistryIndexManager(@NonNull EurekaClient eurekaClient) {
+        this(eurekaClient, DEFAULT_POLL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates new instance and builds initial index.
+     *
+     * @param eurekaClient       eureka client
+     * @param pollIntervalMillis index rebuild interval in milliseconds if eureka client doesn't support event
+     *                           listeners
+     */
+    RegistryIndexManager(@NonNull EurekaClient eurekaClient, long pollIntervalMillis) {
+        this(eurekaClient, pollIntervalMillis, null);
+    }
+
+    /**
+     * Creates new instance and builds initial index; if eureka client hasn't fetched the registry yet, initial index
+     * is loaded from given snapshot.
+     *
+     * @param eurekaClient       eureka client
+     * @param pollIntervalMillis index rebuild interval in milliseconds if eureka client doesn't support event
+     *                           listeners
+     * @param snapshot           registry snapshot, may be {@code null}
+     */
+    RegistryIndexManager(@NonNull EurekaClient eurekaClient, long pollIntervalMillis, RegistrySnapshot snapshot) {
+        if (pollIntervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid poll interval: " + pollIntervalMillis);
+        }
+        this.eurekaClient = eurekaClient;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.snapshot = snapshot;
+        this.index = buildIndex(RegistryIndex.EMPTY);
+
+        if (snapshot != null && index.getNumApps() == 0 && !hasFetchedRegistry()) {
+            val restored = snapshot.load();
+            if (restored != null) {
+                this.index = restored;
+                this.warmStart = true;
+                this.lastRefreshMillis = snapshot.getLoadedTimestamp();
+            }
+        }
+    }
+
+    /**
+     * Returns current registry index.
+     *
+     * @return registry index
+     */
+    RegistryIndex index() {
+        return index;
+    }
+
+    /**
+     * Registers listener that is invoked after new index has been published.
+     *
+     * @param listener listener
+     * @return reference to itself
+     */
+    RegistryIndexManager addRefreshListener(@NonNull Runnable listener) {
+        refreshListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Starts tracking eureka registry changes.
+     */
+    synchronized void start() {
+        if (listenerRegistered || poller != null) {
+            return;
+        }
+
+        try {
+            eurekaClient.registerEventListener(this);
+            listenerRegistered = true;
+        } catch (Exception e) {
+            log.warn("can't register eureka event listener, rebuilding registry index every {} msec: {}",
+                    pollIntervalMillis, e.getMessage());
+            val executor = Executors.newSingleThreadScheduledExecutor(
+                    new DefaultThreadFactory("eureka-dns-registry-index", true));
+            executor.scheduleWithFixedDelay(this::refreshQuietly,
+                    pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+            poller = executor;
+        }
+
+        if (snapshot != null) {
+            val executor = Executors.newSingleThreadScheduledExecutor(
+                    new DefaultThreadFactory("eureka-dns-registry-snapshot", true));
+            executor.scheduleWithFixedDelay(this::saveSnapshotQuietly,
+                    snapshot.getIntervalMillis(), snapshot.getIntervalMillis(), TimeUnit.MILLISECONDS);
+            snapshotWriter = executor;
+        }
+
+        // registry might have changed since index was built
+        refresh();
+    }
+
+    /**
+     * Stops tracking eureka registry changes.
+     */
+    synchronized void stop() {
+        if (listenerRegistered) {
+            eurekaClient.unregisterEventListener(this);
+            listenerRegistered = false;
+        }
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+        if (snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+            snapshotWriter = null;
+            saveSnapshotQuietly();
+        }
+    }
+
+    /**
+     * Tells whether index is being rebuilt periodically, because eureka client doesn't support event listeners.
+     *
+     * @return true/false
+     */
+    boolean isPolling() {
+        return poller != null;
+    }
+
+    /**
+     * Tells whether index is still loaded from registry snapshot, because eureka client hasn't fetched the registry
+     * yet.
+     *
+     * @return true/false
+     */
+    boolean isWarmStart() {
+        return warmStart;
+    }
+
+    @Override
+    public void onEvent(EurekaEvent event) {
+        if (event instanceof CacheRefreshedEvent) {
+            registryFetched = true;
+            refreshQuietly();
+        }
+    }
+
+    /**
+     * Rebuilds registry index; if registry changed new index is published and refresh listeners are notified.
+     *
+     * @return current index
+     */
+    synchronized RegistryIndex refresh() {
+        val previous = index;
+        val newIndex = buildIndex(previous);
+        if (warmStart) {
+            // checked before the identity check, fetched registry may be the same as the snapshot
+            if (newIndex.getNumApps() == 0 && !hasFetchedRegistry()) {
+                log.debug("eureka registry hasn't been fetched yet, serving registry snapshot.");
+                lastRefreshMillis = snapshot.getLoadedTimestamp();
+                return previous;
+            }
+            warmStart = false;
+            log.info("eureka registry has been fetched, switching from registry snapshot to {}", newIndex);
+        }
+        if (newIndex == previous) {
+            return previous;
+        }
+
+        this.index = newIndex;
+        refreshListeners.forEach(Runnable::run);
+        return newIndex;
+    }
+
+    /**
+     * Returns number of index rebuilds.
+     *
+     * @return number of rebuilds
+     */
+    long getRebuilds() {
+        return rebuilds;
+    }
+
+    /**
+     * Returns total number of applications that were re-indexed by all index rebuilds.
+     *
+     * @return number of rebuilt applications
+     */
+    long getAppsRebuilt() {
+        return appsRebuilt;
+    }
+
+    /**
+     * Returns total duration of all index rebuilds.
+     *
+     * @return duration in nanoseconds
+     */
+    long getRebuildNanos() {
+        return rebuildNanos;
+    }
+
+    /**
+     * Returns number of applications that were re-indexed by the last rebuild.
+     *
+     * @return number of rebuilt applications
+     */
+    int getLastAppsRebuilt() {
+        return lastAppsRebuilt;
+    }
+
+    /**
+     * Returns duration of the last index rebuild.
+     *
+     * @return duration in nanoseconds
+     */
+    long getLastRebuildNanos() {
+        return lastRebuildNanos;
+    }
+
+    /**
+     * Returns time when eureka registry was last read; current index reflects registry contents at that time.
+     *
+     * @return timestamp in milliseconds since epoch
+     */
+    long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        val current = index;
+        out.metric("registry_snapshot_age_seconds", "gauge", "Time since eureka registry was last read.",
+                (System.currentTimeMillis() - getLastRefreshMillis()) / 1000.0);
+        out.metric("registry_index_version", "gauge", "Registry index version.", current.getVersion());
+        out.metric("registry_warm_start", "gauge",
+                "Whether registry index is loaded from snapshot because eureka registry hasn't been fetched yet.",
+                isWarmStart() ? 1 : 0);
+        out.metric("registry_applications", "gauge", "Number of indexed eureka applications.", current.getNumApps());
+        out.metric("registry_rebuilds_total", "counter", "Number of registry index rebuilds.", getRebuilds());
+        out.metric("registry_rebuild_duration_seconds_total", "counter",
+                "Total duration of registry index rebuilds.", getRebuildNanos() / 1e9);
+        out.metric("registry_last_rebuild_duration_seconds", "gauge", "Duration of the last registry index rebuild.",
+                getLastRebuildNanos() / 1e9);
+    }
+
+    /**
+     * Writes current index to registry snapshot unless it has been already written, is empty or has been loaded from
+     * the snapshot.
+     *
+     * @return true if snapshot was written, otherwise false
+     * @throws IOException if snapshot can't be written
+     */
+    synchronized boolean saveSnapshot() throws IOException {
+        val current = index;
+        if (snapshot == null || warmStart || current == savedIndex || current.getNumApps() == 0) {
+            return false;
+        }
+        snapshot.save(current);
+        savedIndex = current;
+        return true;
+    }
+
+    private void saveSnapshotQuietly() {
+        try {
+            saveSnapshot();
+        } catch (Exception e) {
+            log.warn("can't save registry snapshot {}: {}", snapshot, e.toString());
+        }
+    }
+
+    private boolean hasFetchedRegistry() {
+        if (registryFetched) {
+            return true;
+        }
+        // discovery client doesn't fire any event if the initial fetch it performs on construction succeeded
+        return eurekaClient instanceof DiscoveryClient &&
+                ((DiscoveryClient) eurekaClient).getLastSuccessfulRegistryFetchTimePeriod() >= 0;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("error refreshing registry index: {}", e.getMessage(), e);
+        }
+    }
+
+    private synchronized RegistryIndex buildIndex(RegistryIndex previous) {
+        val ts = System.nanoTime();
+        val newIndex = RegistryIndex.build(eurekaClient, previous);
+        val elapsed = System.nanoTime() - ts;
+        val numRebuilt = (newIndex == previous) ? 0 : newIndex.getNumAppsRebuilt();
+
+        rebuilds++;
+        appsRebuilt += numRebuilt;
+        rebuildNanos += elapsed;
+        lastAppsRebuilt = numRebuilt;
+        lastRebuildNanos = elapsed;
+        lastRefreshMillis = System.currentTimeMillis();
+
+        log.debug("rebuilt {}/{} application(s) of {} in {} usec, {}",
+                numRebuilt, newIndex.getNumApps(), newIndex, TimeUnit.NANOSECONDS.toMicros(elapsed),
+                newIndex.getServiceFilter());
+        return newIndex;
+    }
+}
@@ -0,0 +1,377 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Persists registry index to a compact binary file that is memory-mapped when loaded, so that restarted server can
+ * answer queries from the last known registry before eureka client fetches it. Service entries are stored with their
+ * pre-encoded record payloads, so loading a snapshot doesn't parse or encode anything.
+ *
+ * <p>File starts with a header: {@code EDRS} magic, format version byte, {@code i64} creation timestamp in
+ * milliseconds since epoch, {@code i32} payload length and {@code i32} payload CRC32. Payload contains big-endian
+ * {@code i32} counts, {@code u16} length-prefixed strings (UTF-8) and byte arrays:</p>
+ * <pre>
+ * regions:   count, then for every region: name, services
+ * services:  count, then for every service: name, i64 fingerprint, ipv4 addresses, ipv6 addresses, urls, srvs,
+ *            instances
+ * urls:      count, then for every url: url, TXT record payload
+ * srvs:      count, then for every SRV target: target, u16 port, SRV record payload, target address
+ * instances: count, then for every instance: id, hostname, address, i32 url index
+ * </pre>
+ *
+ * @see DnsServerConfig#getRegistrySnapshotFile()
+ */
+@Slf4j
+final class RegistrySnapshot {
+    /**
+     * Snapshot file magic.
+     */
+    static final byte[] MAGIC = {'E', 'D', 'R', 'S'};
+
+    /**
+     * Snapshot format version.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Snapshot header length.
+     */
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 8 + 4 + 4;
+
+    private final Path path;
+    private final long intervalMillis;
+    private final long maxAgeMillis;
+    private final LongSupplier clock;
+
+    private volatile long loadedTimestamp = 0;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config server configuration
+     */
+    RegistrySnapshot(@NonNull DnsServerConfig config) {
+        this(Paths.get(config.getRegistrySnapshotFile().trim()),
+                TimeUnit.SECONDS.toMillis(config.getRegistrySnapshotInterval()),
+                TimeUnit.SECONDS.toMillis(config.getRegistrySnapshotMaxAge()),
+                System::currentTimeMillis);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param path           snapshot file
+     * @param intervalMillis interval of periodic snapshot saving in milliseconds
+     * @param maxAgeMillis   maximum age of snapshot that is loaded in milliseconds, 0 for unlimited
+     * @param clock          wall clock in milliseconds
+     */
+    RegistrySnapshot(@NonNull Path path, long intervalMillis, long maxAgeMillis, @NonNull LongSupplier clock) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid snapshot interval: " + intervalMillis);
+        }
+        this.path = path;
+        this.intervalMillis = intervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns interval of periodic snapshot saving.
+     *
+     * @return interval in milliseconds
+     */
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Returns creation timestamp of the last successfully loaded snapshot.
+     *
+     * @return timestamp in milliseconds since epoch, 0 if no snapshot was loaded
+     */
+    long getLoadedTimestamp() {
+        return loadedTimestamp;
+    }
+
+    /**
+     * Writes snapshot of given index; file is replaced atomically, so that readers never see partially written
+     * snapshot.
+     *
+     * @param index registry index
+     * @throws IOException if snapshot can't be written
+     */
+    void save(@NonNull RegistryIndex index) throws IOException {
+        val ts = System.nanoTime();
+        val payload = encode(index);
+        val crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        val parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        val tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (val out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(clock.getAsLong());
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        log.debug("saved registry snapshot {} with {} application(s), {} bytes in {} usec",
+                path, index.getNumApps(), HEADER_LENGTH + payload.length,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ts));
+    }
+
+    /**
+     * Loads registry index from snapshot.
+     *
+     * @return registry index, {@code null} if snapshot doesn't exist, is too old or is corrupted.
+     */
+    RegistryIndex load() {
+        val ts = System.nanoTime();
+        try (val channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            val buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            val created = readHeader(buf);
+            val age = clock.getAsLong() - created;
+            if (maxAgeMillis > 0 && age > maxAgeMillis) {
+                log.warn("ignoring registry snapshot {}, it's {} seconds old", path,
+                        TimeUnit.MILLISECONDS.toSeconds(age));
+                return null;
+            }
+
+            val index = decode(buf);
+            loadedTimestamp = created;
+            log.info("loaded registry snapshot {} with {} application(s), {} seconds old, in {} usec: {}",
+                    path, index.getNumApps(), TimeUnit.MILLISECONDS.toSeconds(age),
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ts), index);
+            return index;
+        } catch (NoSuchFileException e) {
+            log.info("registry snapshot {} doesn't exist.", path);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("can't load registry snapshot {}: {}", path, e.toString());
+            return null;
+        }
+    }
+
+    private static long readHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_LENGTH) {
+            throw new IOException("file is too short");
+        }
+        for (byte b : MAGIC) {
+            if (buf.get() != b) {
+                throw new IOException("not a registry snapshot");
+            }
+        }
+        val version = buf.get() & 0xff;
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+        val created = buf.getLong();
+        val length = buf.getInt();
+        val expectedCrc = buf.getInt();
+        if (length < 0 || length != buf.remaining()) {
+            throw new IOException("truncated snapshot");
+        }
+
+        val crc = new CRC32();
+        crc.update(buf.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("checksum mismatch");
+        }
+        return created;
+    }
+
+    private static byte[] encode(RegistryIndex index) throws IOException {
+        val bytes = new ByteArrayOutputStream(64 * 1024);
+        val out = new DataOutputStream(bytes);
+
+        val regions = index.getRegions();
+        out.writeInt(regions.size());
+        for (Map.Entry<String, Map<String, ServiceEntry>> region : regions.entrySet()) {
+            writeString(out, region.getKey());
+            out.writeInt(region.getValue().size());
+            for (ServiceEntry entry : region.getValue().values()) {
+                writeEntry(out, entry);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream out, ServiceEntry entry) throws IOException {
+        writeString(out, entry.getName());
+        out.writeLong(entry.getFingerprint());
+        writeByteArrays(out, entry.getIpv4Addresses());
+        writeByteArrays(out, entry.getIpv6Addresses());
+
+        val urls = entry.getUrls();
+        out.writeInt(urls.length);
+        for (int i = 0; i < urls.length; i++) {
+            writeString(out, urls[i]);
+            writeBytes(out, entry.getTxtRData()[i]);
+        }
+
+        val targets = entry.getSrvTargets();
+        out.writeInt(targets.length);
+        for (int i = 0; i < targets.length; i++) {
+            writeString(out, targets[i]);
+            out.writeShort(entry.getSrvPorts()[i]);
+            writeBytes(out, entry.getSrvRData()[i]);
+            writeBytes(out, entry.getSrvTargetAddresses()[i]);
+        }
+
+        val ids = entry.getInstanceIds();
+        out.writeInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            writeString(out, ids[i]);
+            writeString(out, entry.getInstanceHostnames()[i]);
+            writeBytes(out, entry.getInstanceAddresses()[i]);
+            out.writeInt(entry.getInstanceUrlIndexes()[i]);
+        }
+    }
+
+    private static RegistryIndex decode(ByteBuffer buf) {
+        val numRegions = readCount(buf);
+        val regions = new HashMap<String, Map<String, ServiceEntry>>();
+        for (int r = 0; r < numRegions; r++) {
+            val region = readString(buf);
+            val numServices = readCount(buf);
+            val services = new HashMap<String, ServiceEntry>(numServices * 2);
+            for (int s = 0; s < numServices; s++) {
+                val entry = readEntry(buf);
+                services.put(entry.getName(), entry);
+            }
+            regions.put(region, services);
+        }
+        if (buf.hasRemaining()) {
+            throw new IllegalStateException("unexpected trailing data");
+        }
+        return RegistryIndex.restore(regions);
+    }
+
+    private static ServiceEntry readEntry(ByteBuffer buf) {
+        val name = readString(buf);
+        val fingerprint = buf.getLong();
+        val ipv4 = readByteArrays(buf);
+        val ipv6 = readByteArrays(buf);
+
+        val numUrls = readCount(buf);
+        val urls = new String[numUrls];
+        val txtRData = new byte[numUrls][];
+        for (int i = 0; i < numUrls; i++) {
+            urls[i] = readString(buf);
+            txtRData[i] = readBytes(buf);
+        }
+
+        val numSrvs = readCount(buf);
+        val targets = new String[numSrvs];
+        val ports = new int[numSrvs];
+        val srvRData = new byte[numSrvs][];
+        val addresses = new byte[numSrvs][];
+        for (int i = 0; i < numSrvs; i++) {
+            targets[i] = readString(buf);
+            ports[i] = buf.getShort() & 0xffff;
+            srvRData[i] = readBytes(buf);
+            addresses[i] = readBytes(buf);
+        }
+
+        val numInstances = readCount(buf);
+        val ids = new String[numInstances];
+        val hostnames = new String[numInstances];
+        val instanceAddresses = new byte[numInstances][];
+        val urlIndexes = new int[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            ids[i] = readString(buf);
+            hostnames[i] = readString(buf);
+            instanceAddresses[i] = readBytes(buf);
+            urlIndexes[i] = buf.getInt();
+        }
+
+        return ServiceEntry.restore(name, fingerprint, ipv4, ipv6, urls, txtRData, targets, ports, srvRData,
+                addresses, ids, hostnames, instanceAddresses, urlIndexes);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        writeBytes(out, str.getBytes(UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > 0xffff) {
+            throw new IOException("value is too long: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeByteArrays(DataOutputStream out, byte[][] arrays) throws IOException {
+        out.writeInt(arrays.length);
+        for (byte[] bytes : arrays) {
+            writeBytes(out, bytes);
+        }
+    }
+
+    private static int readCount(ByteBuffer buf) {
+        val count = buf.getInt();
+        // every counted item takes at least 2 bytes
+        if (count < 0 || count > buf.remaining() / 2) {
+            throw new IllegalStateException("invalid item count: " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        return new String(readBytes(buf), UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        val bytes = new byte[buf.getShort() & 0xffff];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static byte[][] readByteArrays(ByteBuffer buf) {
+        val count = readCount(buf);
+        val arrays = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            arrays[i] = readBytes(buf);
+        }
+        return arrays;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + path + ")";
+    }
+}
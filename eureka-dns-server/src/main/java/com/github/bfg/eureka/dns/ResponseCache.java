@@ -0,0 +1,303 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.netty.handler.codec.dns.DnsRecordType.*;
+
+/**
+ * Cache of fully encoded DNS responses keyed by question type and name, maximum response size and EDNS0 usage.
+ *
+ * <p>Cached responses are shared by all clients asking the same question, therefore only transaction id and question
+ * name letter case are patched before cached response is sent to the client. Cache needs to be invalidated whenever
+ * registry index is rebuilt; invalidation only starts a new generation, responses from older generations are treated
+ * as missing and are dropped when they are looked up or evicted.</p>
+ *
+ * <p>When the cache is full, every new response replaces an older one chosen by the CLOCK algorithm: slots are
+ * visited in a circle and a response that was served from the cache since the last visit gets a second chance.</p>
+ *
+ * @see RegistryIndexManager#addRefreshListener(Runnable)
+ */
+@Slf4j
+final class ResponseCache implements MetricsSource {
+    /**
+     * Question types whose responses depend only on the eureka registry contents.
+     */
+    private static final Set<DnsRecordType> CACHEABLE_QUESTION_TYPES = Collections.unmodifiableSet(
+            new LinkedHashSet<>(Arrays.asList(A, AAAA, ANY, TXT, SRV)));
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Key> slots;
+    private final AtomicLong clockHand = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final int maxEntries;
+
+    /**
+     * Creates new instance.
+     *
+     * @param maxEntries maximum number of cached responses
+     */
+    ResponseCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid max entries: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.slots = new AtomicReferenceArray<>(maxEntries);
+    }
+
+    /**
+     * Tells whether response to given question can be cached.
+     *
+     * @param question dns question
+     * @return true/false
+     */
+    boolean isCacheable(DnsRecord question) {
+        return question != null &&
+                question.dnsClass() == DnsRecord.CLASS_IN &&
+                CACHEABLE_QUESTION_TYPES.contains(question.type());
+    }
+
+    /**
+     * Tells whether response with given response code can be cached. NXDOMAIN responses are not cached: they are
+     * cheap to create thanks to service name filter and caching them would let floods of random names fill the cache.
+     *
+     * @param code response code
+     * @return true/false
+     * @see ServiceNameFilter
+     */
+    boolean isCacheable(DnsResponseCode code) {
+        return DnsResponseCode.NOERROR.equals(code);
+    }
+
+    /**
+     * Returns current cache generation; generation changes every time cache is invalidated.
+     *
+     * @return cache generation
+     * @see #put(DnsRecord, int, boolean, ByteBuf, long)
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Retrieves cached response for given question.
+     *
+     * @param question      dns question
+     * @param maxSize       maximum encoded response size
+     * @param edns          whether query contained EDNS0 OPT record
+     * @param transactionId query transaction id
+     * @param allocator     allocator used to allocate returned buffer
+     * @return encoded response with patched transaction id and question name, {@code null} if question is not cached.
+     */
+    ByteBuf get(@NonNull DnsRecord question, int maxSize, boolean edns, int transactionId,
+                @NonNull ByteBufAllocator allocator) {
+        val key = toKey(question, maxSize, edns);
+        val entry = entries.get(key);
+        if (entry == null || entry.generation != generation()) {
+            if (entry != null) {
+                entries.remove(key, entry);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+
+        val encoded = entry.encoded;
+        val buf = allocator.buffer(encoded.length).writeBytes(encoded);
+        buf.setShort(0, transactionId);
+        patchQuestionName(buf, question.name());
+        return buf;
+    }
+
+    /**
+     * Stores encoded response to the cache, evicting older response if cache is full.
+     *
+     * @param question   dns question
+     * @param maxSize    maximum encoded response size
+     * @param edns       whether query contained EDNS0 OPT record
+     * @param encoded    encoded response, buffer indexes are not modified.
+     * @param generation cache generation obtained before response was created; response is not stored if cache was
+     *                   invalidated in the meantime.
+     * @return true if response was stored, otherwise false
+     * @see #generation()
+     */
+    boolean put(@NonNull DnsRecord question, int maxSize, boolean edns, @NonNull ByteBuf encoded, long generation) {
+        if (generation != generation()) {
+            return false;
+        }
+
+        val key = toKey(question, maxSize, edns);
+        val entry = new Entry(ByteBufUtil.getBytes(encoded), generation);
+        val existing = entries.putIfAbsent(key, entry);
+        if (existing == null) {
+            evictFromSlotFor(key, entry);
+            return true;
+        }
+        if (existing.generation < generation && entries.replace(key, existing, entry)) {
+            // stale response keeps its slot
+            entry.slot = existing.slot;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Invalidates all cached responses by starting a new cache generation.
+     */
+    void invalidate() {
+        val newGeneration = generation.incrementAndGet();
+        log.debug("invalidated response cache: generation={}, hits={}, misses={}",
+                newGeneration, getHits(), getMisses());
+    }
+
+    /**
+     * Returns number of cache hits.
+     *
+     * @return number of hits
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns number of cache misses.
+     *
+     * @return number of misses
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns number of cached responses of the current generation.
+     *
+     * @return number of entries
+     */
+    int size() {
+        val current = generation();
+        return (int) entries.values().stream()
+                .filter(it -> it.generation == current)
+                .count();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("response_cache_hits_total", "counter", "Number of response cache hits.", getHits());
+        out.metric("response_cache_misses_total", "counter", "Number of response cache misses.", getMisses());
+        out.metric("response_cache_entries", "gauge", "Number of cached responses.", size());
+    }
+
+    /**
+     * Finds a slot for newly stored response using the CLOCK algorithm and removes response previously stored in
+     * that slot; recently used responses of the current generation are passed over at most for one turn of the clock.
+     *
+     * @param key   key of newly stored response
+     * @param entry newly stored response
+     */
+    private void evictFromSlotFor(Key key, Entry entry) {
+        for (int scanned = 0; ; scanned++) {
+            val idx = (int) (clockHand.getAndIncrement() % maxEntries);
+            val oldKey = slots.get(idx);
+            val oldEntry = (oldKey == null) ? null : entries.get(oldKey);
+            if (oldEntry != null && oldEntry.referenced && oldEntry.generation == generation() &&
+                    scanned < maxEntries) {
+                oldEntry.referenced = false;
+                continue;
+            }
+            if (slots.compareAndSet(idx, oldKey, key)) {
+                entry.slot = idx;
+                // key may have been removed and stored again into another slot in the meantime
+                if (oldEntry != null && oldEntry.slot == idx && !oldKey.equals(key)) {
+                    entries.remove(oldKey, oldEntry);
+                }
+                return;
+            }
+        }
+    }
+
+    private Key toKey(DnsRecord question, int maxSize, boolean edns) {
+        return new Key(question.type().intValue(), question.name().toLowerCase(), maxSize, edns);
+    }
+
+    /**
+     * Overwrites encoded question name in the response with given question name; names are compared case-insensitively
+     * and differ only in letter case, therefore encoded lengths are always the same.
+     *
+     * @param buf  encoded response
+     * @param name question name as sent by the client
+     */
+    private void patchQuestionName(ByteBuf buf, String name) {
+        int pos = buf.readerIndex() + DnsMessages.HEADER_LENGTH;
+        int nameIdx = 0;
+        val nameLen = name.length();
+        while (pos < buf.writerIndex()) {
+            val labelLen = buf.getUnsignedByte(pos++);
+            if (labelLen == 0) {
+                break;
+            }
+            for (int i = 0; i < labelLen; i++, pos++) {
+                if (nameIdx < nameLen) {
+                    buf.setByte(pos, name.charAt(nameIdx++));
+                }
+            }
+            nameIdx++; // skip dot
+        }
+    }
+
+    /**
+     * Cached response.
+     */
+    private static final class Entry {
+        final byte[] encoded;
+        final long generation;
+
+        /**
+         * Index of the clock slot that holds key of this response.
+         */
+        volatile int slot = -1;
+
+        /**
+         * Set when the response is served from the cache, cleared when the clock hand passes it.
+         */
+        volatile boolean referenced;
+
+        Entry(byte[] encoded, long generation) {
+            this.encoded = encoded;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Cache key.
+     */
+    @Value
+    private static class Key {
+        int type;
+        String name;
+        int maxSize;
+        boolean edns;
+    }
+}
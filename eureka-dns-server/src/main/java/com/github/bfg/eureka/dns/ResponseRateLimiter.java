@@ -0,0 +1,368 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.handler.codec.dns.DnsResponseCode;
+import lombok.NonNull;
+import lombok.val;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * BIND-style response rate limiter (RRL); limits rate of identical responses sent to a single client network.
+ *
+ * <p>Responses are accounted in token buckets keyed by client network ({@value #IPV4_PREFIX_LENGTH} bit prefix for
+ * IPv4, {@value #IPV6_PREFIX_LENGTH} bit prefix for IPv6) and response tuple: question name and type for positive
+ * responses, zone name for NXDOMAIN responses (so that floods of random names share the same bucket) and response
+ * class for error responses. Each bucket is credited with configured number of responses every second, responses
+ * that exceed bucket balance are either dropped or slipped: every n-th limited response is sent as an empty truncated
+ * response, which tells legitimate clients to retry over TCP. Limited responses are counted by bucket debt, so that
+ * slipped responses of one client don't depend on responses limited for other clients.</p>
+ *
+ * <p>Buckets are stored in a fixed size lock-free table; every bucket is packed into a single {@code long} and updated
+ * using compare-and-set. Colliding keys evict each other, so memory usage is bounded regardless of the number of
+ * clients.</p>
+ *
+ * @see <a href="https://kb.isc.org/docs/aa-00994">Using Response Rate Limiting (RRL)</a>
+ * @see DnsServerConfig#getRateLimitResponsesPerSecond()
+ */
+final class ResponseRateLimiter implements MetricsSource {
+    /**
+     * IPv4 client network prefix length.
+     */
+    static final int IPV4_PREFIX_LENGTH = 24;
+
+    /**
+     * IPv6 client network prefix length.
+     */
+    static final int IPV6_PREFIX_LENGTH = 56;
+
+    /**
+     * Maximum supported number of responses per second; bucket balance must fit into {@link #BALANCE_BITS}.
+     */
+    static final int MAX_RESPONSES_PER_SECOND = 100_000;
+
+    /**
+     * Maximum number of buckets.
+     */
+    static final int MAX_TABLE_SIZE = 1 << 24;
+
+    // bucket layout: key fingerprint (16 bits) | timestamp in seconds (28 bits) | signed balance (20 bits)
+    private static final int BALANCE_BITS = 20;
+    private static final int TIME_BITS = 28;
+    private static final int FINGERPRINT_SHIFT = BALANCE_BITS + TIME_BITS;
+    private static final long BALANCE_MASK = (1L << BALANCE_BITS) - 1;
+    private static final int TIME_MASK = (1 << TIME_BITS) - 1;
+
+    private static final int CATEGORY_RESPONSE = 1;
+    private static final int CATEGORY_NXDOMAIN = 2;
+    private static final int CATEGORY_ERROR = 3;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Rate limiting decision.
+     */
+    enum Action {
+        /**
+         * Send the response.
+         */
+        SEND,
+
+        /**
+         * Send empty truncated response instead.
+         */
+        SLIP,
+
+        /**
+         * Don't send any response.
+         */
+        DROP
+    }
+
+    private final int responsesPerSecond;
+    private final int slip;
+    private final int maxDebt;
+    private final int debtWrap;
+    private final boolean dryRun;
+    private final String zone;
+    private final LongSupplier nanoClock;
+    private final long startNanos;
+
+    private final AtomicLongArray buckets;
+    private final int mask;
+
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder slipped = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates new instance.
+     *
+     * @param config configuration
+     */
+    ResponseRateLimiter(@NonNull DnsServerConfig config) {
+        this(config.getRateLimitResponsesPerSecond(), config.getRateLimitSlip(), config.isRateLimitDryRun(),
+                config.getRateLimitTableSize(), config.getDomain(), System::nanoTime);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param responsesPerSecond number of identical responses per second allowed for single client network
+     * @param slip               every n-th limited response is sent as truncated response, 0 drops all of them
+     * @param dryRun             only count limited responses, never drop or slip them
+     * @param tableSize          number of buckets, rounded up to the nearest power of two
+     * @param zone               served zone name; used to account NXDOMAIN responses
+     * @param nanoClock          monotonic clock returning nanoseconds
+     */
+    ResponseRateLimiter(int responsesPerSecond, int slip, boolean dryRun, int tableSize,
+                        @NonNull String zone, @NonNull LongSupplier nanoClock) {
+        if (responsesPerSecond < 1 || responsesPerSecond > MAX_RESPONSES_PER_SECOND) {
+            throw new IllegalArgumentException("Invalid number of responses per second: " + responsesPerSecond);
+        }
+        if (slip < 0) {
+            throw new IllegalArgumentException("Invalid slip value: " + slip);
+        }
+        if (tableSize < 1 || tableSize > MAX_TABLE_SIZE) {
+            throw new IllegalArgumentException("Invalid table size: " + tableSize);
+        }
+
+        this.responsesPerSecond = responsesPerSecond;
+        this.slip = slip;
+        this.maxDebt = maxDebt(responsesPerSecond, slip);
+        this.debtWrap = Math.min(Math.max(slip, 1), maxDebt);
+        this.dryRun = dryRun;
+        this.zone = zone;
+        this.nanoClock = nanoClock;
+        this.startNanos = nanoClock.getAsLong();
+
+        val size = (tableSize == 1) ? 1 : Integer.highestOneBit(tableSize - 1) << 1;
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Accounts response to be sent to given client and decides what to do with it.
+     *
+     * @param client client address
+     * @param name   question name, may be {@code null}
+     * @param type   question type
+     * @param code   response code
+     * @return rate limiting action, always {@link Action#SEND} in dry-run mode.
+     */
+    Action check(@NonNull InetAddress client, CharSequence name, int type, @NonNull DnsResponseCode code) {
+        val balance = consume(key(client, name, type, code));
+        if (balance >= 0) {
+            return Action.SEND;
+        }
+
+        limited.increment();
+        if (dryRun) {
+            return Action.SEND;
+        }
+        if (slip > 0 && -balance % slip == 0) {
+            slipped.increment();
+            return Action.SLIP;
+        }
+        dropped.increment();
+        return Action.DROP;
+    }
+
+    /**
+     * Computes maximum bucket debt: number of responses per second rounded up to a multiple of slip, so that debt
+     * wrapped by slip keeps counting limited responses while client keeps flooding.
+     */
+    private static int maxDebt(int responsesPerSecond, int slip) {
+        if (slip <= 1) {
+            return responsesPerSecond;
+        }
+        val debt = ((long) responsesPerSecond + slip - 1) / slip * slip;
+        return (int) Math.min(debt, 2L * MAX_RESPONSES_PER_SECOND);
+    }
+
+    /**
+     * Takes single response from the bucket with given key, crediting it first for the elapsed time.
+     *
+     * @param key bucket key
+     * @return bucket balance after response was taken; negative balance means that response exceeds the limit and
+     *         its absolute value counts limited responses modulo slip.
+     */
+    private int consume(long key) {
+        val slot = (int) key & mask;
+        long fingerprint = key >>> FINGERPRINT_SHIFT;
+        if (fingerprint == 0) {
+            // empty bucket has zero fingerprint
+            fingerprint = 1;
+        }
+        val now = now();
+
+        while (true) {
+            val state = buckets.get(slot);
+            int balance = responsesPerSecond;
+            int time = now;
+            if ((state >>> FINGERPRINT_SHIFT) == fingerprint) {
+                balance = (int) (state << (64 - BALANCE_BITS) >> (64 - BALANCE_BITS));
+                time = (int) (state >>> BALANCE_BITS) & TIME_MASK;
+
+                val elapsed = (now - time) & TIME_MASK;
+                if (elapsed < (TIME_MASK >>> 1)) {
+                    // bucket might have been updated by a thread with more recent clock reading
+                    balance = (int) Math.min(responsesPerSecond, balance + (long) elapsed * responsesPerSecond);
+                    time = now;
+                }
+            }
+
+            // limit the debt, so that client that stops flooding is answered again within a few seconds; debt is
+            // wrapped by slip instead of being capped, so that every n-th limited response is still slipped
+            balance--;
+            if (balance < -maxDebt) {
+                balance += debtWrap;
+            }
+
+            val newState = (fingerprint << FINGERPRINT_SHIFT) | ((long) time << BALANCE_BITS) |
+                    (balance & BALANCE_MASK);
+            if (buckets.compareAndSet(slot, state, newState)) {
+                return balance;
+            }
+        }
+    }
+
+    /**
+     * Returns current time in seconds since this instance was created, wrapped to {@link #TIME_BITS}.
+     */
+    private int now() {
+        return (int) ((nanoClock.getAsLong() - startNanos) / 1_000_000_000L) & TIME_MASK;
+    }
+
+    /**
+     * Computes 64 bit bucket key from client network and response tuple.
+     */
+    private long key(InetAddress client, CharSequence name, int type, DnsResponseCode code) {
+        long h = FNV_OFFSET_BASIS;
+
+        val addr = client.getAddress();
+        val prefixLength = (client instanceof Inet4Address) ? IPV4_PREFIX_LENGTH : IPV6_PREFIX_LENGTH;
+        for (int i = 0; i < prefixLength / 8 && i < addr.length; i++) {
+            h = (h ^ (addr[i] & 0xff)) * FNV_PRIME;
+        }
+
+        val category = category(code);
+        h = (h ^ category) * FNV_PRIME;
+        if (category == CATEGORY_RESPONSE) {
+            h = (h ^ (type & 0xff)) * FNV_PRIME;
+            h = (h ^ ((type >>> 8) & 0xff)) * FNV_PRIME;
+            h = hashName(h, name);
+        } else if (category == CATEGORY_NXDOMAIN) {
+            h = hashName(h, zone);
+        }
+
+        // final avalanche, so that both slot index and fingerprint are usable
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hashName(long h, CharSequence name) {
+        if (name == null) {
+            return h;
+        }
+
+        // trailing dot is optional
+        int len = name.length();
+        if (len > 0 && name.charAt(len - 1) == '.') {
+            len--;
+        }
+        for (int i = 0; i < len; i++) {
+            h = (h ^ toLowerCase(name.charAt(i))) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int category(DnsResponseCode code) {
+        if (DnsResponseCode.NOERROR.equals(code)) {
+            return CATEGORY_RESPONSE;
+        }
+        return DnsResponseCode.NXDOMAIN.equals(code) ? CATEGORY_NXDOMAIN : CATEGORY_ERROR;
+    }
+
+    private static char toLowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Returns number of responses that exceeded the limit, including responses that were sent in dry-run mode.
+     *
+     * @return number of limited responses
+     */
+    long getLimited() {
+        return limited.sum();
+    }
+
+    /**
+     * Returns number of limited responses that were replaced by truncated responses.
+     *
+     * @return number of slipped responses
+     */
+    long getSlipped() {
+        return slipped.sum();
+    }
+
+    /**
+     * Returns number of limited responses that were dropped.
+     *
+     * @return number of dropped responses
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("rate_limited_responses_total", "counter",
+                "Number of UDP responses that exceeded response rate limit.", getLimited());
+        out.metric("rate_limit_slipped_responses_total", "counter",
+                "Number of rate limited UDP responses replaced by truncated responses.", getSlipped());
+        out.metric("rate_limit_dropped_responses_total", "counter",
+                "Number of rate limited UDP responses that were dropped.", getDropped());
+    }
+
+    /**
+     * Returns number of buckets.
+     *
+     * @return table size
+     */
+    int getTableSize() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns number of identical responses per second allowed for single client network.
+     *
+     * @return responses per second
+     */
+    int getResponsesPerSecond() {
+        return responsesPerSecond;
+    }
+
+    /**
+     * Tells whether limiter only counts limited responses.
+     *
+     * @return true/false
+     */
+    boolean isDryRun() {
+        return dryRun;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(responsesPerSecond=" + responsesPerSecond + ", slip=" + slip +
+                ", dryRun=" + dryRun + ", buckets=" + getTableSize() + ")";
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable reverse index of eureka registry: maps instance addresses to PTR record payloads, so that reverse lookups
+ * ({@code in-addr.arpa} and {@code ip6.arpa} queries) can be answered without parsing or encoding anything.
+ *
+ * <p>Address resolves to hostnames of instances registered with it; instances that are registered with their IP
+ * address as hostname resolve to the name of their service ({@code <service>.service[.<datacenter>].<domain>})
+ * instead.</p>
+ *
+ * <p>Addresses are stored in open addressing hash tables with primitive {@code int} keys for IPv4 and 16 byte array
+ * keys for IPv6, so that lookups don't allocate.</p>
+ *
+ * @see RegistryIndex
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.5">RFC 1035, section 3.5 :: IN-ADDR.ARPA domain</a>
+ * @see <a href="https://tools.ietf.org/html/rfc3596#section-2.5">RFC 3596, section 2.5 :: IP6.ARPA domain</a>
+ */
+@Slf4j
+final class ReverseIndex {
+    /**
+     * Result of {@link #parseName(String, byte[])}: name is not a valid reverse lookup name.
+     */
+    static final int INVALID_NAME = -1;
+
+    /**
+     * Result of {@link #parseName(String, byte[])}: name is a valid reverse lookup name of an address block, not of a
+     * single address.
+     */
+    static final int PARTIAL_NAME = 0;
+
+    /**
+     * Empty index.
+     */
+    static final ReverseIndex EMPTY = new ReverseIndex(new HashMap<>(), new HashMap<>());
+
+    private static final String IPV4_SUFFIX = "in-addr.arpa";
+    private static final String IPV6_SUFFIX = "ip6.arpa";
+
+    private final int[] ipv4Keys;
+    private final byte[][][] ipv4Values;
+    private final byte[][] ipv6Keys;
+    private final byte[][][] ipv6Values;
+    private final int ipv4Size;
+    private final int ipv6Size;
+
+    private ReverseIndex(Map<Integer, byte[][]> ipv4, Map<ByteBuffer, byte[][]> ipv6) {
+        this.ipv4Keys = new int[tableSize(ipv4.size())];
+        this.ipv4Values = new byte[ipv4Keys.length][][];
+        ipv4.forEach((key, value) -> {
+            int i = slot(hash(key), ipv4Keys.length);
+            while (ipv4Values[i] != null) {
+                i = (i + 1) & (ipv4Keys.length - 1);
+            }
+            ipv4Keys[i] = key;
+            ipv4Values[i] = value;
+        });
+
+        this.ipv6Keys = new byte[tableSize(ipv6.size())][];
+        this.ipv6Values = new byte[ipv6Keys.length][][];
+        ipv6.forEach((key, value) -> {
+            val addr = key.array();
+            int i = slot(hash(addr), ipv6Keys.length);
+            while (ipv6Keys[i] != null) {
+                i = (i + 1) & (ipv6Keys.length - 1);
+            }
+            ipv6Keys[i] = addr;
+            ipv6Values[i] = value;
+        });
+
+        this.ipv4Size = ipv4.size();
+        this.ipv6Size = ipv6.size();
+    }
+
+    /**
+     * Builds reverse index of given registry index.
+     *
+     * @param index  registry index
+     * @param domain eureka top level domain, without prefixing/suffixing dot.
+     * @return reverse index
+     */
+    static ReverseIndex build(@NonNull RegistryIndex index, @NonNull String domain) {
+        val ipv4 = new HashMap<Integer, Set<String>>();
+        val ipv6 = new HashMap<ByteBuffer, Set<String>>();
+
+        // sorted, so that names of addresses shared by multiple services are always in the same order
+        for (Map.Entry<String, Map<String, ServiceEntry>> region : new TreeMap<>(index.getRegions()).entrySet()) {
+            val suffix = ".service." + (region.getKey().isEmpty() ? "" : region.getKey() + ".") + domain;
+            for (ServiceEntry entry : new TreeMap<>(region.getValue()).values()) {
+                val serviceName = entry.getName() + suffix;
+                val hostnames = hostnames(entry);
+                for (byte[] addr : entry.getIpv4Addresses()) {
+                    addNames(ipv4.computeIfAbsent(ByteBuffer.wrap(addr).getInt(), k -> new LinkedHashSet<>()),
+                            hostnames.get(ByteBuffer.wrap(addr)), serviceName);
+                }
+                for (byte[] addr : entry.getIpv6Addresses()) {
+                    addNames(ipv6.computeIfAbsent(ByteBuffer.wrap(addr), k -> new LinkedHashSet<>()),
+                            hostnames.get(ByteBuffer.wrap(addr)), serviceName);
+                }
+            }
+        }
+
+        val encoded = new HashMap<String, byte[]>();
+        val ipv4RData = new LinkedHashMap<Integer, byte[][]>();
+        ipv4.forEach((addr, names) -> put(ipv4RData, addr, encode(names, encoded)));
+        val ipv6RData = new LinkedHashMap<ByteBuffer, byte[][]>();
+        ipv6.forEach((addr, names) -> put(ipv6RData, addr, encode(names, encoded)));
+        return new ReverseIndex(ipv4RData, ipv6RData);
+    }
+
+    /**
+     * Returns hostnames of service instances that are not registered with their IP address as hostname.
+     *
+     * @param entry service entry
+     * @return address -&gt; hostnames
+     */
+    private static Map<ByteBuffer, Set<String>> hostnames(ServiceEntry entry) {
+        val result = new HashMap<ByteBuffer, Set<String>>();
+        val targets = entry.getSrvTargets();
+        val addresses = entry.getSrvTargetAddresses();
+        for (int i = 0; i < targets.length; i++) {
+            result.computeIfAbsent(ByteBuffer.wrap(addresses[i]), k -> new LinkedHashSet<>()).add(targets[i]);
+        }
+        return result;
+    }
+
+    private static void addNames(Set<String> names, Set<String> hostnames, String serviceName) {
+        if (hostnames == null) {
+            names.add(serviceName);
+        } else {
+            names.addAll(hostnames);
+        }
+    }
+
+    private static <K> void put(Map<K, byte[][]> map, K key, byte[][] value) {
+        if (value.length > 0) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Encodes PTR record payloads; payload of every distinct name is encoded only once, names that can't be encoded
+     * are skipped.
+     */
+    private static byte[][] encode(Collection<String> names, Map<String, byte[]> encoded) {
+        val result = new ArrayList<byte[]>(names.size());
+        for (String name : names) {
+            val rdata = encoded.computeIfAbsent(name, ReverseIndex::encodeName);
+            if (rdata.length > 0) {
+                result.add(rdata);
+            }
+        }
+        return result.toArray(new byte[0][]);
+    }
+
+    private static byte[] encodeName(String name) {
+        val buf = Unpooled.buffer();
+        try {
+            return ByteBufUtil.getBytes(DnsMessages.encodeName(name, buf));
+        } catch (IllegalArgumentException e) {
+            log.warn("ignoring instance hostname that is not a valid dns name: '{}'", name);
+            return new byte[0];
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Looks up PTR record payloads of given address.
+     *
+     * @param addr   buffer containing address
+     * @param length address length, either 4 or 16 bytes
+     * @return encoded PTR record payloads, {@code null} if address is not registered.
+     */
+    byte[][] lookup(@NonNull byte[] addr, int length) {
+        if (length == 4) {
+            return lookup((addr[0] & 0xff) << 24 | (addr[1] & 0xff) << 16 | (addr[2] & 0xff) << 8 | (addr[3] & 0xff));
+        }
+
+        int i = slot(hash(addr), ipv6Keys.length);
+        byte[] key;
+        while ((key = ipv6Keys[i]) != null) {
+            if (equals(key, addr)) {
+                return ipv6Values[i];
+            }
+            i = (i + 1) & (ipv6Keys.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up PTR record payloads of given IPv4 address.
+     *
+     * @param addr IPv4 address in network byte order
+     * @return encoded PTR record payloads, {@code null} if address is not registered.
+     */
+    byte[][] lookup(int addr) {
+        int i = slot(hash(addr), ipv4Keys.length);
+        byte[][] value;
+        while ((value = ipv4Values[i]) != null) {
+            if (ipv4Keys[i] == addr) {
+                return value;
+            }
+            i = (i + 1) & (ipv4Keys.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Returns number of indexed addresses.
+     *
+     * @return number of addresses
+     */
+    int size() {
+        return ipv4Size + ipv6Size;
+    }
+
+    /**
+     * Parses reverse lookup name, such as {@code 4.3.2.1.in-addr.arpa.} or
+     * {@code b.a.9.8.7.6.5.0.4.0.0.0.3.0.0.0.2.0.0.0.1.0.0.0.0.0.0.0.1.2.3.4.ip6.arpa.}; doesn't allocate.
+     *
+     * @param name lowercased dns name, trailing dot is optional
+     * @param addr buffer at least 16 bytes long, address bytes are written to it
+     * @return address length (4 or 16) if name is a reverse lookup name of a single address,
+     *         {@link #PARTIAL_NAME} if name is a reverse lookup name of an address block (such as {@code 10.in-addr.arpa})
+     *         and {@link #INVALID_NAME} otherwise.
+     */
+    static int parseName(@NonNull String name, @NonNull byte[] addr) {
+        val end = name.endsWith(".") ? name.length() - 1 : name.length();
+        if (endsWithLabel(name, end, IPV4_SUFFIX)) {
+            return parseIpv4(name, end - IPV4_SUFFIX.length(), addr);
+        } else if (endsWithLabel(name, end, IPV6_SUFFIX)) {
+            return parseIpv6(name, end - IPV6_SUFFIX.length(), addr);
+        }
+        return INVALID_NAME;
+    }
+
+    /**
+     * Parses octet labels in reverse order, for example {@code 4.3.2.1.}
+     */
+    private static int parseIpv4(String name, int end, byte[] addr) {
+        int labels = 0;
+        int value = -1;
+        for (int i = 0; i < end; i++) {
+            val c = name.charAt(i);
+            if (c == '.') {
+                if (value < 0 || labels == 4) {
+                    return INVALID_NAME;
+                }
+                addr[labels++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9' && value != 0) {
+                value = Math.max(value, 0) * 10 + (c - '0');
+                if (value > 255) {
+                    return INVALID_NAME;
+                }
+            } else {
+                // non-digits and octets with leading zeros
+                return INVALID_NAME;
+            }
+        }
+        if (value >= 0) {
+            return INVALID_NAME;
+        }
+        if (labels < 4) {
+            return PARTIAL_NAME;
+        }
+
+        // labels are in reverse order
+        swap(addr, 0, 3);
+        swap(addr, 1, 2);
+        return 4;
+    }
+
+    /**
+     * Parses nibble labels in reverse order, for example {@code b.a.9.}
+     */
+    private static int parseIpv6(String name, int end, byte[] addr) {
+        if (end % 2 != 0) {
+            return INVALID_NAME;
+        }
+        val nibbles = end / 2;
+        if (nibbles > 32) {
+            return INVALID_NAME;
+        }
+        for (int i = 0; i < nibbles; i++) {
+            val nibble = Character.digit(name.charAt(i * 2), 16);
+            if (nibble < 0 || name.charAt(i * 2 + 1) != '.') {
+                return INVALID_NAME;
+            }
+            if (nibbles == 32) {
+                val pos = 31 - i;
+                addr[pos / 2] = (byte) ((pos % 2 == 0) ? (addr[pos / 2] & 0x0f) | nibble << 4 :
+                        (addr[pos / 2] & 0xf0) | nibble);
+            }
+        }
+        return (nibbles == 32) ? 16 : PARTIAL_NAME;
+    }
+
+    /**
+     * Tells whether the first {@code end} characters of given name are equal to given label sequence or end with it.
+     */
+    private static boolean endsWithLabel(String name, int end, String suffix) {
+        val start = end - suffix.length();
+        return start >= 0 && name.regionMatches(start, suffix, 0, suffix.length()) &&
+                (start == 0 || name.charAt(start - 1) == '.');
+    }
+
+    private static void swap(byte[] arr, int i, int j) {
+        val tmp = arr[i];
+        arr[i] = arr[j];
+        arr[j] = tmp;
+    }
+
+    private static boolean equals(byte[] key, byte[] addr) {
+        for (int i = 0; i < 16; i++) {
+            if (key[i] != addr[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int key) {
+        // murmur3 32-bit finalizer
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int hash(byte[] addr) {
+        int h = 0;
+        for (int i = 0; i < 16; i += 4) {
+            h = h * 31 + ((addr[i] & 0xff) << 24 | (addr[i + 1] & 0xff) << 16 | (addr[i + 2] & 0xff) << 8 |
+                    (addr[i + 3] & 0xff));
+        }
+        return hash(h);
+    }
+
+    private static int slot(int hash, int tableSize) {
+        return hash & (tableSize - 1);
+    }
+
+    /**
+     * Returns hash table size for given number of keys: power of two that keeps load factor at most 0.5.
+     */
+    private static int tableSize(int numKeys) {
+        return Integer.highestOneBit(Math.max(numKeys, 1) * 4 - 1);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(ipv4=" + ipv4Size + ", ipv6=" + ipv6Size + ")";
+    }
+}
@@ -0,0 +1,445 @@
+package com.github.bfg.eureka.dns;
+
+import com.google.common.net.InetAddresses;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.appinfo.InstanceInfo.PortType;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Immutable, query-ready view of a single eureka application in a single region; contains only instances with status
+ * {@link InstanceStatus#UP} and all record payloads are pre-encoded, so that responding to a query doesn't require any
+ * parsing or encoding.
+ *
+ * <p>Arrays returned by getters are shared and must not be modified.</p>
+ */
+@Slf4j
+@Getter
+final class ServiceEntry {
+    /**
+     * SRV record priority.
+     */
+    static final int SRV_PRIORITY = 1;
+
+    /**
+     * SRV record weight.
+     */
+    static final int SRV_WEIGHT = 10;
+
+    /**
+     * Lowercased service name.
+     */
+    private final String name;
+
+    /**
+     * Fingerprint of instances this entry was created from.
+     *
+     * @see #fingerprint(Collection)
+     */
+    private final long fingerprint;
+
+    /**
+     * IPv4 addresses of instances, 4 bytes each.
+     */
+    private final byte[][] ipv4Addresses;
+
+    /**
+     * IPv6 addresses of instances, 16 bytes each.
+     */
+    private final byte[][] ipv6Addresses;
+
+    /**
+     * Distinct instance base urls.
+     */
+    private final String[] urls;
+
+    /**
+     * Encoded TXT record payloads containing {@link #getUrls()}.
+     */
+    private final byte[][] txtRData;
+
+    /**
+     * SRV targets (instance hostnames); instances that are registered with IP address as hostname are not present,
+     * because SRV target needs to be a valid DNS name.
+     */
+    private final String[] srvTargets;
+
+    /**
+     * SRV target ports.
+     */
+    private final int[] srvPorts;
+
+    /**
+     * Encoded SRV record payloads for {@link #getSrvTargets()}.
+     */
+    private final byte[][] srvRData;
+
+    /**
+     * Addresses of {@link #getSrvTargets()}, either 4 or 16 bytes long.
+     */
+    private final byte[][] srvTargetAddresses;
+
+    /**
+     * Ids of instances, in the same order as {@link #getInstanceAddresses()}.
+     */
+    private final String[] instanceIds;
+
+    /**
+     * Hostnames of instances, empty string if instance is registered with IP address as hostname.
+     */
+    private final String[] instanceHostnames;
+
+    /**
+     * Addresses of instances, either 4 or 16 bytes long.
+     */
+    private final byte[][] instanceAddresses;
+
+    /**
+     * Indexes of instance urls in {@link #getUrls()}.
+     */
+    private final int[] instanceUrlIndexes;
+
+    /**
+     * Round-robin cursor; retained when entry is reused by incrementally rebuilt index.
+     *
+     * @see AnswerOrder#ROUND_ROBIN
+     */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private ServiceEntry(String name, long fingerprint,
+                         Collection<byte[]> ipv4Addresses, Collection<byte[]> ipv6Addresses,
+                         Collection<String> urls, Collection<Srv> srvs, Collection<Instance> instances) {
+        this.name = name;
+        this.fingerprint = fingerprint;
+        this.ipv4Addresses = ipv4Addresses.toArray(new byte[0][]);
+        this.ipv6Addresses = ipv6Addresses.toArray(new byte[0][]);
+        this.urls = urls.toArray(new String[0]);
+        this.txtRData = urls.stream().map(ServiceEntry::encodeRDataTXT).toArray(byte[][]::new);
+        this.srvTargets = srvs.stream().map(e -> e.target).toArray(String[]::new);
+        this.srvPorts = srvs.stream().mapToInt(e -> e.port).toArray();
+        this.srvRData = srvs.stream().map(e -> e.rdata).toArray(byte[][]::new);
+        this.srvTargetAddresses = srvs.stream().map(e -> e.address).toArray(byte[][]::new);
+        this.instanceIds = instances.stream().map(e -> e.id).toArray(String[]::new);
+        this.instanceHostnames = instances.stream().map(e -> e.hostname).toArray(String[]::new);
+        this.instanceAddresses = instances.stream().map(e -> e.address).toArray(byte[][]::new);
+        this.instanceUrlIndexes = instances.stream().mapToInt(e -> e.urlIndex).toArray();
+    }
+
+    private ServiceEntry(String name, long fingerprint, byte[][] ipv4Addresses, byte[][] ipv6Addresses,
+                         String[] urls, byte[][] txtRData, String[] srvTargets, int[] srvPorts, byte[][] srvRData,
+                         byte[][] srvTargetAddresses, String[] instanceIds, String[] instanceHostnames,
+                         byte[][] instanceAddresses, int[] instanceUrlIndexes) {
+        this.name = name;
+        this.fingerprint = fingerprint;
+        this.ipv4Addresses = ipv4Addresses;
+        this.ipv6Addresses = ipv6Addresses;
+        this.urls = urls;
+        this.txtRData = txtRData;
+        this.srvTargets = srvTargets;
+        this.srvPorts = srvPorts;
+        this.srvRData = srvRData;
+        this.srvTargetAddresses = srvTargetAddresses;
+        this.instanceIds = instanceIds;
+        this.instanceHostnames = instanceHostnames;
+        this.instanceAddresses = instanceAddresses;
+        this.instanceUrlIndexes = instanceUrlIndexes;
+    }
+
+    /**
+     * Restores service entry from its persisted state, without re-encoding record payloads.
+     *
+     * @param name               lowercased service name
+     * @param fingerprint        fingerprint of instances entry was created from
+     * @param ipv4Addresses      IPv4 addresses of instances
+     * @param ipv6Addresses      IPv6 addresses of instances
+     * @param urls               distinct instance base urls
+     * @param txtRData           encoded TXT record payloads
+     * @param srvTargets         SRV targets
+     * @param srvPorts           SRV target ports
+     * @param srvRData           encoded SRV record payloads
+     * @param srvTargetAddresses addresses of SRV targets
+     * @param instanceIds        instance ids
+     * @param instanceHostnames  instance hostnames
+     * @param instanceAddresses  instance addresses
+     * @param instanceUrlIndexes indexes of instance urls in {@code urls}
+     * @return service entry
+     * @throws IllegalArgumentException if array lengths or url indexes are inconsistent
+     * @see RegistrySnapshot
+     */
+    static ServiceEntry restore(@NonNull String name, long fingerprint,
+                                @NonNull byte[][] ipv4Addresses, @NonNull byte[][] ipv6Addresses,
+                                @NonNull String[] urls, @NonNull byte[][] txtRData,
+                                @NonNull String[] srvTargets, @NonNull int[] srvPorts, @NonNull byte[][] srvRData,
+                                @NonNull byte[][] srvTargetAddresses,
+                                @NonNull String[] instanceIds, @NonNull String[] instanceHostnames,
+                                @NonNull byte[][] instanceAddresses, @NonNull int[] instanceUrlIndexes) {
+        if (urls.length != txtRData.length || srvTargets.length != srvPorts.length ||
+                srvTargets.length != srvRData.length || srvTargets.length != srvTargetAddresses.length ||
+                instanceIds.length != instanceHostnames.length || instanceIds.length != instanceAddresses.length ||
+                instanceIds.length != instanceUrlIndexes.length) {
+            throw new IllegalArgumentException("Inconsistent service entry: " + name);
+        }
+        for (int urlIndex : instanceUrlIndexes) {
+            if (urlIndex < 0 || urlIndex >= urls.length) {
+                throw new IllegalArgumentException("Inconsistent service entry: " + name);
+            }
+        }
+        return new ServiceEntry(name, fingerprint, ipv4Addresses, ipv6Addresses, urls, txtRData,
+                srvTargets, srvPorts, srvRData, srvTargetAddresses,
+                instanceIds, instanceHostnames, instanceAddresses, instanceUrlIndexes);
+    }
+
+    /**
+     * Creates entry of a single node, answering A/AAAA and TXT queries with addresses and urls of instances running
+     * on it; node entries don't have SRV targets nor instances of their own.
+     *
+     * @param name          lowercased node name
+     * @param ipv4Addresses IPv4 addresses of node instances
+     * @param ipv6Addresses IPv6 addresses of node instances
+     * @param urls          distinct instance urls
+     * @param txtRData      encoded TXT record payloads of {@code urls}
+     * @return node entry
+     * @see NodeIndex
+     */
+    static ServiceEntry node(@NonNull String name, @NonNull Collection<byte[]> ipv4Addresses,
+                             @NonNull Collection<byte[]> ipv6Addresses, @NonNull Collection<String> urls,
+                             @NonNull Collection<byte[]> txtRData) {
+        return restore(name, 0, ipv4Addresses.toArray(new byte[0][]), ipv6Addresses.toArray(new byte[0][]),
+                urls.toArray(new String[0]), txtRData.toArray(new byte[0][]),
+                new String[0], new int[0], new byte[0][], new byte[0][],
+                new String[0], new String[0], new byte[0][], new int[0]);
+    }
+
+    /**
+     * Creates service entry from eureka application instances.
+     *
+     * @param name      lowercased service name
+     * @param instances application instances
+     * @return service entry
+     */
+    static ServiceEntry create(@NonNull String name, @NonNull Collection<InstanceInfo> instances) {
+        val ipv4 = new ArrayList<byte[]>();
+        val ipv6 = new ArrayList<byte[]>();
+        val urls = new LinkedHashMap<String, Integer>();
+        val srvs = new ArrayList<Srv>();
+        val nodes = new ArrayList<Instance>();
+
+        for (InstanceInfo instance : instances) {
+            if (instance == null || instance.getStatus() != InstanceStatus.UP) {
+                continue;
+            }
+
+            val address = parseAddress(instance);
+            if (address == null) {
+                continue;
+            }
+
+            val addrBytes = address.getAddress();
+            if (address instanceof Inet4Address) {
+                ipv4.add(addrBytes);
+            } else {
+                ipv6.add(addrBytes);
+            }
+
+            val hostname = instance.getHostName();
+            val url = toInstanceUrlAddress(instance, hostname);
+            urls.putIfAbsent(url, urls.size());
+
+            // if instance is registered with it's IP address as hostname, we cannot construct DNS SRV
+            // record, because it needs to be a valid DNS name.
+            val validHostname = hostname != null && !hostname.isEmpty() &&
+                    !Objects.equals(instance.getIPAddr(), hostname);
+            if (validHostname) {
+                val port = getInstancePort(instance);
+                val rdata = encodeRDataSRV(hostname, port);
+                if (rdata != null) {
+                    srvs.add(new Srv(hostname, port, rdata, addrBytes));
+                }
+            }
+            nodes.add(new Instance(Objects.toString(instance.getId(), ""), validHostname ? hostname : "",
+                    addrBytes, urls.get(url)));
+        }
+
+        return new ServiceEntry(name, fingerprint(instances), ipv4, ipv6, urls.keySet(), srvs, nodes);
+    }
+
+    /**
+     * Computes fingerprint of given application instances; fingerprint covers all instance properties that service
+     * entry depends on and doesn't depend on the instance order, because eureka client shuffles instances on every
+     * registry fetch. Fingerprint is stable across JVM runs, so that entries restored from registry snapshot can be
+     * reused as well.
+     *
+     * @param instances application instances
+     * @return fingerprint
+     */
+    static long fingerprint(@NonNull Collection<InstanceInfo> instances) {
+        long result = instances.size();
+        for (InstanceInfo instance : instances) {
+            if (instance != null) {
+                result += fingerprint(instance);
+            }
+        }
+        return result;
+    }
+
+    private static long fingerprint(InstanceInfo instance) {
+        long h = mix(Objects.hashCode(instance.getId()));
+        h = mix(h ^ Objects.hashCode((instance.getStatus() == null) ? null : instance.getStatus().name()));
+        h = mix(h ^ Objects.hashCode(instance.getIPAddr()));
+        h = mix(h ^ Objects.hashCode(instance.getHostName()));
+        h = mix(h ^ instance.getPort());
+        h = mix(h ^ instance.getSecurePort());
+        h = mix(h ^ ((instance.isPortEnabled(PortType.UNSECURE) ? 1 : 0) |
+                (instance.isPortEnabled(PortType.SECURE) ? 2 : 0)));
+        return mix(h ^ Objects.hashCode(instance.getLastDirtyTimestamp()));
+    }
+
+    /**
+     * 64-bit murmur3 finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Tells whether entry doesn't contain any instances.
+     *
+     * @return true/false
+     */
+    boolean isEmpty() {
+        return ipv4Addresses.length == 0 && ipv6Addresses.length == 0;
+    }
+
+    /**
+     * Retrieves IP address from instance info.
+     *
+     * @param instanceInfo instance info
+     * @return inet address, {@code null} if instance info contains badly formatted ip address.
+     */
+    private static java.net.InetAddress parseAddress(InstanceInfo instanceInfo) {
+        try {
+            return InetAddresses.forString(instanceInfo.getIPAddr());
+        } catch (RuntimeException e) {
+            log.warn("ignoring eureka instance {} with invalid ip address: '{}'",
+                    instanceInfo.getId(), instanceInfo.getIPAddr());
+            return null;
+        }
+    }
+
+    /**
+     * Construct given instance url.
+     *
+     * @param instanceInfo instance info
+     * @param hostname     hostname to use in url
+     * @return instance url address
+     */
+    private static String toInstanceUrlAddress(InstanceInfo instanceInfo, String hostname) {
+        val isSecure = instanceInfo.isPortEnabled(PortType.SECURE);
+        val port = getInstancePort(instanceInfo);
+        val scheme = "http" + ((isSecure) ? "s" : "") + "://";
+        val portStr = ((isSecure && port == 443) || (!isSecure && port == 80)) ? "" : ":" + port;
+        return scheme + hostname + portStr + "/";
+    }
+
+    /**
+     * Returns instance port.
+     *
+     * @param instanceInfo instance info
+     * @return instance port based on {@link InstanceInfo#isPortEnabled(PortType)}
+     */
+    private static int getInstancePort(InstanceInfo instanceInfo) {
+        return (instanceInfo.isPortEnabled(PortType.SECURE)) ?
+                instanceInfo.getSecurePort() : instanceInfo.getPort();
+    }
+
+    /**
+     * Encodes given string to DNS TXT record payload.
+     *
+     * @param str string to encode
+     * @return given string as TXT record payload.
+     */
+    private static byte[] encodeRDataTXT(String str) {
+        val bytes = str.getBytes(US_ASCII);
+        val maxBytes = Math.min(255, bytes.length);
+        val buf = Unpooled.buffer(maxBytes + 1)
+                .writeByte(maxBytes)
+                .writeBytes(bytes, 0, maxBytes);
+        return ByteBufUtil.getBytes(buf);
+    }
+
+    /**
+     * Encodes DNS SRV record payload.
+     *
+     * @param target target hostname
+     * @param port   target port
+     * @return SRV record payload, {@code null} if target is not a valid dns name.
+     */
+    private static byte[] encodeRDataSRV(String target, int port) {
+        val buf = Unpooled.buffer();
+        try {
+            buf.writeShort(SRV_PRIORITY);
+            buf.writeShort(SRV_WEIGHT);
+            buf.writeShort(port);
+            DnsMessages.encodeName(target, buf);
+            return ByteBufUtil.getBytes(buf);
+        } catch (IllegalArgumentException e) {
+            log.warn("ignoring SRV target of instance hostname that is not a valid dns name: '{}'", target);
+            return null;
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Instance of the service.
+     */
+    private static final class Instance {
+        private final String id;
+        private final String hostname;
+        private final byte[] address;
+        private final int urlIndex;
+
+        private Instance(String id, String hostname, byte[] address, int urlIndex) {
+            this.id = id;
+            this.hostname = hostname;
+            this.address = address;
+            this.urlIndex = urlIndex;
+        }
+    }
+
+    /**
+     * SRV target.
+     */
+    private static final class Srv {
+        private final String target;
+        private final int port;
+        private final byte[] rdata;
+        private final byte[] address;
+
+        private Srv(String target, int port, byte[] rdata, byte[] address) {
+            this.target = target;
+            this.port = port;
+            this.rdata = rdata;
+            this.address = address;
+        }
+    }
+}
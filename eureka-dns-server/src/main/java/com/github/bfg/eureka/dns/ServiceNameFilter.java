@@ -0,0 +1,185 @@
+package com.github.bfg.eureka.dns;
+
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * Compact probabilistic membership filter (bloom filter) of known service names; used to reject queries for unknown
+ * services without materializing service and datacenter names from the query name.
+ *
+ * <p>Filter never reports known service as unknown; unknown service may be reported as known with probability
+ * {@link #getExpectedFalsePositiveRate()}. Names are compared case-insensitively.</p>
+ *
+ * @see RegistryIndex#getServiceFilter()
+ * @see <a href="https://en.wikipedia.org/wiki/Bloom_filter">Bloom filter</a>
+ */
+final class ServiceNameFilter {
+    /**
+     * Target false positive rate.
+     */
+    static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Minimum filter size in bits.
+     */
+    private static final int MIN_BITS = 64;
+
+    /**
+     * Maximum filter size in bits.
+     */
+    private static final int MAX_BITS = 1 << 30;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] bits;
+    private final int mask;
+    private final int numHashes;
+    private int numEntries;
+
+    /**
+     * Creates new empty filter sized for given number of entries and false positive rate.
+     *
+     * @param expectedEntries   expected number of entries
+     * @param falsePositiveRate target false positive rate
+     */
+    ServiceNameFilter(int expectedEntries, double falsePositiveRate) {
+        if (expectedEntries < 0) {
+            throw new IllegalArgumentException("Invalid number of expected entries: " + expectedEntries);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+        }
+
+        val n = Math.max(expectedEntries, 1);
+        val optimalBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        val numBits = (int) Math.min(MAX_BITS, Math.max(MIN_BITS, Long.highestOneBit(optimalBits - 1) << 1));
+
+        this.bits = new long[numBits >>> 6];
+        this.mask = numBits - 1;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    /**
+     * Adds service to the filter; filter must not be modified after it's published.
+     *
+     * @param serviceName service name
+     * @param region      region (datacenter) name, use {@code "" / empty string} for default region
+     * @return reference to itself
+     */
+    ServiceNameFilter add(@NonNull CharSequence serviceName, @NonNull CharSequence region) {
+        val hash = hash(serviceName, 0, serviceName.length(), region, 0, region.length());
+        val h1 = (int) hash;
+        val h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            val bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        numEntries++;
+        return this;
+    }
+
+    /**
+     * Tells whether service found in parsed query name might be known.
+     *
+     * @param parsed parsed query name
+     * @return false if service is definitely unknown, true if it might be known.
+     */
+    boolean mightContain(@NonNull ParsedQueryName parsed) {
+        val name = parsed.name();
+        return name != null && mightContain(hash(name, parsed.serviceStart, parsed.serviceEnd,
+                name, parsed.datacenterStart, parsed.datacenterEnd));
+    }
+
+    /**
+     * Tells whether given service might be known.
+     *
+     * @param serviceName service name
+     * @param region      region (datacenter) name, use {@code "" / empty string} for default region
+     * @return false if service is definitely unknown, true if it might be known.
+     */
+    boolean mightContain(@NonNull CharSequence serviceName, @NonNull CharSequence region) {
+        return mightContain(hash(serviceName, 0, serviceName.length(), region, 0, region.length()));
+    }
+
+    private boolean mightContain(long hash) {
+        val h1 = (int) hash;
+        val h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            val bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns filter size.
+     *
+     * @return filter size in bits
+     */
+    int getNumBits() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns number of hash functions.
+     *
+     * @return number of hash functions
+     */
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Returns number of added entries.
+     *
+     * @return number of entries
+     */
+    int getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * Returns expected false positive rate given current number of entries.
+     *
+     * @return false positive probability
+     */
+    double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * numEntries / getNumBits()), numHashes);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(entries=" + numEntries + ", bits=" + getNumBits() +
+                ", hashes=" + numHashes + ")";
+    }
+
+    /**
+     * Computes case-insensitive 64 bit hash of service and region name.
+     */
+    private static long hash(CharSequence service, int serviceStart, int serviceEnd,
+                             CharSequence region, int regionStart, int regionEnd) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = serviceStart; i < serviceEnd; i++) {
+            h = (h ^ toLowerCase(service.charAt(i))) * FNV_PRIME;
+        }
+        h = (h ^ '/') * FNV_PRIME;
+        for (int i = regionStart; i < regionEnd; i++) {
+            h = (h ^ toLowerCase(region.charAt(i))) * FNV_PRIME;
+        }
+
+        // final avalanche, so that both halves of the hash are usable
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static char toLowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+}
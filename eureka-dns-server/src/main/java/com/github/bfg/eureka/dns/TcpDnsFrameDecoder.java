@@ -0,0 +1,48 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Splits TCP stream into DNS messages prefixed with two byte length and wraps each message into a datagram packet, so
+ * that it can be decoded by {@link DatagramDnsQueryDecoder} and answered by {@link DnsQueryHandler} exactly the same
+ * way as UDP queries. Responses need to be prefixed with their length by {@link LengthFieldPrepender}.
+ *
+ * <p>Any number of queries can be sent over a single connection without waiting for responses; every query is
+ * answered as soon as it's decoded.</p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7766">RFC 7766 :: DNS Transport over TCP - Implementation
+ *         Requirements</a>
+ */
+final class TcpDnsFrameDecoder extends LengthFieldBasedFrameDecoder {
+    /**
+     * Maximum DNS message size over TCP.
+     */
+    static final int MAX_MESSAGE_SIZE = 65535;
+
+    /**
+     * Creates new instance.
+     */
+    TcpDnsFrameDecoder() {
+        super(MAX_MESSAGE_SIZE + 2, 0, 2, 0, 2);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        val frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            return null;
+        }
+
+        val channel = ctx.channel();
+        return new DatagramPacket(frame,
+                (InetSocketAddress) channel.localAddress(), (InetSocketAddress) channel.remoteAddress());
+    }
+}
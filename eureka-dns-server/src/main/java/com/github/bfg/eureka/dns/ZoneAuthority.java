@@ -0,0 +1,188 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.NonNull;
+import lombok.val;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Authority data of the eureka dns zone: RDATA of zone SOA and NS records and addresses of name server host (glue)
+ * records. Data is encoded once and shared by all responses; SOA record is re-encoded only when registry index
+ * version changes.
+ *
+ * <p>SOA serial is derived from registry index version, so that it changes only when registry contents change. Index
+ * version is offset by server start time in seconds, so that serial keeps increasing after server restart.</p>
+ *
+ * @see RegistryIndex#getVersion()
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.3.13">RFC 1035, section 3.3.13 :: SOA RDATA
+ *         format</a>
+ */
+final class ZoneAuthority {
+    private final DnsServerConfig config;
+    private final String nsHostname;
+    private final String hostmaster;
+    private final long serialBase;
+    private final byte[] nsRData;
+
+    /**
+     * Server address -&gt; address bytes of name server host record.
+     */
+    private final ConcurrentMap<InetAddress, byte[]> hostAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Last encoded SOA record.
+     */
+    private volatile Soa soa;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config configuration
+     */
+    ZoneAuthority(@NonNull DnsServerConfig config) {
+        this(config, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param config     configuration
+     * @param serialBase value added to registry index version to form SOA serial
+     */
+    ZoneAuthority(@NonNull DnsServerConfig config, long serialBase) {
+        this.config = config;
+        this.nsHostname = "ns." + config.getDomain();
+        this.hostmaster = "hostmaster." + config.getDomain();
+        this.serialBase = serialBase;
+        this.nsRData = toByteArray(DnsMessages.encodeName(nsHostname, Unpooled.buffer()));
+    }
+
+    /**
+     * Returns hostname of the eureka dns server, used as name server name in NS and SOA records.
+     *
+     * @return name server hostname
+     */
+    String getNsHostname() {
+        return nsHostname;
+    }
+
+    /**
+     * Returns NS record RDATA.
+     *
+     * @return uncompressed NS record RDATA, must not be modified.
+     */
+    byte[] getNsRData() {
+        return nsRData;
+    }
+
+    /**
+     * Returns SOA record RDATA for given registry index version; only the record of the latest version is retained,
+     * records of older versions (needed by incremental zone transfers) are encoded every time.
+     *
+     * @param version registry index version
+     * @return uncompressed SOA record RDATA, must not be modified.
+     */
+    byte[] getSoaRData(long version) {
+        val current = soa;
+        if (current != null && current.version == version) {
+            return current.rdata;
+        }
+
+        val encoded = new Soa(version, encodeRDataSOA(getSerial(version)));
+        if (current == null || version > current.version) {
+            this.soa = encoded;
+        }
+        return encoded.rdata;
+    }
+
+
+    /**
+     * Returns SOA serial for given registry index version.
+     *
+     * @param version registry index version
+     * @return SOA serial; unsigned 32 bit value that should be compared using sequence space arithmetic.
+     */
+    int getSerial(long version) {
+        return (int) (serialBase + version);
+    }
+
+    /**
+     * Returns address of name server host record.
+     *
+     * @param serverAddr address on which query was received
+     * @return address bytes, must not be modified.
+     */
+    byte[] getHostAddress(@NonNull InetAddress serverAddr) {
+        val addr = hostAddresses.get(serverAddr);
+        return (addr != null) ? addr : hostAddresses.computeIfAbsent(serverAddr, InetAddress::getAddress);
+    }
+
+    private byte[] encodeRDataSOA(int serial) {
+        val buf = Unpooled.buffer();
+
+//        MNAME
+//        The <domain-name> of the name server that was the
+//        original or primary source of data for this zone.
+        DnsMessages.encodeName(nsHostname, buf);
+
+//        RNAME
+//        A <domain-name> which specifies the mailbox of the
+//        person responsible for this zone.
+        DnsMessages.encodeName(hostmaster, buf);
+
+//        SERIAL
+//        The unsigned 32 bit version number of the original copy
+//        of the zone.  Zone transfers preserve this value.  This
+//        value wraps and should be compared using sequence space
+//        arithmetic.
+        buf.writeInt(serial);
+
+//        REFRESH
+//        A 32 bit time interval before the zone should be
+//        refreshed.
+        buf.writeInt(config.getSoaRefresh());
+
+//        RETRY
+//        A 32 bit time interval that should elapse before a
+//        failed refresh should be retried.
+        buf.writeInt(config.getSoaRetry());
+
+//        EXPIRE
+//        A 32 bit time value that specifies the upper limit on
+//        the time interval that can elapse before the zone is no
+//        longer authoritative.
+        buf.writeInt(config.getSoaExpire());
+
+//        MINIMUM
+//        The unsigned 32 bit minimum TTL field that should be
+//        exported with any RR from this zone.
+        buf.writeInt(config.getSoaMinimum());
+        return toByteArray(buf);
+    }
+
+    private static byte[] toByteArray(ByteBuf buf) {
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Encoded SOA record RDATA of particular registry index version.
+     */
+    private static final class Soa {
+        private final long version;
+        private final byte[] rdata;
+
+        private Soa(long version, byte[] rdata) {
+            this.version = version;
+            this.rdata = rdata;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.github.bfg.eureka.dns;
+
+import com.google.common.net.InetAddresses;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.dns.DnsRecordType.SOA;
+
+/**
+ * Sends DNS NOTIFY messages to secondary name servers when zone serial changes, so that they don't need to wait for
+ * SOA refresh timer before transferring the zone.
+ *
+ * <p>Messages are sent over UDP from a dedicated daemon thread; every message is retransmitted until it's
+ * acknowledged or until {@link #MAX_ATTEMPTS} attempts are made. Secondaries that are still being notified about the
+ * previous serial are notified about the newest one only.</p>
+ *
+ * <p>Notified secondaries are allowed to transfer the zone; secondaries given by host name are recognized by the
+ * address their name resolved to when they were last notified.</p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc1996">RFC 1996 :: A Mechanism for Prompt Notification of Zone
+ *         Changes (DNS NOTIFY)</a>
+ */
+@Slf4j
+final class ZoneNotifier implements MetricsSource {
+    /**
+     * Port of secondary name server, unless specified.
+     */
+    static final int DEFAULT_PORT = 53;
+
+    /**
+     * Maximum number of attempts to notify a secondary about a single serial change.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * NOTIFY opcode, shifted to its place in header flags.
+     */
+    private static final int NOTIFY_OPCODE = 4 << 11;
+    private static final int OPCODE_MASK = 0xf << 11;
+
+    private final DnsServerConfig config;
+    private final ZoneAuthority authority;
+    private final List<InetSocketAddress> secondaries;
+    private final int timeoutMillis;
+
+    /**
+     * Address of every secondary; address of secondary given by host name is updated every time it's notified.
+     */
+    private final AtomicReferenceArray<InetAddress> secondaryAddresses;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Registry index version secondaries should be notified about.
+     */
+    private volatile long version = -1;
+    private volatile ExecutorService executor;
+
+    /**
+     * Creates new instance.
+     *
+     * @param config    configuration
+     * @param authority zone authority data
+     */
+    ZoneNotifier(@NonNull DnsServerConfig config, @NonNull ZoneAuthority authority) {
+        this(config, authority, 1000);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param config        configuration
+     * @param authority     zone authority data
+     * @param timeoutMillis time to wait for acknowledgement before NOTIFY message is retransmitted
+     */
+    ZoneNotifier(@NonNull DnsServerConfig config, @NonNull ZoneAuthority authority, int timeoutMillis) {
+        this.config = config;
+        this.authority = authority;
+        this.secondaries = parseAddresses(config.getNotifySecondaries());
+        this.timeoutMillis = timeoutMillis;
+        this.secondaryAddresses = new AtomicReferenceArray<>(secondaries.size());
+        for (int i = 0; i < secondaries.size(); i++) {
+            val host = secondaries.get(i).getHostString();
+            if (InetAddresses.isInetAddress(host)) {
+                secondaryAddresses.set(i, InetAddresses.forString(host));
+            }
+        }
+    }
+
+    /**
+     * Parses secondary name server addresses.
+     *
+     * @param addresses addresses in {@code host}, {@code host:port} or {@code [ipv6]:port} format
+     * @return unresolved socket addresses; host names are resolved every time secondary is notified.
+     * @throws IllegalArgumentException if any address is invalid
+     */
+    static List<InetSocketAddress> parseAddresses(@NonNull Collection<String> addresses) {
+        return Collections.unmodifiableList(addresses.stream()
+                .map(ZoneNotifier::parseAddress)
+                .collect(Collectors.toList()));
+    }
+
+    private static InetSocketAddress parseAddress(String str) {
+        val address = str.trim();
+        String host = address;
+        int port = DEFAULT_PORT;
+
+        val portIdx = address.lastIndexOf(':');
+        if (address.startsWith("[")) {
+            val end = address.indexOf(']');
+            if (end < 0 || (end != address.length() - 1 && portIdx != end + 1)) {
+                throw new IllegalArgumentException("Invalid secondary name server address: " + str);
+            }
+            host = address.substring(1, end);
+            if (portIdx == end + 1) {
+                port = parsePort(str, address.substring(portIdx + 1));
+            }
+        } else if (portIdx >= 0 && address.indexOf(':') == portIdx) {
+            host = address.substring(0, portIdx);
+            port = parsePort(str, address.substring(portIdx + 1));
+        }
+
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("Invalid secondary name server address: " + str);
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    private static int parsePort(String address, String port) {
+        try {
+            val value = Integer.parseInt(port);
+            if (value >= 1 && value <= 65535) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid secondary name server port: " + address);
+    }
+
+    /**
+     * Starts notifier thread.
+     */
+    synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("eureka-dns-zone-notify", true));
+        }
+    }
+
+    /**
+     * Stops notifier thread; notifications in progress are abandoned.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Notifies secondaries about zone serial of given registry index version asynchronously; does nothing unless
+     * notifier is started.
+     *
+     * @param version registry index version
+     */
+    void notifySecondaries(long version) {
+        val current = executor;
+        if (current == null || version <= this.version) {
+            return;
+        }
+
+        this.version = version;
+        current.execute(() -> {
+            for (int i = 0; i < secondaries.size(); i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if (version != this.version) {
+                    log.debug("zone serial changed while notifying secondaries, skipping stale notifications.");
+                    return;
+                }
+                notifySecondary(i, version);
+            }
+        });
+    }
+
+    /**
+     * Returns number of sent NOTIFY messages, including retransmissions.
+     *
+     * @return number of messages
+     */
+    long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Returns number of NOTIFY messages acknowledged by secondaries.
+     *
+     * @return number of acknowledgements
+     */
+    long getAcknowledged() {
+        return acknowledged.sum();
+    }
+
+    /**
+     * Returns number of notifications that weren't acknowledged after {@link #MAX_ATTEMPTS} attempts.
+     *
+     * @return number of failures
+     */
+    long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("zone_notify_sent_total", "counter",
+                "Number of NOTIFY messages sent to secondary name servers, including retransmissions.", getSent());
+        out.metric("zone_notify_acknowledged_total", "counter",
+                "Number of NOTIFY messages acknowledged by secondary name servers.", getAcknowledged());
+        out.metric("zone_notify_failures_total", "counter",
+                "Number of zone change notifications that were never acknowledged.", getFailed());
+    }
+
+    /**
+     * Returns addresses of secondary name servers.
+     *
+     * @return unresolved secondary name server addresses
+     */
+    List<InetSocketAddress> getSecondaries() {
+        return secondaries;
+    }
+
+    /**
+     * Tells whether given address belongs to a secondary name server.
+     *
+     * @param address client address, may be {@code null}
+     * @return true if address is address of any secondary
+     */
+    boolean isSecondary(InetAddress address) {
+        if (address == null) {
+            return false;
+        }
+        for (int i = 0; i < secondaryAddresses.length(); i++) {
+            if (address.equals(secondaryAddresses.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void notifySecondary(int idx, long version) {
+        val secondary = secondaries.get(idx);
+        val id = ThreadLocalRandom.current().nextInt(0x10000);
+        val message = encodeNotify(id, version);
+        try (val socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis);
+            val address = new InetSocketAddress(secondary.getHostString(), secondary.getPort());
+            if (!address.isUnresolved()) {
+                secondaryAddresses.set(idx, address.getAddress());
+            }
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                socket.send(new DatagramPacket(message, message.length, address));
+                sent.increment();
+                if (awaitAcknowledgement(socket, id)) {
+                    acknowledged.increment();
+                    log.debug("secondary {} acknowledged zone serial {}", secondary, authority.getSerial(version));
+                    return;
+                }
+            }
+            log.warn("secondary {} didn't acknowledge zone serial {} after {} attempts.",
+                    secondary, authority.getSerial(version), MAX_ATTEMPTS);
+        } catch (IOException e) {
+            log.warn("error notifying secondary {}: {}", secondary, e.toString());
+        }
+        failed.increment();
+    }
+
+    private static boolean awaitAcknowledgement(DatagramSocket socket, int id) throws IOException {
+        val packet = new DatagramPacket(new byte[DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE],
+                DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        while (true) {
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+
+            val buf = Unpooled.wrappedBuffer(packet.getData(), packet.getOffset(), packet.getLength());
+            if (buf.readableBytes() < DnsMessages.HEADER_LENGTH || buf.getUnsignedShort(0) != id) {
+                continue;
+            }
+            val flags = buf.getUnsignedShort(2);
+            if ((flags & DnsResponseWriter.RESPONSE_FLAG) != 0 && (flags & OPCODE_MASK) == NOTIFY_OPCODE) {
+                if ((flags & 0x0f) != 0) {
+                    log.warn("secondary {} responded to NOTIFY with response code {}",
+                            packet.getSocketAddress(), flags & 0x0f);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Encodes NOTIFY message: question asks for zone SOA and answer contains current SOA record as a hint.
+     *
+     * @param id      transaction id
+     * @param version registry index version
+     * @return encoded message
+     */
+    byte[] encodeNotify(int id, long version) {
+        val buf = Unpooled.buffer(DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            val writer = DnsResponseWriter.get(buf, DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE, 0)
+                    .header(id, NOTIFY_OPCODE | ZoneTransfer.AUTHORITATIVE_FLAG)
+                    .question(config.getDomain() + ".", SOA, DnsRecord.CLASS_IN);
+            writer.addRecord(DnsSection.ANSWER, config.getDomain() + ".", SOA, config.getTtl(),
+                    authority.getSoaRData(version));
+            return ByteBufUtil.getBytes(writer.finish());
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.github.bfg.eureka.dns;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsQuery;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static io.netty.handler.codec.dns.DnsRecordType.*;
+
+/**
+ * Answers zone transfer queries: synthesises the whole eureka zone from registry index and serves it as full (AXFR)
+ * or incremental (IXFR) zone transfer, so that secondary name servers can serve the zone as well.
+ *
+ * <p>Zone contains SOA and NS records of zone apex, address record of the name server host, A, AAAA, TXT and SRV
+ * records of every service in every datacenter ({@code <service>.service[.<datacenter>].<domain>}) and A, AAAA and
+ * TXT records of every node ({@code <node>.node[.<datacenter>].<domain>}, see {@link NodeIndex}); names with
+ * RFC 2782 tags are not part of the zone. Unlike answers to regular queries, the zone contains all records of a
+ * service, regardless of {@link DnsServerConfig#getMaxResponses()}.</p>
+ *
+ * <p>Zone serial tracks registry index version (see {@link ZoneAuthority}) and the last few indexes are retained, so
+ * that IXFR can be answered with only the records that changed between client's and current version. IXFR from a
+ * version that is no longer retained is answered with the full zone; IXFR received over UDP is answered with the
+ * current SOA record only, which tells the client to retry over TCP.</p>
+ *
+ * <p>Full zone and differences between zone versions are built on zone transfer thread, so that event loop isn't
+ * blocked while large registries are walked; encoded messages are produced one at a time while they're written.</p>
+ *
+ * <p>Zone can be transferred only by clients listed in {@link DnsServerConfig#getZoneTransferAllow()} and by
+ * secondary name servers that are notified about zone changes, everyone else is refused.</p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc5936">RFC 5936 :: DNS Zone Transfer Protocol (AXFR)</a>
+ * @see <a href="https://tools.ietf.org/html/rfc1995">RFC 1995 :: Incremental Zone Transfer in DNS</a>
+ */
+@Slf4j
+final class ZoneTransfer implements MetricsSource {
+    /**
+     * Header AA (authoritative answer) flag.
+     */
+    static final int AUTHORITATIVE_FLAG = 1 << 10;
+
+    /**
+     * Length of SOA RDATA fields following MNAME and RNAME: serial and four timers.
+     */
+    private static final int SOA_FIXED_FIELDS_LENGTH = 5 * 4;
+
+    /**
+     * Encoded record length without owner name and RDATA: type, class, ttl and RDATA length.
+     */
+    private static final int RECORD_FIXED_LENGTH = 2 + 2 + 4 + 2;
+
+    private final DnsServerConfig config;
+    private final ZoneAuthority authority;
+    private final int maxHistory;
+    private final AddressMatcher allowedClients;
+    private final Predicate<InetAddress> secondaries;
+
+    /**
+     * Recently published registry indexes and their node indexes, the newest one is last.
+     */
+    private final Deque<ZoneVersion> history = new ArrayDeque<>();
+
+    private final LongAdder fullTransfers = new LongAdder();
+    private final LongAdder incrementalTransfers = new LongAdder();
+    private final LongAdder refusedTransfers = new LongAdder();
+    private final LongAdder activeTransfers = new LongAdder();
+
+    private volatile ExecutorService executor;
+
+    /**
+     * Creates new instance that allows zone transfers only to clients listed in configuration.
+     *
+     * @param config    configuration
+     * @param authority zone authority data
+     */
+    ZoneTransfer(@NonNull DnsServerConfig config, @NonNull ZoneAuthority authority) {
+        this(config, authority, address -> false);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param config      configuration
+     * @param authority   zone authority data
+     * @param secondaries tells whether client address belongs to a notified secondary name server
+     */
+    ZoneTransfer(@NonNull DnsServerConfig config, @NonNull ZoneAuthority authority,
+                 @NonNull Predicate<InetAddress> secondaries) {
+        this.config = config;
+        this.authority = authority;
+        this.maxHistory = config.getZoneTransferHistory();
+        this.allowedClients = AddressMatcher.parse(config.getZoneTransferAllow());
+        this.secondaries = secondaries;
+
+        if (allowedClients.isEmpty() && config.getNotifySecondaries().isEmpty()) {
+            log.warn("zone transfers are enabled, but no client is allowed to transfer the zone; " +
+                    "configure zone transfer allow list or secondary name servers.");
+        }
+    }
+
+    /**
+     * Tells whether given question asks for zone transfer.
+     *
+     * @param question question, may be {@code null}
+     * @return true if question type is either {@code AXFR} or {@code IXFR}
+     */
+    static boolean isTransferQuestion(DnsRecord question) {
+        return question != null && (AXFR.equals(question.type()) || IXFR.equals(question.type()));
+    }
+
+    /**
+     * Retains given registry index, so that incremental zone transfers from its version can be answered; should be
+     * invoked every time new index is published. Only {@link DnsServerConfig#getZoneTransferHistory()} previous
+     * indexes are retained.
+     *
+     * @param index registry index
+     */
+    void record(@NonNull RegistryIndex index) {
+        record(index, NodeIndex.build(index));
+    }
+
+    /**
+     * Retains given registry index together with its node index.
+     *
+     * @param index registry index
+     * @param nodes node index built from given registry index
+     * @see #record(RegistryIndex)
+     */
+    synchronized void record(@NonNull RegistryIndex index, @NonNull NodeIndex nodes) {
+        val last = history.peekLast();
+        if (last != null && last.index.getVersion() >= index.getVersion()) {
+            return;
+        }
+
+        history.addLast(new ZoneVersion(index, nodes));
+        while (history.size() > maxHistory + 1) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Starts zone transfer thread.
+     */
+    synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("eureka-dns-zone-transfer", true));
+        }
+    }
+
+    /**
+     * Stops zone transfer thread; zones that are being built are abandoned.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns number of answered full zone transfers, including IXFR queries answered with the full zone.
+     *
+     * @return number of transfers
+     */
+    long getFullTransfers() {
+        return fullTransfers.sum();
+    }
+
+    /**
+     * Returns number of answered incremental zone transfers.
+     *
+     * @return number of transfers
+     */
+    long getIncrementalTransfers() {
+        return incrementalTransfers.sum();
+    }
+
+    /**
+     * Returns number of zone transfer queries refused because client is not allowed to transfer the zone.
+     *
+     * @return number of refused queries
+     */
+    long getRefusedTransfers() {
+        return refusedTransfers.sum();
+    }
+
+    /**
+     * Returns number of zone transfers whose zone is being built or written.
+     *
+     * @return number of transfers in progress
+     */
+    long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public void writeMetrics(@NonNull MetricsWriter out) {
+        out.metric("zone_full_transfers_total", "counter",
+                "Number of full zone transfers, including IXFR queries answered with the full zone.",
+                getFullTransfers());
+        out.metric("zone_incremental_transfers_total", "counter", "Number of incremental zone transfers.",
+                getIncrementalTransfers());
+        out.metric("zone_transfers_refused_total", "counter",
+                "Number of zone transfer queries refused because client is not allowed to transfer the zone.",
+                getRefusedTransfers());
+        out.metric("zone_transfers_active", "gauge", "Number of zone transfers whose zone is being built or written.",
+                getActiveTransfers());
+    }
+
+    /**
+     * Tells whether given client is allowed to transfer the zone.
+     *
+     * @param client client address, may be {@code null}
+     * @return true if client is listed in zone transfer allow list or is a notified secondary name server
+     */
+    boolean isAllowed(InetAddress client) {
+        return client != null && (allowedClients.matches(client) || secondaries.test(client));
+    }
+
+    /**
+     * Answers zone transfer query synchronously.
+     *
+     * @param allocator allocator used to allocate response buffers
+     * @param query     {@code AXFR} or {@code IXFR} query
+     * @param index     current registry index
+     * @param tcp       whether query was received over TCP
+     * @param edns      whether query contained EDNS0 OPT record
+     * @return encoded response messages, at least one; more than one message is returned only over TCP.
+     */
+    List<ByteBuf> respond(@NonNull ByteBufAllocator allocator, @NonNull DatagramDnsQuery query,
+                          @NonNull RegistryIndex index, boolean tcp, boolean edns) {
+        val transfer = prepare(query, index, tcp, edns).build();
+        val messages = new ArrayList<ByteBuf>();
+        try {
+            while (!transfer.isDone()) {
+                messages.add(transfer.nextMessage(allocator));
+            }
+            return messages;
+        } catch (RuntimeException e) {
+            transfer.abandon();
+            messages.forEach(ByteBuf::release);
+            throw e;
+        }
+    }
+
+    /**
+     * Prepares answer to zone transfer query; refusals, errors and answers without the zone are complete right away,
+     * zone of full and incremental transfers still needs to be built by {@link #build(Transfer)}. Returned transfer
+     * doesn't reference the query, which can be released.
+     *
+     * @param query {@code AXFR} or {@code IXFR} query
+     * @param index current registry index
+     * @param tcp   whether query was received over TCP
+     * @param edns  whether query contained EDNS0 OPT record
+     * @return zone transfer
+     */
+    Transfer prepare(@NonNull DatagramDnsQuery query, @NonNull RegistryIndex index, boolean tcp, boolean edns) {
+        val question = query.recordAt(DnsSection.QUESTION);
+        val transfer = new Transfer(query.id(), question, edns);
+        val client = (query.sender() == null) ? null : query.sender().getAddress();
+        if (!isAllowed(client)) {
+            log.debug("refusing zone transfer to client {}", query.sender());
+            refusedTransfers.increment();
+            return transfer.error(DnsResponseCode.REFUSED);
+        } else if (!isZoneApex(question)) {
+            return transfer.error(DnsResponseCode.NOTAUTH);
+        } else if (AXFR.equals(question.type())) {
+            if (!tcp) {
+                return transfer.error(DnsResponseCode.REFUSED);
+            }
+            val serverAddr = query.recipient().getAddress();
+            fullTransfers.increment();
+            return transfer.zone(out -> writeFullZone(out, index, serverAddr));
+        }
+        return prepareIncrementalTransfer(transfer, query, index, tcp);
+    }
+
+    /**
+     * Builds zone of given transfer on zone transfer thread, or on calling thread if zone transfer thread isn't
+     * started.
+     *
+     * @param transfer transfer returned by {@link #prepare(DatagramDnsQuery, RegistryIndex, boolean, boolean)}
+     * @return future completed with given transfer once its zone is built
+     */
+    CompletableFuture<Transfer> build(@NonNull Transfer transfer) {
+        val future = new CompletableFuture<Transfer>();
+        Runnable task = () -> {
+            try {
+                future.complete(transfer.build());
+            } catch (RuntimeException e) {
+                transfer.abandon();
+                future.completeExceptionally(e);
+            }
+        };
+
+        val current = executor;
+        if (current == null || transfer.isBuilt()) {
+            task.run();
+        } else {
+            try {
+                current.execute(task);
+            } catch (RejectedExecutionException e) {
+                transfer.abandon();
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    private Transfer prepareIncrementalTransfer(Transfer transfer, DatagramDnsQuery query, RegistryIndex index,
+                                                boolean tcp) {
+        val clientSerial = findClientSerial(query);
+        if (clientSerial < 0) {
+            return transfer.error(DnsResponseCode.FORMERR);
+        }
+
+        if (!tcp || (int) clientSerial == authority.getSerial(index.getVersion())) {
+            transfer.records.add(soaRecord(index.getVersion()));
+            return transfer;
+        }
+
+        val previous = findIndex((int) clientSerial);
+        if (previous == null) {
+            log.debug("zone serial {} is no longer retained, answering IXFR with full zone.", clientSerial);
+            val serverAddr = query.recipient().getAddress();
+            fullTransfers.increment();
+            return transfer.zone(out -> writeFullZone(out, index, serverAddr));
+        }
+
+        incrementalTransfers.increment();
+        return transfer.zone(out -> writeIncrementalZone(out, previous, index));
+    }
+
+    private void writeIncrementalZone(List<ZoneRecord> out, RegistryIndex previous, RegistryIndex index) {
+        val deleted = new ArrayList<ZoneRecord>();
+        val added = new ArrayList<ZoneRecord>();
+        diff(previous, index, deleted, added);
+
+        val soa = soaRecord(index.getVersion());
+        out.add(soa);
+        out.add(soaRecord(previous.getVersion()));
+        out.addAll(deleted);
+        out.add(soa);
+        out.addAll(added);
+        out.add(soa);
+    }
+
+    private void writeFullZone(List<ZoneRecord> out, RegistryIndex index, InetAddress serverAddr) {
+        val soa = soaRecord(index.getVersion());
+        out.add(soa);
+        out.add(new ZoneRecord(config.getDomain(), NS, authority.getNsRData()));
+        val addr = authority.getHostAddress(serverAddr);
+        out.add(new ZoneRecord(authority.getNsHostname(), (addr.length == 4) ? A : AAAA, addr));
+
+        new TreeMap<>(index.getRegions()).forEach((region, services) ->
+                new TreeMap<>(services).forEach((name, entry) -> addServiceRecords(region, entry, out::add)));
+        new TreeMap<>(nodeIndex(index).getRegions()).forEach((region, nodes) ->
+                new TreeMap<>(nodes).forEach((name, entry) -> addNodeRecords(region, entry, out::add)));
+        out.add(soa);
+    }
+
+    private ZoneRecord soaRecord(long version) {
+        return new ZoneRecord(config.getDomain(), SOA, authority.getSoaRData(version));
+    }
+
+    /**
+     * Computes records that need to be deleted from and added to the zone of previous index to get the zone of
+     * current index; only service entries that aren't shared by both indexes are compared, node entries are rebuilt
+     * with every index and are always compared.
+     *
+     * @param previous previous registry index
+     * @param current  current registry index
+     * @param deleted  list deleted records are added to
+     * @param added    list added records are added to
+     */
+    void diff(@NonNull RegistryIndex previous, @NonNull RegistryIndex current,
+              @NonNull List<ZoneRecord> deleted, @NonNull List<ZoneRecord> added) {
+        val regions = new TreeSet<>(previous.getRegions().keySet());
+        regions.addAll(current.getRegions().keySet());
+        for (String region : regions) {
+            Map<String, ServiceEntry> oldServices = previous.getRegions().getOrDefault(region, Collections.emptyMap());
+            Map<String, ServiceEntry> newServices = current.getRegions().getOrDefault(region, Collections.emptyMap());
+
+            val names = new TreeSet<>(oldServices.keySet());
+            names.addAll(newServices.keySet());
+            for (String name : names) {
+                val oldEntry = oldServices.get(name);
+                val newEntry = newServices.get(name);
+                if (oldEntry == newEntry) {
+                    continue;
+                }
+
+                val oldRecords = records(region, oldEntry, this::addServiceRecords);
+                val newRecords = records(region, newEntry, this::addServiceRecords);
+                diff(oldRecords, newRecords, deleted, added);
+            }
+        }
+        diff(nodeIndex(previous), nodeIndex(current), deleted, added);
+    }
+
+    private void diff(NodeIndex previous, NodeIndex current, List<ZoneRecord> deleted, List<ZoneRecord> added) {
+        val regions = new TreeSet<>(previous.getRegions().keySet());
+        regions.addAll(current.getRegions().keySet());
+        for (String region : regions) {
+            Map<String, ServiceEntry> oldNodes = previous.getRegions().getOrDefault(region, Collections.emptyMap());
+            Map<String, ServiceEntry> newNodes = current.getRegions().getOrDefault(region, Collections.emptyMap());
+
+            val names = new TreeSet<>(oldNodes.keySet());
+            names.addAll(newNodes.keySet());
+            for (String name : names) {
+                val oldRecords = records(region, oldNodes.get(name), this::addNodeRecords);
+                val newRecords = records(region, newNodes.get(name), this::addNodeRecords);
+                diff(oldRecords, newRecords, deleted, added);
+            }
+        }
+    }
+
+    private static void diff(Set<ZoneRecord> oldRecords, Set<ZoneRecord> newRecords,
+                             List<ZoneRecord> deleted, List<ZoneRecord> added) {
+        oldRecords.stream().filter(e -> !newRecords.contains(e)).forEach(deleted::add);
+        newRecords.stream().filter(e -> !oldRecords.contains(e)).forEach(added::add);
+    }
+
+    private static Set<ZoneRecord> records(String region, ServiceEntry entry, RecordsWriter writer) {
+        val records = new LinkedHashSet<ZoneRecord>();
+        if (entry != null) {
+            writer.write(region, entry, records::add);
+        }
+        return records;
+    }
+
+    private void addServiceRecords(String region, ServiceEntry entry, Consumer<ZoneRecord> out) {
+        addRecords(entry.getName() + ".service." + (region.isEmpty() ? "" : region + ".") + config.getDomain(),
+                entry, out);
+    }
+
+    private void addNodeRecords(String region, ServiceEntry entry, Consumer<ZoneRecord> out) {
+        addRecords(entry.getName() + ".node." + (region.isEmpty() ? "" : region + ".") + config.getDomain(),
+                entry, out);
+    }
+
+    private static void addRecords(String name, ServiceEntry entry, Consumer<ZoneRecord> out) {
+        if (entry.isEmpty()) {
+            return;
+        }
+
+        for (byte[] addr : entry.getIpv4Addresses()) {
+            out.accept(new ZoneRecord(name, A, addr));
+        }
+        for (byte[] addr : entry.getIpv6Addresses()) {
+            out.accept(new ZoneRecord(name, AAAA, addr));
+        }
+        for (byte[] rdata : entry.getTxtRData()) {
+            out.accept(new ZoneRecord(name, TXT, rdata));
+        }
+        for (byte[] rdata : entry.getSrvRData()) {
+            out.accept(new ZoneRecord(name, SRV, rdata));
+        }
+    }
+
+    private synchronized RegistryIndex findIndex(int serial) {
+        for (ZoneVersion version : history) {
+            if (authority.getSerial(version.index.getVersion()) == serial) {
+                return version.index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns node index of given registry index; it's built if the index hasn't been retained.
+     */
+    private NodeIndex nodeIndex(RegistryIndex index) {
+        synchronized (this) {
+            for (ZoneVersion version : history) {
+                if (version.index == index) {
+                    return version.nodes;
+                }
+            }
+        }
+        return NodeIndex.build(index);
+    }
+
+    private boolean isZoneApex(DnsRecord question) {
+        if (question.dnsClass() != DnsRecord.CLASS_IN) {
+            return false;
+        }
+        val name = question.name();
+        val len = name.endsWith(".") ? name.length() - 1 : name.length();
+        val domain = config.getDomain();
+        return len == domain.length() && name.regionMatches(true, 0, domain, 0, len);
+    }
+
+    /**
+     * Finds SOA serial of client's zone version carried in authority section of IXFR query.
+     *
+     * @param query IXFR query
+     * @return unsigned SOA serial, -1 if query doesn't contain SOA record.
+     */
+    private static long findClientSerial(DnsQuery query) {
+        val count = query.count(DnsSection.AUTHORITY);
+        for (int i = 0; i < count; i++) {
+            DnsRecord record = query.recordAt(DnsSection.AUTHORITY, i);
+            if (SOA.equals(record.type()) && record instanceof DnsRawRecord) {
+                // serial is followed by fixed size fields, so names preceding it don't need to be decoded
+                val content = ((DnsRawRecord) record).content();
+                if (content.readableBytes() >= SOA_FIXED_FIELDS_LENGTH + 2) {
+                    return content.getUnsignedInt(content.writerIndex() - SOA_FIXED_FIELDS_LENGTH);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Retained registry index and its node index.
+     */
+    private static final class ZoneVersion {
+        final RegistryIndex index;
+        final NodeIndex nodes;
+
+        ZoneVersion(RegistryIndex index, NodeIndex nodes) {
+            this.index = index;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Writes zone records of a service or node entry.
+     */
+    @FunctionalInterface
+    private interface RecordsWriter {
+        void write(String region, ServiceEntry entry, Consumer<ZoneRecord> out);
+    }
+
+    /**
+     * Single zone record.
+     */
+    static final class ZoneRecord {
+        private final String name;
+        private final DnsRecordType type;
+        private final byte[] rdata;
+
+        ZoneRecord(String name, DnsRecordType type, byte[] rdata) {
+            this.name = name;
+            this.type = type;
+            this.rdata = rdata;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        DnsRecordType getType() {
+            return type;
+        }
+
+        byte[] getRData() {
+            return rdata;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ZoneRecord)) {
+                return false;
+            }
+            val other = (ZoneRecord) o;
+            return name.equals(other.name) && type.equals(other.type) && Arrays.equals(rdata, other.rdata);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, type) * 31 + Arrays.hashCode(rdata);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + type.name();
+        }
+    }
+
+    /**
+     * Answer to zone transfer query: response code and zone records, which are encoded to as many messages as needed
+     * one message at a time; every message is at most {@link TcpDnsFrameDecoder#MAX_MESSAGE_SIZE} bytes long.
+     * Encoded record length is estimated without name compression, so that records never need to be omitted.
+     */
+    final class Transfer {
+        private final int id;
+        private final DnsRecord question;
+        private final boolean edns;
+        private final List<ZoneRecord> records = new ArrayList<>();
+
+        private DnsResponseCode code = DnsResponseCode.NOERROR;
+
+        /**
+         * Writes zone records, {@code null} if there's no zone to build or it has already been built.
+         */
+        private Consumer<List<ZoneRecord>> zone;
+
+        private int next;
+        private int messages;
+        private boolean active;
+        private boolean done;
+
+        private Transfer(int id, DnsRecord question, boolean edns) {
+            this.id = id;
+            this.question = new DefaultDnsQuestion(question.name(), question.type(), question.dnsClass());
+            this.edns = edns;
+        }
+
+        private Transfer error(DnsResponseCode code) {
+            this.code = code;
+            return this;
+        }
+
+        private Transfer zone(Consumer<List<ZoneRecord>> zone) {
+            this.zone = zone;
+            this.active = true;
+            activeTransfers.increment();
+            return this;
+        }
+
+        /**
+         * Returns copy of query question.
+         *
+         * @return question
+         */
+        DnsRecord getQuestion() {
+            return question;
+        }
+
+        /**
+         * Returns number of answer records.
+         *
+         * @return number of records
+         */
+        int size() {
+            return records.size();
+        }
+
+        /**
+         * Tells whether transfer is ready to be written; transfers without the zone are always built and are
+         * answered with a single message.
+         *
+         * @return true if zone has been built or there's no zone to build
+         */
+        boolean isBuilt() {
+            return zone == null;
+        }
+
+        /**
+         * Tells whether all messages have been encoded or transfer was abandoned.
+         *
+         * @return true if there are no more messages
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        private Transfer build() {
+            if (zone != null) {
+                zone.accept(records);
+                zone = null;
+            }
+            return this;
+        }
+
+        /**
+         * Encodes next response message.
+         *
+         * @param allocator allocator used to allocate message buffer
+         * @return encoded message
+         * @throws IllegalStateException if zone hasn't been built or all messages have already been encoded
+         */
+        ByteBuf nextMessage(@NonNull ByteBufAllocator allocator) {
+            if (zone != null || done) {
+                throw new IllegalStateException("Zone transfer has no message to write.");
+            }
+
+            val reserved = edns ? DnsResponseWriter.OPT_RECORD_LENGTH : 0;
+            val flags = DnsResponseWriter.RESPONSE_FLAG | code.intValue() |
+                    (DnsResponseCode.NOERROR.equals(code) ? AUTHORITATIVE_FLAG : 0);
+            val buf = allocator.ioBuffer(DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE);
+            try {
+                val writer = DnsResponseWriter.get(buf, TcpDnsFrameDecoder.MAX_MESSAGE_SIZE, reserved).header(id, flags);
+                int size = DnsMessages.HEADER_LENGTH + reserved;
+
+                // question is written only to the first message
+                if (messages == 0) {
+                    writer.question(question.name(), question.type(), question.dnsClass());
+                    size += question.name().length() + 2 + 4;
+                }
+
+                val first = next;
+                while (next < records.size()) {
+                    val record = records.get(next);
+                    val length = record.name.length() + 2 + RECORD_FIXED_LENGTH + record.rdata.length;
+                    if (next > first && size + length > TcpDnsFrameDecoder.MAX_MESSAGE_SIZE) {
+                        break;
+                    }
+                    writer.addRecord(DnsSection.ANSWER, record.name, record.type, config.getTtl(), record.rdata);
+                    size += length;
+                    next++;
+                }
+
+                if (edns) {
+                    writer.optRecord(config.getMaxUdpPayloadSize(), 0, DnsQueryHandler.EDNS_VERSION);
+                }
+                writer.finish();
+            } catch (RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+
+            messages++;
+            if (next == records.size()) {
+                finish();
+            }
+            return buf;
+        }
+
+        /**
+         * Abandons transfer that won't be written, e.g. because the connection it's written to was closed.
+         */
+        void abandon() {
+            finish();
+        }
+
+        private void finish() {
+            done = true;
+            if (active) {
+                active = false;
+                activeTransfers.decrement();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class AddressMatcherSpec extends Specification {
+    def "#entries should match #address: #expected"() {
+        given:
+        def matcher = AddressMatcher.parse(entries)
+
+        expect:
+        matcher.matches(InetAddresses.forString(address)) == expected
+
+        where:
+        entries                       | address                | expected
+        ["10.1.2.3"]                  | "10.1.2.3"             | true
+        ["10.1.2.3"]                  | "10.1.2.4"             | false
+        [" 10.0.0.0/8 "]              | "10.255.1.2"           | true
+        ["10.0.0.0/8"]                | "11.0.0.1"             | false
+        ["192.168.16.0/20"]           | "192.168.31.255"       | true
+        ["192.168.16.0/20"]           | "192.168.32.0"         | false
+        ["0.0.0.0/0"]                 | "172.16.1.1"           | true
+        ["0.0.0.0/0"]                 | "2001:db8::1"          | false
+        ["2001:db8::/32"]             | "2001:db8:ffff::1"     | true
+        ["2001:db8::/32"]             | "2001:db9::1"          | false
+        ["10.1.2.3", "2001:db8::53"]  | "2001:db8::53"         | true
+        ["10.1.2.3"]                  | "::ffff:10.1.2.3"      | true
+        []                            | "10.1.2.3"             | false
+    }
+
+    def "should not match null address"() {
+        expect:
+        !AddressMatcher.parse(["0.0.0.0/0"]).matches(null)
+        AddressMatcher.parse([]).isEmpty()
+    }
+
+    def "should complain about invalid entry '#entry'"() {
+        when:
+        AddressMatcher.parse([entry])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        entry << ["", "localhost", "10.0.0.256", "10.0.0.0/", "10.0.0.0/33", "10.0.0.0/-1", "2001:db8::/129", "/8"]
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.dns.DatagramDnsQuery
+import io.netty.handler.codec.dns.DatagramDnsQueryEncoder
+import io.netty.handler.codec.dns.DatagramDnsResponse
+import io.netty.handler.codec.dns.DatagramDnsResponseDecoder
+import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DnsResponseCode
+import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+import static io.netty.handler.codec.dns.DnsRecordType.A
+
+@Unroll
+class AdmissionControllerSpec extends Specification {
+    static final String NAME = "corse.service.meureka."
+
+    def clientAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.3"), 32456)
+    def serverAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.4"), 5353)
+
+    def nanos = 0L
+    def processed = []
+
+    /**
+     * Synthetic slow query handler, every query takes 4 msec to process.
+     */
+    def slowHandler = new SimpleChannelInboundHandler<DatagramPacket>() {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) {
+            processed << msg.content().getUnsignedShort(0)
+            nanos += TimeUnit.MILLISECONDS.toNanos(4)
+        }
+    }
+
+    EmbeddedChannel channel
+
+    def cleanup() {
+        channel?.finishAndReleaseAll()
+    }
+
+    def "queries that waited for the event loop for too long should be refused"() {
+        given:
+        def controller = createController(10, 0, OverloadAction.REFUSE)
+
+        when: "single read receives 6 queries"
+        channel.writeInbound(*(0..<6).collect { query(it) })
+        def responses = readResponses()
+
+        then: "queries received after 10 msec are refused"
+        processed == [0, 1, 2]
+        controller.getRefused() == 3
+        controller.getDropped() == 0
+
+        responses.collect { it.id() } == [3, 4, 5]
+        responses.every {
+            it.code() == DnsResponseCode.REFUSED &&
+                    it.count(DnsSection.QUESTION) == 1 &&
+                    it.recordAt(DnsSection.QUESTION).name() == NAME &&
+                    it.count(DnsSection.ANSWER) == 0 &&
+                    it.isRecursionDesired() &&
+                    it.recipient() == clientAddr
+        }
+
+        when: "next read starts"
+        channel.writeInbound(query(6))
+
+        then: "queries are processed again"
+        processed == [0, 1, 2, 6]
+        controller.getShed() == 3
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "shed queries should be dropped if overload action is DROP"() {
+        given:
+        def controller = createController(10, 0, OverloadAction.DROP)
+        def queries = (0..<6).collect { query(it) }
+
+        when:
+        channel.writeInbound(*queries)
+
+        then:
+        processed == [0, 1, 2]
+        controller.getRefused() == 0
+        controller.getDropped() == 3
+        channel.outboundMessages().isEmpty()
+        queries.drop(3).every { it.refCnt() == 0 }
+    }
+
+    def "all queries should be shed while event loop probe reports #desc"() {
+        given:
+        def controller = createController(10, 100, OverloadAction.REFUSE)
+        channel.writeInbound(query(0))
+        def load = controller.getLoad(channel.eventLoop())
+
+        and: "real probe is stopped, it would measure no delay on the synthetic clock"
+        controller.stop()
+
+        when: "probe reports overload"
+        load.update(TimeUnit.MILLISECONDS.toNanos(delayMillis), pendingTasks)
+        channel.writeInbound(query(1))
+
+        then:
+        controller.isOverloaded()
+        controller.getQueueDelayNanos() == TimeUnit.MILLISECONDS.toNanos(delayMillis)
+        controller.getPendingTasks() == pendingTasks
+        processed == [0]
+        controller.getRefused() == 1
+
+        when: "probe reports recovery"
+        load.update(0, 0)
+        channel.writeInbound(query(2))
+
+        then:
+        !controller.isOverloaded()
+        processed == [0, 2]
+
+        cleanup:
+        readResponses().each { it.release() }
+
+        where:
+        delayMillis | pendingTasks | desc
+        11          | 0            | "high queue delay"
+        0           | 101          | "too many pending tasks"
+    }
+
+    def "probe should measure how long it waited for the event loop"() {
+        given:
+        def controller = createController(10, 0, OverloadAction.REFUSE)
+        channel.writeInbound(query(0))
+        def load = controller.getLoad(channel.eventLoop())
+
+        when: "probe scheduled at time 0 with 10 msec interval runs at 25 msec"
+        nanos = TimeUnit.MILLISECONDS.toNanos(25)
+        load.run()
+
+        then:
+        controller.getQueueDelayNanos() == TimeUnit.MILLISECONDS.toNanos(15)
+        controller.isOverloaded()
+
+        when: "next probe runs on time"
+        nanos += TimeUnit.MILLISECONDS.toNanos(AdmissionController.PROBE_INTERVAL_MILLIS)
+        load.run()
+
+        then:
+        controller.getQueueDelayNanos() == 0
+        !controller.isOverloaded()
+    }
+
+    def "constructor should throw on invalid arguments"() {
+        when:
+        new AdmissionController(maxQueueDelay, maxPendingTasks, OverloadAction.REFUSE, { nanos } as LongSupplier)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        maxQueueDelay | maxPendingTasks
+        -1            | 0
+        0             | -1
+    }
+
+    AdmissionController createController(long maxQueueDelay, int maxPendingTasks, OverloadAction action) {
+        def controller = new AdmissionController(maxQueueDelay, maxPendingTasks, action, { nanos } as LongSupplier)
+        channel = new EmbeddedChannel(controller, slowHandler)
+        controller
+    }
+
+    /**
+     * Creates query datagram as received by the server.
+     */
+    DatagramPacket query(int id) {
+        def encoder = new EmbeddedChannel(new DatagramDnsQueryEncoder())
+        encoder.writeOutbound(new DatagramDnsQuery(clientAddr, serverAddr, id)
+                .setRecursionDesired(true)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(NAME, A)))
+        DatagramPacket packet = encoder.readOutbound()
+        encoder.finishAndReleaseAll()
+        new DatagramPacket(packet.content(), serverAddr, clientAddr)
+    }
+
+    List<DatagramDnsResponse> readResponses() {
+        def decoder = new EmbeddedChannel(new DatagramDnsResponseDecoder())
+        def responses = []
+        DatagramPacket packet
+        while ((packet = channel.readOutbound()) != null) {
+            decoder.writeInbound(packet)
+            responses << decoder.readInbound()
+        }
+        decoder.finishAndReleaseAll()
+        responses
+    }
+}
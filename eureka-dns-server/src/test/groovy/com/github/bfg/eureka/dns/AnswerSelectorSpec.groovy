@@ -0,0 +1,101 @@
+package com.github.bfg.eureka.dns
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import static com.github.bfg.eureka.dns.AnswerOrder.RANDOM
+import static com.github.bfg.eureka.dns.AnswerOrder.ROUND_ROBIN
+import static com.github.bfg.eureka.dns.AnswerOrder.STABLE
+
+@Unroll
+class AnswerSelectorSpec extends Specification {
+    def cursor = new AtomicInteger()
+
+    def "count(#numRecords, #maxResponses) should return #expected"() {
+        expect:
+        AnswerSelector.count(numRecords, maxResponses) == expected
+
+        where:
+        numRecords | maxResponses | expected
+        0          | 5            | 0
+        3          | 5            | 3
+        5          | 5            | 5
+        7          | 5            | 5
+        7          | 0            | 7
+        7          | -1           | 7
+    }
+
+    def "stable order should always select the first records"() {
+        expect:
+        (1..10).each {
+            assert select(STABLE, 5, 3) == [0, 1, 2]
+        }
+        cursor.get() == 0
+    }
+
+    def "round-robin order should rotate records"() {
+        expect:
+        select(ROUND_ROBIN, 5, 3) == [0, 1, 2]
+        select(ROUND_ROBIN, 5, 3) == [1, 2, 3]
+        select(ROUND_ROBIN, 5, 3) == [2, 3, 4]
+        select(ROUND_ROBIN, 5, 3) == [3, 4, 0]
+        select(ROUND_ROBIN, 5, 3) == [4, 0, 1]
+        select(ROUND_ROBIN, 5, 3) == [0, 1, 2]
+    }
+
+    def "round-robin order should survive cursor overflow"() {
+        given:
+        cursor.set(Integer.MAX_VALUE)
+
+        when:
+        def first = select(ROUND_ROBIN, 3, 3)
+        def second = select(ROUND_ROBIN, 3, 3)
+
+        then:
+        cursor.get() == Integer.MIN_VALUE + 1
+        first.toSet() == [0, 1, 2] as Set
+        second.toSet() == [0, 1, 2] as Set
+        second[0] != first[0]
+    }
+
+    def "random order should select distinct records: #numRecords, #count"() {
+        expect:
+        (1..100).each {
+            def selected = select(RANDOM, numRecords, count)
+            assert selected.size() == count
+            assert selected.toSet().size() == count
+            assert selected.every { it >= 0 && it < numRecords }
+        }
+
+        where:
+        numRecords | count
+        1          | 1
+        5          | 3
+        5          | 5
+        100        | 10
+    }
+
+    def "random order should eventually select every record first"() {
+        given:
+        def firsts = [] as Set
+
+        when:
+        (1..1000).each { firsts.add(select(RANDOM, 5, 1)[0]) }
+
+        then:
+        firsts == [0, 1, 2, 3, 4] as Set
+    }
+
+    def "selection should work for record count larger than initial capacity"() {
+        expect:
+        select(ROUND_ROBIN, 1000, 1000) == (0..999).toList()
+        select(STABLE, 0, 0) == []
+    }
+
+    List<Integer> select(AnswerOrder order, int numRecords, int count) {
+        def indexes = AnswerSelector.select(order, cursor, numRecords, count)
+        indexes.toList().subList(0, count)
+    }
+}
@@ -22,15 +22,28 @@ abstract class DnsIntegrationSpec extends Specification {
 
     def setup() {
         if (!client) {
-            client = new DnsClient("127.0.0.1", getConfig().getPort())
+            client = createClient()
         }
     }
 
+    DnsClient createClient() {
+        new DnsClient("127.0.0.1", getConfig().getPort())
+    }
+
     def lookup(String name, String type = "A", String dnsClass = "IN") {
         def res = client.resolve(name, type, dnsClass)
         [res, res.answers, res.authorities, res.additionals]
     }
 
+    def assertNegativeAuthority(List authorities) {
+        assert authorities.size() == 1
+        assert authorities[0].type == "SOA"
+        assert authorities[0].name == getDomain()
+        assert authorities[0].ttl == config.getNegativeTtl()
+        assert authorities[0].nameserver == "ns." + getDomain()
+        true
+    }
+
     def "should correctly respond to NS query: #name"() {
         when:
         def (res, answers, authorities, additionals) = lookup(name, "NS")
@@ -66,8 +79,7 @@ abstract class DnsIntegrationSpec extends Specification {
 
     def "should correctly respond to SOA query: #name"() {
         given:
-        def currentTs = System.currentTimeMillis() / 1000
-        def expectedSerial = (int) currentTs
+        def currentTs = (int) (System.currentTimeMillis() / 1000)
 
         when:
         def (res, answers, authorities, additionals) = lookup(name, "SOA")
@@ -88,11 +100,17 @@ abstract class DnsIntegrationSpec extends Specification {
 
         answers[0].nameserver == "ns." + getDomain()
         answers[0].mbox == "hostmaster." + getDomain()
-        answers[0].serial == expectedSerial || answers[0].serial == (expectedSerial + 1)
+        answers[0].serial <= currentTs + 1
         answers[0].refresh == 3600
         answers[0].retry == 600
         answers[0].expire == 86400
-        answers[0].minTtl == 0
+        answers[0].minTtl == 30
+
+        when: "ask again"
+        def again = lookup(name, "SOA")[1]
+
+        then: "serial changes only when registry changes"
+        again[0].serial == answers[0].serial
 
         authorities[0].dnsClass == "IN"
         authorities[0].type == "NS"
@@ -170,15 +188,31 @@ abstract class DnsIntegrationSpec extends Specification {
         ]
     }
 
-    def "should return empty set of TXT records for unknown service"() {
+    def "should return empty set of TXT records and zone SOA for unknown service"() {
         when:
         def (res, answers, authorities, additionals) = lookup("foo.service.${domain}", "TXT")
 
         then:
         res.status == "NXDOMAIN"
         answers.isEmpty()
-        authorities.isEmpty()
         additionals.isEmpty()
+        assertNegativeAuthority(authorities)
+    }
+
+    def "should return NODATA response with zone SOA for existing service without requested records: #type #name"() {
+        when:
+        def (res, answers, authorities, additionals) = lookup(name, type)
+
+        then:
+        res.status == "NOERROR"
+        answers.isEmpty()
+        additionals.isEmpty()
+        assertNegativeAuthority(authorities)
+
+        where:
+        type   | name
+        "AAAA" | "sardegna.service.${domain}"
+        "AAAA" | "mallorca.service.dc1.${domain}"
     }
 
     //
@@ -224,11 +258,11 @@ abstract class DnsIntegrationSpec extends Specification {
         def (res, answers, authorities, additionals) = lookup(name, "SRV")
 
         then:
-        res.status == "NXDOMAIN"
+        res.status == "NOERROR"
 
         answers.isEmpty()
-        authorities.isEmpty()
         additionals.isEmpty()
+        assertNegativeAuthority(authorities)
 
         where:
         name << [
@@ -0,0 +1,482 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import groovy.util.logging.Slf4j
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.dns.DatagramDnsQuery
+import io.netty.handler.codec.dns.DatagramDnsResponse
+import io.netty.handler.codec.dns.DatagramDnsResponseDecoder
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder
+import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DefaultDnsRawRecord
+import io.netty.handler.codec.dns.DnsRawRecord
+import io.netty.handler.codec.dns.DnsRecordType
+import io.netty.handler.codec.dns.DnsResponseCode
+import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static io.netty.handler.codec.dns.DnsRecordType.A
+import static io.netty.handler.codec.dns.DnsRecordType.ANY
+import static io.netty.handler.codec.dns.DnsRecordType.MX
+import static io.netty.handler.codec.dns.DnsRecordType.NS
+import static io.netty.handler.codec.dns.DnsRecordType.PTR
+import static io.netty.handler.codec.dns.DnsRecordType.SOA
+import static io.netty.handler.codec.dns.DnsRecordType.SRV
+import static io.netty.handler.codec.dns.DnsRecordType.TXT
+
+@Slf4j
+@Unroll
+class DnsMessagesSpec extends Specification {
+    def clientAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.3"), 32456)
+    def serverAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.4"), 5353)
+
+    def config = TestUtils.defaultConfig(FakeEurekaClient.defaults()).setMaxResponses(5)
+    def handler = new DnsQueryHandler(config)
+
+    def "#type #name response should shrink from #uncompressedSize to #compressedSize bytes and decode to the same records"() {
+        given:
+        def response = createResponse(name, type)
+
+        when:
+        def uncompressed = encodeUncompressed(response)
+        def compressed = encodeCompressed(response)
+        log.info("{} {} response size: uncompressed={} bytes, compressed={} bytes ({}%)",
+                type, name, uncompressed, compressed.readableBytes(),
+                (int) (compressed.readableBytes() * 100 / uncompressed))
+
+        then:
+        uncompressed == uncompressedSize
+        compressed.readableBytes() == compressedSize
+
+        when: "decode compressed response"
+        def decoded = decode(compressed)
+
+        then:
+        [DnsSection.QUESTION, DnsSection.ANSWER, DnsSection.AUTHORITY, DnsSection.ADDITIONAL].each { section ->
+            assert decoded.count(section) == response.count(section)
+            (0..<response.count(section)).each {
+                def expected = response.recordAt(section, it)
+                def actual = decoded.recordAt(section, it)
+                assert actual.name().toLowerCase() == toFqdn(expected.name()).toLowerCase()
+                assert actual.type() == expected.type()
+                assert actual.dnsClass() == expected.dnsClass()
+                assert actual.timeToLive() == expected.timeToLive()
+            }
+        }
+
+        cleanup:
+        response?.release()
+        decoded?.release()
+
+        where:
+        type | name                           | uncompressedSize | compressedSize
+        SRV  | "_corse._tcp.service.meureka." | 734              | 424
+        ANY  | "corse.service.meureka."       | 646              | 436
+        A    | "corse.service.meureka."       | 150              | 87
+        NS   | "corse.service.meureka."       | 110              | 72
+        SOA  | "corse.service.meureka."       | 195              | 119
+    }
+
+    def "compressed SRV targets should stay uncompressed and be referenced by additional records"() {
+        given:
+        def response = createResponse("_corse._tcp.service.meureka.", SRV)
+        def buf = encodeCompressed(response)
+        def decoded = decode(buf)
+
+        expect:
+        decoded.count(DnsSection.ANSWER) == 5
+        (0..<5).each {
+            DnsRawRecord expected = response.recordAt(DnsSection.ANSWER, it)
+            DnsRawRecord actual = decoded.recordAt(DnsSection.ANSWER, it)
+
+            // SRV rdata is not compressed
+            assert ByteBufUtil.equals(actual.content(), expected.content())
+
+            // additional record owner name is the same as SRV target
+            def additional = decoded.recordAt(DnsSection.ADDITIONAL, it)
+            def target = new StringBuilder()
+            DnsMessages.readName(actual.content(), actual.content().readerIndex() + 6, target)
+            assert additional.name() == target.toString() + "."
+        }
+
+        cleanup:
+        response.release()
+        decoded.release()
+    }
+
+    def "compressed NS and SOA rdata names should decode to the original names"() {
+        given:
+        def response = createResponse("corse.service.meureka.", SOA)
+        def buf = encodeCompressed(response)
+
+        when: "skip header and question"
+        def pos = skipName(buf, DnsMessages.HEADER_LENGTH) + 4
+
+        and: "read SOA answer"
+        pos = skipName(buf, pos) + 10
+        def mname = readName(buf, pos)
+        pos = skipName(buf, pos)
+        def rname = readName(buf, pos)
+        pos = skipName(buf, pos) + 20
+
+        and: "read NS authority"
+        pos = skipName(buf, pos) + 10
+        def ns = readName(buf, pos)
+
+        then:
+        mname == "ns.meureka."
+        rname == "hostmaster.meureka."
+        ns == "ns.meureka."
+
+        cleanup:
+        response.release()
+        buf.release()
+    }
+
+    def "#type rdata given as byte array should be encoded the same way as rdata given as buffer"() {
+        given:
+        def rdata = ByteBufUtil.getBytes(content)
+        content.release()
+
+        when:
+        def fromArray = encodeRData(type, rdata)
+        def fromBuffer = encodeRData(type, Unpooled.wrappedBuffer(rdata))
+
+        then:
+        fromArray == fromBuffer
+
+        where:
+        type | content
+        NS   | name("ns.meureka.")
+        PTR  | name("corse.service.meureka.")
+        MX   | Unpooled.buffer().writeShort(10).writeBytes(name("mail.meureka."))
+        SOA  | name("ns.meureka.").writeBytes(name("hostmaster.meureka.")).writeZero(20)
+        SRV  | Unpooled.buffer().writeZero(6).writeBytes(name("corse.meureka."))
+        A    | Unpooled.wrappedBuffer([10, 1, 2, 3] as byte[])
+        NS   | Unpooled.wrappedBuffer([5, 97, 98] as byte[])
+    }
+
+    def "name compressor should reuse the longest written suffix"() {
+        given:
+        def buf = Unpooled.buffer()
+        def compressor = DnsNameCompressor.get(buf)
+
+        when:
+        compressor.writeName("foo.service.eureka.", buf)
+        def first = buf.writerIndex()
+        compressor.writeName("FOO.service.eureka.", buf)
+        def second = buf.writerIndex()
+        compressor.writeName("bar.service.eureka", buf)
+        def third = buf.writerIndex()
+        compressor.writeName(".", buf)
+        def fourth = buf.writerIndex()
+
+        then: "full name is written only once"
+        first == 20
+        second - first == 2
+        third - second == 4 + 2
+        fourth - third == 1
+
+        readName(buf, first) == "foo.service.eureka."
+        readName(buf, second) == "bar.service.eureka."
+
+        cleanup:
+        buf.release()
+    }
+
+    def "name compressor should find suffixes of many written names"() {
+        given:
+        def buf = Unpooled.buffer()
+        def compressor = DnsNameCompressor.get(buf)
+        def names = (0..<500).collect { "host-${it}.service.eureka." }
+
+        when:
+        names.each { compressor.writeName(it, buf) }
+        def written = buf.writerIndex()
+        names.each { compressor.writeName(it.toUpperCase(), buf) }
+
+        then: "every name is replaced by a pointer"
+        buf.writerIndex() - written == 2 * names.size()
+        (0..<names.size()).every { readName(buf, written + 2 * it) == names[it] }
+
+        cleanup:
+        buf.release()
+    }
+
+    def "name compressor should not reference names written after truncation index"() {
+        given:
+        def buf = Unpooled.buffer()
+        def compressor = DnsNameCompressor.get(buf)
+
+        when:
+        compressor.writeName("a.x.", buf)
+        def mark = buf.writerIndex()
+        compressor.writeName("b.y.", buf)
+        buf.writerIndex(mark)
+        compressor.truncate(mark)
+        compressor.writeName("c.y.", buf)
+        compressor.writeName("d.x.", buf)
+
+        then:
+        buf.writerIndex() - mark == 5 + 4
+        readName(buf, mark) == "c.y."
+        readName(buf, mark + 5) == "d.x."
+
+        cleanup:
+        buf.release()
+    }
+
+    def "name compressor should reject too long labels"() {
+        given:
+        def buf = Unpooled.buffer()
+
+        when:
+        DnsNameCompressor.get(buf).writeName(("a" * 64) + ".eureka.", buf)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        cleanup:
+        buf.release()
+    }
+
+    def "response that doesn't fit into #maxSize bytes should be truncated to #expectedAnswers answers"() {
+        given:
+        def response = new DatagramDnsResponse(serverAddr, clientAddr, 42)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion("big.service.meureka.", A))
+        (0..<100).each {
+            response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord("big.service.meureka.", A, 5,
+                    Unpooled.wrappedBuffer([10, 0, 0, it] as byte[])))
+        }
+        response.addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(1232, 0, 0))
+
+        when:
+        def buf = DnsMessages.encodeResponse(response, Unpooled.buffer(), maxSize)
+        def size = buf.readableBytes()
+        def decoded = decode(buf)
+
+        then:
+        size <= maxSize
+        decoded.isTruncated() == truncated
+        decoded.count(DnsSection.ANSWER) == expectedAnswers
+
+        and: "OPT record is never omitted"
+        decoded.count(DnsSection.ADDITIONAL) == 1
+        decoded.recordAt(DnsSection.ADDITIONAL).type() == DnsRecordType.OPT
+
+        cleanup:
+        response.release()
+        decoded?.release()
+
+        where:
+        maxSize | truncated | expectedAnswers
+        512     | true      | 29
+        1232    | true      | 74
+        4096    | false     | 100
+    }
+
+    def "additional records that don't fit should be omitted without truncating response"() {
+        given:
+        def response = createResponse("_corse._tcp.service.meureka.", SRV)
+        def fullSize = encodeCompressed(response).readableBytes()
+
+        when:
+        def decoded = decode(DnsMessages.encodeResponse(response, Unpooled.buffer(), fullSize - 1))
+
+        then:
+        !decoded.isTruncated()
+        decoded.count(DnsSection.ANSWER) == 5
+        decoded.count(DnsSection.ADDITIONAL) == 4
+
+        cleanup:
+        response.release()
+        decoded?.release()
+    }
+
+    def "response code #code should be read from header and OPT record of encoded response"() {
+        given:
+        def response = new DatagramDnsResponse(serverAddr, clientAddr, 42)
+                .setCode(code)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion("corse.service.meureka.", A))
+                .addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord("corse.service.meureka.", A, 5,
+                        Unpooled.wrappedBuffer([10, 0, 0, 1] as byte[])))
+                .addRecord(DnsSection.ADDITIONAL, new DefaultDnsRawRecord("corse.service.meureka.", TXT, 5,
+                        Unpooled.wrappedBuffer([3, 102, 111, 111] as byte[])))
+        if (edns) {
+            response.addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(1232, code.intValue() >> 4, 0))
+        }
+        def buf = encodeCompressed(response)
+
+        expect:
+        DnsMessages.getResponseCode(buf) == code
+
+        cleanup:
+        response.release()
+        buf.release()
+
+        where:
+        code                              | edns
+        DnsResponseCode.NOERROR           | false
+        DnsResponseCode.NXDOMAIN          | false
+        DnsResponseCode.NOERROR           | true
+        DnsResponseCode.REFUSED           | true
+        DnsResponseCode.BADVERS_OR_BADSIG | true
+    }
+
+    def "truncated response should contain only header and question"() {
+        given:
+        def response = createResponse("_corse._tcp.service.meureka.", SRV)
+        def buf = encodeCompressed(response)
+
+        when:
+        def decoded = decode(DnsMessages.truncateResponse(buf))
+
+        then:
+        decoded.isTruncated()
+        decoded.id() == 42
+        decoded.count(DnsSection.QUESTION) == 1
+        decoded.recordAt(DnsSection.QUESTION).name() == "_corse._tcp.service.meureka."
+        decoded.recordAt(DnsSection.QUESTION).type() == SRV
+        decoded.count(DnsSection.ANSWER) == 0
+        decoded.count(DnsSection.AUTHORITY) == 0
+        decoded.count(DnsSection.ADDITIONAL) == 0
+
+        cleanup:
+        response.release()
+        decoded?.release()
+    }
+
+    def "refused query should keep transaction id, opcode, RD flag and question"() {
+        given:
+        def query = Unpooled.buffer()
+                .writeShort(4242)
+                .writeShort(0x0100) // RD
+                .writeShort(1)
+                .writeShort(0)
+                .writeShort(0)
+                .writeShort(1)
+        DnsMessages.encodeName("corse.service.meureka.", query).writeShort(A.intValue()).writeShort(1)
+        query.writeBytes([0, 0, 41, 4, 208, 0, 0, 0, 0, 0, 0] as byte[]) // OPT record
+
+        when:
+        def refused = DnsMessages.refuseQuery(query)
+        def decoded = decode(query)
+
+        then:
+        refused
+        decoded.id() == 4242
+        decoded.code() == DnsResponseCode.REFUSED
+        decoded.isRecursionDesired()
+        !decoded.isTruncated()
+        decoded.count(DnsSection.QUESTION) == 1
+        decoded.recordAt(DnsSection.QUESTION).name() == "corse.service.meureka."
+        decoded.count(DnsSection.ADDITIONAL) == 0
+
+        cleanup:
+        decoded?.release()
+    }
+
+    def "responses and too short messages should not be refused"() {
+        given:
+        def buf = Unpooled.wrappedBuffer(bytes as byte[])
+
+        expect:
+        !DnsMessages.refuseQuery(buf)
+
+        where:
+        bytes << [
+                [0, 1, 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0],
+                [0, 1, 0, 0, 0, 0]
+        ]
+    }
+
+    DatagramDnsResponse createResponse(String name, DnsRecordType type) {
+        def query = new DatagramDnsQuery(clientAddr, serverAddr, 42)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(name, type))
+        def response = handler.createResponse(query)
+        assert response.count(DnsSection.ANSWER) > 0
+        response
+    }
+
+    int encodeUncompressed(DatagramDnsResponse response) {
+        def channel = new EmbeddedChannel(new DatagramDnsResponseEncoder())
+        channel.writeOutbound(response.retain())
+        DatagramPacket packet = channel.readOutbound()
+        def size = packet.content().readableBytes()
+        packet.release()
+        channel.finishAndReleaseAll()
+        size
+    }
+
+    ByteBuf encodeCompressed(DatagramDnsResponse response) {
+        DnsMessages.encodeResponse(response, Unpooled.buffer())
+    }
+
+    DatagramDnsResponse decode(ByteBuf buf) {
+        def channel = new EmbeddedChannel(new DatagramDnsResponseDecoder())
+        channel.writeInbound(new DatagramPacket(buf, clientAddr, serverAddr))
+        DatagramDnsResponse response = channel.readInbound()
+        channel.finishAndReleaseAll()
+        response
+    }
+
+    static ByteBuf name(String name) {
+        DnsMessages.encodeName(name, Unpooled.buffer())
+    }
+
+    /**
+     * Encodes RDATA after zone name, so that names in RDATA can be compressed.
+     */
+    static byte[] encodeRData(DnsRecordType type, content) {
+        def buf = Unpooled.buffer()
+        def compressor = DnsNameCompressor.get(buf)
+        compressor.writeName("meureka.", buf)
+        DnsMessages.encodeRData(type, content, compressor, buf)
+        def bytes = ByteBufUtil.getBytes(buf)
+        buf.release()
+        bytes
+    }
+
+    static String toFqdn(String name) {
+        name.endsWith(".") ? name : name + "."
+    }
+
+    /**
+     * Reads possibly compressed name from the message.
+     */
+    static String readName(ByteBuf buf, int pos) {
+        def sb = new StringBuilder()
+        def len = buf.getUnsignedByte(pos)
+        while (len != 0) {
+            if ((len & 0xc0) == 0xc0) {
+                pos = ((len & 0x3f) << 8) | buf.getUnsignedByte(pos + 1)
+            } else {
+                sb.append(buf.toString(pos + 1, len, java.nio.charset.StandardCharsets.US_ASCII)).append('.')
+                pos += len + 1
+            }
+            len = buf.getUnsignedByte(pos)
+        }
+        sb.length() == 0 ? "." : sb.toString()
+    }
+
+    /**
+     * Returns message index after possibly compressed name.
+     */
+    static int skipName(ByteBuf buf, int pos) {
+        while (true) {
+            def len = buf.getUnsignedByte(pos)
+            if (len == 0) {
+                return pos + 1
+            }
+            if ((len & 0xc0) == 0xc0) {
+                return pos + 2
+            }
+            pos += len + 1
+        }
+    }
+}
@@ -2,22 +2,34 @@ package com.github.bfg.eureka.dns
 
 import com.google.common.net.InetAddresses
 import com.netflix.discovery.EurekaClient
+import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.PooledByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.buffer.UnpooledByteBufAllocator
 import io.netty.handler.codec.dns.DatagramDnsQuery
 import io.netty.handler.codec.dns.DatagramDnsResponse
 import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DnsOptPseudoRecord
 import io.netty.handler.codec.dns.DnsQuestion
+import io.netty.handler.codec.dns.DnsRawRecord
+import io.netty.handler.codec.dns.DnsRecord
 import io.netty.handler.codec.dns.DnsRecordType
 import io.netty.handler.codec.dns.DnsResponseCode
 import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Requires
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import java.lang.management.ManagementFactory
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.atomic.AtomicInteger
 
+import static com.github.bfg.eureka.dns.AnswerOrder.ROUND_ROBIN
+import static com.github.bfg.eureka.dns.AnswerOrder.STABLE
 import static io.netty.handler.codec.dns.DnsRecord.CLASS_ANY
 import static io.netty.handler.codec.dns.DnsRecord.CLASS_CHAOS
 import static io.netty.handler.codec.dns.DnsRecord.CLASS_CSNET
@@ -26,9 +38,15 @@ import static io.netty.handler.codec.dns.DnsRecord.CLASS_IN
 import static io.netty.handler.codec.dns.DnsRecord.CLASS_NONE
 import static io.netty.handler.codec.dns.DnsRecordType.A
 import static io.netty.handler.codec.dns.DnsRecordType.AAAA
+import static io.netty.handler.codec.dns.DnsRecordType.ANY
 import static io.netty.handler.codec.dns.DnsRecordType.AXFR
 import static io.netty.handler.codec.dns.DnsRecordType.CERT
+import static io.netty.handler.codec.dns.DnsRecordType.DS
+import static io.netty.handler.codec.dns.DnsRecordType.NS
+import static io.netty.handler.codec.dns.DnsRecordType.PTR
+import static io.netty.handler.codec.dns.DnsRecordType.SOA
 import static io.netty.handler.codec.dns.DnsRecordType.SPF
+import static io.netty.handler.codec.dns.DnsRecordType.SRV
 import static io.netty.handler.codec.dns.DnsRecordType.TXT
 import static io.netty.handler.codec.dns.DnsResponseCode.BADNAME
 import static io.netty.handler.codec.dns.DnsResponseCode.NOERROR
@@ -40,6 +58,7 @@ import static io.netty.handler.codec.dns.DnsSection.ANSWER
 @Unroll
 class DnsQueryHandlerSpec extends Specification {
     private static final def counter = new AtomicInteger()
+    private static final String HOST_100_URL = "http://host-100.us-west-2.compute.internal:8080/"
     static def eurekaClient = TestUtils.eurekaClient()
 
     @Shared
@@ -55,7 +74,7 @@ class DnsQueryHandlerSpec extends Specification {
 
     def "should throw in case of null arguments"() {
         when:
-        new DnsQueryHandler(null)
+        new DnsQueryHandler((DnsServerConfig) null)
 
         then:
         thrown(NullPointerException)
@@ -136,7 +155,7 @@ class DnsQueryHandlerSpec extends Specification {
         def query = createDnsQuery(question)
 
         when:
-        def response = handler.respondToDnsQuery(query)
+        def response = handler.respondToDnsQuery(query, null)
 
         then: "handler should refuse to respond to such questions"
         response.code() == DnsResponseCode.REFUSED
@@ -156,7 +175,7 @@ class DnsQueryHandlerSpec extends Specification {
         def query = createDnsQuery(question)
 
         when:
-        def response = handler.respondToDnsQuery(query)
+        def response = handler.respondToDnsQuery(query, null)
 
         then:
         assertResponse(response, question, expectedCode, 1)
@@ -187,7 +206,7 @@ class DnsQueryHandlerSpec extends Specification {
         def query = createDnsQuery(question)
 
         when:
-        def response = handler.respondToDnsQuery(query)
+        def response = handler.respondToDnsQuery(query, null)
 
         then:
         assertResponse(response, question, REFUSED)
@@ -236,6 +255,377 @@ class DnsQueryHandlerSpec extends Specification {
         urls[3] == 'https://host-104.us-west-2.compute.internal:8443/'
     }
 
+    def "should return at most maxResponses #type answers in #order order"() {
+        given:
+        def orderedHandler = new DnsQueryHandler(config.clone().setMaxResponses(2).setAnswerOrder(order))
+        def question = createDnsQuestion("corse.service.${domain}.", type)
+
+        when:
+        def answers = (1..6).collect {
+            def query = new DatagramDnsQuery(clientAddr, serverAddr, it).addRecord(DnsSection.QUESTION, question)
+            def response = orderedHandler.createResponse(query)
+            assert response.code() == NOERROR
+            assert response.count(ANSWER) == 2
+            (0..1).collect { response.recordAt(ANSWER, it).content().duplicate() }
+        }
+
+        then:
+        answers.each { assert it.toSet().size() == 2 }
+        answers.collect { it[0] }.toSet().size() == expectedFirstRecords
+
+        where:
+        type | order       | expectedFirstRecords
+        A    | STABLE      | 1
+        A    | ROUND_ROBIN | 3
+        TXT  | STABLE      | 1
+        TXT  | ROUND_ROBIN | 5
+        SRV  | ROUND_ROBIN | 5
+    }
+
+    def "should echo EDNS0 OPT record advertising configured max UDP payload size"() {
+        given:
+        def question = createDnsQuestion("corse.service.${domain}.", A)
+        def query = createDnsQuery(question).addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(4096, 0, 0))
+
+        when:
+        def response = handler.createResponse(query)
+
+        then:
+        assertResponse(response, question, NOERROR, 3)
+        response.count(DnsSection.ADDITIONAL) == 1
+
+        DnsOptPseudoRecord opt = response.recordAt(DnsSection.ADDITIONAL)
+        opt.type() == DnsRecordType.OPT
+        opt.dnsClass() == config.getMaxUdpPayloadSize()
+        opt.version() == 0
+        opt.extendedRcode() == 0
+
+        when: "query without OPT record"
+        def plainResponse = handler.createResponse(
+                new DatagramDnsQuery(clientAddr, serverAddr, 1).addRecord(DnsSection.QUESTION, question))
+
+        then:
+        plainResponse.count(DnsSection.ADDITIONAL) == 0
+    }
+
+    def "should respond with BADVERS to queries with unsupported EDNS version"() {
+        given:
+        def question = createDnsQuestion("corse.service.${domain}.", A)
+        def query = createDnsQuery(question).addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(4096, 0, 1))
+
+        when:
+        def response = handler.createResponse(query)
+
+        then:
+        response.code() == DnsResponseCode.BADVERS_OR_BADSIG
+        response.count(ANSWER) == 0
+
+        DnsOptPseudoRecord opt = response.recordAt(DnsSection.ADDITIONAL)
+        opt.extendedRcode() == 1
+
+        when: "encode response"
+        def buf = DnsMessages.encodeResponse(response, Unpooled.buffer())
+
+        then: "header carries only lower 4 bits of extended response code"
+        (buf.getByte(3) & 0x0f) == 0
+        DnsMessages.getResponseCode(buf) == DnsResponseCode.BADVERS_OR_BADSIG
+
+        cleanup:
+        buf?.release()
+    }
+
+    def "negative response to #type #name should be #expectedCode with zone SOA in authority section"() {
+        given:
+        def query = createDnsQuery(createDnsQuestion(name.replace("DOMAIN", domain), type))
+
+        when:
+        def response = handler.createResponse(query)
+
+        then:
+        response.code() == expectedCode
+        response.count(ANSWER) == 0
+        response.count(DnsSection.AUTHORITY) == 1
+
+        def soa = response.recordAt(DnsSection.AUTHORITY)
+        soa.type() == SOA
+        soa.name() == "${domain}."
+        soa.timeToLive() == config.getNegativeTtl()
+
+        cleanup:
+        response?.release()
+
+        where:
+        type | name                                | expectedCode
+        A    | "nonexistent.service.DOMAIN."       | NXDOMAIN
+        SRV  | "_nonexistent._tcp.service.DOMAIN." | NXDOMAIN
+        AAAA | "sardegna.service.DOMAIN."          | NOERROR
+        SRV  | "sicily.service.dc1.DOMAIN."        | NOERROR
+        DS   | "corse.service.DOMAIN."             | NXDOMAIN
+    }
+
+    def "queries for unknown services should be rejected by service name filter"() {
+        given:
+        def unknown = (1..100).collect { createDnsQuestion("x${it}q.service.${domain}.", A) }
+        def known = createDnsQuestion("corse.service.${domain}.", A)
+
+        when:
+        def codes = (unknown + known).collect {
+            def response = handler.createResponse(
+                    new DatagramDnsQuery(clientAddr, serverAddr, 1).addRecord(DnsSection.QUESTION, it))
+            def code = response.code()
+            response.release()
+            code
+        }
+
+        then:
+        codes.take(100).every { it == NXDOMAIN }
+        codes.last() == NOERROR
+
+        handler.getFilterRejections() + handler.getFilterFalsePositives() == 100
+        handler.getFilterRejections() > 90
+        handler.getFilterFalsePositiveRate() < 0.1
+        handler.getServiceFilter().getNumEntries() > 0
+
+        when:
+        def out = new MetricsWriter()
+        handler.writeMetrics(out)
+        def samples = out.toString().readLines()
+                .findAll { !it.startsWith("#") }
+                .collectEntries { it.split(" ") as List }
+
+        then: "filter size and observed false positive rate should be exported"
+        samples["eureka_dns_service_filter_size_bits"] as long == handler.getServiceFilter().getNumBits()
+        samples["eureka_dns_service_filter_false_positive_rate"] as double == handler.getFilterFalsePositiveRate()
+    }
+
+    def "SOA serial should be derived from registry index version"() {
+        given:
+        def question = createDnsQuestion("corse.service.${domain}.", SOA)
+
+        when:
+        def serials = (1..3).collect {
+            def response = handler.createResponse(
+                    new DatagramDnsQuery(clientAddr, serverAddr, it).addRecord(DnsSection.QUESTION, question))
+            assert response.code() == NOERROR
+            def rdata = response.recordAt(ANSWER).content()
+            def name = new StringBuilder()
+            def pos = DnsMessages.readName(rdata, rdata.readerIndex(), name)
+            pos = DnsMessages.readName(rdata, pos, name)
+            def serial = rdata.getInt(pos)
+            response.release()
+            serial
+        }
+
+        then:
+        serials.toSet().size() == 1
+        serials[0] == handler.zoneAuthority.getSerial(handler.registryIndexManager.index().getVersion())
+    }
+
+    def "directly written response should be equal to encoded created response: #type #name, edns=#edns, maxSize=#maxSize"() {
+        given:
+        def query = createDnsQuery(createDnsQuestion(name.replace("DOMAIN", domain), type))
+        if (edns) {
+            query.addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(4096, 0, 0))
+        }
+
+        when:
+        def written = handler.encodeResponse(UnpooledByteBufAllocator.DEFAULT, query, maxSize)
+        def response = handler.createResponse(query)
+        def expected = DnsMessages.encodeResponse(response, Unpooled.buffer(), maxSize)
+
+        then:
+        ByteBufUtil.equals(written, expected)
+
+        cleanup:
+        response?.release()
+        written?.release()
+        expected?.release()
+
+        where:
+        type | name                          | edns  | maxSize
+        A    | "corse.service.DOMAIN."       | false | 512
+        A    | "corse.service.DOMAIN."       | true  | 512
+        AAAA | "corse.service.DOMAIN."       | true  | 65535
+        TXT  | "corse.service.DOMAIN."       | false | 65535
+        SRV  | "_corse._tcp.service.DOMAIN." | true  | 65535
+        SRV  | "_corse._tcp.service.DOMAIN." | false | 300
+        SRV  | "_corse._tcp.service.DOMAIN." | false | 100
+        ANY  | "corse.service.DOMAIN."       | true  | 1232
+        A    | "nonexistent.service.DOMAIN." | true  | 512
+        A    | "foo.bar.DOMAIN."             | false | 512
+        NS   | "corse.service.DOMAIN."       | true  | 512
+        A    | "host-100.node.DOMAIN."       | true  | 512
+        ANY  | "host-105.node.DOMAIN."       | false | 512
+        SRV  | "host-105.node.DOMAIN."       | true  | 512
+        A    | "nonexistent.node.DOMAIN."    | true  | 512
+    }
+
+    def "node lookup #type #name should be answered with #expectedCode and #expected"() {
+        given:
+        def query = createDnsQuery(createDnsQuestion(name.replace("DOMAIN", domain), type))
+
+        when:
+        def response = handler.createResponse(query)
+        def answers = (0..<response.count(ANSWER)).collect { response.recordAt(ANSWER, it) }
+
+        then:
+        response.code() == expectedCode
+        answers.collect { decodeRData(it) } == expected
+
+        and: "negative responses contain zone SOA record"
+        if (expected.isEmpty()) {
+            assert response.count(DnsSection.AUTHORITY) == 1
+            assert response.recordAt(DnsSection.AUTHORITY).type() == SOA
+        }
+
+        cleanup:
+        response?.release()
+
+        where:
+        type | name                                               | expectedCode | expected
+        A    | "host-100.node.DOMAIN."                            | NOERROR      | ["10.11.1.100"]
+        A    | "HOST-100.node.default.DOMAIN."                    | NOERROR      | ["10.11.1.100"]
+        A    | "host-100-us-west-2-compute-internal.node.DOMAIN." | NOERROR      | ["10.11.1.100"]
+        TXT  | "host-100.node.DOMAIN."                            | NOERROR      | [HOST_100_URL]
+        ANY  | "host-100.node.DOMAIN."                            | NOERROR      | ["10.11.1.100", HOST_100_URL]
+        AAAA | "host-104.node.DOMAIN."                            | NOERROR      | ["::2"]
+        A    | "host-104.node.DOMAIN."                            | NOERROR      | []
+        SRV  | "host-100.node.DOMAIN."                            | NOERROR      | []
+        A    | "host-152.node.dc1.DOMAIN."                        | NOERROR      | ["10.12.30.152"]
+        A    | "host-103.node.DOMAIN."                            | NXDOMAIN     | []
+        A    | "host-152.node.DOMAIN."                            | NXDOMAIN     | []
+        A    | "192-168-1-154.node.dc1.DOMAIN."                   | NXDOMAIN     | []
+        A    | "host-100.node.dc2.DOMAIN."                        | NXDOMAIN     | []
+    }
+
+    def "reverse lookup #type #name should be answered with #expectedCode and #expected"() {
+        given:
+        def handler = new DnsQueryHandler(newConfig().setReverseZones(["10.IN-ADDR.ARPA.", "0.0.ip6.arpa"] as Set))
+        def query = createDnsQuery(createDnsQuestion(name, type))
+
+        when:
+        def response = handler.createResponse(query)
+        def answers = (0..<response.count(ANSWER)).collect { response.recordAt(ANSWER, it) }
+
+        then:
+        response.code() == expectedCode
+        answers.every { it.type() == PTR && it.name() == name }
+        answers.collect { ReverseIndexSpec.decodeName(ByteBufUtil.getBytes(it.content())) } == expected
+
+        and: "negative responses contain SOA record of the reverse zone"
+        if (expected.isEmpty() && expectedCode != REFUSED) {
+            assert response.count(DnsSection.AUTHORITY) == 1
+            assert response.recordAt(DnsSection.AUTHORITY).type() == SOA
+            assert response.recordAt(DnsSection.AUTHORITY).name() == zone
+        }
+
+        cleanup:
+        response?.release()
+
+        where:
+        type | name                                | expectedCode | expected                                | zone
+        PTR  | "100.1.11.10.in-addr.arpa."         | NOERROR      | ["host-100.us-west-2.compute.internal"] | null
+        ANY  | "100.1.11.10.in-addr.arpa."         | NOERROR      | ["host-100.us-west-2.compute.internal"] | null
+        PTR  | ReverseIndexSpec.reverseName("::2") | NOERROR      | ["host-104.us-west-2.compute.internal"] | null
+        A    | "100.1.11.10.in-addr.arpa."         | NOERROR      | []                                      | "10.in-addr.arpa."
+        PTR  | "1.1.11.10.in-addr.arpa."           | NXDOMAIN     | []                                      | "10.in-addr.arpa."
+        PTR  | "1.1.11.10.IN-ADDR.ARPA."           | NXDOMAIN     | []                                      | "10.in-addr.arpa."
+        PTR  | "foo.1.11.10.in-addr.arpa."         | NXDOMAIN     | []                                      | "10.in-addr.arpa."
+        PTR  | "11.10.in-addr.arpa."               | NOERROR      | []                                      | "10.in-addr.arpa."
+        DS   | "11.10.in-addr.arpa."               | NXDOMAIN     | []                                      | "10.in-addr.arpa."
+        PTR  | "1.1.12.11.in-addr.arpa."           | REFUSED      | []                                      | null
+        PTR  | "154.1.168.192.in-addr.arpa."       | REFUSED      | []                                      | null
+        PTR  | "corse.service.${domain}."          | NOERROR      | []                                      | "${domain}."
+    }
+
+    def "reverse lookups should be refused unless reverse zones are configured"() {
+        given:
+        def question = createDnsQuestion("100.1.11.10.in-addr.arpa.", PTR)
+
+        when:
+        def response = handler.createResponse(createDnsQuery(question))
+
+        then:
+        response.code() == REFUSED
+
+        cleanup:
+        response?.release()
+    }
+
+    def "directly written reverse lookup response should be equal to encoded created response: #type #name"() {
+        given:
+        def handler = new DnsQueryHandler(newConfig().setReverseZones(["10.in-addr.arpa", "ip6.arpa"] as Set))
+        def query = createDnsQuery(createDnsQuestion(name, type))
+                .addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(4096, 0, 0))
+
+        when:
+        def written = handler.encodeResponse(UnpooledByteBufAllocator.DEFAULT, query, 512)
+        def response = handler.createResponse(query)
+        def expected = DnsMessages.encodeResponse(response, Unpooled.buffer(), 512)
+
+        then:
+        ByteBufUtil.equals(written, expected)
+
+        cleanup:
+        response?.release()
+        written?.release()
+        expected?.release()
+
+        where:
+        type | name
+        PTR  | "100.1.11.10.in-addr.arpa."
+        PTR  | ReverseIndexSpec.reverseName("::3")
+        AAAA | "100.1.11.10.in-addr.arpa."
+        PTR  | "1.1.11.10.in-addr.arpa."
+        PTR  | "11.10.in-addr.arpa."
+    }
+
+    @Requires({ isAllocationMeasurable() })
+    def "writing #type response should allocate at most #budget bytes per query"() {
+        given:
+        def query = createDnsQuery(createDnsQuestion("${name}.service.${domain}.", type))
+                .addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(4096, 0, 0))
+        def iterations = 10_000
+
+        when: "warm up"
+        allocatedBytes(handler, query, iterations)
+
+        and:
+        def perQuery = allocatedBytes(handler, query, iterations) / iterations
+        log.info("{} response allocated {} bytes per query", type, perQuery)
+
+        then:
+        perQuery <= budget
+
+        where:
+        type | name     | budget
+        A    | "corse"  | 256
+        SRV  | "_corse" | 256
+        ANY  | "corse"  | 256
+    }
+
+    /**
+     * Returns number of bytes allocated by current thread while encoding responses to given query.
+     */
+    @CompileStatic
+    static long allocatedBytes(DnsQueryHandler handler, DatagramDnsQuery query, int iterations) {
+        def threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+        def threadId = Thread.currentThread().getId()
+        def allocator = PooledByteBufAllocator.DEFAULT
+
+        def start = threadMXBean.getThreadAllocatedBytes(threadId)
+        for (int i = 0; i < iterations; i++) {
+            handler.encodeResponse(allocator, query, DnsMessages.DEFAULT_MAX_PAYLOAD_SIZE).release()
+        }
+        threadMXBean.getThreadAllocatedBytes(threadId) - start
+    }
+
+    static boolean isAllocationMeasurable() {
+        def threadMXBean = ManagementFactory.getThreadMXBean()
+        threadMXBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemoryEnabled()
+    }
+
     def assertResponse(DatagramDnsResponse response,
                        DnsQuestion question,
                        DnsResponseCode expectedCode = NOERROR,
@@ -253,6 +643,17 @@ class DnsQueryHandlerSpec extends Specification {
         true
     }
 
+    /**
+     * Decodes A/AAAA record payload to address and TXT record payload to string.
+     */
+    static String decodeRData(DnsRecord record) {
+        def rdata = ByteBufUtil.getBytes(((DnsRawRecord) record).content())
+        if (record.type() == TXT) {
+            return new String(rdata, 1, rdata.length - 1, StandardCharsets.US_ASCII)
+        }
+        InetAddresses.toAddrString(InetAddress.getByAddress(rdata))
+    }
+
     DnsServerConfig newConfig(EurekaClient client = eurekaClient) {
         TestUtils.defaultConfig(client)
     }
@@ -38,7 +38,59 @@ class DnsServerConfigSpec extends Specification {
                 { it.setPort(-1) },
                 { it.setPort(0) },
                 { it.setPort(65536) },
-                { it.setPort(100_000) }
+                { it.setPort(100_000) },
+                { it.setResponseCacheMaxEntries(0) },
+                { it.setAnswerOrder(null) },
+                { it.setMaxUdpPayloadSize(511) },
+                { it.setMaxUdpPayloadSize(65536) },
+                { it.setTcpIdleTimeout(0) },
+                { it.setSoaRefresh(-1) },
+                { it.setSoaMinimum(-1) },
+                { it.setNegativeTtl(-1) },
+                { it.setDatagramBatchSize(-1) },
+                { it.setDatagramBatchSize(1025) },
+                { it.setRateLimitResponsesPerSecond(-1) },
+                { it.setRateLimitResponsesPerSecond(100_001) },
+                { it.setRateLimitResponsesPerSecond(10).setRateLimitSlip(-1) },
+                { it.setRateLimitResponsesPerSecond(10).setRateLimitTableSize(0) },
+                { it.setOverloadMaxQueueDelay(-1) },
+                { it.setOverloadMaxPendingTasks(-1) },
+                { it.setOverloadAction(null) },
+                { it.setMetricsPort(-1) },
+                { it.setMetricsPort(65536) },
+                { it.setMetricsAddress("localhost") },
+                { it.setMetricsAddress("10.0.0.256") },
+                { it.setMetricsAddress(null) },
+                { it.setQueryLogFile(null) },
+                { it.setQueryLogFormat(null) },
+                { it.setLogQueries(true).setQueryLogSampleRate(-0.1) },
+                { it.setLogQueries(true).setQueryLogSampleRate(1.1) },
+                { it.setLogQueries(true).setQueryLogBufferSize(15) },
+                { it.setLogQueries(true).setQueryLogBufferSize(QueryLog.MAX_BUFFER_SIZE + 1) },
+                { it.setLogQueries(true).setQueryLogMaxFileSize(100) },
+                { it.setLogQueries(true).setQueryLogMaxFiles(-1) },
+                { it.setDnstapFile(null) },
+                { it.setDnstapSocket(null) },
+                { it.setDnstapIdentity(null) },
+                { it.setDnstapFile("/tmp/dnstap.fstrm").setDnstapSocket("/tmp/dnstap.sock") },
+                { it.setDnstapBufferSize(15) },
+                { it.setRegistrySnapshotFile(null) },
+                { it.setRegistrySnapshotFile("/tmp/registry.snapshot").setRegistrySnapshotInterval(0) },
+                { it.setRegistrySnapshotFile("/tmp/registry.snapshot").setRegistrySnapshotMaxAge(-1) },
+                { it.setZoneTransfer(true).setTcp(false) },
+                { it.setZoneTransfer(true).setZoneTransferHistory(-1) },
+                { it.setNotifySecondaries(["10.0.0.53"] as Set) },
+                { it.setZoneTransfer(true).setNotifySecondaries(["10.0.0.53:0"] as Set) },
+                { it.setZoneTransfer(true).setNotifySecondaries(["ns1.example.org:domain"] as Set) },
+                { it.setZoneTransfer(true).setNotifySecondaries(["[2001:db8::53"] as Set) },
+                { it.setZoneTransfer(true).setNotifySecondaries([":53"] as Set) },
+                { it.setZoneTransferAllow(["10.0.0.0/8"] as Set) },
+                { it.setZoneTransfer(true).setZoneTransferAllow(["ns1.example.org"] as Set) },
+                { it.setZoneTransfer(true).setZoneTransferAllow(["10.0.0.0/33"] as Set) },
+                { it.setZoneTransfer(true).setZoneTransferAllow(["2001:db8::/"] as Set) },
+                { it.setReverseZones(["example.org"] as Set) },
+                { it.setReverseZones(["256.10.in-addr.arpa"] as Set) },
+                { it.setReverseZones(["ab.ip6.arpa"] as Set) }
         ]
     }
 
@@ -54,7 +106,56 @@ class DnsServerConfigSpec extends Specification {
 
         config.getTtl() == 5
         config.getMaxResponses() == 5
+        config.getAnswerOrder() == AnswerOrder.STABLE
+        config.getMaxUdpPayloadSize() == 1232
+        config.getSoaRefresh() == 3600
+        config.getSoaRetry() == 600
+        config.getSoaExpire() == 86400
+        config.getSoaMinimum() == 30
+        config.getNegativeTtl() == 30
+        config.getDatagramBatchSize() == 0
+        config.isTcp()
+        config.getTcpIdleTimeout() == 10
         config.getDomain() == "eureka"
+
+        config.isResponseCache()
+        config.getResponseCacheMaxEntries() == 10_000
+
+        config.getRateLimitResponsesPerSecond() == 0
+        config.getRateLimitSlip() == 2
+        !config.isRateLimitDryRun()
+        config.getRateLimitTableSize() == 65_536
+
+        config.getOverloadMaxQueueDelay() == 0
+        config.getOverloadMaxPendingTasks() == 0
+        config.getOverloadAction() == OverloadAction.REFUSE
+
+        config.getMetricsPort() == 0
+        config.getMetricsAddress() == ""
+
+        !config.isLogQueries()
+        config.getQueryLogFile() == ""
+        config.getQueryLogFormat() == QueryLogFormat.TEXT
+        config.getQueryLogMaxFileSize() == 100 * 1024 * 1024
+        config.getQueryLogMaxFiles() == 5
+        config.getQueryLogSampleRate() == 1.0d
+        config.getQueryLogBufferSize() == 16_384
+
+        config.getDnstapFile() == ""
+        config.getDnstapSocket() == ""
+        config.getDnstapIdentity() == ""
+        config.getDnstapBufferSize() == 16_384
+
+        config.getRegistrySnapshotFile() == ""
+        config.getRegistrySnapshotInterval() == 60
+        config.getRegistrySnapshotMaxAge() == 86_400
+
+        !config.isZoneTransfer()
+        config.getZoneTransferHistory() == 16
+        config.getNotifySecondaries().isEmpty()
+        config.getZoneTransferAllow().isEmpty()
+
+        config.getReverseZones().isEmpty()
     }
 
     def "validation of default instance should complain about missing eureka client"() {
@@ -80,11 +181,48 @@ class DnsServerConfigSpec extends Specification {
                 .setEventLoopGroup(elg)
                 .setEurekaClient(eurekaClient)
                 .setTtl(42)
+                .setSoaRefresh(1)
+                .setSoaRetry(2)
+                .setSoaExpire(3)
+                .setSoaMinimum(4)
+                .setNegativeTtl(5)
                 .setMaxResponses(2)
+                .setAnswerOrder(AnswerOrder.RANDOM)
+                .setMaxUdpPayloadSize(4096)
+                .setDatagramBatchSize(32)
+                .setTcp(true) // required by zone transfers
+                .setTcpIdleTimeout(42)
                 .setMaxThreads(31)
                 .setPreferNativeTransport(false)
                 .setDomain(domain)
                 .setLogQueries(true)
+                .setResponseCache(false)
+                .setResponseCacheMaxEntries(42)
+                .setRateLimitResponsesPerSecond(20)
+                .setRateLimitSlip(3)
+                .setRateLimitDryRun(true)
+                .setRateLimitTableSize(1024)
+                .setOverloadMaxQueueDelay(50)
+                .setOverloadMaxPendingTasks(1000)
+                .setOverloadAction(OverloadAction.DROP)
+                .setMetricsPort(9090)
+                .setMetricsAddress("127.0.0.1")
+                .setQueryLogFile("/tmp/queries.log")
+                .setQueryLogFormat(QueryLogFormat.BINARY)
+                .setQueryLogMaxFileSize(1024 * 1024)
+                .setQueryLogMaxFiles(2)
+                .setQueryLogSampleRate(0.5d)
+                .setQueryLogBufferSize(128)
+                .setDnstapSocket("/var/run/dnstap.sock")
+                .setDnstapIdentity("ns1")
+                .setDnstapBufferSize(1024)
+                .setRegistrySnapshotFile("/var/lib/eureka-dns/registry.snapshot")
+                .setRegistrySnapshotInterval(30)
+                .setRegistrySnapshotMaxAge(0)
+                .setZoneTransfer(true)
+                .setZoneTransferHistory(4)
+                .setZoneTransferAllow(["10.0.0.0/8", "2001:db8::53"] as Set)
+                .setReverseZones(["10.in-addr.arpa", "8.b.d.0.1.0.0.2.ip6.arpa"] as Set)
 
         when: "clone config"
         def cloned = config.clone()
@@ -0,0 +1,113 @@
+package com.github.bfg.eureka.dns
+
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+import static com.github.bfg.eureka.dns.DnstapMessages.CLIENT_QUERY
+import static com.github.bfg.eureka.dns.DnstapMessages.CLIENT_RESPONSE
+
+@Unroll
+class DnstapMessagesSpec extends Specification {
+    static final long TIMESTAMP = 1_600_000_000_123L
+
+    def dnsMessage = EurekaDnsServerSpec.encodeQuery(42, "corse.service.eureka.")
+
+    def "should encode #desc"() {
+        given:
+        def client = new InetSocketAddress(clientAddr, 5353)
+        def server = new InetSocketAddress(serverAddr, 53)
+        def buf = Unpooled.wrappedBuffer(dnsMessage)
+
+        when:
+        def encoded = DnstapMessages.encodeMessage(type, tcp, client, server, TIMESTAMP, buf, "ns1".bytes)
+        def dnstap = DnstapReader.decodeDnstap(encoded)
+        def message = dnstap.message as Map
+
+        then: "message buffer is not consumed"
+        buf.readerIndex() == 0
+
+        and: "dnstap message"
+        new String(dnstap[1] as byte[]) == "ns1"
+        dnstap[2] == DnstapMessages.VERSION
+        dnstap[15] == 1L
+
+        and: "nested message"
+        message[1] == type as long
+        message[2] == family
+        message[3] == protocol
+        message[4] == client.getAddress().getAddress()
+        message[5] == server.getAddress().getAddress()
+        message[6] == 5353L
+        message[7] == 53L
+        message[timeField] == 1_600_000_000L
+        message[timeField + 1] == 123_000_000
+        message[timeField + 2] == dnsMessage
+        message.keySet() == ([1, 2, 3, 4, 5, 6, 7] + [timeField, timeField + 1, timeField + 2]) as Set
+
+        where:
+        desc                | type            | tcp   | clientAddr    | serverAddr | family | protocol | timeField
+        "udp query"         | CLIENT_QUERY    | false | "10.1.2.3"    | "10.0.0.1" | 1L     | 1L       | 8
+        "tcp ipv6 query"    | CLIENT_QUERY    | true  | "2001:db8::1" | "::1"      | 2L     | 2L       | 8
+        "udp response"      | CLIENT_RESPONSE | false | "10.1.2.3"    | "10.0.0.1" | 1L     | 1L       | 12
+        "tcp ipv6 response" | CLIENT_RESPONSE | true  | "2001:db8::1" | "::1"      | 2L     | 2L       | 12
+    }
+
+    def "should omit identity and server address if not known"() {
+        given:
+        def client = new InetSocketAddress("10.1.2.3", 5353)
+
+        when:
+        def encoded = DnstapMessages.encodeMessage(CLIENT_QUERY, false, client, null, TIMESTAMP,
+                Unpooled.wrappedBuffer(dnsMessage), new byte[0])
+        def dnstap = DnstapReader.decodeDnstap(encoded)
+
+        then:
+        !dnstap.containsKey(1)
+        !(dnstap.message as Map).containsKey(5)
+        !(dnstap.message as Map).containsKey(7)
+        (dnstap.message as Map)[10] == dnsMessage
+    }
+
+    def "should encode large messages with multi-byte lengths"() {
+        given:
+        def large = new byte[3000]
+        new Random(1).nextBytes(large)
+
+        when:
+        def encoded = DnstapMessages.encodeMessage(CLIENT_RESPONSE, true,
+                new InetSocketAddress("10.1.2.3", 5353), new InetSocketAddress("10.0.0.1", 53), TIMESTAMP,
+                Unpooled.wrappedBuffer(large), new byte[0])
+
+        then:
+        (DnstapReader.decodeDnstap(encoded).message as Map)[14] == large
+    }
+
+    def "should encode control frame #type"() {
+        when:
+        def frame = DnstapMessages.encodeControlFrame(type, contentType)
+        def buf = ByteBuffer.wrap(frame)
+
+        then:
+        buf.getInt() == 0
+        buf.getInt() == frame.length - 8
+        buf.getInt() == type
+
+        when:
+        def frames = DnstapReader.readFrames(new ByteArrayInputStream(frame))
+
+        then:
+        frames.size() == 1
+        frames[0].controlType == type
+        frames[0].contentTypes == (contentType ? [contentType] : [])
+
+        where:
+        type                          | contentType
+        DnstapMessages.CONTROL_READY  | DnstapMessages.CONTENT_TYPE
+        DnstapMessages.CONTROL_START  | DnstapMessages.CONTENT_TYPE
+        DnstapMessages.CONTROL_STOP   | null
+        DnstapMessages.CONTROL_FINISH | null
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.bfg.eureka.dns
+
+import java.nio.ByteBuffer
+
+/**
+ * Minimal Frame Streams reader and dnstap protobuf decoder used to verify captured traffic.
+ */
+class DnstapReader {
+    /**
+     * Frame Streams frame: control frames have type and content types, data frames have data.
+     */
+    static class Frame {
+        Integer controlType
+        List<String> contentTypes = []
+        byte[] data
+
+        boolean isControl() {
+            controlType != null
+        }
+    }
+
+    /**
+     * Reads frames until the end of stream or until STOP control frame has been read.
+     */
+    static List<Frame> readFrames(InputStream is) {
+        def input = new DataInputStream(is)
+        def frames = []
+        while (true) {
+            def frame = readFrame(input)
+            if (frame == null) {
+                break
+            }
+            frames << frame
+            if (frame.controlType == DnstapMessages.CONTROL_STOP) {
+                break
+            }
+        }
+        frames
+    }
+
+    /**
+     * Reads single frame, returns {@code null} at the end of stream.
+     */
+    static Frame readFrame(DataInputStream input) {
+        int length
+        try {
+            length = input.readInt()
+        } catch (EOFException e) {
+            return null
+        }
+
+        def frame = new Frame()
+        if (length != 0) {
+            frame.data = new byte[length]
+            input.readFully(frame.data)
+            return frame
+        }
+
+        def control = new byte[input.readInt()]
+        input.readFully(control)
+        def buf = ByteBuffer.wrap(control)
+        frame.controlType = buf.getInt()
+        while (buf.hasRemaining()) {
+            def fieldType = buf.getInt()
+            def value = new byte[buf.getInt()]
+            buf.get(value)
+            if (fieldType == DnstapMessages.CONTROL_FIELD_CONTENT_TYPE) {
+                frame.contentTypes << new String(value, "US-ASCII")
+            }
+        }
+        frame
+    }
+
+    /**
+     * Decodes protobuf message into a map of field numbers to values: varints are decoded as {@code Long},
+     * fixed32 values as {@code Integer} and length-delimited values as {@code byte[]}.
+     */
+    static Map<Integer, Object> decode(byte[] message) {
+        def buf = ByteBuffer.wrap(message)
+        def fields = [:]
+        while (buf.hasRemaining()) {
+            def tag = readVarint(buf)
+            def field = (int) (tag >>> 3)
+            switch ((int) (tag & 0x07)) {
+                case 0:
+                    fields[field] = readVarint(buf)
+                    break
+                case 2:
+                    def value = new byte[(int) readVarint(buf)]
+                    buf.get(value)
+                    fields[field] = value
+                    break
+                case 5:
+                    fields[field] = Integer.reverseBytes(buf.getInt())
+                    break
+                default:
+                    throw new IllegalArgumentException("Unsupported wire type in tag: " + tag)
+            }
+        }
+        fields
+    }
+
+    /**
+     * Decodes {@code dnstap.Dnstap} message and its nested {@code dnstap.Message}, which is stored under
+     * {@code message} key.
+     */
+    static Map<Object, Object> decodeDnstap(byte[] data) {
+        def dnstap = decode(data) as Map<Object, Object>
+        dnstap.message = decode(dnstap[14] as byte[])
+        dnstap
+    }
+
+    private static long readVarint(ByteBuffer buf) {
+        long value = 0
+        int shift = 0
+        while (true) {
+            def b = buf.get()
+            value |= ((long) (b & 0x7f)) << shift
+            if ((b & 0x80) == 0) {
+                return value
+            }
+            shift += 7
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.bfg.eureka.dns
+
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufInputStream
+import io.netty.buffer.Unpooled
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.epoll.Epoll
+import io.netty.channel.epoll.EpollEventLoopGroup
+import io.netty.channel.epoll.EpollServerDomainSocketChannel
+import io.netty.channel.unix.DomainSocketAddress
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Timeout
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class DnstapWriterSpec extends Specification {
+    @TempDir
+    Path tempDir
+
+    def "should write unidirectional frame stream to a file"() {
+        given:
+        def file = tempDir.resolve("dnstap/capture.fstrm")
+        def writer = new DnstapWriter(1024, new DnstapWriter.FileOutput(file))
+        def messages = (1..100).collect { "message-${it}".bytes }
+
+        when:
+        writer.start()
+        messages.each { writer.write(it) }
+        writer.stop()
+        def frames = Files.newInputStream(file).withCloseable { DnstapReader.readFrames(it) }
+
+        then:
+        writer.getWritten() == 100
+        writer.getDropped() == 0
+
+        frames.size() == 102
+        frames.first().controlType == DnstapMessages.CONTROL_START
+        frames.first().contentTypes == [DnstapMessages.CONTENT_TYPE]
+        frames.last().controlType == DnstapMessages.CONTROL_STOP
+        frames[1..100].collect { it.data } == messages
+    }
+
+    def "file output should truncate the file only when it is opened for the first time"() {
+        given:
+        def file = Files.write(tempDir.resolve("capture.fstrm"), "previous capture".bytes)
+        def output = new DnstapWriter.FileOutput(file)
+
+        when: "output is reopened after a write error"
+        output.open()
+        output.writeFrame("first".bytes)
+        output.close()
+        output.open()
+        output.writeFrame("second".bytes)
+        output.close()
+
+        def input = new DataInputStream(Files.newInputStream(file))
+        def streams = input.withCloseable { [DnstapReader.readFrames(it), DnstapReader.readFrames(it)] }
+
+        then: "each open starts a new stream and earlier frames are kept"
+        streams.size() == 2
+        streams.every { it.first().controlType == DnstapMessages.CONTROL_START }
+        streams.every { it.last().controlType == DnstapMessages.CONTROL_STOP }
+        streams[0][1].data == "first".bytes
+        streams[1][1].data == "second".bytes
+        streams.every { it.size() == 3 }
+    }
+
+    def "should drop and count messages when queue is full"() {
+        given:
+        def file = tempDir.resolve("capture.fstrm")
+        def writer = new DnstapWriter(16, new DnstapWriter.FileOutput(file))
+
+        when: "writer thread is not running yet"
+        20.times { writer.write(new byte[10]) }
+
+        then:
+        writer.getDropped() == 4
+
+        when:
+        writer.start()
+        writer.stop()
+
+        then:
+        writer.getWritten() == 16
+    }
+
+    def "should drop messages while output can't be opened"() {
+        given:
+        def notADirectory = Files.createFile(tempDir.resolve("file"))
+        def writer = new DnstapWriter(16, new DnstapWriter.FileOutput(notADirectory.resolve("capture.fstrm")))
+
+        when:
+        writer.start()
+        5.times { writer.write(new byte[10]) }
+        writer.stop()
+
+        then:
+        writer.getWritten() == 0
+        writer.getDropped() == 5
+    }
+
+    @Timeout(10)
+    @Requires({ Epoll.isAvailable() })
+    def "should write bidirectional frame stream to a collector listening on unix socket"() {
+        given:
+        def path = tempDir.resolve("dnstap.sock").toString()
+        def collector = new Collector(path)
+        def writer = new DnstapWriter(1024, new DnstapWriter.DomainSocketOutput(path))
+        def messages = (1..100).collect { "message-${it}".bytes }
+
+        when:
+        writer.start()
+        messages.each { writer.write(it) }
+        writer.stop()
+        collector.finished.await(5, TimeUnit.SECONDS)
+
+        then: "handshake was completed"
+        collector.frames[0].controlType == DnstapMessages.CONTROL_READY
+        collector.frames[0].contentTypes == [DnstapMessages.CONTENT_TYPE]
+        collector.frames[1].controlType == DnstapMessages.CONTROL_START
+        collector.frames[1].contentTypes == [DnstapMessages.CONTENT_TYPE]
+
+        and: "all messages were received"
+        writer.getWritten() == 100
+        collector.frames[2..101].collect { it.data } == messages
+
+        and: "stream was stopped"
+        collector.frames.last().controlType == DnstapMessages.CONTROL_STOP
+
+        cleanup:
+        collector?.close()
+    }
+
+    /**
+     * dnstap collector accepting single Frame Streams connection on unix socket.
+     */
+    static class Collector {
+        final frames = new CopyOnWriteArrayList<DnstapReader.Frame>()
+        final finished = new CountDownLatch(1)
+        final elg = new EpollEventLoopGroup(1)
+        final Channel channel
+
+        Collector(String path) {
+            def me = this
+            channel = new ServerBootstrap()
+                    .group(elg)
+                    .channel(EpollServerDomainSocketChannel)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new CollectorHandler(me))
+                        }
+                    })
+                    .bind(new DomainSocketAddress(path))
+                    .sync()
+                    .channel()
+        }
+
+        void close() {
+            channel.close().sync()
+            elg.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync()
+        }
+    }
+
+    static class CollectorHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        final Collector collector
+        ByteBuf pending = Unpooled.buffer()
+
+        CollectorHandler(Collector collector) {
+            this.collector = collector
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) {
+            // accumulate received bytes until there's a whole frame
+            pending.writeBytes(buf)
+            while (pending.isReadable()) {
+                pending.markReaderIndex()
+                def frame = null
+                try {
+                    frame = DnstapReader.readFrame(new DataInputStream(new ByteBufInputStream(pending)))
+                } catch (EOFException e) {
+                    // incomplete frame
+                }
+                if (frame == null) {
+                    pending.resetReaderIndex()
+                    break
+                }
+                collector.frames << frame
+                if (frame.controlType == DnstapMessages.CONTROL_READY) {
+                    ctx.writeAndFlush(Unpooled.wrappedBuffer(DnstapMessages.encodeControlFrame(
+                            DnstapMessages.CONTROL_ACCEPT, DnstapMessages.CONTENT_TYPE)))
+                } else if (frame.controlType == DnstapMessages.CONTROL_STOP) {
+                    ctx.writeAndFlush(Unpooled.wrappedBuffer(
+                            DnstapMessages.encodeControlFrame(DnstapMessages.CONTROL_FINISH, null)))
+                    collector.finished.countDown()
+                }
+            }
+            pending.discardReadBytes()
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.bfg.eureka.dns
+
+import groovy.transform.AutoImplement
+import io.netty.channel.ChannelHandler
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramChannel
+import io.netty.channel.socket.DatagramChannelConfig
+import io.netty.channel.socket.DefaultDatagramChannelConfig
+
+/**
+ * Embedded channel that pretends to be a datagram channel, so that queries sent through it are answered as if
+ * received over UDP; multicast operations are not supported.
+ */
+@AutoImplement(exception = UnsupportedOperationException)
+class EmbeddedDatagramChannel extends EmbeddedChannel implements DatagramChannel {
+    private final InetSocketAddress localAddr
+    private final InetSocketAddress remoteAddr
+    private DatagramSocket socket
+    private DatagramChannelConfig datagramConfig
+
+    EmbeddedDatagramChannel(InetSocketAddress localAddr, InetSocketAddress remoteAddr, ChannelHandler... handlers) {
+        super(handlers)
+        this.localAddr = localAddr
+        this.remoteAddr = remoteAddr
+    }
+
+    @Override
+    DatagramChannelConfig config() {
+        // created lazily, superclass constructor may need it before fields are initialized
+        if (datagramConfig == null) {
+            socket = new DatagramSocket((SocketAddress) null)
+            datagramConfig = new DefaultDatagramChannelConfig(this, socket)
+        }
+        datagramConfig
+    }
+
+    @Override
+    boolean isConnected() {
+        isActive()
+    }
+
+    @Override
+    InetSocketAddress localAddress() {
+        localAddr
+    }
+
+    @Override
+    InetSocketAddress remoteAddress() {
+        remoteAddr
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        super.doClose()
+        socket?.close()
+    }
+}
@@ -3,19 +3,23 @@ package com.github.bfg.eureka.dns
 import com.netflix.discovery.EurekaClient
 import groovy.util.logging.Slf4j
 import io.netty.channel.EventLoopGroup
+import io.netty.channel.epoll.EpollChannelOption
+import io.netty.channel.epoll.EpollDatagramChannel
 import io.netty.channel.epoll.EpollEventLoopGroup
 import io.netty.channel.nio.NioEventLoopGroup
 import spock.lang.Requires
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Timeout
+import spock.util.concurrent.PollingConditions
 
+import java.nio.ByteBuffer
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
 
 @Slf4j
 class EurekaDnsServerSpec extends Specification {
-    static def PORT = new ServerSocket(0).getLocalPort()
+    static def PORT = new ServerSocket(0).withCloseable { it.getLocalPort() }
 
     @Shared
     EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1)
@@ -155,15 +159,19 @@ class EurekaDnsServerSpec extends Specification {
     def "starting server twice should result in a error"() {
         given:
         def server = builder().create()
+        def started = server.start()
 
         expect:
-        server.start() != null
+        started != null
 
         when:
         server.start()
 
         then:
         thrown(IllegalStateException)
+
+        cleanup:
+        started.get().stop().get()
     }
 
     def "stopping already stopped server should throw an exception"() {
@@ -287,6 +295,271 @@ class EurekaDnsServerSpec extends Specification {
         elg.isShutdown()
     }
 
+    @Timeout(5)
+    def "should answer pipelined queries over a single tcp connection"() {
+        given:
+        def server = builder()
+                .setEurekaClient(FakeEurekaClient.defaults())
+                .setDomain("meureka")
+                .withAddress("127.0.0.1")
+                .create()
+        server.start().get()
+
+        def socket = new Socket("127.0.0.1", PORT)
+        def out = new DataOutputStream(socket.getOutputStream())
+        def input = new DataInputStream(socket.getInputStream())
+        def ids = [11, 12, 13]
+
+        when: "send all queries without waiting for responses"
+        ids.each { writeTcpQuery(out, it, "corse.service.meureka.") }
+        out.flush()
+        def responses = ids.collect { readTcpResponse(input) }
+
+        then:
+        responses.collect { it.getShort() & 0xffff } as Set == ids as Set
+        responses.each {
+            assert (it.getShort() & 0x0f) == 0  // NOERROR
+            assert it.getShort() == 1           // questions
+            assert it.getShort() == 3           // answers
+        }
+
+        when: "send another query over the same connection"
+        writeTcpQuery(out, 14, "sardegna.service.meureka.")
+        out.flush()
+        def response = readTcpResponse(input)
+
+        then:
+        response.getShort() == 14
+
+        cleanup:
+        socket?.close()
+        server?.close()
+    }
+
+    @Timeout(5)
+    def "should serve prometheus metrics over http"() {
+        given:
+        def metricsPort = new ServerSocket(0).withCloseable { it.getLocalPort() }
+        def server = builder()
+                .setEurekaClient(FakeEurekaClient.defaults())
+                .setDomain("meureka")
+                .setMetricsPort(metricsPort)
+                .withAddress("127.0.0.1")
+                .create()
+        server.start().get()
+
+        def socket = new Socket("127.0.0.1", PORT)
+        def out = new DataOutputStream(socket.getOutputStream())
+        def input = new DataInputStream(socket.getInputStream())
+
+        when:
+        writeTcpQuery(out, 1, "corse.service.meureka.")
+        writeTcpQuery(out, 2, "Corse.service.meureka.")
+        out.flush()
+        2.times { readTcpResponse(input) }
+
+        def connection = new URL("http://127.0.0.1:${metricsPort}/metrics").openConnection() as HttpURLConnection
+        def metrics = connection.getInputStream().getText("UTF-8")
+
+        then:
+        connection.getResponseCode() == 200
+        connection.getContentType() == MetricsWriter.CONTENT_TYPE
+        metrics.contains('eureka_dns_responses_total{type="A",rcode="NOERROR"} 2\n')
+        metrics.contains('eureka_dns_query_duration_seconds_count{type="A"} 2\n')
+        metrics.contains('eureka_dns_service_queries_total{service="corse",datacenter=""} 2\n')
+        metrics.contains('eureka_dns_registry_applications ')
+
+        when: "request unknown path"
+        def notFound = new URL("http://127.0.0.1:${metricsPort}/foo").openConnection() as HttpURLConnection
+
+        then:
+        notFound.getResponseCode() == 404
+
+        when: "use unsupported method"
+        def notAllowed = new URL("http://127.0.0.1:${metricsPort}/metrics").openConnection() as HttpURLConnection
+        notAllowed.setRequestMethod("DELETE")
+
+        then:
+        notAllowed.getResponseCode() == 405
+
+        cleanup:
+        socket?.close()
+        server?.close()
+    }
+
+    @Timeout(10)
+    def "failed startup should stop metrics server and close bound channels"() {
+        given:
+        def metricsPort = new ServerSocket(0).withCloseable { it.getLocalPort() }
+        def server = builder()
+                .setEurekaClient(FakeEurekaClient.defaults())
+                .setMetricsPort(metricsPort)
+                .setMetricsAddress("127.0.0.1")
+                .withAddress("127.0.0.1")
+                .withAddress("1.1.1.1")
+                .create()
+
+        when:
+        server.start().toCompletableFuture().get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof BindException
+        !server.isRunning()
+
+        when: "try to connect to metrics server"
+        new Socket("127.0.0.1", metricsPort).close()
+
+        then: "it was never started"
+        thrown(ConnectException)
+
+        and: "successfully bound dns listener is closed"
+        new PollingConditions(timeout: 5).eventually {
+            new ServerSocket(PORT, 1, InetAddress.getByName("127.0.0.1")).close()
+        }
+    }
+
+    @Timeout(5)
+    def "should capture udp and tcp queries and responses as dnstap messages"() {
+        given:
+        def file = File.createTempFile("dnstap", ".fstrm")
+        def server = builder()
+                .setEurekaClient(FakeEurekaClient.defaults())
+                .setDomain("meureka")
+                .setDnstapFile(file.getAbsolutePath())
+                .setDnstapIdentity("ns1")
+                .withAddress("127.0.0.1")
+                .create()
+        server.start().get()
+
+        def udpSocket = new DatagramSocket()
+        udpSocket.setSoTimeout(2000)
+        def tcpSocket = new Socket("127.0.0.1", PORT)
+        def out = new DataOutputStream(tcpSocket.getOutputStream())
+        def input = new DataInputStream(tcpSocket.getInputStream())
+
+        when:
+        def udpQuery = encodeQuery(1, "corse.service.meureka.")
+        udpSocket.send(new DatagramPacket(udpQuery, udpQuery.length, InetAddress.getByName("127.0.0.1"), PORT))
+        def udpResponse = new DatagramPacket(new byte[1500], 1500)
+        udpSocket.receive(udpResponse)
+
+        writeTcpQuery(out, 2, "corse.service.meureka.")
+        out.flush()
+        def tcpResponse = readTcpResponse(input)
+
+        server.stop().toCompletableFuture().get(5, TimeUnit.SECONDS)
+        def frames = file.withInputStream { DnstapReader.readFrames(it) }
+        def messages = frames.findAll { !it.isControl() }.collect { DnstapReader.decodeDnstap(it.data) }
+
+        then: "frame stream is complete"
+        frames.first().controlType == DnstapMessages.CONTROL_START
+        frames.last().controlType == DnstapMessages.CONTROL_STOP
+        messages.size() == 4
+        messages.every { new String(it[1] as byte[]) == "ns1" }
+
+        and: "udp query and response"
+        def udp = messages.findAll { it.message[3] == 1L }
+        udp.collect { it.message[1] } == [5L, 6L]
+        udp[0].message[6] == udpSocket.getLocalPort() as long
+        udp[0].message[10] == udpQuery
+        udp[1].message[14] == Arrays.copyOf(udpResponse.getData(), udpResponse.getLength())
+
+        and: "tcp query and response, without length prefix"
+        def tcp = messages.findAll { it.message[3] == 2L }
+        tcp.collect { it.message[1] } == [5L, 6L]
+        tcp[0].message[6] == tcpSocket.getLocalPort() as long
+        tcp[0].message[7] == PORT as long
+        tcp[0].message[10] == encodeQuery(2, "corse.service.meureka.")
+        tcp[1].message[14] == tcpResponse.array()
+
+        cleanup:
+        udpSocket?.close()
+        tcpSocket?.close()
+        file?.delete()
+    }
+
+    def "should answer queries with batched datagram I/O on native transport"() {
+        given:
+        def server = builder()
+                .setEventLoopGroup(null)
+                .setPreferNativeTransport(true)
+                .setMaxThreads(2)
+                .setDatagramBatchSize(16)
+                .setEurekaClient(FakeEurekaClient.defaults())
+                .setDomain("meureka")
+                .withAddress("127.0.0.1")
+                .create()
+        server.start().get()
+
+        def socket = new DatagramSocket()
+        socket.setSoTimeout(2000)
+        def ids = (1..20).toList()
+
+        expect:
+        server.eventLoopGroup instanceof EpollEventLoopGroup
+
+        and: "datagram channels should receive multiple datagrams per read"
+        def datagramChannels = server.channels.findAll { it instanceof EpollDatagramChannel }
+        !datagramChannels.isEmpty()
+        datagramChannels.every { it.config().getOption(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE) == 1232 }
+
+        when: "send all queries without waiting for responses"
+        ids.each {
+            def query = encodeQuery(it, "corse.service.meureka.")
+            socket.send(new DatagramPacket(query, query.length, InetAddress.getByName("127.0.0.1"), PORT))
+        }
+        def responses = ids.collect {
+            def packet = new DatagramPacket(new byte[1500], 1500)
+            socket.receive(packet)
+            ByteBuffer.wrap(packet.getData(), 0, packet.getLength())
+        }
+
+        then:
+        responses.collect { it.getShort() & 0xffff } as Set == ids as Set
+        responses.each {
+            assert (it.getShort() & 0x0f) == 0  // NOERROR
+            assert it.getShort() == 1           // questions
+            assert it.getShort() == 3           // answers
+        }
+
+        cleanup:
+        socket?.close()
+        server?.close()
+    }
+
+    static void writeTcpQuery(DataOutputStream out, int id, String name) {
+        def query = encodeQuery(id, name)
+        out.writeShort(query.length)
+        out.write(query)
+    }
+
+    static byte[] encodeQuery(int id, String name) {
+        def buf = new ByteArrayOutputStream()
+        def query = new DataOutputStream(buf)
+        query.writeShort(id)
+        query.writeShort(0x0100) // recursion desired
+        query.writeShort(1)
+        query.writeShort(0)
+        query.writeShort(0)
+        query.writeShort(0)
+        name.split("\\.").each {
+            query.writeByte(it.length())
+            query.writeBytes(it)
+        }
+        query.writeByte(0)
+        query.writeShort(1) // A
+        query.writeShort(1) // IN
+
+        buf.toByteArray()
+    }
+
+    static ByteBuffer readTcpResponse(DataInputStream input) {
+        def bytes = new byte[input.readUnsignedShort()]
+        input.readFully(bytes)
+        ByteBuffer.wrap(bytes)
+    }
+
     EurekaClient eurekaClient() {
         def client = Mock(EurekaClient)
 
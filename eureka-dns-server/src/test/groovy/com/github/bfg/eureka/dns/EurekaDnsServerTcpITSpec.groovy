@@ -0,0 +1,10 @@
+package com.github.bfg.eureka.dns
+
+import com.github.bfg.eureka.dns.client.DnsClient
+
+class EurekaDnsServerTcpITSpec extends EurekaDnsServerITSpec {
+    @Override
+    DnsClient createClient() {
+        new DnsClient("127.0.0.1", getConfig().getPort(), 100, true)
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+@Unroll
+class NodeIndexSpec extends Specification {
+    static def index = RegistryIndex.build(FakeEurekaClient.defaults())
+
+    def nodeIndex = NodeIndex.build(index)
+
+    def "node #name in region '#region' should resolve to #expected"() {
+        when:
+        def entry = nodeIndex.lookup(name, region)
+
+        then:
+        entry?.getName() == (expected == null ? null : name)
+        addresses(entry) == expected
+
+        where:
+        name                                              | region    | expected
+        "host-100"                                        | ""        | ["10.11.1.100"]
+        "host-100-us-west-2-compute-internal"             | ""        | ["10.11.1.100"]
+        "host-100-us-west-2-compute-internal-corse-8080"  | ""        | ["10.11.1.100"]
+        "host-100"                                        | "default" | ["10.11.1.100"]
+        "host-105"                                        | ""        | ["::3"]
+        "host-196"                                        | ""        | ["10.11.6.196"]
+        "host-152"                                        | "dc1"     | ["10.12.30.152"]
+        "host-154-us-west-2-compute-internal-sicily-8080" | "dc1"     | ["192.168.1.154"]
+        "host-103"                                        | ""        | null
+        "host-152"                                        | ""        | null
+        "192-168-1-154"                                   | "dc1"     | null
+        "host-100"                                        | "dc2"     | null
+        "HOST-100"                                        | ""        | null
+    }
+
+    def "node entry should contain urls of its instances, but no SRV targets"() {
+        when:
+        def entry = nodeIndex.lookup("host-102", "")
+
+        then:
+        entry.getUrls().toList() == ["https://host-102.us-west-2.compute.internal/"]
+        entry.getTxtRData().collect { new String(it, 1, it.length - 1, StandardCharsets.US_ASCII) } ==
+                entry.getUrls().toList()
+        entry.getSrvTargets().length == 0
+        entry.getInstanceIds().length == 0
+        !entry.isEmpty()
+    }
+
+    def "instances sharing a hostname should be merged into a single node"() {
+        given:
+        def apps = new Applications()
+        apps.addApplication(new Application("FOO", [instance("FOO", "host-1.example.org", "10.0.0.1", 8080)]))
+        apps.addApplication(new Application("BAR", [
+                instance("BAR", "host-1.example.org", "10.0.0.1", 8081),
+                instance("BAR", "host-1.example.com", "10.0.0.2", 8081)]))
+        def nodes = NodeIndex.build(RegistryIndex.build(new FakeEurekaClient().setApplications("default", apps)))
+
+        expect: "short hostname resolves to both hosts"
+        addresses(nodes.lookup("host-1", "")) == ["10.0.0.1", "10.0.0.2"]
+        nodes.lookup("host-1", "").getUrls().toList() == [
+                "http://host-1.example.org:8081/", "http://host-1.example.com:8081/", "http://host-1.example.org:8080/"]
+
+        and: "full hostname resolves to one host, but to urls of both services"
+        addresses(nodes.lookup("host-1-example-org", "")) == ["10.0.0.1"]
+        nodes.lookup("host-1-example-org", "").getUrls().length == 2
+
+        and: "instance id resolves to a single instance"
+        nodes.lookup("host-1-example-org-bar-8081", "").getUrls().toList() == ["http://host-1.example.org:8081/"]
+    }
+
+    def "index should contain every name of every instance that is UP"() {
+        expect:
+        // default apps are in both "" and "default" regions; sicily instances don't have hostnames
+        nodeIndex.size() == 6 * 3 * 2 + 3 + 2
+        nodeIndex.toString() == "NodeIndex(41)"
+
+        NodeIndex.EMPTY.size() == 0
+        NodeIndex.EMPTY.lookup("host-100", "") == null
+    }
+
+    def "normalize('#str') should return '#expected'"() {
+        expect:
+        NodeIndex.normalize(str) == expected
+
+        where:
+        str                             | expected
+        "host-1"                        | "host-1"
+        "Host-1.Example.ORG"            | "host-1-example-org"
+        "host-1.example.org:MYAPP:8080" | "host-1-example-org-myapp-8080"
+        "i-0123_abc"                    | "i-0123-abc"
+        "::3"                           | "--3"
+        ""                              | ""
+        "a" * 63                        | "a" * 63
+        "a" * 64                        | ""
+    }
+
+    def "lookups should find all instances of a large index"() {
+        given:
+        def apps = new Applications()
+        apps.addApplication(new Application("BIG", (0..<5000).collect {
+            instance("BIG", "host-${it}.example.org", "10.0.${it >> 8}.${it & 0xff}", 8080)
+        }))
+        def big = NodeIndex.build(RegistryIndex.build(new FakeEurekaClient().setApplications("default", apps)))
+
+        expect:
+        big.size() == 5000 * 3 * 2
+        (0..<5000).every { addresses(big.lookup("host-${it}", "")) == ["10.0.${it >> 8}.${it & 0xff}"] }
+        big.lookup("host-5000", "") == null
+    }
+
+    static List<String> addresses(ServiceEntry entry) {
+        if (entry == null) {
+            return null
+        }
+        (entry.getIpv4Addresses() + entry.getIpv6Addresses()).collect {
+            InetAddresses.toAddrString(InetAddress.getByAddress(it))
+        }
+    }
+
+    static InstanceInfo instance(String app, String hostname, String ip, int port) {
+        InstanceInfo.Builder.newBuilder()
+                .setInstanceId("${hostname}:${app}:${port}")
+                .setAppName(app)
+                .setHostName(hostname)
+                .setIPAddr(ip)
+                .setPort(port)
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build()
+    }
+}
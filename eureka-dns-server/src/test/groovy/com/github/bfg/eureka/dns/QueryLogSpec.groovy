@@ -0,0 +1,227 @@
+package com.github.bfg.eureka.dns
+
+import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DnsRecordType
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static io.netty.handler.codec.dns.DnsResponseCode.NOERROR
+import static io.netty.handler.codec.dns.DnsResponseCode.NXDOMAIN
+
+@Unroll
+class QueryLogSpec extends Specification {
+    static final long TIMESTAMP = 1_600_000_000_123L
+
+    @TempDir
+    Path tempDir
+
+    def records = []
+    def sink = new QueryLog.Sink() {
+        @Override
+        void write(QueryLog.Record record) {
+            records << record.format(new StringBuilder()).toString()
+        }
+
+        @Override
+        void flush() {}
+
+        @Override
+        void close() {}
+    }
+
+    def v4client = new InetSocketAddress("10.1.2.3", 5353)
+    def v6client = new InetSocketAddress("2001:db8::1", 53000)
+    def question = new DefaultDnsQuestion("corse.service.eureka.", DnsRecordType.A)
+
+    def "should round buffer size #size up to #expected"() {
+        expect:
+        new QueryLog(size, 1, { TIMESTAMP }, sink).getCapacity() == expected
+
+        where:
+        size | expected
+        16   | 16
+        17   | 32
+        1000 | 1024
+    }
+
+    def "should format buffered records"() {
+        given:
+        def queryLog = new QueryLog(16, 1, { TIMESTAMP }, sink)
+
+        when:
+        queryLog.record(v4client, false, question, NOERROR, 3, false)
+        queryLog.record(v6client, true, new DefaultDnsQuestion("foo.service.eureka.", DnsRecordType.SRV),
+                NXDOMAIN, 0, true)
+        queryLog.record(v4client, false, null, NOERROR, 0, false)
+        def drained = queryLog.drain()
+
+        then:
+        drained == 3
+        queryLog.getWritten() == 3
+        queryLog.getDropped() == 0
+        records == [
+                "query from=[10.1.2.3]:5353 proto=udp type=A(1) name=corse.service.eureka. status=NoError(0), " +
+                        "answers=3",
+                "query from=[2001:db8::1]:53000 proto=tcp type=SRV(33) name=foo.service.eureka. status=NXDomain(3), " +
+                        "answers=0, truncated",
+                "query from=[10.1.2.3]:5353 proto=udp type=UNKNOWN(0) name= status=NoError(0), answers=0"
+        ]
+    }
+
+    def "should drop and count records when buffer is full"() {
+        given:
+        def queryLog = new QueryLog(16, 1, { TIMESTAMP }, sink)
+
+        when:
+        20.times { queryLog.record(v4client, false, question, NOERROR, it, false) }
+
+        then:
+        queryLog.getDropped() == 4
+
+        when: "buffer is drained, new records are accepted again"
+        queryLog.drain()
+        queryLog.record(v4client, false, question, NOERROR, 42, false)
+        queryLog.drain()
+
+        then:
+        queryLog.getWritten() == 17
+        queryLog.getDropped() == 4
+        records.collect { it.replaceAll(/.*answers=/, "") } == (0..<16).collect { it as String } + ["42"]
+    }
+
+    def "should count records that sink failed to write as errors"() {
+        given:
+        def failingSink = Mock(QueryLog.Sink) {
+            write(_) >> { throw new IOException("disk full") }
+        }
+        def queryLog = new QueryLog(16, 1, { TIMESTAMP }, failingSink)
+
+        when:
+        3.times { queryLog.record(v4client, false, question, NOERROR, it, false) }
+        def drained = queryLog.drain()
+
+        then:
+        drained == 3
+        queryLog.getWritten() == 0
+        queryLog.getErrors() == 3
+        queryLog.getDropped() == 0
+    }
+
+    def "should not log anything with sample rate 0"() {
+        given:
+        def queryLog = new QueryLog(16, 0, { TIMESTAMP }, sink)
+
+        when:
+        100.times { queryLog.record(v4client, false, question, NOERROR, 1, false) }
+        queryLog.drain()
+
+        then:
+        records.isEmpty()
+        queryLog.getWritten() == 0
+        queryLog.getDropped() == 0
+    }
+
+    def "should write all buffered records before stopping"() {
+        given:
+        def file = tempDir.resolve("queries.log")
+        def queryLog = new QueryLog(1024, 1, { TIMESTAMP },
+                new QueryLog.FileSink(file, QueryLogFormat.TEXT, 1024 * 1024, 1))
+        queryLog.start()
+
+        when:
+        100.times { queryLog.record(v4client, false, question, NOERROR, 3, false) }
+        queryLog.stop()
+        def lines = Files.readAllLines(file)
+
+        then:
+        queryLog.getWritten() == 100
+        lines.size() == 100
+        lines.every {
+            it == "2020-09-13T12:26:40.123Z query from=[10.1.2.3]:5353 proto=udp type=A(1) " +
+                    "name=corse.service.eureka. status=NoError(0), answers=3"
+        }
+    }
+
+    def "file sink should rotate text log and keep at most 2 rotated files"() {
+        given:
+        def file = tempDir.resolve("logs/queries.log")
+        def fileSink = new QueryLog.FileSink(file, QueryLogFormat.TEXT, 1000, 2)
+        def queryLog = new QueryLog(16, 1, { TIMESTAMP }, fileSink)
+
+        when: "write about 5 files worth of records"
+        25.times {
+            queryLog.record(v4client, false, question, NOERROR, 3, false)
+            queryLog.drain()
+        }
+        fileSink.close()
+
+        then:
+        Files.exists(file)
+        Files.exists(tempDir.resolve("logs/queries.log.1"))
+        Files.exists(tempDir.resolve("logs/queries.log.2"))
+        !Files.exists(tempDir.resolve("logs/queries.log.3"))
+
+        [file, tempDir.resolve("logs/queries.log.1"), tempDir.resolve("logs/queries.log.2")].every {
+            Files.size(it) <= 1000 && Files.readAllLines(it).every { it.endsWith("answers=3") }
+        }
+    }
+
+    def "file sink should write binary log"() {
+        given:
+        def file = tempDir.resolve("queries.bin")
+        def fileSink = new QueryLog.FileSink(file, QueryLogFormat.BINARY, 1024 * 1024, 1)
+        def queryLog = new QueryLog(16, 1, { TIMESTAMP }, fileSink)
+
+        when:
+        queryLog.record(v6client, true, question, NXDOMAIN, 7, true)
+        queryLog.drain()
+        fileSink.close()
+        def buf = ByteBuffer.wrap(Files.readAllBytes(file))
+
+        then: "header"
+        readBytes(buf, 4) == QueryLog.BINARY_MAGIC
+        buf.get() == QueryLog.BINARY_VERSION
+
+        and: "record"
+        def length = buf.getShort()
+        length == buf.remaining()
+        buf.getLong() == TIMESTAMP
+        buf.get() == (QueryLog.FLAG_TCP | QueryLog.FLAG_TRUNCATED)
+        readBytes(buf, buf.get()) == v6client.getAddress().getAddress()
+        (buf.getShort() & 0xffff) == 53000
+        buf.getShort() == DnsRecordType.A.intValue()
+        buf.get() == NXDOMAIN.intValue()
+        buf.getShort() == 7
+        new String(readBytes(buf, buf.get()), "US-ASCII") == "corse.service.eureka."
+        !buf.hasRemaining()
+    }
+
+    def "binary log header should be written only to new files"() {
+        given:
+        def file = tempDir.resolve("queries.bin")
+
+        when: "log is opened twice"
+        2.times {
+            def fileSink = new QueryLog.FileSink(file, QueryLogFormat.BINARY, 1024 * 1024, 1)
+            def queryLog = new QueryLog(16, 1, { TIMESTAMP }, fileSink)
+            queryLog.record(v4client, false, question, NOERROR, 1, false)
+            queryLog.drain()
+            fileSink.close()
+        }
+
+        then:
+        def recordSize = 2 + 8 + 1 + 1 + 4 + 2 + 2 + 1 + 2 + 1 + "corse.service.eureka.".length()
+        Files.size(file) == 5 + 2 * recordSize
+    }
+
+    static byte[] readBytes(ByteBuffer buf, int n) {
+        def bytes = new byte[n]
+        buf.get(bytes)
+        bytes
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.bfg.eureka.dns
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static io.netty.handler.codec.dns.DnsRecordType.*
+import static io.netty.handler.codec.dns.DnsResponseCode.*
+import static java.util.concurrent.TimeUnit.MICROSECONDS
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+
+@Unroll
+class QueryMetricsSpec extends Specification {
+    def metrics = new QueryMetrics()
+    def parser = new QueryNameParser("meureka")
+
+    def "should count responses by question type and response code"() {
+        when:
+        metrics.record(A, NOERROR, 1000)
+        metrics.record(A, NOERROR, 1000)
+        metrics.record(A, NXDOMAIN, 1000)
+        metrics.record(SRV, NOERROR, 1000)
+        metrics.record(PTR, REFUSED, 1000)
+        metrics.record(null, FORMERR, 1000)
+        metrics.record(A, BADVERS_OR_BADSIG, 1000)
+
+        then:
+        metrics.getResponses(A, NOERROR) == 2
+        metrics.getResponses(A, NXDOMAIN) == 1
+        metrics.getResponses(SRV, NOERROR) == 1
+        metrics.getResponses(AAAA, NOERROR) == 0
+
+        // extended response code is not mistaken for the code carried by its lower 4 bits
+        metrics.getResponses(A, BADVERS_OR_BADSIG) == 1
+
+        // PTR and missing question are both accounted as OTHER
+        metrics.getResponses(PTR, REFUSED) == 1
+        metrics.getResponses(CNAME, FORMERR) == 1
+
+        metrics.getLatencies(A).getCount() == 4
+        metrics.getLatencies(A).getSumNanos() == 4000
+        metrics.getLatencies(SRV).getCount() == 1
+        metrics.getLatencies(null).getCount() == 2
+    }
+
+    def "should count service queries case-insensitively"() {
+        when:
+        names.each { metrics.recordService(parse(it)) }
+
+        then:
+        metrics.getServiceQueries("corse", "") == 2
+        metrics.getServiceQueries("corse", "dc1") == 1
+        metrics.getServiceQueries("sardegna", "") == 1
+        metrics.getServiceQueries("sicilia", "") == 0
+
+        where:
+        names = ["corse.service.meureka.", "CORSE.Service.meureka.", "corse.service.DC1.meureka",
+                 "sardegna.service.meureka."]
+    }
+
+    def "should stop adding service counters after reaching the limit"() {
+        given:
+        QueryMetrics.MAX_SERVICES.times { metrics.recordService(parse("svc${it}.service.meureka.")) }
+
+        when:
+        metrics.recordService(parse("svc0.service.meureka."))
+        metrics.recordService(parse("one-too-many.service.meureka."))
+
+        then:
+        metrics.getServiceQueries("svc0", "") == 2
+        metrics.getServiceQueries("one-too-many", "") == 0
+    }
+
+    def "should write metrics in prometheus text format"() {
+        given:
+        metrics.record(A, NOERROR, MICROSECONDS.toNanos(20))
+        metrics.record(A, NOERROR, MILLISECONDS.toNanos(3))
+        metrics.record(A, NXDOMAIN, MILLISECONDS.toNanos(5000))
+        metrics.record(PTR, BADVERS_OR_BADSIG, MICROSECONDS.toNanos(20))
+        metrics.recordService(parse("Corse.service.dc1.meureka."))
+
+        when:
+        def out = new MetricsWriter()
+        metrics.writeMetrics(out)
+        def lines = out.toString().readLines()
+
+        then:
+        lines.contains('# TYPE eureka_dns_responses_total counter')
+        lines.contains('eureka_dns_responses_total{type="A",rcode="NOERROR"} 2')
+        lines.contains('eureka_dns_responses_total{type="A",rcode="NXDOMAIN"} 1')
+        lines.contains('eureka_dns_responses_total{type="OTHER",rcode="BADVERS"} 1')
+        !lines.any { it.startsWith('eureka_dns_responses_total{type="AAAA"') }
+
+        lines.contains('# TYPE eureka_dns_query_duration_seconds histogram')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="1.0E-5"} 0')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="2.5E-5"} 1')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="0.0025"} 1')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="0.005"} 2')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="1.0"} 2')
+        lines.contains('eureka_dns_query_duration_seconds_bucket{type="A",le="+Inf"} 3')
+        lines.contains('eureka_dns_query_duration_seconds_count{type="A"} 3')
+        lines.contains('eureka_dns_query_duration_seconds_sum{type="A"} 5.00302')
+        !lines.any { it.startsWith('eureka_dns_query_duration_seconds_count{type="SRV"') }
+
+        lines.contains('eureka_dns_service_queries_total{service="corse",datacenter="dc1"} 1')
+    }
+
+    def "metrics writer should escape label values and format #value as #expected"() {
+        when:
+        def out = new MetricsWriter().sample("foo", value, "name", 'a"b\\c\nd')
+
+        then:
+        out.toString() == "eureka_dns_foo{name=\"a\\\"b\\\\c\\nd\"} ${expected}\n"
+
+        where:
+        value                    | expected
+        42                       | "42"
+        0.5                      | "0.5"
+        Double.NaN               | "NaN"
+        Double.POSITIVE_INFINITY | "+Inf"
+        Double.NEGATIVE_INFINITY | "-Inf"
+    }
+
+    def "metrics writer should write unlabeled metric with header"() {
+        when:
+        def out = new MetricsWriter().metric("up", "gauge", "Whether server is up.", 1)
+
+        then:
+        out.toString() == "# HELP eureka_dns_up Whether server is up.\n" +
+                "# TYPE eureka_dns_up gauge\n" +
+                "eureka_dns_up 1\n"
+    }
+
+    def parse(String name) {
+        def result = new ParsedQueryName()
+        assert parser.parse(name, result)
+        result
+    }
+}
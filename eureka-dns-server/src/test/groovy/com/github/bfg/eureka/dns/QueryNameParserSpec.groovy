@@ -0,0 +1,139 @@
+package com.github.bfg.eureka.dns
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class QueryNameParserSpec extends Specification {
+    def parser = new QueryNameParser("my-eureka")
+    def result = new ParsedQueryName()
+
+    def "parse(#name) should return service=#service, tag=#tag, datacenter=#datacenter"() {
+        expect:
+        parser.parse(name, result)
+
+        result.serviceName() == service
+        result.tag() == tag
+        result.datacenter() == datacenter
+
+        result.hasServiceName()
+        result.hasTag() == !tag.isEmpty()
+        result.hasDatacenter() == !datacenter.isEmpty()
+
+        where:
+        name                                   | service  | tag   | datacenter
+        "foo.service.my-eureka"                | "foo"    | ""    | ""
+        "foo.service.my-eureka."               | "foo"    | ""    | ""
+        "  foo.service.my-eureka.  "           | "foo"    | ""    | ""
+        "foo.connect.my-eureka."               | "foo"    | ""    | ""
+        "Foo-Bar.SERVICE.My-Eureka."           | "foo-bar" | ""   | ""
+        "_foo.service.my-eureka."              | "foo"    | ""    | ""
+        "__foo.service.my-eureka."             | "_foo"   | ""    | ""
+        "_.service.my-eureka."                 | "_"      | ""    | ""
+        "_foo._tcp.service.my-eureka."         | "foo"    | "tcp" | ""
+        "_foo._tcp.connect.my-eureka"          | "foo"    | "tcp" | ""
+        "foo.service.dc1.my-eureka."           | "foo"    | ""    | "dc1"
+        "foo.service.DC-1.my-eureka."          | "foo"    | ""    | "dc-1"
+        "_foo._TCP.service.dc1.my-eureka."     | "foo"    | "tcp" | "dc1"
+        "foo._tcp.service.default.my-eureka"   | "foo"    | "tcp" | "default"
+        "foo.service.connect.my-eureka"        | "foo"    | ""    | "connect"
+    }
+
+    def "parse(#name) should return node=#node, datacenter=#datacenter"() {
+        expect:
+        parser.parse(name, result)
+
+        result.nodeName() == node
+        result.datacenter() == datacenter
+
+        result.hasNodeName()
+        !result.hasServiceName()
+        !result.hasTag()
+        result.hasDatacenter() == !datacenter.isEmpty()
+
+        where:
+        name                                     | node                 | datacenter
+        "foo.node.my-eureka"                     | "foo"                | ""
+        "Host-1.NODE.my-eureka."                 | "host-1"             | ""
+        "host-1-example-org.node.dc1.my-eureka." | "host-1-example-org" | "dc1"
+        "foo.node.service.my-eureka."            | "foo"                | "service"
+    }
+
+    def "parse(#name) should fail"() {
+        expect:
+        !parser.parse(name, result)
+
+        !result.hasServiceName()
+        !result.hasNodeName()
+        !result.hasTag()
+        !result.hasDatacenter()
+
+        result.serviceName() == ""
+        result.tag() == ""
+        result.datacenter() == ""
+
+        where:
+        name << [
+                "",
+                "  ",
+                ".",
+                "my-eureka",
+                "my-eureka.",
+                "service.my-eureka.",
+                ".service.my-eureka.",
+                "foo..service.my-eureka.",
+                "foo.service.my-eureka..",
+                "foo.service.eureka.",
+                "foo.servicemy-eureka.",
+                "foo.service.notmy-eureka.",
+                "foo.services.my-eureka.",
+                "foo.bar.my-eureka.",
+                "foo bar.service.my-eureka.",
+                "foo.service.dc 1.my-eureka.",
+                "foo.service. dc1.my-eureka.",
+                "_foo._t-cp.service.my-eureka.",
+                "_foo._.service.my-eureka.",
+                "_foo._tcp.service.dc1.dc2.my-eureka.",
+                "a.b._foo._tcp.service.my-eureka.",
+                "_http._tcp.foo.service.my-eureka.",
+                "foo.service.dc1.my-eureka.com.",
+                "node.my-eureka.",
+                "foo.nodes.my-eureka.",
+                "foo bar.node.my-eureka.",
+                "_foo._tcp.node.my-eureka.",
+                "foo.node.dc1.dc2.my-eureka.",
+        ]
+    }
+
+    def "parser result should be reusable"() {
+        expect:
+        parser.parse("_foo._tcp.service.dc1.my-eureka.", result)
+        result.datacenter() == "dc1"
+
+        !parser.parse("foo.bar.my-eureka.", result)
+        result.datacenter() == ""
+
+        parser.parse("bar.service.my-eureka.", result)
+        result.serviceName() == "bar"
+        result.tag() == ""
+    }
+
+    def "isInZone(#name) should return #expected"() {
+        expect:
+        parser.isInZone(name) == expected
+
+        where:
+        name                       | expected
+        null                       | false
+        ""                         | false
+        "."                        | false
+        "my-eureka"                | false
+        "my-eureka."               | true
+        "MY-EUREKA."               | true
+        "foo.my-eureka."           | true
+        "foo.service.My-Eureka."   | true
+        "foomy-eureka."            | false
+        "foo.my-eureka.com."       | false
+        "foo.my-eureka"            | false
+    }
+}
@@ -0,0 +1,312 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.EurekaClient
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+@Unroll
+class RegistryIndexSpec extends Specification {
+    def eurekaClient = FakeEurekaClient.defaults()
+
+    def "should index all known regions"() {
+        when:
+        def index = RegistryIndex.build(eurekaClient)
+
+        then:
+        index.size(RegistryIndex.DEFAULT_REGION) == 2
+        index.size("default") == 2
+        index.size("dc1") == 2
+        index.size("non-existing") == 0
+    }
+
+    def "lookup(#service, #region) should return entry with #ipv4 IPv4 and #ipv6 IPv6 addresses"() {
+        given:
+        def index = RegistryIndex.build(eurekaClient)
+
+        when:
+        def entry = index.lookup(service, region)
+
+        then:
+        entry.getName() == service
+        entry.getIpv4Addresses().collect { InetAddresses.toAddrString(InetAddress.getByAddress(it)) } == ipv4
+        entry.getIpv6Addresses().collect { InetAddresses.toAddrString(InetAddress.getByAddress(it)) } == ipv6
+
+        where:
+        service    | region | ipv4                                           | ipv6
+        "corse"    | ""     | ["10.11.1.100", "10.11.1.101", "10.11.1.102"] | ["::2", "::3"]
+        "sardegna" | ""     | ["10.11.6.196"]                               | []
+        "mallorca" | "dc1"  | ["10.12.30.152"]                              | []
+    }
+
+    def "lookup() should return null for non-existing services"() {
+        given:
+        def index = RegistryIndex.build(eurekaClient)
+
+        expect:
+        index.lookup("corse", "dc1") == null
+        index.lookup("mallorca", "") == null
+        index.lookup("foo", "") == null
+        index.lookup("corse", "dc2") == null
+        RegistryIndex.EMPTY.lookup("corse", "") == null
+    }
+
+    def "service filter should contain only services that have instances with status UP"() {
+        given:
+        def filter = RegistryIndex.build(eurekaClient).getServiceFilter()
+
+        expect:
+        filter.mightContain("corse", "")
+        filter.mightContain("sardegna", "")
+        filter.mightContain("mallorca", "dc1")
+        !filter.mightContain("foo", "")
+        RegistryIndex.EMPTY.getServiceFilter().getNumEntries() == 0
+    }
+
+    def "service entry should contain pre-encoded TXT and SRV payloads"() {
+        given:
+        def entry = RegistryIndex.build(eurekaClient).lookup("corse", "")
+
+        expect:
+        entry.getUrls().toList() == [
+                "http://host-100.us-west-2.compute.internal:8080/",
+                "http://host-101.us-west-2.compute.internal/",
+                "https://host-102.us-west-2.compute.internal/",
+                "https://host-104.us-west-2.compute.internal:8443/",
+                "https://host-105.us-west-2.compute.internal/",
+        ]
+        entry.getTxtRData().collect {
+            assert (it[0] & 0xff) == it.length - 1
+            new String(it, 1, it.length - 1, StandardCharsets.US_ASCII)
+        } == entry.getUrls().toList()
+
+        entry.getSrvTargets().length == 5
+        entry.getSrvRData().length == 5
+        entry.getSrvTargetAddresses().length == 5
+        entry.getSrvPorts().toList() == [8080, 80, 443, 8443, 443]
+    }
+
+    def "SRV targets should not contain instances registered with IP address as hostname"() {
+        when:
+        def entry = RegistryIndex.build(eurekaClient).lookup("sicily", "dc1")
+
+        then:
+        entry.getIpv4Addresses().length == 1
+        entry.getIpv6Addresses().length == 1
+        entry.getSrvTargets().length == 0
+        entry.getSrvRData().length == 0
+    }
+
+    def "service entry should contain id, hostname, address and url of every instance that is UP"() {
+        when:
+        def corse = RegistryIndex.build(eurekaClient).lookup("corse", "")
+        def sicily = RegistryIndex.build(eurekaClient).lookup("sicily", "dc1")
+
+        then:
+        corse.getInstanceIds().length == 5
+        corse.getInstanceIds()[0] == "host-100.us-west-2.compute.internal:CORSE:8080"
+        corse.getInstanceHostnames()[0] == "host-100.us-west-2.compute.internal"
+        corse.getInstanceAddresses()[0] == InetAddresses.forString("10.11.1.100").getAddress()
+        corse.getInstanceUrlIndexes().collect { corse.getUrls()[it] } == corse.getUrls().toList()
+
+        and: "instances registered with IP address as hostname don't have hostnames"
+        sicily.getInstanceIds().toList() == ["host-153.us-west-2.compute.internal:SICILY:8080",
+                                             "host-154.us-west-2.compute.internal:SICILY:8080"]
+        sicily.getInstanceHostnames().toList() == ["", ""]
+    }
+
+    def "should skip instances that are not UP or have invalid IP address"() {
+        given:
+        def client = clientWith(
+                instance("FOO", "a.example.org", "10.0.0.1"),
+                instance("FOO", "b.example.org", "10.0.0.2", InstanceInfo.InstanceStatus.DOWN),
+                instance("FOO", "c.example.org", "not-an-ip"),
+                instance("BAR", "d.example.org", "10.0.0.4", InstanceInfo.InstanceStatus.STARTING))
+
+        when:
+        def index = RegistryIndex.build(client)
+
+        then:
+        index.size("") == 2
+        index.lookup("foo", "").getIpv4Addresses().length == 1
+        index.lookup("foo", "").getSrvTargets().toList() == ["a.example.org"]
+        index.lookup("bar", "") == null
+    }
+
+    def "instance with hostname that is not a valid dns name should not have SRV target"() {
+        given:
+        def client = clientWith(
+                instance("FOO", "a.example.org", "10.0.0.1"),
+                instance("FOO", "${"x" * 64}.example.org", "10.0.0.2"),
+                instance("BAR", "b.example.org", "10.0.0.3"))
+
+        when:
+        def index = RegistryIndex.build(client)
+        def foo = index.lookup("foo", "")
+
+        then: "only SRV target of that instance is skipped"
+        foo.getIpv4Addresses().length == 2
+        foo.getSrvTargets().toList() == ["a.example.org"]
+        foo.getSrvRData().length == 1
+        foo.getSrvTargetAddresses().length == 1
+        index.lookup("bar", "").getSrvTargets().toList() == ["b.example.org"]
+    }
+
+    def "should reuse unchanged service entries"() {
+        given:
+        def previous = RegistryIndex.build(eurekaClient)
+
+        expect: "fake eureka client returns the same applications for default region and region 'default'"
+        previous.getNumApps() == 6
+        previous.getNumAppsRebuilt() == 6
+
+        and: "unchanged registry should result in the same index"
+        RegistryIndex.build(eurekaClient, previous).is(previous)
+
+        when: "one instance changes"
+        corseInstances().first().setStatus(InstanceInfo.InstanceStatus.DOWN)
+        def index = RegistryIndex.build(eurekaClient, previous)
+
+        then:
+        !index.is(previous)
+        index.getNumApps() == 6
+        index.getNumAppsRebuilt() == 2
+
+        index.lookup("corse", "").getIpv4Addresses().length == 2
+        !index.lookup("corse", "").is(previous.lookup("corse", ""))
+
+        index.lookup("sardegna", "").is(previous.lookup("sardegna", ""))
+        index.lookup("mallorca", "dc1").is(previous.lookup("mallorca", "dc1"))
+    }
+
+    def "should detect removed applications"() {
+        given:
+        def previous = RegistryIndex.build(eurekaClient)
+
+        when:
+        eurekaClient.removeApplication("default", "SARDEGNA")
+        def index = RegistryIndex.build(eurekaClient, previous)
+
+        then:
+        !index.is(previous)
+        index.getNumAppsRebuilt() == 0
+        index.lookup("sardegna", "") == null
+        index.lookup("corse", "").is(previous.lookup("corse", ""))
+    }
+
+    def "fingerprint should not depend on instance order"() {
+        given:
+        def instances = corseInstances()
+
+        expect:
+        ServiceEntry.fingerprint(instances) == ServiceEntry.fingerprint(instances.reverse())
+        ServiceEntry.fingerprint(instances) != ServiceEntry.fingerprint(instances.tail())
+    }
+
+    def "manager should publish new index and notify listeners only when registry changes"() {
+        given:
+        def listenerInvocations = 0
+        def manager = new RegistryIndexManager(eurekaClient)
+                .addRefreshListener({ listenerInvocations++ })
+        def initial = manager.index()
+
+        expect:
+        initial.lookup("corse", "") != null
+        listenerInvocations == 0
+        manager.getRebuilds() == 1
+        manager.getLastAppsRebuilt() == 6
+        initial.getVersion() == 1
+
+        when:
+        manager.start()
+
+        then:
+        eurekaClient.getEventListeners() == [manager] as Set
+        listenerInvocations == 0
+        manager.index().is(initial)
+        manager.getRebuilds() == 2
+        manager.getLastAppsRebuilt() == 0
+
+        when:
+        corseInstances().first().setStatus(InstanceInfo.InstanceStatus.DOWN)
+        eurekaClient.fireCacheRefreshedEvent()
+
+        then:
+        listenerInvocations == 1
+        !manager.index().is(initial)
+        manager.getRebuilds() == 3
+        manager.index().getVersion() == 2
+        manager.getLastAppsRebuilt() == 2
+        manager.getAppsRebuilt() == 8
+        manager.getRebuildNanos() >= manager.getLastRebuildNanos()
+
+        when:
+        manager.stop()
+
+        then:
+        eurekaClient.getEventListeners().isEmpty()
+    }
+
+    def "manager should poll registry if eureka client doesn't support event listeners"() {
+        given:
+        def applications = new Applications()
+        def client = Mock(EurekaClient)
+        client.registerEventListener(_) >> { throw new UnsupportedOperationException("not supported") }
+        client.getApplications() >> { applications }
+
+        def manager = new RegistryIndexManager(client, 50)
+
+        when:
+        manager.start()
+
+        then:
+        manager.isPolling()
+        manager.index().lookup("foo", "") == null
+
+        when: "register new application"
+        applications.addApplication(new Application("FOO", [instance("FOO", "a.example.org", "10.0.0.1")]))
+        def deadline = System.currentTimeMillis() + 5000
+        while (manager.index().lookup("foo", "") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+
+        then:
+        manager.index().lookup("foo", "") != null
+
+        cleanup:
+        manager.stop()
+    }
+
+    List<InstanceInfo> corseInstances() {
+        eurekaClient.getApplications().getRegisteredApplications("CORSE").getInstances()
+    }
+
+    EurekaClient clientWith(InstanceInfo... instances) {
+        def applications = new Applications()
+        instances.groupBy { it.getAppName() }.each { name, list ->
+            applications.addApplication(new Application(name, list))
+        }
+
+        def client = Stub(EurekaClient)
+        client.getApplications() >> applications
+        client.getAllKnownRegions() >> Collections.emptySet()
+        client
+    }
+
+    InstanceInfo instance(String app, String hostname, String ip,
+                          InstanceInfo.InstanceStatus status = InstanceInfo.InstanceStatus.UP) {
+        InstanceInfo.Builder.newBuilder()
+                .setInstanceId("${hostname}:${app}:8080")
+                .setAppName(app)
+                .setHostName(hostname)
+                .setIPAddr(ip)
+                .setPort(8080)
+                .setStatus(status)
+                .build()
+    }
+}
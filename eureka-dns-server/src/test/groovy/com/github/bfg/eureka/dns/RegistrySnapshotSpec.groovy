@@ -0,0 +1,310 @@
+package com.github.bfg.eureka.dns
+
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.function.LongSupplier
+
+@Slf4j
+@Unroll
+class RegistrySnapshotSpec extends Specification {
+    static final long NOW = 1_600_000_000_000L
+
+    @TempDir
+    Path tempDir
+
+    def eurekaClient = FakeEurekaClient.defaults()
+
+    def "should restore saved index"() {
+        given:
+        def file = tempDir.resolve("snapshots/registry.snapshot")
+        def index = RegistryIndex.build(eurekaClient)
+
+        when:
+        snapshot(file).save(index)
+        def restored = snapshot(file).load()
+
+        then:
+        Files.exists(file)
+        !Files.exists(file.resolveSibling("registry.snapshot.tmp"))
+
+        restored.getVersion() == 1
+        restored.getNumApps() == index.getNumApps()
+        restored.getRegions().keySet() == index.getRegions().keySet()
+        index.getRegions().each { region, services ->
+            assert restored.getRegions()[region].keySet() == services.keySet()
+            services.each { name, entry -> assertSameEntry(restored.lookup(name, region), entry) }
+        }
+        restored.getServiceFilter().mightContain("corse", "")
+        restored.getServiceFilter().mightContain("mallorca", "dc1")
+
+        and: "restored entries should be reused when the same registry is indexed"
+        RegistryIndex.build(eurekaClient, restored).is(restored)
+    }
+
+    def "should remember timestamp of loaded snapshot"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file, NOW - 5000).save(RegistryIndex.build(eurekaClient))
+        def loader = snapshot(file)
+
+        expect:
+        loader.getLoadedTimestamp() == 0
+
+        when:
+        loader.load()
+
+        then:
+        loader.getLoadedTimestamp() == NOW - 5000
+    }
+
+    def "should not load snapshot that is older than max age"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file, NOW - 10_001).save(RegistryIndex.build(eurekaClient))
+
+        expect:
+        new RegistrySnapshot(file, 1000, 10_000, { NOW } as LongSupplier).load() == null
+        new RegistrySnapshot(file, 1000, 0, { NOW } as LongSupplier).load() != null
+    }
+
+    def "should not load #desc snapshot"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file).save(RegistryIndex.build(eurekaClient))
+        def bytes = Files.readAllBytes(file)
+        Files.write(file, mutate(bytes) as byte[])
+
+        expect:
+        snapshot(file).load() == null
+
+        where:
+        desc            | mutate
+        "empty"         | { byte[] b -> new byte[0] }
+        "truncated"     | { byte[] b -> Arrays.copyOf(b, b.length - 10) }
+        "extended"      | { byte[] b -> Arrays.copyOf(b, b.length + 1) }
+        "corrupted"     | { byte[] b -> b[b.length - 20] = (byte) (b[b.length - 20] ^ 0x01); b }
+        "foreign"       | { byte[] b -> b[0] = (byte) 0x58; b }
+        "newer version" | { byte[] b -> b[4] = (byte) (RegistrySnapshot.VERSION + 1); b }
+    }
+
+    def "should not load non-existing snapshot"() {
+        expect:
+        snapshot(tempDir.resolve("non-existing")).load() == null
+    }
+
+    def "manager should answer from snapshot until eureka registry is fetched"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file).save(RegistryIndex.build(eurekaClient))
+
+        def client = new FakeEurekaClient()
+        def listenerInvocations = 0
+        def manager = new RegistryIndexManager(client, 1000, snapshot(file))
+                .addRefreshListener({ listenerInvocations++ })
+
+        expect:
+        manager.isWarmStart()
+        manager.index().lookup("corse", "") != null
+        manager.getLastRefreshMillis() == NOW
+
+        when: "registry is still empty"
+        manager.start()
+
+        then:
+        manager.isWarmStart()
+        manager.index().lookup("corse", "") != null
+        listenerInvocations == 0
+
+        and: "snapshot is not overwritten by itself"
+        !manager.saveSnapshot()
+
+        when: "registry is fetched"
+        client.loadFromClasspath()
+        client.setApplications("default", new Applications())
+        client.fireCacheRefreshedEvent()
+
+        then:
+        !manager.isWarmStart()
+        manager.index().lookup("corse", "") == null
+        manager.index().lookup("mallorca", "dc1") != null
+        manager.index().getVersion() == 2
+        listenerInvocations == 1
+
+        cleanup:
+        manager.stop()
+    }
+
+    def "manager should switch to empty registry once it has been fetched"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file).save(RegistryIndex.build(eurekaClient))
+
+        def client = new FakeEurekaClient()
+        def manager = new RegistryIndexManager(client, 1000, snapshot(file))
+        manager.start()
+
+        when:
+        client.fireCacheRefreshedEvent()
+
+        then:
+        !manager.isWarmStart()
+        manager.index().getNumApps() == 0
+        manager.index().lookup("corse", "") == null
+
+        cleanup:
+        manager.stop()
+    }
+
+    def "manager should leave warm start if fetched registry is the same as snapshot"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file).save(RegistryIndex.build(eurekaClient))
+
+        def client = new FakeEurekaClient()
+        def listenerInvocations = 0
+        def manager = new RegistryIndexManager(client, 1000, snapshot(file))
+                .addRefreshListener({ listenerInvocations++ })
+        def restored = manager.index()
+        manager.start()
+
+        expect:
+        manager.isWarmStart()
+
+        when:
+        client.loadFromClasspath()
+        client.fireCacheRefreshedEvent()
+
+        then: "restored index is kept"
+        !manager.isWarmStart()
+        manager.index().is(restored)
+        listenerInvocations == 0
+
+        and: "snapshot is written again"
+        manager.saveSnapshot()
+
+        cleanup:
+        manager.stop()
+    }
+
+    def "manager should not load snapshot if registry has been already fetched"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        snapshot(file).save(RegistryIndex.build(clientWithApps(1, 1)))
+
+        when:
+        def manager = new RegistryIndexManager(eurekaClient, 1000, snapshot(file))
+
+        then:
+        !manager.isWarmStart()
+        manager.index().lookup("corse", "") != null
+        manager.index().lookup("app-0", "") == null
+    }
+
+    def "manager should save changed non-empty index"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        def manager = new RegistryIndexManager(eurekaClient, 1000, snapshot(file))
+
+        expect:
+        manager.saveSnapshot()
+        !manager.saveSnapshot()
+        snapshot(file).load().getNumApps() == 6
+
+        when:
+        eurekaClient.removeApplication("default", "SARDEGNA")
+        manager.refresh()
+
+        then:
+        manager.saveSnapshot()
+        snapshot(file).load().lookup("sardegna", "") == null
+
+        when: "index is saved once more on stop"
+        eurekaClient.removeApplication("default", "CORSE")
+        manager.start()
+        manager.stop()
+
+        then:
+        snapshot(file).load().lookup("corse", "") == null
+    }
+
+    def "manager should not save empty index"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        def manager = new RegistryIndexManager(new FakeEurekaClient(), 1000, snapshot(file))
+
+        expect:
+        !manager.saveSnapshot()
+        !Files.exists(file)
+    }
+
+    def "should load snapshot of 50k instances in milliseconds"() {
+        given:
+        def file = tempDir.resolve("registry.snapshot")
+        def index = RegistryIndex.build(clientWithApps(5000, 10))
+        snapshot(file).save(index)
+
+        def loader = snapshot(file)
+        // warm up
+        3.times { loader.load() }
+
+        when:
+        def ts = System.nanoTime()
+        def restored = loader.load()
+        def durationMillis = (System.nanoTime() - ts) / 1_000_000
+        log.info("loaded registry snapshot of {} bytes in {} msec", Files.size(file), durationMillis)
+
+        then:
+        restored.getNumApps() == index.getNumApps()
+        restored.lookup("app-4999", "").getIpv4Addresses().length == 10
+
+        // generous bound, so that the test is not flaky on slow machines
+        durationMillis < 1000
+    }
+
+    RegistrySnapshot snapshot(Path file, long now = NOW) {
+        new RegistrySnapshot(file, 60_000, 86_400_000, { now } as LongSupplier)
+    }
+
+    static FakeEurekaClient clientWithApps(int numApps, int numInstances) {
+        def applications = new Applications()
+        numApps.times { a ->
+            def instances = (0..<numInstances).collect { i ->
+                InstanceInfo.Builder.newBuilder()
+                        .setInstanceId("host-${a}-${i}:app-${a}:8080")
+                        .setAppName("APP-${a}")
+                        .setHostName("host-${a}-${i}.example.org")
+                        .setIPAddr("10.${(a >> 8) & 0xff}.${a & 0xff}.${i}")
+                        .setPort(8080)
+                        .setStatus(InstanceInfo.InstanceStatus.UP)
+                        .build()
+            }
+            applications.addApplication(new Application("APP-${a}", instances))
+        }
+        new FakeEurekaClient().setApplications("default", applications)
+    }
+
+    static void assertSameEntry(ServiceEntry actual, ServiceEntry expected) {
+        assert actual.getName() == expected.getName()
+        assert actual.getFingerprint() == expected.getFingerprint()
+        assert actual.getIpv4Addresses() == expected.getIpv4Addresses()
+        assert actual.getIpv6Addresses() == expected.getIpv6Addresses()
+        assert actual.getUrls() == expected.getUrls()
+        assert actual.getTxtRData() == expected.getTxtRData()
+        assert actual.getSrvTargets() == expected.getSrvTargets()
+        assert actual.getSrvPorts() == expected.getSrvPorts()
+        assert actual.getSrvRData() == expected.getSrvRData()
+        assert actual.getSrvTargetAddresses() == expected.getSrvTargetAddresses()
+        assert actual.getInstanceIds() == expected.getInstanceIds()
+        assert actual.getInstanceHostnames() == expected.getInstanceHostnames()
+        assert actual.getInstanceAddresses() == expected.getInstanceAddresses()
+        assert actual.getInstanceUrlIndexes() == expected.getInstanceUrlIndexes()
+    }
+}
@@ -0,0 +1,401 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.EurekaClient
+import groovy.util.logging.Slf4j
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.dns.DatagramDnsQuery
+import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DnsRecordType
+import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+import static io.netty.handler.codec.dns.DnsRecordType.A
+import static io.netty.handler.codec.dns.DnsRecordType.NS
+import static io.netty.handler.codec.dns.DnsRecordType.SRV
+import static io.netty.handler.codec.dns.DnsRecordType.TXT
+
+@Slf4j
+@Unroll
+class ResponseCacheSpec extends Specification {
+    def clientAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.3"), 32456)
+    def serverAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.4"), 5353)
+
+    def eurekaClient = FakeEurekaClient.defaults()
+    def config = TestUtils.defaultConfig(eurekaClient)
+    def domain = config.getDomain()
+
+    DnsQueryHandler handler
+    EmbeddedChannel channel
+
+    def setup() {
+        createHandler(config)
+    }
+
+    def cleanup() {
+        handler.stop()
+        channel.finishAndReleaseAll()
+    }
+
+    def "should track eureka registry changes while handler is started"() {
+        expect:
+        eurekaClient.getEventListeners().contains(handler.registryIndexManager)
+
+        when:
+        handler.stop()
+
+        then:
+        eurekaClient.getEventListeners().isEmpty()
+    }
+
+    def "should respond from cache with patched transaction id and question name for: #type #name"() {
+        given:
+        def cache = handler.responseCache
+
+        when: "ask for the first time"
+        def first = query(1, name.toLowerCase(), type)
+
+        then:
+        cache.getMisses() == 1
+        cache.getHits() == 0
+        cache.size() == 1
+
+        transactionId(first) == 1
+        questionName(first) == name.toLowerCase()
+
+        when: "ask again with different transaction id and letter case"
+        def second = query(2, name, type)
+
+        then:
+        cache.getMisses() == 1
+        cache.getHits() == 1
+        cache.size() == 1
+
+        transactionId(second) == 2
+        questionName(second) == name
+
+        // everything except transaction id and question name case should be the same
+        normalize(second) == normalize(first)
+
+        where:
+        type | name
+        A    | "CoRsE.service.meureka."
+        TXT  | "corse.SERVICE.meureka."
+        SRV  | "_Corse._Tcp.Service.Default.MEureka."
+    }
+
+    def "should not cache NXDOMAIN responses"() {
+        given:
+        def cache = handler.responseCache
+
+        when:
+        def responses = (1..2).collect { query(it, "non-existing.service.${domain}.") }
+
+        then:
+        responses.every { it != null }
+        cache.getMisses() == 2
+        cache.getHits() == 0
+        cache.size() == 0
+
+        cleanup:
+        responses.each { it?.release() }
+    }
+
+    def "should cache responses separately for each negotiated EDNS0 payload size"() {
+        given:
+        def cache = handler.responseCache
+        def name = "corse.service.${domain}."
+
+        when:
+        def plain = query(1, name)
+        def large = query(2, name, A, 4096)
+        def configured = query(3, name, A, config.getMaxUdpPayloadSize())
+        def small = query(4, name, A, 512)
+
+        then: "client payload size is capped by configured max payload size"
+        cache.size() == 3
+        cache.getMisses() == 3
+        cache.getHits() == 1
+
+        numAdditionals(plain) == 0
+        [large, configured, small].each { assert numAdditionals(it) == 1 }
+        normalize(large) == normalize(configured)
+    }
+
+    def "should not cache responses to questions that don't depend on registry"() {
+        when:
+        query(1, "corse.service.${domain}.", NS)
+        query(2, "corse.service.${domain}.", NS)
+
+        then:
+        handler.responseCache.size() == 0
+        handler.responseCache.getHits() == 0
+        handler.responseCache.getMisses() == 0
+    }
+
+    def "should invalidate cache when eureka registry changes"() {
+        given:
+        def cache = handler.responseCache
+        def name = "corse.service.${domain}."
+
+        when:
+        query(1, name)
+        query(2, name)
+
+        then:
+        cache.size() == 1
+        cache.getHits() == 1
+
+        when: "simulate eureka registry refresh without any changes"
+        eurekaClient.fireCacheRefreshedEvent()
+
+        then:
+        cache.size() == 1
+
+        when: "simulate eureka registry refresh after instance went down"
+        corseInstance().setStatus(InstanceInfo.InstanceStatus.DOWN)
+        eurekaClient.fireCacheRefreshedEvent()
+
+        then:
+        cache.size() == 0
+
+        when: "ask again"
+        query(3, name)
+
+        then:
+        cache.size() == 1
+        cache.getMisses() == 2
+        cache.getHits() == 1
+    }
+
+    def "should not cache more than configured number of responses"() {
+        given:
+        createHandler(config.clone().setResponseCacheMaxEntries(2))
+
+        when:
+        ["corse", "sardegna", "foo", "bar"].eachWithIndex { name, idx ->
+            query(idx, "${name}.service.${domain}.")
+        }
+
+        then:
+        handler.responseCache.size() == 2
+    }
+
+    def "should evict responses that were not recently used when cache is full"() {
+        given:
+        def cache = new ResponseCache(2)
+        def questions = ["a", "b", "c", "d"].collectEntries {
+            [(it): new DefaultDnsQuestion("${it}.service.${domain}.", A)]
+        }
+        def put = { String name -> cache.put(questions[name], 512, false, Unpooled.wrappedBuffer(new byte[20]), 0) }
+        def isCached = { String name ->
+            def buf = cache.get(questions[name], 512, false, 1, ByteBufAllocator.DEFAULT)
+            buf?.release()
+            buf != null
+        }
+
+        when:
+        put("a")
+        put("b")
+        isCached("a")
+        put("c")
+
+        then: "newest response replaces the one that was not served since it was stored"
+        cache.size() == 2
+        isCached("a")
+        !isCached("b")
+        isCached("c")
+
+        when: "every response was used, therefore clock hand evicts the oldest one"
+        put("d")
+
+        then:
+        cache.size() == 2
+        !isCached("a")
+        isCached("c")
+        isCached("d")
+    }
+
+    def "should count service queries answered with and without response cache"() {
+        given:
+        createHandler(config.clone().setMetricsPort(9090))
+        def metrics = handler.getQueryMetrics()
+
+        when:
+        query(1, "corse.service.${domain}.")
+        query(2, "sardegna.service.${domain}.")
+        query(3, "Corse.service.${domain}.")
+        query(4, "sardegna.service.${domain}.", NS)
+        query(5, "sardegna.service.${domain}.")
+
+        then: "cached responses don't reuse question name parsed for previous query"
+        handler.responseCache.getHits() == 2
+        metrics.getServiceQueries("corse", "") == 2
+        metrics.getServiceQueries("sardegna", "") == 2
+    }
+
+    def "should not store response created from stale registry data"() {
+        given:
+        def cache = new ResponseCache(10)
+        def question = new DefaultDnsQuestion("foo.service.${domain}.", A)
+        def generation = cache.generation()
+
+        when:
+        cache.invalidate()
+        def stored = cache.put(question, 512, false, Unpooled.wrappedBuffer(new byte[20]), generation)
+
+        then:
+        !stored
+        cache.size() == 0
+    }
+
+    def "should treat responses of previous generations as missing"() {
+        given:
+        def cache = new ResponseCache(10)
+        def stale = new DefaultDnsQuestion("foo.service.${domain}.", A)
+        def current = new DefaultDnsQuestion("bar.service.${domain}.", A)
+        def response = Unpooled.wrappedBuffer(new byte[20])
+
+        when:
+        cache.put(stale, 512, false, response, cache.generation())
+        cache.put(current, 512, false, response, cache.generation())
+        cache.invalidate()
+
+        then:
+        cache.size() == 0
+        cache.get(stale, 512, false, 1, ByteBufAllocator.DEFAULT) == null
+
+        when: "response is stored after invalidation"
+        cache.put(current, 512, false, response, cache.generation())
+
+        then: "it replaces stale response"
+        cache.size() == 1
+        cache.get(current, 512, false, 2, ByteBufAllocator.DEFAULT)?.release()
+        cache.get(stale, 512, false, 3, ByteBufAllocator.DEFAULT) == null
+        cache.getHits() == 1
+        cache.getMisses() == 2
+    }
+
+    def "should not create cache if disabled in configuration"() {
+        when:
+        createHandler(configurer.call(config.clone()))
+
+        then:
+        handler.responseCache == null
+
+        when:
+        def response = query(1, "corse.service.${domain}.")
+
+        then: "response is encoded by the handler regardless of caching"
+        response != null
+        handler.responseCache == null
+
+        where:
+        configurer << [
+                { it.setResponseCache(false) },
+                { it.setAnswerOrder(AnswerOrder.ROUND_ROBIN) },
+                { it.setAnswerOrder(AnswerOrder.RANDOM) },
+        ]
+    }
+
+    def "should use cache if eureka client doesn't support event listeners"() {
+        given:
+        def client = Mock(EurekaClient)
+        client.registerEventListener(_) >> { throw new UnsupportedOperationException("not supported") }
+        client.getApplications() >> eurekaClient.getApplications()
+
+        when:
+        createHandler(config.clone().setEurekaClient(client))
+        def response = query(1, "corse.service.${domain}.")
+
+        then: "registry index should be rebuilt periodically instead"
+        handler.registryIndexManager.isPolling()
+        response != null
+        handler.responseCache.size() == 1
+
+        when:
+        corseInstance().setStatus(InstanceInfo.InstanceStatus.DOWN)
+        handler.registryIndexManager.refresh()
+
+        then:
+        handler.responseCache.size() == 0
+
+        when:
+        handler.stop()
+
+        then:
+        !handler.registryIndexManager.isPolling()
+    }
+
+    InstanceInfo corseInstance() {
+        eurekaClient.getApplications().getRegisteredApplications("CORSE").getInstances().first()
+    }
+
+    def createHandler(DnsServerConfig config) {
+        if (handler) {
+            handler.stop()
+            channel.finishAndReleaseAll()
+        }
+        handler = new DnsQueryHandler(config)
+        handler.start()
+        channel = new EmbeddedDatagramChannel(serverAddr, clientAddr, handler)
+    }
+
+    /**
+     * Sends query through handler; query contains EDNS0 OPT record if payload size is given.
+     *
+     * @return sent datagram packet, {@code null} if handler didn't respond with encoded packet.
+     */
+    DatagramPacket query(int id, String name, DnsRecordType type = A, Integer payloadSize = null) {
+        def query = new DatagramDnsQuery(clientAddr, serverAddr, id)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(name, type))
+        if (payloadSize != null) {
+            query.addRecord(DnsSection.ADDITIONAL, new OptPseudoRecord(payloadSize, 0, 0))
+        }
+        channel.writeInbound(query)
+
+        def response = channel.readOutbound()
+        if (response instanceof DatagramPacket) {
+            assert response.recipient() == clientAddr
+            assert response.sender() == serverAddr
+            return response
+        }
+        response?.release()
+        null
+    }
+
+    int transactionId(DatagramPacket packet) {
+        packet.content().getUnsignedShort(0)
+    }
+
+    int numAdditionals(DatagramPacket packet) {
+        packet.content().getUnsignedShort(10)
+    }
+
+    String questionName(DatagramPacket packet) {
+        ByteBuf buf = packet.content()
+        def sb = new StringBuilder()
+        def pos = DnsMessages.HEADER_LENGTH
+        def len = buf.getUnsignedByte(pos++)
+        while (len > 0) {
+            sb.append(buf.toString(pos, len, StandardCharsets.US_ASCII)).append('.')
+            pos += len
+            len = buf.getUnsignedByte(pos++)
+        }
+        sb.toString()
+    }
+
+    String normalize(DatagramPacket packet) {
+        def bytes = ByteBufUtil.getBytes(packet.content(), 2, packet.content().readableBytes() - 2)
+        new String(bytes, StandardCharsets.ISO_8859_1).toLowerCase()
+    }
+}
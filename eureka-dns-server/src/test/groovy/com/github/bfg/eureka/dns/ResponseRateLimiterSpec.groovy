@@ -0,0 +1,192 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.function.LongSupplier
+
+import static com.github.bfg.eureka.dns.ResponseRateLimiter.Action.DROP
+import static com.github.bfg.eureka.dns.ResponseRateLimiter.Action.SEND
+import static com.github.bfg.eureka.dns.ResponseRateLimiter.Action.SLIP
+import static io.netty.handler.codec.dns.DnsResponseCode.NOERROR
+import static io.netty.handler.codec.dns.DnsResponseCode.NXDOMAIN
+import static io.netty.handler.codec.dns.DnsResponseCode.REFUSED
+
+@Unroll
+class ResponseRateLimiterSpec extends Specification {
+    static final int RATE = 5
+    static final String NAME = "corse.service.meureka."
+    static final int TYPE = 1
+
+    def nanos = 0L
+    def client = InetAddresses.forString("10.1.2.3")
+
+    def "should send 5 responses per second and slip every second limited response"() {
+        given:
+        def limiter = createLimiter(2)
+
+        when:
+        def actions = (0..<RATE + 4).collect { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        then:
+        actions == [SEND] * RATE + [DROP, SLIP, DROP, SLIP]
+        limiter.getLimited() == 4
+        limiter.getSlipped() == 2
+        limiter.getDropped() == 2
+    }
+
+    def "bucket should be credited every second"() {
+        given:
+        def limiter = createLimiter(0)
+        (0..<RATE * 2).each { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        expect: "bucket is still in debt"
+        limiter.check(client, NAME, TYPE, NOERROR) == DROP
+
+        when: "two seconds elapse"
+        nanos += 2_000_000_000L
+        def actions = (0..<RATE + 1).collect { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        then: "whole rate is available again"
+        actions == [SEND] * RATE + [DROP]
+    }
+
+    def "slip=#slip should turn limited responses into #expected"() {
+        given:
+        def limiter = createLimiter(slip)
+        (0..<RATE).each { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        expect:
+        (0..<3).collect { limiter.check(client, NAME, TYPE, NOERROR) } == expected
+
+        where:
+        slip | expected
+        0    | [DROP, DROP, DROP]
+        1    | [SLIP, SLIP, SLIP]
+        3    | [DROP, DROP, SLIP]
+    }
+
+    def "slip=#slip should keep slipping every n-th limited response while client keeps flooding"() {
+        given:
+        def limiter = createLimiter(slip)
+        (0..<RATE).each { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        when:
+        def actions = (0..<RATE * 6).collect { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        then:
+        actions == ([DROP] * (slip - 1) + [SLIP]) * (RATE * 6).intdiv(slip)
+
+        when: "flooding stops for two seconds"
+        nanos += 2_000_000_000L
+
+        then:
+        limiter.check(client, NAME, TYPE, NOERROR) == SEND
+
+        where:
+        slip << [2, 3, 6]
+    }
+
+    def "slipped responses of one client should not depend on responses limited for other clients"() {
+        given:
+        def limiter = createLimiter(2)
+        def other = InetAddresses.forString("10.9.8.7")
+        [client, other].each { addr -> (0..<RATE).each { limiter.check(addr, NAME, TYPE, NOERROR) } }
+
+        when: "limited responses of both clients are interleaved"
+        def actions = (0..<4).collectMany {
+            [limiter.check(client, NAME, TYPE, NOERROR), limiter.check(other, NAME, TYPE, NOERROR)]
+        }
+
+        then:
+        actions == [DROP, DROP, SLIP, SLIP, DROP, DROP, SLIP, SLIP]
+    }
+
+    def "dry run should only count limited responses"() {
+        given:
+        def limiter = new ResponseRateLimiter(RATE, 2, true, 1024, "meureka", { nanos } as LongSupplier)
+
+        when:
+        def actions = (0..<RATE * 2).collect { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        then:
+        actions.every { it == SEND }
+        limiter.getLimited() == RATE
+        limiter.getSlipped() == 0
+        limiter.getDropped() == 0
+    }
+
+    def "#other should #desc bucket with #first"() {
+        given:
+        def limiter = createLimiter(0)
+        (0..<RATE).each { limiter.check(InetAddresses.forString(first), NAME, TYPE, NOERROR) }
+
+        expect:
+        limiter.check(InetAddresses.forString(other), NAME, TYPE, NOERROR) == expected
+
+        where:
+        first               | other               | expected
+        "10.1.2.3"          | "10.1.2.200"        | DROP
+        "10.1.2.3"          | "10.1.3.3"          | SEND
+        "2001:db8:0:100::1" | "2001:db8:0:1ff::2" | DROP
+        "2001:db8:0:100::1" | "2001:db8:0:200::1" | SEND
+
+        desc = (expected == DROP) ? "share" : "not share"
+    }
+
+    def "responses should be accounted by question name, type and response code"() {
+        given:
+        def limiter = createLimiter(0)
+        (0..<RATE).each { limiter.check(client, NAME, TYPE, NOERROR) }
+
+        expect: "responses to other questions are not limited"
+        limiter.check(client, NAME.toUpperCase(), TYPE, NOERROR) == DROP
+        limiter.check(client, "sardegna.service.meureka.", TYPE, NOERROR) == SEND
+        limiter.check(client, NAME, 28, NOERROR) == SEND
+        limiter.check(client, NAME, TYPE, REFUSED) == SEND
+    }
+
+    def "NXDOMAIN responses should share a single bucket regardless of question name"() {
+        given:
+        def limiter = createLimiter(0)
+
+        when:
+        def actions = (0..<RATE + 1).collect { limiter.check(client, "random-${it}.service.meureka.", TYPE, NXDOMAIN) }
+
+        then:
+        actions == [SEND] * RATE + [DROP]
+    }
+
+    def "table size should be rounded up to power of two"() {
+        expect:
+        new ResponseRateLimiter(RATE, 2, false, tableSize, "meureka", { nanos } as LongSupplier)
+                .getTableSize() == expected
+
+        where:
+        tableSize | expected
+        1         | 1
+        1000      | 1024
+        65536     | 65536
+    }
+
+    def "constructor should throw on invalid arguments"() {
+        when:
+        new ResponseRateLimiter(rate, slip, false, tableSize, "meureka", { nanos } as LongSupplier)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        rate    | slip | tableSize
+        0       | 2    | 1024
+        100_001 | 2    | 1024
+        5       | -1   | 1024
+        5       | 2    | 0
+        5       | 2    | (1 << 24) + 1
+    }
+
+    ResponseRateLimiter createLimiter(int slip) {
+        new ResponseRateLimiter(RATE, slip, false, 1024, "meureka", { nanos } as LongSupplier)
+    }
+}
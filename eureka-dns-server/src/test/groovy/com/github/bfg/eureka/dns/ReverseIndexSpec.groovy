@@ -0,0 +1,129 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class ReverseIndexSpec extends Specification {
+    static def index = RegistryIndex.build(FakeEurekaClient.defaults())
+
+    def reverseIndex = ReverseIndex.build(index, "meureka")
+
+    def "#address should resolve to #expected"() {
+        when:
+        def addr = InetAddresses.forString(address).getAddress()
+        def rdata = reverseIndex.lookup(addr, addr.length)
+
+        then:
+        rdata?.collect { decodeName(it) } == expected
+
+        where:
+        address         | expected
+        "10.11.1.100"   | ["host-100.us-west-2.compute.internal"]
+        "10.11.6.196"   | ["host-196.us-west-2.compute.internal"]
+        "192.168.1.154" | ["sicily.service.dc1.meureka"]
+        "::3"           | ["host-105.us-west-2.compute.internal", "sicily.service.dc1.meureka"]
+        "10.11.1.103"   | null
+        "10.11.1.1"     | null
+        "::4"           | null
+    }
+
+    def "index should contain every address of every instance that is UP"() {
+        expect:
+        reverseIndex.size() == 8
+        reverseIndex.toString() == "ReverseIndex(ipv4=6, ipv6=2)"
+
+        ReverseIndex.EMPTY.size() == 0
+        ReverseIndex.EMPTY.lookup(0x0a0b0164) == null
+        ReverseIndex.EMPTY.lookup(new byte[16], 16) == null
+    }
+
+    def "IPv4 lookup should accept address as int"() {
+        expect:
+        reverseIndex.lookup(0x0a0b0164).collect { decodeName(it) } == ["host-100.us-west-2.compute.internal"]
+    }
+
+    def "parseName(#name) should return #expected"() {
+        given:
+        def addr = new byte[16]
+
+        when:
+        def result = ReverseIndex.parseName(name, addr)
+
+        then:
+        result == expected
+        if (result > 0) {
+            assert InetAddress.getByAddress(Arrays.copyOf(addr, result)) == InetAddresses.forString(address)
+        }
+
+        where:
+        name                                                                          | expected | address
+        "100.1.11.10.in-addr.arpa."                                                   | 4        | "10.11.1.100"
+        "0.0.0.0.in-addr.arpa"                                                        | 4        | "0.0.0.0"
+        "255.255.255.255.in-addr.arpa."                                               | 4        | "255.255.255.255"
+        "3.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.ip6.arpa."   | 16       | "::3"
+        "1.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.8.b.d.0.1.0.0.2.ip6.arpa"    | 16       | "2001:db8::1"
+
+        "1.11.10.in-addr.arpa."                                                       | 0        | null
+        "10.in-addr.arpa."                                                            | 0        | null
+        "in-addr.arpa."                                                               | 0        | null
+        "8.b.d.0.1.0.0.2.ip6.arpa."                                                   | 0        | null
+        "ip6.arpa"                                                                    | 0        | null
+
+        "5.100.1.11.10.in-addr.arpa."                                                 | -1       | null
+        "256.1.11.10.in-addr.arpa."                                                   | -1       | null
+        "01.1.11.10.in-addr.arpa."                                                    | -1       | null
+        "a.1.11.10.in-addr.arpa."                                                     | -1       | null
+        "..11.10.in-addr.arpa."                                                       | -1       | null
+        "10.xin-addr.arpa."                                                           | -1       | null
+        "ab.8.b.d.0.1.0.0.2.ip6.arpa."                                                | -1       | null
+        "g.8.b.d.0.1.0.0.2.ip6.arpa."                                                 | -1       | null
+        "0.3.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.ip6.arpa." | -1       | null
+        "corse.service.meureka."                                                      | -1       | null
+        "arpa."                                                                       | -1       | null
+    }
+
+    def "lookups should find all addresses of a large index"() {
+        given:
+        def apps = new Applications()
+        apps.addApplication(new Application("BIG", (0..<5000).collect {
+            InstanceInfo.Builder.newBuilder()
+                    .setInstanceId("host-${it}:big:8080")
+                    .setAppName("BIG")
+                    .setHostName("host-${it}.example.org")
+                    .setIPAddr("10.0.${it >> 8}.${it & 0xff}")
+                    .setStatus(InstanceInfo.InstanceStatus.UP)
+                    .build()
+        }))
+        def client = new FakeEurekaClient().setApplications("default", apps)
+        def big = ReverseIndex.build(RegistryIndex.build(client), "meureka")
+
+        expect:
+        big.size() == 5000
+        (0..<5000).every { big.lookup(0x0a000000 | it) != null }
+        big.lookup(0x0a000000 | 5000) == null
+    }
+
+    /**
+     * Returns reverse lookup name of given address.
+     */
+    static String reverseName(String address) {
+        def addr = InetAddresses.forString(address).getAddress()
+        if (addr.length == 4) {
+            return addr.reverse().collect { it & 0xff }.join(".") + ".in-addr.arpa."
+        }
+        addr.toList().collectMany { [(it >> 4) & 0x0f, it & 0x0f] }.reverse().collect { Integer.toHexString(it) }.join(".") +
+                ".ip6.arpa."
+    }
+
+    static String decodeName(byte[] rdata) {
+        def name = new StringBuilder()
+        DnsMessages.readName(Unpooled.wrappedBuffer(rdata), 0, name)
+        name.toString()
+    }
+}
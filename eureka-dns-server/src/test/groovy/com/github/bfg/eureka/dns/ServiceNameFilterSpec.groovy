@@ -0,0 +1,94 @@
+package com.github.bfg.eureka.dns
+
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Slf4j
+@Unroll
+class ServiceNameFilterSpec extends Specification {
+    def "should never reject added services"() {
+        given:
+        def filter = new ServiceNameFilter(1000, 0.01)
+        def services = (0..<1000).collect { "service-${it}".toString() }
+        services.each { filter.add(it, it.hashCode() % 2 == 0 ? "" : "dc1") }
+
+        expect:
+        services.every { filter.mightContain(it, it.hashCode() % 2 == 0 ? "" : "dc1") }
+        filter.getNumEntries() == 1000
+    }
+
+    def "false positive rate should stay close to #rate"() {
+        given:
+        def filter = new ServiceNameFilter(5000, rate)
+        (0..<5000).each { filter.add("service-${it}", "") }
+
+        when:
+        def probes = 100_000
+        def falsePositives = (0..<probes).count { filter.mightContain("random-${it}", "") }
+        def observed = falsePositives / probes
+        log.info("filter {}: expected false positive rate {}, observed {}",
+                filter, filter.getExpectedFalsePositiveRate(), observed)
+
+        then:
+        Integer.bitCount(filter.getNumBits()) == 1
+        filter.getExpectedFalsePositiveRate() <= rate
+        observed <= rate * 2
+
+        where:
+        rate << [0.01, 0.001]
+    }
+
+    def "should compare names case-insensitively and take region into account"() {
+        given:
+        def filter = new ServiceNameFilter(10, 0.0001).add("corse", "").add("mallorca", "dc1")
+
+        expect:
+        filter.mightContain("CORSE", "")
+        filter.mightContain("mallorca", "DC1")
+        !filter.mightContain("mallorca", "")
+        !filter.mightContain("corse", "dc1")
+    }
+
+    def "should check service and datacenter of parsed query name: #name"() {
+        given:
+        def filter = new ServiceNameFilter(10, 0.0001).add("corse", "").add("mallorca", "dc1")
+        def parsed = new ParsedQueryName()
+
+        expect:
+        new QueryNameParser("eureka").parse(name, parsed)
+        filter.mightContain(parsed) == expected
+
+        where:
+        name                                | expected
+        "corse.service.eureka."             | true
+        "_CORSE._tcp.service.eureka"        | true
+        "mallorca.service.dc1.eureka."      | true
+        "mallorca.service.eureka."          | false
+        "x7f3a9q.service.eureka."           | false
+    }
+
+    def "empty filter should reject everything"() {
+        given:
+        def filter = new ServiceNameFilter(0, 0.01)
+
+        expect:
+        !filter.mightContain("corse", "")
+        filter.getNumEntries() == 0
+        filter.getExpectedFalsePositiveRate() == 0
+    }
+
+    def "should reject invalid sizing: #entries, #rate"() {
+        when:
+        new ServiceNameFilter(entries, rate)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        entries | rate
+        -1      | 0.01
+        10      | 0
+        10      | 1
+    }
+}
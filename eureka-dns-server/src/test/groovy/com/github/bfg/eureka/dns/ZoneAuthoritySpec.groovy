@@ -0,0 +1,63 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+
+class ZoneAuthoritySpec extends Specification {
+    def config = TestUtils.defaultConfig(FakeEurekaClient.defaults())
+            .setSoaRefresh(1800)
+            .setSoaRetry(300)
+            .setSoaExpire(604800)
+            .setSoaMinimum(30)
+    def authority = new ZoneAuthority(config, 1_000_000)
+
+    def "should encode SOA record with configured timers and serial derived from registry index version"() {
+        when:
+        def buf = Unpooled.wrappedBuffer(authority.getSoaRData(7))
+        def name = new StringBuilder()
+        def pos = DnsMessages.readName(buf, 0, name)
+
+        then:
+        name.toString() == "ns.meureka"
+
+        when:
+        pos = DnsMessages.readName(buf, pos, name)
+
+        then:
+        name.toString() == "hostmaster.meureka"
+        buf.getInt(pos) == 1_000_007
+        buf.getInt(pos + 4) == 1800
+        buf.getInt(pos + 8) == 300
+        buf.getInt(pos + 12) == 604800
+        buf.getInt(pos + 16) == 30
+        buf.writerIndex() == pos + 20
+    }
+
+    def "SOA record should be re-encoded only when registry index version changes"() {
+        when:
+        def first = authority.getSoaRData(1)
+
+        then:
+        authority.getSoaRData(1).is(first)
+
+        when:
+        def second = authority.getSoaRData(2)
+
+        then:
+        !second.is(first)
+        second != first
+        authority.getSerial(2) - authority.getSerial(1) == 1
+    }
+
+    def "NS record and host addresses should be encoded only once"() {
+        given:
+        def serverAddr = InetAddresses.forString("2a01:260:d001:e744::53")
+
+        expect:
+        authority.getNsHostname() == "ns.meureka"
+        authority.getNsRData().is(authority.getNsRData())
+        authority.getHostAddress(serverAddr) == serverAddr.getAddress()
+        authority.getHostAddress(serverAddr).is(authority.getHostAddress(serverAddr))
+    }
+}
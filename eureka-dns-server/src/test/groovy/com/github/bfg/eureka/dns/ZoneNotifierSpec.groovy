@@ -0,0 +1,154 @@
+package com.github.bfg.eureka.dns
+
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import static io.netty.handler.codec.dns.DnsRecordType.SOA
+
+@Unroll
+class ZoneNotifierSpec extends Specification {
+    def secondary = new DatagramSocket(0, InetAddress.getLoopbackAddress())
+    def config = TestUtils.defaultConfig(FakeEurekaClient.defaults())
+            .setZoneTransfer(true)
+            .setNotifySecondaries(["127.0.0.1:${secondary.getLocalPort()}".toString()] as Set)
+    def authority = new ZoneAuthority(config, 1_000_000)
+
+    ZoneNotifier notifier
+
+    def cleanup() {
+        notifier?.stop()
+        secondary.close()
+    }
+
+    def "secondary should be notified about zone serial"() {
+        given:
+        secondary.setSoTimeout(5000)
+        notifier = new ZoneNotifier(config, authority)
+        notifier.start()
+
+        when:
+        notifier.notifySecondaries(7)
+        def packet = new DatagramPacket(new byte[512], 512)
+        secondary.receive(packet)
+        def buf = Unpooled.wrappedBuffer(packet.getData(), 0, packet.getLength())
+        def name = new StringBuilder()
+        def pos = DnsMessages.readName(buf, DnsMessages.HEADER_LENGTH, name)
+
+        then: "NOTIFY message asks for zone SOA and carries SOA record of the new serial"
+        (buf.getUnsignedShort(2) >> 11 & 0xf) == 4
+        (buf.getUnsignedShort(2) & ZoneTransfer.AUTHORITATIVE_FLAG) != 0
+        buf.getUnsignedShort(4) == 1
+        buf.getUnsignedShort(6) == 1
+        name.toString() == "meureka"
+        buf.getUnsignedShort(pos) == SOA.intValue()
+        // SOA names are compressed, but serial and timers at the end of rdata are copied verbatim
+        ByteBufUtil.getBytes(buf, buf.writerIndex() - 20, 20).toList() == authority.getSoaRData(7)[-20..-1]
+        buf.getInt(buf.writerIndex() - 20) == authority.getSerial(7)
+
+        when: "secondary acknowledges it"
+        def ack = ByteBufUtil.getBytes(buf, 0, pos + 4)
+        ack[2] = (byte) (ack[2] | 0x80)
+        ack[7] = 0
+        secondary.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()))
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert notifier.getAcknowledged() == 1
+        }
+        notifier.getSent() == 1
+        notifier.getFailed() == 0
+    }
+
+    def "notification should fail if secondary doesn't acknowledge it"() {
+        given:
+        notifier = new ZoneNotifier(config, authority, 50)
+        notifier.start()
+
+        when:
+        notifier.notifySecondaries(1)
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert notifier.getFailed() == 1
+        }
+        notifier.getSent() == ZoneNotifier.MAX_ATTEMPTS
+        notifier.getAcknowledged() == 0
+
+        when: "notification about the same serial is requested again"
+        notifier.notifySecondaries(1)
+        sleep(200)
+
+        then: "it's ignored"
+        notifier.getSent() == ZoneNotifier.MAX_ATTEMPTS
+    }
+
+    def "notifier should not send anything unless started"() {
+        given:
+        notifier = new ZoneNotifier(config, authority)
+
+        when:
+        notifier.notifySecondaries(1)
+        sleep(100)
+
+        then:
+        notifier.getSent() == 0
+    }
+
+    def "secondary given by host name should be recognized by its address after it was notified"() {
+        given:
+        def loopback = InetAddress.getLoopbackAddress()
+        notifier = new ZoneNotifier(config.clone()
+                .setNotifySecondaries(["10.0.0.53", "localhost:${secondary.getLocalPort()}".toString()] as Set),
+                authority, 50)
+
+        expect: "secondaries given by address are recognized right away"
+        notifier.isSecondary(InetAddress.getByName("10.0.0.53"))
+        !notifier.isSecondary(loopback)
+        !notifier.isSecondary(null)
+
+        when:
+        notifier.start()
+        notifier.notifySecondaries(1)
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert notifier.isSecondary(loopback)
+        }
+        !notifier.isSecondary(InetAddress.getByName("10.0.0.54"))
+    }
+
+    def "should parse secondary address #address"() {
+        when:
+        def parsed = ZoneNotifier.parseAddresses([address])
+
+        then:
+        parsed.size() == 1
+        parsed[0].getHostString() == host
+        parsed[0].getPort() == port
+        parsed[0].isUnresolved()
+
+        where:
+        address                | host              | port
+        "ns1.example.org"      | "ns1.example.org" | 53
+        " ns1.example.org:54 " | "ns1.example.org" | 54
+        "10.0.0.1:5353"        | "10.0.0.1"        | 5353
+        "[2001:db8::53]"       | "2001:db8::53"    | 53
+        "[2001:db8::53]:5353"  | "2001:db8::53"    | 5353
+        "2001:db8::53"         | "2001:db8::53"    | 53
+    }
+
+    def "should complain about invalid secondary address '#address'"() {
+        when:
+        ZoneNotifier.parseAddresses([address])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        address << ["", ":53", "ns1.example.org:", "ns1.example.org:0", "ns1.example.org:65536", "[2001:db8::53",
+                    "[2001:db8::53]53", "[]:53"]
+    }
+}
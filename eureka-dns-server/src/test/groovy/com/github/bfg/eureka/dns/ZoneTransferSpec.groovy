@@ -0,0 +1,539 @@
+package com.github.bfg.eureka.dns
+
+import com.google.common.net.InetAddresses
+import com.netflix.appinfo.InstanceInfo
+import com.netflix.discovery.shared.Application
+import com.netflix.discovery.shared.Applications
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.buffer.UnpooledByteBufAllocator
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import io.netty.channel.WriteBufferWaterMark
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.dns.DatagramDnsQuery
+import io.netty.handler.codec.dns.DatagramDnsResponse
+import io.netty.handler.codec.dns.DatagramDnsResponseDecoder
+import io.netty.handler.codec.dns.DefaultDnsQuestion
+import io.netty.handler.codec.dns.DefaultDnsRawRecord
+import io.netty.handler.codec.dns.DnsRawRecord
+import io.netty.handler.codec.dns.DnsRecord
+import io.netty.handler.codec.dns.DnsRecordType
+import io.netty.handler.codec.dns.DnsSection
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import static io.netty.handler.codec.dns.DnsRecordType.A
+import static io.netty.handler.codec.dns.DnsRecordType.AAAA
+import static io.netty.handler.codec.dns.DnsRecordType.AXFR
+import static io.netty.handler.codec.dns.DnsRecordType.IXFR
+import static io.netty.handler.codec.dns.DnsRecordType.NS
+import static io.netty.handler.codec.dns.DnsRecordType.SOA
+import static io.netty.handler.codec.dns.DnsRecordType.SRV
+import static io.netty.handler.codec.dns.DnsRecordType.TXT
+import static io.netty.handler.codec.dns.DnsResponseCode.FORMERR
+import static io.netty.handler.codec.dns.DnsResponseCode.NOERROR
+import static io.netty.handler.codec.dns.DnsResponseCode.NOTAUTH
+import static io.netty.handler.codec.dns.DnsResponseCode.REFUSED
+
+@Unroll
+class ZoneTransferSpec extends Specification {
+    static final String ZONE = "meureka."
+
+    def clientAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.3"), 32456)
+    def serverAddr = new InetSocketAddress(InetAddresses.forString("10.1.2.4"), 5353)
+
+    def eurekaClient = FakeEurekaClient.defaults()
+    def config = TestUtils.defaultConfig(eurekaClient)
+            .setZoneTransfer(true)
+            .setZoneTransferAllow(["10.1.2.0/24"] as Set)
+
+    DnsQueryHandler handler
+
+    /**
+     * Embedded channel is not a datagram channel, queries sent through it are answered as if received over TCP.
+     */
+    EmbeddedChannel channel
+
+    def cleanup() {
+        handler?.stop()
+        channel?.finishAndReleaseAll()
+    }
+
+    def "AXFR should be answered with all records of the zone enclosed in SOA records"() {
+        given:
+        createHandler(config.setMaxResponses(1))
+        def index = handler.registryIndexManager.index()
+
+        when:
+        def responses = transfer(query(1, ZONE, AXFR))
+        def records = answers(responses)
+
+        then:
+        responses.size() == 1
+        responses[0].code() == NOERROR
+        responses[0].isAuthoritativeAnswer()
+        responses[0].count(DnsSection.QUESTION) == 1
+        responses[0].recordAt(DnsSection.QUESTION).type() == AXFR
+
+        records.first().type() == SOA
+        records.last().type() == SOA
+        records.count { it.type() == SOA } == 2
+        serial(records.first()) == handler.zoneAuthority.getSerial(index.getVersion())
+        records.find { it.type() == NS }.name() == ZONE
+        records.find { it.name() == "ns.meureka." }.type() == A
+
+        and: "zone should contain all records of a service, regardless of max responses"
+        def corse = index.lookup("corse", "")
+        rdata(records, "corse.service.meureka.", A) == corse.getIpv4Addresses()*.toList() as Set
+        rdata(records, "corse.service.meureka.", AAAA) == corse.getIpv6Addresses()*.toList() as Set
+        rdata(records, "corse.service.meureka.", TXT) == corse.getTxtRData()*.toList() as Set
+        rdata(records, "corse.service.meureka.", SRV) == corse.getSrvRData()*.toList() as Set
+        rdata(records, "corse.service.default.meureka.", A) == corse.getIpv4Addresses()*.toList() as Set
+
+        def mallorca = index.lookup("mallorca", "dc1")
+        rdata(records, "mallorca.service.dc1.meureka.", A) == mallorca.getIpv4Addresses()*.toList() as Set
+
+        and: "zone should contain node names"
+        def node = nodeName(corseInstance())
+        def nodeEntry = NodeIndex.build(index).lookup(node, "")
+        rdata(records, "${node}.node.meureka.", A) == nodeEntry.getIpv4Addresses()*.toList() as Set
+        rdata(records, "${node}.node.meureka.", TXT) == nodeEntry.getTxtRData()*.toList() as Set
+        rdata(records, "${node}.node.default.meureka.", A) == nodeEntry.getIpv4Addresses()*.toList() as Set
+        records.every { !(it.name().contains(".node.") && it.type() == SRV) }
+
+        and: "names with RFC 2782 tags should not be part of the zone"
+        records.every { !it.name().startsWith("_") }
+
+        handler.zoneTransfer.getFullTransfers() == 1
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "large zone should be split into multiple messages"() {
+        given:
+        def apps = new Applications()
+        apps.addApplication(new Application("BIG", (0..<2000).collect {
+            instance("BIG", "host-${it}.example.org", "10.0.${it >> 8}.${it & 0xff}")
+        }))
+        createHandler(config.setEurekaClient(new FakeEurekaClient().setApplications("default", apps)))
+
+        when:
+        def packets = transferPackets(query(1, ZONE, AXFR))
+        def sizes = packets.collect { it.content().readableBytes() }
+        def responses = packets.collect { decode(it) }
+        def records = answers(responses)
+
+        then:
+        responses.size() > 1
+        sizes.every { it <= TcpDnsFrameDecoder.MAX_MESSAGE_SIZE }
+        responses.every { it.code() == NOERROR && it.id() == 1 }
+        responses.collect { it.count(DnsSection.QUESTION) } == [1] + [0] * (responses.size() - 1)
+
+        records.first().type() == SOA
+        records.last().type() == SOA
+        records.count { it.name() == "big.service.meureka." && it.type() == A } == 2000
+        records.count { it.name() == "big.service.default.meureka." && it.type() == A } == 2000
+        records.count { it.name() == "host-1999.node.meureka." && it.type() == A } == 1
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "large zone should be written only while channel is writable"() {
+        given:
+        def apps = new Applications()
+        apps.addApplication(new Application("BIG", (0..<2000).collect {
+            instance("BIG", "host-${it}.example.org", "10.0.${it >> 8}.${it & 0xff}")
+        }))
+        createHandler(config.setEurekaClient(new FakeEurekaClient().setApplications("default", apps)))
+
+        and: "channel becomes unwritable after every message"
+        def flushes = new FlushCounter()
+        channel.pipeline().addFirst(flushes)
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2))
+
+        when:
+        def responses = transfer(query(1, ZONE, AXFR))
+        def records = answers(responses)
+
+        then:
+        responses.size() > 1
+        flushes.writesPerFlush.every { it == 1 }
+        records.first().type() == SOA
+        records.last().type() == SOA
+        records.count { it.name() == "big.service.meureka." && it.type() == A } == 2000
+        handler.zoneTransfer.getActiveTransfers() == 0
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "transfer of #name zone should be refused with NOTAUTH"() {
+        given:
+        createHandler(config)
+
+        when:
+        def responses = transfer(query(1, name, type))
+
+        then:
+        responses.size() == 1
+        responses[0].code() == NOTAUTH
+        responses[0].count(DnsSection.ANSWER) == 0
+
+        cleanup:
+        responses?.each { it.release() }
+
+        where:
+        name                     | type
+        "foo.org."               | AXFR
+        "service.meureka."       | AXFR
+        "corse.service.meureka." | IXFR
+    }
+
+    def "IXFR from current serial should be answered with current SOA record"() {
+        given:
+        createHandler(config)
+        def version = handler.registryIndexManager.index().getVersion()
+
+        when:
+        def responses = transfer(ixfr(1, version))
+        def records = answers(responses)
+
+        then:
+        responses.size() == 1
+        responses[0].code() == NOERROR
+        records.size() == 1
+        records[0].type() == SOA
+        serial(records[0]) == handler.zoneAuthority.getSerial(version)
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "IXFR should be answered with records that changed since client's serial"() {
+        given:
+        createHandler(config)
+        def oldVersion = handler.registryIndexManager.index().getVersion()
+        def instance = corseInstance()
+        def addr = InetAddresses.forString(instance.getIPAddr()).getAddress().toList()
+
+        when: "corse instance goes down"
+        instance.setStatus(InstanceInfo.InstanceStatus.DOWN)
+        handler.registryIndexManager.refresh()
+        def newVersion = handler.registryIndexManager.index().getVersion()
+        def responses = transfer(ixfr(1, oldVersion))
+        def records = answers(responses)
+
+        then:
+        newVersion > oldVersion
+        responses.size() == 1
+        responses[0].code() == NOERROR
+
+        and: "records are enclosed in current SOA and separated by previous and current SOA"
+        def soas = records.findIndexValues { it.type() == SOA }
+        soas.size() == 4
+        soas.first() == 0
+        soas.last() == records.size() - 1
+        serial(records[soas[0]]) == handler.zoneAuthority.getSerial(newVersion)
+        serial(records[soas[1]]) == handler.zoneAuthority.getSerial(oldVersion)
+        serial(records[soas[2]]) == handler.zoneAuthority.getSerial(newVersion)
+        serial(records[soas[3]]) == handler.zoneAuthority.getSerial(newVersion)
+
+        and: "address of instance that went down is deleted from service and node names"
+        def node = nodeName(instance)
+        def deleted = records.subList((soas[1] as int) + 1, soas[2] as int)
+        !deleted.isEmpty()
+        deleted.every { it.name().startsWith("corse.service.") || it.name().contains(".node.") }
+        deleted.find { it.name() == "corse.service.meureka." && rdata(it) == addr } != null
+        deleted.find { it.name() == "${node}.node.meureka." && rdata(it) == addr } != null
+
+        handler.zoneTransfer.getIncrementalTransfers() == 1
+        handler.zoneTransfer.getFullTransfers() == 0
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "IXFR from serial that is no longer retained should be answered with the full zone"() {
+        given:
+        createHandler(config.setZoneTransferHistory(0))
+        def oldVersion = handler.registryIndexManager.index().getVersion()
+
+        when:
+        corseInstance().setStatus(InstanceInfo.InstanceStatus.DOWN)
+        handler.registryIndexManager.refresh()
+        def responses = transfer(ixfr(1, oldVersion))
+        def records = answers(responses)
+
+        then:
+        records.count { it.type() == SOA } == 2
+        records.find { it.type() == NS } != null
+        serial(records.first()) == handler.zoneAuthority.getSerial(handler.registryIndexManager.index().getVersion())
+        handler.zoneTransfer.getFullTransfers() == 1
+        handler.zoneTransfer.getIncrementalTransfers() == 0
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "IXFR without client's SOA record should be answered with FORMERR"() {
+        given:
+        createHandler(config)
+
+        when:
+        def responses = transfer(query(1, ZONE, IXFR))
+
+        then:
+        responses.size() == 1
+        responses[0].code() == FORMERR
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "#type over UDP should be answered with #code and #types"() {
+        given:
+        def authority = new ZoneAuthority(config)
+        def zoneTransfer = new ZoneTransfer(config, authority)
+        def index = RegistryIndex.build(eurekaClient)
+        zoneTransfer.record(index)
+
+        when:
+        def msg = (type == AXFR) ? query(1, ZONE, AXFR) : ixfr(1, index.getVersion() - 1, authority)
+        def messages = zoneTransfer.respond(UnpooledByteBufAllocator.DEFAULT, msg, index, false, false)
+        def responses = messages.collect { decode(new DatagramPacket(it, clientAddr, serverAddr)) }
+
+        then:
+        responses.size() == 1
+        responses[0].code() == code
+        answers(responses)*.type() == types
+
+        cleanup:
+        responses?.each { it.release() }
+
+        where:
+        type | code    | types
+        AXFR | REFUSED | []
+        IXFR | NOERROR | [SOA]
+    }
+
+    def "zone transfers should be refused if they're disabled"() {
+        given:
+        createHandler(config.setZoneTransfer(false))
+
+        when:
+        def responses = transfer(query(1, ZONE, AXFR))
+
+        then:
+        responses.size() == 1
+        responses[0].code() == REFUSED
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "#type from client that is not allowed to transfer the zone should be refused"() {
+        given:
+        createHandler(config)
+        def msg = new DatagramDnsQuery(new InetSocketAddress(InetAddresses.forString("10.9.8.7"), 32456), serverAddr, 1)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(ZONE, type))
+
+        when:
+        def responses = transfer(msg)
+
+        then:
+        responses.size() == 1
+        responses[0].code() == REFUSED
+        answers(responses).isEmpty()
+
+        handler.zoneTransfer.getRefusedTransfers() == 1
+        handler.zoneTransfer.getFullTransfers() == 0
+
+        cleanup:
+        responses?.each { it.release() }
+
+        where:
+        type << [AXFR, IXFR]
+    }
+
+    def "notified secondary should be allowed to transfer the zone"() {
+        given:
+        createHandler(config
+                .setZoneTransferAllow([] as Set)
+                .setNotifySecondaries(["10.1.2.3:5300", "10.1.2.5"] as Set))
+
+        when:
+        def responses = transfer(query(1, ZONE, AXFR))
+
+        then:
+        responses[0].code() == NOERROR
+        answers(responses).size() > 2
+        handler.zoneTransfer.getRefusedTransfers() == 0
+
+        cleanup:
+        responses?.each { it.release() }
+    }
+
+    def "client #address should be allowed to transfer the zone: #allowed"() {
+        given:
+        def zoneTransfer = new ZoneTransfer(config.setZoneTransferAllow(["10.1.2.0/24", "2001:db8::53"] as Set),
+                new ZoneAuthority(config), { it == InetAddresses.forString("10.0.0.53") })
+
+        expect:
+        zoneTransfer.isAllowed(address ? InetAddresses.forString(address) : null) == allowed
+
+        where:
+        address        | allowed
+        "10.1.2.3"     | true
+        "10.1.2.255"   | true
+        "10.1.3.1"     | false
+        "10.0.0.53"    | true
+        "2001:db8::53" | true
+        "2001:db8::54" | false
+        null           | false
+    }
+
+    def "diff should contain only records of changed service entries"() {
+        given:
+        def zoneTransfer = new ZoneTransfer(config, new ZoneAuthority(config))
+        def index = RegistryIndex.build(eurekaClient)
+        def deleted = []
+        def added = []
+
+        when: "index is compared to itself"
+        zoneTransfer.diff(index, index, deleted, added)
+
+        then:
+        deleted.isEmpty()
+        added.isEmpty()
+
+        when: "compared to an empty index"
+        zoneTransfer.diff(RegistryIndex.build(new FakeEurekaClient()), index, deleted, added)
+
+        then:
+        deleted.isEmpty()
+        added.find { it.getName() == "corse.service.meureka" && it.getType() == A } != null
+        added.find { it.getName() == nodeName(corseInstance()) + ".node.meureka" && it.getType() == A } != null
+    }
+
+    def createHandler(DnsServerConfig config) {
+        handler = new DnsQueryHandler(config)
+        handler.start()
+        channel = new EmbeddedChannel(handler)
+    }
+
+    InstanceInfo corseInstance() {
+        eurekaClient.getApplications().getRegisteredApplications("CORSE").getInstances().first()
+    }
+
+    /**
+     * Returns node name of given instance derived from the first label of its hostname.
+     */
+    static String nodeName(InstanceInfo instance) {
+        NodeIndex.normalize(instance.getHostName().tokenize('.')[0])
+    }
+
+    DatagramDnsQuery query(int id, String name, DnsRecordType type) {
+        new DatagramDnsQuery(clientAddr, serverAddr, id)
+                .addRecord(DnsSection.QUESTION, new DefaultDnsQuestion(name, type))
+    }
+
+    /**
+     * Creates IXFR query carrying SOA record of given registry index version in authority section.
+     */
+    DatagramDnsQuery ixfr(int id, long version, ZoneAuthority authority = handler.zoneAuthority) {
+        def soa = authority.getSoaRData(version)
+        query(id, ZONE, IXFR)
+                .addRecord(DnsSection.AUTHORITY, new DefaultDnsRawRecord(ZONE, SOA, 60, Unpooled.wrappedBuffer(soa)))
+    }
+
+    List<DatagramDnsResponse> transfer(DatagramDnsQuery query) {
+        transferPackets(query).collect { decode(it) }
+    }
+
+    /**
+     * Sends query through handler and returns encoded responses wrapped to datagram packets.
+     */
+    List<DatagramPacket> transferPackets(DatagramDnsQuery query) {
+        channel.writeInbound(query)
+
+        // zone is built on zone transfer thread and written back on channel's event loop
+        new PollingConditions(timeout: 5).eventually {
+            channel.runPendingTasks()
+            assert handler.zoneTransfer == null || handler.zoneTransfer.getActiveTransfers() == 0
+        }
+
+        def packets = []
+        def msg
+        while ((msg = channel.readOutbound()) != null) {
+            assert msg instanceof ByteBuf
+            packets << new DatagramPacket(msg, clientAddr, serverAddr)
+        }
+        packets
+    }
+
+    DatagramDnsResponse decode(DatagramPacket packet) {
+        def decoder = new EmbeddedChannel(new DatagramDnsResponseDecoder())
+        decoder.writeInbound(packet)
+        DatagramDnsResponse response = decoder.readInbound()
+        decoder.finishAndReleaseAll()
+        response
+    }
+
+    static List<DnsRecord> answers(List<DatagramDnsResponse> responses) {
+        responses.collectMany { response ->
+            (0..<response.count(DnsSection.ANSWER)).collect { response.recordAt(DnsSection.ANSWER, it) }
+        }
+    }
+
+    static long serial(DnsRecord record) {
+        def content = ((DnsRawRecord) record).content()
+        content.getUnsignedInt(content.writerIndex() - 20)
+    }
+
+    static List<Byte> rdata(DnsRecord record) {
+        ByteBufUtil.getBytes(((DnsRawRecord) record).content()).toList()
+    }
+
+    static Set<List<Byte>> rdata(List<DnsRecord> records, String name, DnsRecordType type) {
+        records.findAll { it.name() == name && it.type() == type }.collect { rdata(it) } as Set
+    }
+
+    static InstanceInfo instance(String app, String hostname, String ip) {
+        InstanceInfo.Builder.newBuilder()
+                .setInstanceId("${hostname}:${app}:8080")
+                .setAppName(app)
+                .setHostName(hostname)
+                .setIPAddr(ip)
+                .setPort(8080)
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build()
+    }
+
+    /**
+     * Counts messages written between flushes.
+     */
+    static class FlushCounter extends ChannelOutboundHandlerAdapter {
+        final List<Integer> writesPerFlush = []
+        int writes
+
+        @Override
+        void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            writes++
+            ctx.write(msg, promise)
+        }
+
+        @Override
+        void flush(ChannelHandlerContext ctx) {
+            writesPerFlush << writes
+            writes = 0
+            ctx.flush()
+        }
+    }
+}
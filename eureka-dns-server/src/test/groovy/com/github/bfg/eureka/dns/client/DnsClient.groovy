@@ -28,15 +28,22 @@ class DnsClient {
      */
     final long timeoutMillis
 
+    /**
+     * Send queries over TCP instead of UDP.
+     */
+    final boolean tcp
+
     /**
      * Creates the client.
      * @param address dns server address
      * @param port dns server port
+     * @param tcp send queries over TCP instead of UDP
      */
-    DnsClient(String address, int port, long timeoutMillis = 100) {
+    DnsClient(String address, int port, long timeoutMillis = 100, boolean tcp = false) {
         this.address = address
         this.port = port
         this.timeoutMillis = timeoutMillis
+        this.tcp = tcp
     }
 
     /**
@@ -49,7 +56,7 @@ class DnsClient {
      */
     DnsResponse resolve(String name, String type = "A", String dnsClass = "IN") {
         def ts = System.nanoTime()
-        def command = [binary, '+tries=1', '+timeout=2', '-p', port, "@${address}",
+        def command = [binary, '+tries=1', '+timeout=2', (tcp ? '+tcp' : '+notcp'), '-p', port, "@${address}",
                        '-c', dnsClass, '-t', type, name] as String[]
         def process = new ProcessBuilder(command).start()
         log.debug("started command {} as {}", command.toList(), process)
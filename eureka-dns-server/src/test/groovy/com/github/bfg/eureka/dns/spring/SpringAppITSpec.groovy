@@ -5,11 +5,13 @@ import com.github.bfg.eureka.dns.DnsIntegrationSpec
 import com.github.bfg.eureka.dns.DnsServerConfig
 import groovy.util.logging.Slf4j
 import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.annotation.DirtiesContext
 import org.springframework.test.context.ActiveProfiles
 import org.yaml.snakeyaml.Yaml
 
 @Slf4j
 @SpringBootTest(classes = SpringApp)
+@DirtiesContext
 @ActiveProfiles("test")
 class SpringAppITSpec extends DnsIntegrationSpec {
     def setupSpec() {
@@ -1,10 +1,12 @@
 package com.github.bfg.eureka.dns.spring
 
 import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.annotation.DirtiesContext
 import org.springframework.test.context.ActiveProfiles
 import spock.lang.Specification
 
 @SpringBootTest
+@DirtiesContext
 @ActiveProfiles("test")
 abstract class SpringSpec extends Specification {
 }
\ No newline at end of file
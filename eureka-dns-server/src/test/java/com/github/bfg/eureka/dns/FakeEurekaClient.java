@@ -5,9 +5,9 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.netflix.appinfo.ApplicationInfoManager;
-import com.netflix.appinfo.HealthCheckCallback;
 import com.netflix.appinfo.HealthCheckHandler;
 import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
 import com.netflix.discovery.EurekaClient;
 import com.netflix.discovery.EurekaClientConfig;
 import com.netflix.discovery.EurekaEventListener;
@@ -28,13 +28,14 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.stream.Collectors;
 
 /**
  * Fake eureka client, meant for testing.
  */
 @Slf4j
-@SuppressWarnings("deprecated")
+@SuppressWarnings("deprecation")
 public final class FakeEurekaClient implements EurekaClient {
     private static final Applications EMPTY_APPS = new Applications();
     /**
@@ -48,6 +49,7 @@ public final class FakeEurekaClient implements EurekaClient {
     public static final String EUREKA_APPS_FNAME_PREFIX = "eureka-apps-";
 
     private final Map<String, Applications> appsMap = new ConcurrentHashMap<>();
+    private final Set<EurekaEventListener> eventListeners = new CopyOnWriteArraySet<>();
 
     private static ObjectMapper createObjectMapper() {
         return new ObjectMapper()
@@ -123,6 +125,33 @@ public final class FakeEurekaClient implements EurekaClient {
         return this;
     }
 
+    /**
+     * Sets applications of given region, replacing previously read ones.
+     *
+     * @param region region name, {@code default} for the local region
+     * @param apps   applications
+     * @return reference to itself
+     */
+    public FakeEurekaClient setApplications(@NonNull String region, @NonNull Applications apps) {
+        appsMap.put(region.toLowerCase(), apps);
+        return this;
+    }
+
+    /**
+     * Removes application from given region, replacing region's applications with a new instance.
+     *
+     * @param region  region name, {@code default} for the local region
+     * @param appName application name
+     * @return reference to itself
+     */
+    public FakeEurekaClient removeApplication(@NonNull String region, @NonNull String appName) {
+        val apps = new Applications();
+        Optional.ofNullable(appsMap.get(region.toLowerCase())).orElse(EMPTY_APPS).getRegisteredApplications().stream()
+                .filter(app -> !app.getName().equalsIgnoreCase(appName))
+                .forEach(apps::addApplication);
+        return setApplications(region, apps);
+    }
+
     @Override
     public Applications getApplicationsForARegion(String region) {
         return appsMap.get(region);
@@ -174,8 +203,8 @@ public final class FakeEurekaClient implements EurekaClient {
     }
 
     @Override
-    @SuppressWarnings("deprecated")
-    public void registerHealthCheckCallback(HealthCheckCallback callback) {
+    @SuppressWarnings("deprecation")
+    public void registerHealthCheckCallback(com.netflix.appinfo.HealthCheckCallback callback) {
         notImplemented();
     }
 
@@ -186,12 +215,32 @@ public final class FakeEurekaClient implements EurekaClient {
 
     @Override
     public void registerEventListener(EurekaEventListener eventListener) {
-        notImplemented();
+        eventListeners.add(eventListener);
     }
 
     @Override
     public boolean unregisterEventListener(EurekaEventListener eventListener) {
-        return notImplemented();
+        return eventListeners.remove(eventListener);
+    }
+
+    /**
+     * Notifies registered event listeners that local registry cache was refreshed.
+     *
+     * @return reference to itself
+     */
+    public FakeEurekaClient fireCacheRefreshedEvent() {
+        val event = new CacheRefreshedEvent();
+        eventListeners.forEach(e -> e.onEvent(event));
+        return this;
+    }
+
+    /**
+     * Returns registered event listeners.
+     *
+     * @return event listeners
+     */
+    public Set<EurekaEventListener> getEventListeners() {
+        return eventListeners;
     }
 
     @Override
@@ -17,6 +17,13 @@ EOF
   perl -e "$code" "$@"
 }
 
+count_syscalls() {
+  local pid="$1"
+  local duration="$2"
+  timeout -s INT "$duration" \
+    strace -c -f -p "$pid" -e trace=recvfrom,recvmsg,recvmmsg,sendto,sendmsg,sendmmsg,epoll_wait 2>&1
+}
+
 if [ -z "$1" ]; then
   cat <<EOF
 USAGE: $0 <dns-name> <dns-name> ...
@@ -24,11 +31,26 @@ USAGE: $0 <dns-name> <dns-name> ...
 EXAMPLE:
   $0 {some-service,foo,bar,database,nginx,web,api}.service.eureka
 
+  # also count datagram syscalls of running eureka-dns-server (requires strace)
+  SERVER_PID=<pid> $0 {some-service,foo,bar,database,nginx,web,api}.service.eureka
+
 EOF
   exit 1
 fi
 
-generate_queries "$@" | dnsperf -s 127.0.0.1 -p 8553 -l 20 -c 100
+DURATION=20
+if [ -n "$SERVER_PID" ]; then
+  count_syscalls "$SERVER_PID" "$DURATION" > /tmp/eureka-dns-syscalls.txt &
+  STRACE_PID=$!
+fi
+
+generate_queries "$@" | dnsperf -s 127.0.0.1 -p 8553 -l "$DURATION" -c 100
+
+if [ -n "$STRACE_PID" ]; then
+  wait "$STRACE_PID"
+  echo "datagram syscalls of process $SERVER_PID:"
+  cat /tmp/eureka-dns-syscalls.txt
+fi
 
 # vim:shiftwidth=2 softtabstop=2 expandtab
 # EOF